@@ -0,0 +1,134 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.benchmark;
+
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.util.BoundingBox3d;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.Scene;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelManager;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelManager.VoxelCrossingContext;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelManagerSettings;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Rays per second of the voxel walk of {@link VoxelManager#CrossVoxel(Point3d, Vector3d, Point3i)},
+ * each ray is followed from a random point of the voxel space until it leaves the voxel space.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CrossVoxelBenchmark {
+
+    private final static int NB_RAYS = 4096;
+
+    @Param({"0.5", "1.0"})
+    public float resolution;
+
+    private VoxelManager voxelManager;
+
+    private Point3d[] origins;
+    private Vector3d[] directions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        Point3d min = new Point3d(0, 0, 0);
+        Point3d max = new Point3d(SyntheticData.PLOT_SIZE, SyntheticData.PLOT_SIZE, SyntheticData.PLOT_HEIGHT);
+
+        Point3i split = new Point3i((int) Math.round(SyntheticData.PLOT_SIZE / resolution),
+                (int) Math.round(SyntheticData.PLOT_SIZE / resolution),
+                (int) Math.round(SyntheticData.PLOT_HEIGHT / resolution));
+
+        Scene scene = new Scene();
+        scene.setBoundingBox(new BoundingBox3d(min, max));
+
+        voxelManager = new VoxelManager(scene, new VoxelManagerSettings(split, VoxelManagerSettings.NON_TORIC_FINITE_BOX_TOPOLOGY));
+
+        Random random = new Random(1);
+
+        origins = new Point3d[NB_RAYS];
+        directions = new Vector3d[NB_RAYS];
+
+        for (int i = 0; i < NB_RAYS; i++) {
+
+            origins[i] = new Point3d(random.nextDouble() * SyntheticData.PLOT_SIZE,
+                    random.nextDouble() * SyntheticData.PLOT_SIZE,
+                    random.nextDouble() * SyntheticData.PLOT_HEIGHT);
+
+            directions[i] = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+            directions[i].normalize();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_RAYS)
+    public void crossVoxel(Blackhole blackhole) {
+
+        Point3d position = new Point3d();
+
+        for (int i = 0; i < NB_RAYS; i++) {
+
+            position.set(origins[i]);
+
+            Point3i indices = voxelManager.getVoxelSpace().getVoxelIndices(position);
+            double distance = 0;
+
+            while (indices != null) {
+
+                VoxelCrossingContext context = voxelManager.CrossVoxel(position, directions[i], indices);
+
+                position.scaleAdd(context.length, directions[i], position);
+                distance += context.length;
+
+                indices = context.indices;
+            }
+
+            blackhole.consume(distance);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(CrossVoxelBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
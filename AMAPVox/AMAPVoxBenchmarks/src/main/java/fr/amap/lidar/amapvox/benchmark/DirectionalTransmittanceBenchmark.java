@@ -0,0 +1,121 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.benchmark;
+
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.DirectionalTransmittance;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Rays per second of {@link DirectionalTransmittance#directionalTransmittance(Point3d, Vector3d)},
+ * from sensor positions 1 m above the ground of the synthetic plot, in the upper hemisphere.
+ * The voxel file is voxelised from the synthetic ALS shots at setup.
+ * The batch benchmark casts the rays with one call to the batch method.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectionalTransmittanceBenchmark {
+
+    private final static int NB_RAYS = 4096;
+
+    @Param({"false", "true"})
+    public boolean toricity;
+
+    @Param({"0.5", "1.0"})
+    public float resolution;
+
+    private DirectionalTransmittance transmittance;
+
+    private Point3d[] origins;
+    private Vector3d[] directions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        File file = File.createTempFile("benchmark_", ".voxb");
+
+        try {
+            SyntheticData.writeVoxelFile(file, VoxelsFormat.BINARY, resolution, 200000, 1);
+
+            transmittance = new DirectionalTransmittance(file);
+            transmittance.setToricity(toricity);
+        } finally {
+            file.delete();
+        }
+
+        Random random = new Random(1);
+
+        origins = new Point3d[NB_RAYS];
+        directions = new Vector3d[NB_RAYS];
+
+        for (int i = 0; i < NB_RAYS; i++) {
+
+            origins[i] = new Point3d(random.nextDouble() * SyntheticData.PLOT_SIZE, random.nextDouble() * SyntheticData.PLOT_SIZE, 1);
+
+            directions[i] = new Vector3d(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() + 0.05);
+            directions[i].normalize();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_RAYS)
+    public void directionalTransmittance(Blackhole blackhole) {
+
+        for (int i = 0; i < NB_RAYS; i++) {
+            blackhole.consume(transmittance.directionalTransmittance(origins[i], directions[i]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_RAYS)
+    public void batch(Blackhole blackhole) {
+        blackhole.consume(transmittance.directionalTransmittance(origins, directions));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(DirectionalTransmittanceBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
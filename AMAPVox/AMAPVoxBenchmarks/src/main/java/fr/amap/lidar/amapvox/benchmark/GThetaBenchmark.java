@@ -0,0 +1,105 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.benchmark;
+
+import fr.amap.lidar.amapvox.commons.GTheta;
+import fr.amap.lidar.amapvox.commons.LeafAngleDistribution;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Angles per second of {@link GTheta#getGThetaFromAngle(double, boolean)}, with the look up table
+ * built by {@link GTheta#buildTable(int)} and with the integration of the leaf angle distribution at each call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GThetaBenchmark {
+
+    private final static int NB_ANGLES = 1024;
+
+    @Param({"SPHERIC", "PLANOPHILE", "ELLIPSOIDAL"})
+    public LeafAngleDistribution.Type distribution;
+
+    private GTheta table;
+    private GTheta integration;
+
+    private double[] angles;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        table = new GTheta(new LeafAngleDistribution(distribution, 1.5));
+        table.buildTable(GTheta.DEFAULT_STEP_NUMBER);
+
+        integration = new GTheta(new LeafAngleDistribution(distribution, 1.5));
+
+        Random random = new Random(1);
+
+        angles = new double[NB_ANGLES];
+
+        for (int i = 0; i < NB_ANGLES; i++) {
+            angles[i] = random.nextDouble() * Math.PI;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_ANGLES)
+    public void table(Blackhole blackhole) {
+
+        for (int i = 0; i < NB_ANGLES; i++) {
+            blackhole.consume(table.getGThetaFromAngle(angles[i], false));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_ANGLES)
+    public void integration(Blackhole blackhole) {
+
+        for (int i = 0; i < NB_ANGLES; i++) {
+            blackhole.consume(integration.getGThetaFromAngle(angles[i], false));
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(GThetaBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
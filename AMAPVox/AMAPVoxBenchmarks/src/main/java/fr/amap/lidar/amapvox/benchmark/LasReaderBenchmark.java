@@ -0,0 +1,109 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.benchmark;
+
+import fr.amap.amapvox.als.las.LasBatchReader;
+import fr.amap.amapvox.als.las.LasPointBatch;
+import fr.amap.amapvox.als.las.LasReader;
+import fr.amap.amapvox.als.las.PointDataRecordFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Throughput of the point iterator of {@link LasReader} against {@link LasBatchReader} on a synthetic
+ * las file, one operation reads the whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LasReaderBenchmark {
+
+    @Param({"1", "3"})
+    public int pointFormatID;
+
+    @Param({"1000000"})
+    public int nbPoints;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        file = File.createTempFile("benchmark_", ".las");
+        SyntheticData.writeLasFile(file, pointFormatID, nbPoints, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public void iterator(Blackhole blackhole) throws Exception {
+
+        LasReader reader = new LasReader();
+        reader.open(file);
+
+        for (PointDataRecordFormat point : reader) {
+            blackhole.consume(point.getX() + point.getY() + point.getZ() + point.getReturnNumber() + point.getClassification() + point.getGpsTime());
+        }
+    }
+
+    @Benchmark
+    public void batch(Blackhole blackhole) throws Exception {
+
+        try (LasBatchReader reader = new LasBatchReader(file)) {
+
+            LasPointBatch batch = new LasPointBatch(LasBatchReader.DEFAULT_BATCH_SIZE);
+
+            while (reader.read(batch) > 0) {
+                for (int i = 0; i < batch.size(); i++) {
+                    blackhole.consume(batch.x[i] + batch.y[i] + batch.z[i] + batch.returnNumber[i] + batch.classification[i] + batch.gpsTime[i]);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(LasReaderBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.benchmark;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Shots per second of {@link VoxelAnalysis#processOneShot(Shot)}, with the ALS shots
+ * (from above, 0 to 5 echoes) and the TLS shots (from a scanner under the canopy, 0 to 3 echoes)
+ * of {@link SyntheticData}.
+ *
+ * <p>The directions of the synthetic shots are normalized, the in place normalization
+ * of processOneShot leaves them unchanged and the shots are propagated again at each invocation.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessOneShotBenchmark {
+
+    private final static int NB_SHOTS = 10000;
+
+    @Param({"ALS", "TLS"})
+    public VoxelSpaceInfos.Type type;
+
+    @Param({"0.5", "1.0"})
+    public float resolution;
+
+    private VoxelAnalysis voxelAnalysis;
+    private Shot[] shots;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        voxelAnalysis = new VoxelAnalysis(null, null, SyntheticData.createConfiguration(type, resolution));
+        voxelAnalysis.createVoxelSpace();
+
+        shots = SyntheticData.createShots(type, NB_SHOTS, 1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NB_SHOTS)
+    public void processOneShot() throws IOException {
+
+        for (Shot shot : shots) {
+            voxelAnalysis.processOneShot(shot);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(ProcessOneShotBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,266 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.benchmark;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.LaserSpecification;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.EchoesWeightParams;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Synthetic inputs of the benchmarks: shots over a canopy, voxel files and las files.
+ * The data only depend on the seed, two runs of a benchmark read the same data.
+ *
+ * <p>The scene is a square plot of {@link #PLOT_SIZE} m with a canopy between 5 m and 30 m,
+ * the voxel space covers the plot from the ground to {@link #PLOT_HEIGHT} m.</p>
+ */
+public class SyntheticData {
+
+    public final static double PLOT_SIZE = 40;
+    public final static double PLOT_HEIGHT = 35;
+
+    /**
+     * Create the configuration of a voxelisation of the plot.
+     * @param type ALS or TLS voxel space (echoes weighting and laser specification)
+     * @param resolution voxel size
+     * @return the configuration
+     */
+    public static VoxelAnalysisCfg createConfiguration(VoxelSpaceInfos.Type type, float resolution) {
+
+        VoxelAnalysisCfg cfg = new VoxelAnalysisCfg();
+
+        EchoesWeightParams echoesWeightParams = new EchoesWeightParams();
+
+        if(type == VoxelSpaceInfos.Type.ALS){
+            echoesWeightParams.setWeightingData(EchoesWeightParams.DEFAULT_ALS_WEIGHTING);
+            echoesWeightParams.setWeightingMode(EchoesWeightParams.WEIGHTING_ECHOS_NUMBER);
+        }
+
+        VoxelParameters params = new VoxelParameters.Builder(new Point3d(0, 0, 0), new Point3d(PLOT_SIZE, PLOT_SIZE, PLOT_HEIGHT), resolution, type)
+                .echoesWeightParams(echoesWeightParams)
+                .laserSpecification(type == VoxelSpaceInfos.Type.ALS ? LaserSpecification.LMS_Q560 : LaserSpecification.VZ_400)
+                .padMAX(5.0f)
+                .build();
+
+        cfg.setVoxelParameters(params);
+
+        return cfg;
+    }
+
+    /**
+     * Create shots over the plot.
+     * ALS shots come from 300 m above the plot with a scan angle up to 20 degrees and have 0 to 5 echoes,
+     * TLS shots come from a scanner at the center of the plot, in the upper hemisphere, and have 0 to 3 echoes.
+     * @param type ALS or TLS shots
+     * @param nbShots number of shots
+     * @param seed seed of the random generator
+     * @return the shots
+     */
+    public static Shot[] createShots(VoxelSpaceInfos.Type type, int nbShots, long seed) {
+
+        Random random = new Random(seed);
+        Shot[] shots = new Shot[nbShots];
+
+        for (int i = 0; i < nbShots; i++) {
+
+            Point3d origin;
+            Vector3d direction;
+            double[] ranges;
+
+            if(type == VoxelSpaceInfos.Type.ALS){
+
+                origin = new Point3d(random.nextDouble() * PLOT_SIZE, random.nextDouble() * PLOT_SIZE, 300);
+
+                double scanAngle = Math.toRadians(random.nextDouble() * 40 - 20);
+                direction = new Vector3d(Math.sin(scanAngle), random.nextDouble() * 0.02 - 0.01, -Math.cos(scanAngle));
+                direction.normalize();
+
+                //echoes from the top of the canopy to the ground
+                double canopyRange = (300 - 30) / -direction.z;
+                double groundRange = 300 / -direction.z;
+
+                ranges = new double[random.nextInt(6)];
+
+                double range = canopyRange;
+
+                for (int e = 0; e < ranges.length; e++) {
+                    range += random.nextDouble() * (groundRange - range) / (ranges.length - e);
+                    ranges[e] = range;
+                }
+
+            }else{
+
+                origin = new Point3d(PLOT_SIZE / 2, PLOT_SIZE / 2, 1.5);
+
+                double azimut = random.nextDouble() * Math.PI * 2;
+                double elevation = Math.asin(random.nextDouble() * 0.95);
+
+                direction = new Vector3d(Math.cos(azimut) * Math.cos(elevation), Math.sin(azimut) * Math.cos(elevation), Math.sin(elevation));
+
+                ranges = new double[random.nextInt(4)];
+
+                double range = 1;
+
+                for (int e = 0; e < ranges.length; e++) {
+                    range += random.nextDouble() * 15;
+                    ranges[e] = range;
+                }
+            }
+
+            shots[i] = new Shot(origin, direction, ranges);
+        }
+
+        return shots;
+    }
+
+    /**
+     * Voxelise ALS shots and write the voxel file.
+     * @param file output file
+     * @param format format of the voxel file
+     * @param resolution voxel size
+     * @param nbShots number of shots
+     * @param seed seed of the shots
+     * @throws Exception if the file cannot be written
+     */
+    public static void writeVoxelFile(File file, VoxelsFormat format, float resolution, int nbShots, long seed) throws Exception {
+
+        VoxelAnalysis voxelAnalysis = new VoxelAnalysis(null, null, createConfiguration(VoxelSpaceInfos.Type.ALS, resolution));
+        voxelAnalysis.createVoxelSpace();
+
+        for (Shot shot : createShots(VoxelSpaceInfos.Type.ALS, nbShots, seed)) {
+            voxelAnalysis.processOneShot(shot);
+        }
+
+        voxelAnalysis.computePADs();
+        voxelAnalysis.write(format, file);
+    }
+
+    /**
+     * Write a las 1.2 file with points of format 1, 1 to 5 returns per pulse over the plot.
+     * @param file output file
+     * @param nbPoints number of points
+     * @param seed seed of the random generator
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeLasFile(File file, int nbPoints, long seed) throws IOException {
+        writeLasFile(file, 1, nbPoints, seed);
+    }
+
+    /**
+     * Write a las 1.2 file, 1 to 5 returns per pulse over the plot.
+     * @param file output file
+     * @param pointFormatID point data format, 1 or 3 (format 1 with colors)
+     * @param nbPoints number of points
+     * @param seed seed of the random generator
+     * @throws IOException if the file cannot be written
+     */
+    public static void writeLasFile(File file, int pointFormatID, int nbPoints, long seed) throws IOException {
+
+        if(pointFormatID != 1 && pointFormatID != 3){
+            throw new IllegalArgumentException("Point data format " + pointFormatID + " is not supported");
+        }
+
+        final int headerSize = 227;
+        final int recordLength = pointFormatID == 1 ? 28 : 34;
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put(new byte[]{'L', 'A', 'S', 'F'});
+        header.position(24);
+        header.put((byte) 1); //version major
+        header.put((byte) 2); //version minor
+        header.position(94);
+        header.putShort((short) headerSize);
+        header.putInt(headerSize); //offset to point data
+        header.putInt(0); //number of variable length records
+        header.put((byte) pointFormatID); //point data format
+        header.putShort((short) recordLength);
+        header.putInt(nbPoints);
+        header.position(header.position() + 20); //number of points by return
+        header.putDouble(0.01).putDouble(0.01).putDouble(0.01); //scale factors
+        header.putDouble(0).putDouble(0).putDouble(0); //offsets
+        header.putDouble(PLOT_SIZE).putDouble(0).putDouble(PLOT_SIZE).putDouble(0).putDouble(PLOT_HEIGHT).putDouble(0); //bounds
+        header.flip();
+
+        Random random = new Random(seed);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            while(header.hasRemaining()){
+                channel.write(header);
+            }
+
+            ByteBuffer block = ByteBuffer.allocate(recordLength * 4096).order(ByteOrder.LITTLE_ENDIAN);
+
+            int nbReturns = 0;
+            int returnNumber = 0;
+            double gpsTime = 300000;
+
+            for (int i = 0; i < nbPoints; i++) {
+
+                if(returnNumber == nbReturns){
+                    nbReturns = random.nextInt(5) + 1;
+                    returnNumber = 0;
+                    gpsTime += 0.00001;
+                }
+
+                returnNumber++;
+
+                if(block.remaining() < recordLength){
+                    block.flip();
+                    while(block.hasRemaining()){
+                        channel.write(block);
+                    }
+                    block.clear();
+                }
+
+                block.putInt((int) (random.nextDouble() * PLOT_SIZE * 100));
+                block.putInt((int) (random.nextDouble() * PLOT_SIZE * 100));
+                block.putInt((int) (random.nextDouble() * 30 * 100));
+                block.putShort((short) random.nextInt(1 << 12)); //intensity
+                block.put((byte) (returnNumber | (nbReturns << 3)));
+                block.put((byte) (returnNumber == nbReturns ? 2 : 5)); //classification
+                block.put((byte) (random.nextInt(41) - 20)); //scan angle
+                block.put((byte) 0); //user data
+                block.putShort((short) 1); //point source
+                block.putDouble(gpsTime);
+
+                if(pointFormatID == 3){
+                    block.putShort((short) random.nextInt(1 << 16)); //red
+                    block.putShort((short) random.nextInt(1 << 16)); //green
+                    block.putShort((short) random.nextInt(1 << 16)); //blue
+                }
+            }
+
+            block.flip();
+            while(block.hasRemaining()){
+                channel.write(block);
+            }
+        }
+    }
+}
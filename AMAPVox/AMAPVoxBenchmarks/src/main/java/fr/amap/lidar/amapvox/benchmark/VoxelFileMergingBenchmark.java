@@ -0,0 +1,113 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.benchmark;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxMergingCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.postproc.VoxelFileMerging;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Merging of synthetic voxel files with {@link VoxelFileMerging}, in merged files per second.
+ * The files are voxelised at setup from different synthetic ALS shots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VoxelFileMergingBenchmark {
+
+    private final static float RESOLUTION = 1.0f;
+
+    @Param({"VOXEL", "BINARY"})
+    public VoxelsFormat format;
+
+    @Param({"4"})
+    public int nbFiles;
+
+    @Param({"1", "4"})
+    public int nbThreads;
+
+    private List<File> files;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+
+        files = new ArrayList<>(nbFiles);
+
+        for (int i = 0; i < nbFiles; i++) {
+
+            File file = File.createTempFile("benchmark_", format == VoxelsFormat.BINARY ? ".voxb" : ".vox");
+            SyntheticData.writeVoxelFile(file, format, RESOLUTION, 20000, 100 + i);
+
+            files.add(file);
+        }
+
+        output = File.createTempFile("benchmark_", ".vox");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+
+        for (File file : files) {
+            file.delete();
+        }
+
+        output.delete();
+    }
+
+    @Benchmark
+    public void merge() throws Exception {
+
+        VoxelFileMerging merging = new VoxelFileMerging();
+        merging.setNbThreads(nbThreads);
+
+        merging.mergeVoxelFiles(new VoxMergingCfg(output,
+                SyntheticData.createConfiguration(VoxelSpaceInfos.Type.ALS, RESOLUTION).getVoxelParameters(), files));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+
+        Options options = new OptionsBuilder()
+                .include(VoxelFileMergingBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(options).run();
+    }
+}
@@ -18,7 +18,7 @@ import javax.vecmath.Point3i;
 public class VoxelSpace{
     
     protected final VoxelSpaceInfos voxelSpaceInfos;
-    public List voxels;
+    public List<Object> voxels;
 
     public VoxelSpace(VoxelSpaceInfos voxelSpaceInfos) {
         this.voxelSpaceInfos = voxelSpaceInfos;
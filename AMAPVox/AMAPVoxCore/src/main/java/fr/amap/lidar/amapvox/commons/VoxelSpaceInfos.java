@@ -84,7 +84,8 @@ public class VoxelSpaceInfos {
             
             String identifier = reader.readLine();
             
-            if(!identifier.equals("VOXEL SPACE")){
+            //the binary voxel files share the text header
+            if(!identifier.equals("VOXEL SPACE") && !identifier.equals("VOXEL SPACE BINARY")){
                 reader.close();
                 throw new Exception("Voxel file is invalid, VOXEL SPACE identifier is missing");
             }
@@ -9,12 +9,14 @@ import fr.amap.lidar.amapvox.commons.LeafAngleDistribution;
 import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.util.BoundingBox3d;
 import fr.amap.lidar.amapvox.commons.Voxel;
 import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.voxreader.BinaryVoxelFileReader;
 import fr.amap.lidar.amapvox.voxreader.VoxelFileReader;
 import java.io.File;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.List;
+import java.util.stream.IntStream;
 import javax.vecmath.Point3d;
 import javax.vecmath.Point3i;
 import javax.vecmath.Vector3d;
@@ -23,6 +25,17 @@ import org.apache.log4j.Logger;
 
 /**
  * Get ray transmittance from a position to a direction into a sampled voxel space.
+ * 
+ * <p>The ray is marched through the voxel walls in increasing distance order, the walls
+ * of the three axis being merged on the fly. The plant area densities are stored in a flat
+ * array (k index varying first) and the marching does not allocate, so a single instance
+ * can be shared by several threads.</p>
+ * 
+ * <p>The batch methods cast many rays at once, large batches are split into chunks of
+ * {@link #BATCH_CHUNK_SIZE} rays computed in the common fork/join pool. The callers which
+ * already compute several positions in parallel use
+ * {@link #directionalTransmittance(Point3d, Vector3d[], int, int, double[])}, computed in
+ * the calling thread.</p>
  * @author main :Jean Dauzat ; co: Julien Heurtebize
  */
 public class DirectionalTransmittance {
@@ -38,7 +51,7 @@ public class DirectionalTransmittance {
     private final VoxelSpaceInfos infos;
     private final VoxelSpace voxSpace;
     
-    private TLSVoxel voxels[][][];
+    private final float[] pad;
     private float mnt[][];
     
     private fr.amap.lidar.amapvox.commons.GTheta direcTrans;
@@ -46,10 +59,10 @@ public class DirectionalTransmittance {
     private boolean toricity = false;
     private final static double EPSILON = 0.001;
     
-    private class TLSVoxel {
-
-        float padBV;
-    }
+    /**
+     * Number of rays computed by a task of the batch methods, a batch of one chunk is computed by the calling thread.
+     */
+    public final static int BATCH_CHUNK_SIZE = 256;
 
     /**
      * 
@@ -77,9 +90,15 @@ public class DirectionalTransmittance {
         
         voxSpace = new VoxelSpace(new BoundingBox3d(min, max), splitting, 0);
         
-        createVoxelTable();
+        pad = new float[splitting.x * splitting.y * splitting.z];
         allocateMNT();
         
+        if(reader.binaryReader != null){
+            readColumns(reader.binaryReader);
+            reader.binaryReader.close();
+            return;
+        }
+        
         Iterator<Voxel> iterator = reader.iterator();
         
         while(iterator.hasNext()){
@@ -94,7 +113,7 @@ public class DirectionalTransmittance {
                 /*if (Float.isNaN(voxel.PadBVTotal)) {
                     voxels[voxel.$i][voxel.$j][voxel.$k].padBV = 0;
                 } else {*/
-                    voxels[voxel.$i][voxel.$j][voxel.$k].padBV = voxel.PadBVTotal;
+                    pad[index(voxel.$i, voxel.$j, voxel.$k)] = voxel.PadBVTotal;
                 //}
             }else{
                 logger.warn("Voxel null");
@@ -103,161 +122,132 @@ public class DirectionalTransmittance {
         
     }
     
-    private List<Double> distToVoxelWallsV2(Point3d origin, Vector3d direction) {
-
-        // point where the ray exits from the top of the bounding box
+    /**
+     * Fill the voxel table and the ground from the columns of a binary voxel file,
+     * without building the voxels.
+     */
+    private void readColumns(BinaryVoxelFileReader binaryReader) throws IOException {
         
-        double distToTop = (max.z - origin.z) / direction.z;
-
-        List<Double> distances = new ArrayList<>();
+        //same voxel order in the file and in the pad array
+        FloatBuffer padColumn = binaryReader.getColumn("PadBVTotal").duplicate();
+        padColumn.position(0);
+        padColumn.get(pad);
         
-        distances.add(distToTop);
-
-        // voxel walls in X
-       
-        if(direction.x != 0){
-            double deltaX = min.x - origin.x;
-            deltaX -= voxSize.x * ((int)(deltaX/voxSize.x));
-
-            if(direction.x > 0){
-                deltaX = voxSize.x - deltaX;
-            }
-
-            double dist = Math.abs(deltaX / direction.x);
-            distances.add(dist);
-            
-            double dX = Math.abs(voxSize.x / direction.x);
-            while(dist < distToTop){
-                //current distance
-                dist += dX;
-                distances.add(dist);
-            }
-        }
-        
-        // voyel walls in Y
-       
-        if(direction.y != 0){
-            double deltaY = min.y - origin.y;
-            deltaY -= voxSize.y * ((int)(deltaY/voxSize.y));
-
-            if(direction.y > 0){
-                deltaY = voxSize.y - deltaY;
-            }
-
-            double dist = Math.abs(deltaY / direction.y);
-            distances.add(dist);
-            
-            double dY = Math.abs(voxSize.y / direction.y);
-            while(dist < distToTop){
-                //current distance
-                dist += dY;
-                distances.add(dist);
-            }
-        }
+        FloatBuffer groundDistance = binaryReader.getColumn("ground_distance");
         
-        // vozel walls in Z
-       
-        if(direction.z != 0){
-            double deltaZ = min.z - origin.z;
-            deltaZ -= voxSize.z * ((int)(deltaZ/voxSize.z));
-
-            if(direction.z > 0){
-                deltaZ = voxSize.z - deltaZ;
-            }
-
-            double dist = Math.abs(deltaZ / direction.z);
-            distances.add(dist);
-            
-            double dZ = Math.abs(voxSize.z / direction.z);
-            while(dist < distToTop){
-                //current distance
-                dist += dZ;
-                distances.add(dist);
+        for (int i = 0; i < splitting.x; i++) {
+            for (int j = 0; j < splitting.y; j++) {
+                mnt[i][j] = groundDistance.get(index(i, j, 0));
             }
         }
-
-        Collections.sort(distances);
-
-        return distances;
     }
- 
-    private List<Double> distToVoxelWalls(Point3d origin, Vector3d direction) {
-
-        // point where the ray exits from the top of the bounding box
+    
+    private int index(int i, int j, int k){
+        return (i * splitting.y + j) * splitting.z + k;
+    }
+    
+    /**
+     * Distance to the first voxel wall crossed along an axis.
+     */
+    private static double firstWall(double min, double origin, double voxSize, double direction){
         
-        Point3d exit = new Point3d(direction);
-        double dist = (max.z - origin.z) / direction.z;
-        exit.scale(dist);
-        exit.add(origin);
-
-        Point3i originVoxel = new Point3i((int) ((origin.x - min.x) / voxSize.x), (int) ((origin.y - min.y) / voxSize.y), (int) ((origin.z - min.z) / voxSize.z));
-        Point3i exitVoxel = new Point3i((int) ((exit.x - min.x) / voxSize.x), (int) ((exit.y - min.y) / voxSize.y), (int) ((exit.z - min.z) / voxSize.z));
-
-        List<Double> distances = new ArrayList<>();
-
-        Vector3d oe = new Vector3d(exit);
-        oe.sub(origin);
-        distances.add(0.0);
-        distances.add(oe.length());
-
-        // voxel walls in X
-        int minX = Math.min(originVoxel.x, exitVoxel.x);
-        int maxX = Math.max(originVoxel.x, exitVoxel.x);
-        for (int m = minX; m < maxX; m++) {
-            double dx = (m + 1) * voxSize.x;
-            dx += min.x - origin.x;
-            dx /= direction.x;
-            distances.add(dx);
-        }
+        double delta = min - origin;
+        delta -= voxSize * ((int)(delta/voxSize));
 
-        // voxel walls in Y
-        int minY = Math.min(originVoxel.y, exitVoxel.y);
-        int maxY = Math.max(originVoxel.y, exitVoxel.y);
-        for (int m = minY; m < maxY; m++) {
-            double dy = (m + 1) * voxSize.y;
-            dy += min.y - origin.y;
-            dy /= direction.y;
-            distances.add(dy);
+        if(direction > 0){
+            delta = voxSize - delta;
         }
 
-        // voxel walls in Z
-        int minZ = Math.min(originVoxel.z, exitVoxel.z);
-        int maxZ = Math.max(originVoxel.z, exitVoxel.z);
-        for (int m = minZ; m < maxZ; m++) {
-            double dz = (m + 1) * voxSize.z;
-            dz += min.z - origin.z;
-            dz /= direction.z;
-            distances.add(dz);
-        }
-
-        Collections.sort(distances);
-
-        return distances;
+        return Math.abs(delta / direction);
     }
     
+    /**
+     * Compute the transmittance of a ray.
+     * The ray is marched segment by segment, a segment ending at a voxel wall or at the top of
+     * the bounding box. It stops when it leaves the voxel space or when it reaches an unsampled
+     * voxel.
+     * @param origin origin of the ray
+     * @param direction normalized direction of the ray
+     * @return the transmittance, 0 when the ray goes below the ground, NaN when it crosses a voxel
+     * whose plant area density is not defined
+     */
     public double directionalTransmittance(Point3d origin, Vector3d direction) {
         
-        List<Double> distances = distToVoxelWallsV2(origin, direction);
-        
         //we can optimize this by storing the angle value to avoid repeating this for each position
         double directionAngle = FastMath.toDegrees(FastMath.acos(direction.z)); 
         
-        double dMoy;
-        Point3d pMoy;
+        //the direction is the same for all the voxels crossed
+        float coefficientGTheta = (float) direcTrans.getGThetaFromAngle(directionAngle, true);
+        
+        // point where the ray exits from the top of the bounding box
+        double distToTop = (max.z - origin.z) / direction.z;
+        boolean topPending = true;
+        
+        // next voxel wall in X, Y and Z, each axis stops after the first wall beyond the top
+        boolean hasX = direction.x != 0;
+        boolean hasY = direction.y != 0;
+        boolean hasZ = direction.z != 0;
+        
+        double nextX = hasX ? firstWall(min.x, origin.x, voxSize.x, direction.x) : 0;
+        double nextY = hasY ? firstWall(min.y, origin.y, voxSize.y, direction.y) : 0;
+        double nextZ = hasZ ? firstWall(min.z, origin.z, voxSize.z, direction.z) : 0;
+        
+        double dX = Math.abs(voxSize.x / direction.x);
+        double dY = Math.abs(voxSize.y / direction.y);
+        double dZ = Math.abs(voxSize.z / direction.z);
 
         double d1 = 0;
         double transmitted = 1;
-        for (Double d2 : distances) {
+        
+        while (true) {
+            
+            // nearest wall, in the same order as Double.compare
+            double d2 = distToTop;
+            int axis = topPending ? 3 : -1;
+            
+            if(hasX && (axis == -1 || Double.compare(nextX, d2) < 0)){
+                d2 = nextX;
+                axis = 0;
+            }
+            
+            if(hasY && (axis == -1 || Double.compare(nextY, d2) < 0)){
+                d2 = nextY;
+                axis = 1;
+            }
+            
+            if(hasZ && (axis == -1 || Double.compare(nextZ, d2) < 0)){
+                d2 = nextZ;
+                axis = 2;
+            }
+            
+            switch(axis){
+                case 0:
+                    if(nextX < distToTop){ nextX += dX; } else { hasX = false; }
+                    break;
+                case 1:
+                    if(nextY < distToTop){ nextY += dY; } else { hasY = false; }
+                    break;
+                case 2:
+                    if(nextZ < distToTop){ nextZ += dZ; } else { hasZ = false; }
+                    break;
+                case 3:
+                    topPending = false;
+                    break;
+                default:
+                    return transmitted;
+            }
+            
             double pathLength = d2 - d1;
-            dMoy = (d1 + d2) / 2.0;
-            pMoy = new Point3d(direction);
-            pMoy.scale(dMoy);
-            pMoy.add(origin);
-            pMoy.sub(min);
+            double dMoy = (d1 + d2) / 2.0;
+            
+            // middle of the segment, relative to the min corner
+            double x = direction.x * dMoy + origin.x - min.x;
+            double y = direction.y * dMoy + origin.y - min.y;
+            double z = direction.z * dMoy + origin.z - min.z;
             
-            int i = (int) Math.floor(pMoy.x / voxSize.x);
-            int j = (int) Math.floor(pMoy.y / voxSize.y);
-            int k = (int) Math.floor(pMoy.z / voxSize.z);
+            int i = (int) Math.floor(x / voxSize.x);
+            int j = (int) Math.floor(y / voxSize.y);
+            int k = (int) Math.floor(z / voxSize.z);
             
             if (i < 0 || j < 0 || k < 0 || i >= splitting.x || j >= splitting.y || k >= splitting.z) {
                 
@@ -278,29 +268,17 @@ public class DirectionalTransmittance {
             }
             
             // Test if current voxel is below the ground level
-            if (pMoy.z < mnt[i][j]) {
+            if (z < mnt[i][j]) {
                 transmitted = 0;
             } else {
-                if(Float.isNaN(voxels[i][j][k].padBV)){
-                    //test
-                    //voxels[i][j][k].padBV = 3.536958f;
-                    return Double.NaN;
-                }
-                
-                float coefficientGTheta = (float) direcTrans.getGThetaFromAngle(directionAngle, true);
-                
-                //input transmittance
-                //double transmittedBefore = transmitted;
-                
-                transmitted *= Math.exp(-coefficientGTheta * voxels[i][j][k].padBV * pathLength);
                 
-                //output transmittance
-                //double transmittedAfter = transmitted;
+                float padBV = pad[index(i, j, k)];
                 
-                //intercepted transmittance
-                //double interceptedTrans = transmittedAfter - transmittedBefore;
+                if(Float.isNaN(padBV)){
+                    return Double.NaN;
+                }
                 
-                //transmitted *= Math.exp(-0.5 * voxels[i][j][k].padBV * pathLength)/*(default coeff)*/;
+                transmitted *= Math.exp(-coefficientGTheta * padBV * pathLength);
             }
             
             if(transmitted <= EPSILON && toricity){
@@ -313,6 +291,69 @@ public class DirectionalTransmittance {
         return transmitted;
     }
     
+    /**
+     * Compute the transmittances of rays cast from a single origin.
+     * @param origin origin of the rays
+     * @param directions normalized directions of the rays
+     * @return the transmittance of each direction, see {@link #directionalTransmittance(Point3d, Vector3d)}
+     */
+    public double[] directionalTransmittance(Point3d origin, Vector3d[] directions) {
+        
+        Point3d[] origins = new Point3d[directions.length];
+        Arrays.fill(origins, origin);
+        
+        return directionalTransmittance(origins, directions);
+    }
+    
+    /**
+     * Compute the transmittances of rays, the results are the same as one call per ray.
+     * @param origins origin of each ray
+     * @param directions normalized direction of each ray
+     * @return the transmittance of each ray, see {@link #directionalTransmittance(Point3d, Vector3d)}
+     */
+    public double[] directionalTransmittance(Point3d[] origins, Vector3d[] directions) {
+        
+        if(origins.length != directions.length){
+            throw new IllegalArgumentException("The number of origins (" + origins.length + ") and directions (" + directions.length + ") differ");
+        }
+        
+        final double[] transmittances = new double[directions.length];
+        
+        int nbChunks = (directions.length + BATCH_CHUNK_SIZE - 1) / BATCH_CHUNK_SIZE;
+        
+        IntStream chunks = IntStream.range(0, nbChunks);
+        
+        if(nbChunks > 1){
+            chunks = chunks.parallel();
+        }
+        
+        chunks.forEach(chunk -> {
+            
+            int end = Math.min(directions.length, (chunk + 1) * BATCH_CHUNK_SIZE);
+            
+            for (int r = chunk * BATCH_CHUNK_SIZE; r < end; r++) {
+                transmittances[r] = directionalTransmittance(origins[r], directions[r]);
+            }
+        });
+        
+        return transmittances;
+    }
+    
+    /**
+     * Compute the transmittances of a range of rays cast from a single origin, in the calling thread.
+     * @param origin origin of the rays
+     * @param directions normalized directions of the rays
+     * @param from index of the first direction
+     * @param to index after the last direction
+     * @param transmittances array receiving the transmittance of each direction, at the same index
+     */
+    public void directionalTransmittance(Point3d origin, Vector3d[] directions, int from, int to, double[] transmittances) {
+        
+        for (int r = from; r < to; r++) {
+            transmittances[r] = directionalTransmittance(origin, directions[r]);
+        }
+    }
+    
     private void allocateMNT() {
 
         // allocate MNT
@@ -326,22 +367,6 @@ public class DirectionalTransmittance {
         }
     }
     
-    private void createVoxelTable() {
-
-        // allocate voxels
-        logger.info("allocate Voxels");
-        voxels = new TLSVoxel[splitting.x][][];
-        for (int x = 0; x < splitting.x; x++) {
-            voxels[x] = new TLSVoxel[splitting.y][];
-            for (int y = 0; y < splitting.y; y++) {
-                voxels[x][y] = new TLSVoxel[splitting.z];
-                for (int z = 0; z < splitting.z; z++) {
-                    voxels[x][y][z] = new TLSVoxel();
-                }
-            }
-        }
-    }
-
     public VoxelSpace getVoxSpace() {
         return voxSpace;
     }
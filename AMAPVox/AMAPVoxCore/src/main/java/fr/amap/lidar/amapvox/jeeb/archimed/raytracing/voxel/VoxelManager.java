@@ -471,6 +471,18 @@ public class VoxelManager {
         return voxelSpace.getVoxelIndices(point);
     }
 
+    /**
+     * Create a reusable traversal cursor, allocation free alternative to
+     * {@link #getFirstVoxelV2(LineElement)} and {@link #CrossVoxel(LineElement, Point3i)}.
+     * One cursor is needed per thread.
+     *
+     * @return a new traversal cursor over this voxel space
+     * @throws UnsupportedOperationException if the voxel space is infinite
+     */
+    public VoxelTraversal createTraversal() {
+        return new VoxelTraversal(this);
+    }
+
     public String getInformations() {
 
         StringBuilder sb = new StringBuilder();
@@ -0,0 +1,298 @@
+package fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel;
+
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.geometry.LineElement;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.util.BoundingBox3d;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Incremental voxel traversal of a line element (3D-DDA, Amanatides and Woo).
+ *
+ * <p>The cursor keeps its state in primitive fields and is reused from one line
+ * to the next, so the traversal does not allocate. Distances are measured from the
+ * line origin, as the ones of {@link VoxelManager#CrossVoxel(LineElement, javax.vecmath.Point3i)}:
+ * the wall of the current voxel is computed from its index rather than accumulated,
+ * so the sequence of voxels and the entry/exit distances are the same as the ones of
+ * {@link VoxelManager#getFirstVoxelV2(LineElement)} followed by successive
+ * {@link VoxelManager#CrossVoxel(LineElement, javax.vecmath.Point3i)} calls.</p>
+ *
+ * <pre>
+ * VoxelTraversal traversal = voxelManager.createTraversal();
+ * if(traversal.start(line)){
+ *     while(traversal.next()){
+ *         //traversal.getI(), getJ(), getK(), getEntry(), getExit()
+ *     }
+ * }
+ * </pre>
+ *
+ * Only finite voxel spaces are supported. A cursor is not thread safe.
+ */
+public class VoxelTraversal {
+
+    private final VoxelManager voxelManager;
+
+    private final double minX, minY, minZ;
+    private final double maxX, maxY, maxZ;
+    private final double sizeX, sizeY, sizeZ;
+    private final double boxSizeX, boxSizeY, boxSizeZ;
+    private final int splitX, splitY, splitZ;
+
+    //current line
+    private double originX, originY, originZ;
+    private double directionX, directionY, directionZ;
+    private int stepX, stepY, stepZ;
+
+    //distance from the line origin to the exit wall of the current voxel along each axis
+    private double wallX, wallY, wallZ;
+
+    //current voxel
+    private int i, j, k;
+    private double entry, exit;
+
+    //next voxel
+    private int nextI, nextJ, nextK;
+    private double nextEntry;
+    private boolean hasNext;
+
+    VoxelTraversal(VoxelManager voxelManager) {
+
+        VoxelSpace voxelSpace = voxelManager.getVoxelSpace();
+
+        if(!voxelSpace.isFinite()){
+            throw new UnsupportedOperationException("Voxel traversal is not supported on infinite voxel spaces");
+        }
+
+        this.voxelManager = voxelManager;
+
+        BoundingBox3d boundingBox = voxelSpace.getBoundingBox();
+
+        minX = boundingBox.min.x;
+        minY = boundingBox.min.y;
+        minZ = boundingBox.min.z;
+        maxX = boundingBox.max.x;
+        maxY = boundingBox.max.y;
+        maxZ = boundingBox.max.z;
+
+        sizeX = voxelSpace.getVoxelSize().x;
+        sizeY = voxelSpace.getVoxelSize().y;
+        sizeZ = voxelSpace.getVoxelSize().z;
+
+        boxSizeX = voxelSpace.getBoundingBoxSize().x;
+        boxSizeY = voxelSpace.getBoundingBoxSize().y;
+        boxSizeZ = voxelSpace.getBoundingBoxSize().z;
+
+        splitX = voxelSpace.getSplitting().x;
+        splitY = voxelSpace.getSplitting().y;
+        splitZ = voxelSpace.getSplitting().z;
+    }
+
+    /**
+     * Start the traversal of a line element.
+     *
+     * @param lineElement line to traverse, only read during this call
+     * @return false if the line does not cross the voxel space
+     */
+    public boolean start(LineElement lineElement) {
+
+        Point3d origin = lineElement.getOrigin();
+        Vector3d direction = lineElement.getDirection();
+
+        originX = origin.x;
+        originY = origin.y;
+        originZ = origin.z;
+        directionX = direction.x;
+        directionY = direction.y;
+        directionZ = direction.z;
+
+        stepX = (int) Math.signum(directionX);
+        stepY = (int) Math.signum(directionY);
+        stepZ = (int) Math.signum(directionZ);
+
+        hasNext = false;
+
+        if (originX >= minX && originX <= maxX
+                && originY >= minY && originY <= maxY
+                && originZ >= minZ && originZ <= maxZ) {
+
+            //origin inside the voxel space, same as VoxelSpace.getVoxelIndices without allocation
+            double x = originX - minX;
+            double y = originY - minY;
+            double z = originZ - minZ;
+
+            if (z < 0 || z >= boxSizeZ || x < 0 || x >= boxSizeX || y < 0 || y >= boxSizeY) {
+                return false;
+            }
+
+            x /= sizeX;
+            y /= sizeY;
+            z /= sizeZ;
+
+            nextI = (int) Math.floor(x % splitX);
+            nextJ = (int) Math.floor(y % splitY);
+            nextK = (int) Math.min(z, splitZ - 1);
+            nextEntry = 0;
+
+        } else {
+
+            //entry in the voxel space, rare enough to keep the exact scene canvas intersection
+            VoxelManager.VoxelCrossingContext context = voxelManager.getFirstVoxelV2(lineElement);
+
+            if (context == null || context.indices == null) {
+                return false;
+            }
+
+            nextI = context.indices.x;
+            nextJ = context.indices.y;
+            nextK = context.indices.z;
+            nextEntry = context.length;
+        }
+
+        wallX = wallX(nextI);
+        wallY = wallY(nextJ);
+        wallZ = wallZ(nextK);
+
+        hasNext = true;
+
+        return true;
+    }
+
+    /**
+     * Move to the next crossed voxel.
+     *
+     * @return false when the line has left the voxel space
+     */
+    public boolean next() {
+
+        if (!hasNext) {
+            return false;
+        }
+
+        i = nextI;
+        j = nextJ;
+        k = nextK;
+        entry = nextEntry;
+
+        double a = Math.abs(wallX);
+        double b = Math.abs(wallY);
+        double c = Math.abs(wallZ);
+
+        //find minimums (even multiple occurrences)
+        double sc = 0;
+        boolean crossX = false, crossY = false, crossZ = false;
+
+        if (a <= b && a <= c) {
+            nextI += stepX;
+            sc = a;
+            crossX = true;
+        }
+        if (b <= a && b <= c) {
+            nextJ += stepY;
+            sc = b;
+            crossY = true;
+        }
+        if (c <= a && c <= b) {
+            nextK += stepZ;
+            sc = c;
+            crossZ = true;
+        }
+
+        exit = sc;
+        nextEntry = sc;
+
+        hasNext = nextK >= 0 && nextK < splitZ
+                && nextI >= 0 && nextI < splitX
+                && nextJ >= 0 && nextJ < splitY;
+
+        if (hasNext) {
+
+            //only the crossed walls move
+            if (crossX) {
+                wallX = wallX(nextI);
+            }
+            if (crossY) {
+                wallY = wallY(nextJ);
+            }
+            if (crossZ) {
+                wallZ = wallZ(nextK);
+            }
+        }
+
+        return true;
+    }
+
+    private double wallX(int index) {
+
+        double infCorner = index * sizeX + minX;
+
+        if (directionX < 0) {
+            return hypothenuse(originX, infCorner, directionX);
+        } else {
+            return hypothenuse(infCorner + sizeX, originX, directionX);
+        }
+    }
+
+    private double wallY(int index) {
+
+        double infCorner = index * sizeY + minY;
+
+        if (directionY < 0) {
+            return hypothenuse(originY, infCorner, directionY);
+        } else {
+            return hypothenuse(infCorner + sizeY, originY, directionY);
+        }
+    }
+
+    private double wallZ(int index) {
+
+        double infCorner = index * sizeZ + minZ;
+
+        if (directionZ < 0) {
+            return hypothenuse(originZ, infCorner, directionZ);
+        } else {
+            return hypothenuse(infCorner + sizeZ, originZ, directionZ);
+        }
+    }
+
+    private static double hypothenuse(double origin, double wall, double direction) {
+
+        if (direction == 0) {
+            return Float.MAX_VALUE;
+        }
+        return (origin - wall) / direction;
+    }
+
+    /**
+     * @return index along x of the current voxel
+     */
+    public int getI() {
+        return i;
+    }
+
+    /**
+     * @return index along y of the current voxel
+     */
+    public int getJ() {
+        return j;
+    }
+
+    /**
+     * @return index along z of the current voxel
+     */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @return distance from the line origin to the entry point in the current voxel
+     */
+    public double getEntry() {
+        return entry;
+    }
+
+    /**
+     * @return distance from the line origin to the exit point of the current voxel
+     */
+    public double getExit() {
+        return exit;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.shot.cache;
+
+import fr.amap.commons.math.matrix.Mat4D;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary cache of the transformed shots of a scan, replayed instead of reading
+ * and transforming the scan again.
+ *
+ * <p>A cache file holds a header, the shot records and the echo records, all records
+ * have a fixed width so that the file can be mapped in memory and the shots accessed
+ * by index. Values are big-endian.</p>
+ *
+ * <pre>
+ * header (64 bytes) : magic, version, key, number of shots, number of echoes
+ * shot (64 bytes)   : origin x y z, direction x y z (doubles), index of the first echo (long),
+ *                     number of echoes (int), flags (byte), 3 bytes padding
+ * echo (10 bytes)   : range (double), classification (unsigned byte), mask (byte)
+ * </pre>
+ *
+ * <p>The key identifies the source files (path, size, modification date), the transformation
+ * applied to the shots and the reading options. A cache file is valid only if its key
+ * is the key of the current run, a cache is written in a temporary file renamed once complete.</p>
+ */
+public class ShotCache {
+
+    public final static String EXTENSION = ".shots";
+
+    final static byte[] MAGIC = "AMAPSHOT".getBytes(StandardCharsets.US_ASCII);
+    final static int VERSION = 1;
+
+    final static int HEADER_SIZE = 64;
+    final static int SHOT_SIZE = 64;
+    final static int ECHO_SIZE = 10;
+
+    //shot record
+    final static int ORIGIN_OFFSET = 0;
+    final static int DIRECTION_OFFSET = 24;
+    final static int FIRST_ECHO_OFFSET = 48;
+    final static int NB_ECHOES_OFFSET = 56;
+    final static int FLAGS_OFFSET = 60;
+
+    //echo record
+    final static int RANGE_OFFSET = 0;
+    final static int CLASSIFICATION_OFFSET = 8;
+    final static int MASK_OFFSET = 9;
+
+    //shot flags
+    final static byte HAS_MASK = 1;
+    final static byte HAS_CLASSIFICATIONS = 2;
+
+    private final static long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private final static long FNV_PRIME = 0x100000001b3L;
+
+    private ShotCache() {
+    }
+
+    private static long hash(long hash, long value) {
+
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+
+        //separator
+        return hash(hash, value.length());
+    }
+
+    /**
+     * Compute the key of a cache.
+     * @param transformation transformation applied to the shots, null if none
+     * @param options reading options changing the shots (filters, format...)
+     * @param sources files the shots are read from
+     * @return the key
+     */
+    public static long computeKey(Mat4D transformation, String options, File... sources) {
+
+        long hash = hash(FNV_OFFSET_BASIS, VERSION);
+
+        for (File source : sources) {
+
+            if(source == null){
+                hash = hash(hash, "");
+            }else{
+                hash = hash(hash, source.getAbsolutePath());
+                hash = hash(hash, source.length());
+                hash = hash(hash, source.lastModified());
+            }
+        }
+
+        if(transformation == null){
+            transformation = Mat4D.identity();
+        }
+
+        for (double value : transformation.mat) {
+            hash = hash(hash, Double.doubleToLongBits(value));
+        }
+
+        return hash(hash, options == null ? "" : options);
+    }
+
+    /**
+     * Get the cache file of a scan.
+     * @param directory cache directory
+     * @param source scan file
+     * @param key key of the cache
+     * @return the cache file, named after the scan file and the key
+     */
+    public static File getCacheFile(File directory, File source, long key) {
+        return new File(directory, source.getName() + "." + String.format("%016x", key) + EXTENSION);
+    }
+
+    /**
+     * Check if a cache file exists and was written with a key.
+     * @param cacheFile cache file
+     * @param key expected key
+     * @return true if the cache can be replayed
+     */
+    public static boolean isValid(File cacheFile, long key) {
+
+        if(!cacheFile.isFile() || cacheFile.length() < HEADER_SIZE){
+            return false;
+        }
+
+        try (DataInputStream input = new DataInputStream(new FileInputStream(cacheFile))) {
+
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+
+            if(!Arrays.equals(magic, MAGIC) || input.readInt() != VERSION || input.readLong() != key){
+                return false;
+            }
+
+            long nbShots = input.readLong();
+            long nbEchoes = input.readLong();
+
+            return cacheFile.length() == HEADER_SIZE + nbShots * SHOT_SIZE + nbEchoes * ECHO_SIZE;
+
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+}
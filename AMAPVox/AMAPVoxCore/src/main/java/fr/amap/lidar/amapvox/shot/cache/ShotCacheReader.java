@@ -0,0 +1,206 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.shot.cache;
+
+import fr.amap.lidar.amapvox.shot.Shot;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Read the shots of a cache file, see {@link ShotCache}. The file is mapped in memory,
+ * the shots are read by index and the reader can be shared between threads.
+ */
+public class ShotCacheReader implements Closeable {
+
+    //size of the mapped regions, a multiple of the record sizes
+    private final static long REGION_SIZE = 64L * 10 * (1 << 20);
+
+    private final FileChannel channel;
+    private final long key;
+    private final long nbShots;
+    private final long nbEchoes;
+
+    private final MappedByteBuffer[] shotRegions;
+    private final MappedByteBuffer[] echoRegions;
+
+    /**
+     *
+     * @param cacheFile the cache file
+     * @throws IOException if the file cannot be read or is not a shot cache
+     */
+    public ShotCacheReader(File cacheFile) throws IOException {
+
+        channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ);
+
+        try{
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, ShotCache.HEADER_SIZE);
+
+            byte[] magic = new byte[ShotCache.MAGIC.length];
+            header.get(magic);
+
+            if(!Arrays.equals(magic, ShotCache.MAGIC)){
+                throw new IOException(cacheFile + " is not a shot cache file");
+            }
+
+            int version = header.getInt();
+
+            if(version != ShotCache.VERSION){
+                throw new IOException("Unsupported shot cache version " + version + " in " + cacheFile);
+            }
+
+            key = header.getLong();
+            nbShots = header.getLong();
+            nbEchoes = header.getLong();
+
+            long shotsSize = nbShots * ShotCache.SHOT_SIZE;
+            long echoesSize = nbEchoes * ShotCache.ECHO_SIZE;
+
+            if(channel.size() != ShotCache.HEADER_SIZE + shotsSize + echoesSize){
+                throw new IOException("Truncated shot cache " + cacheFile);
+            }
+
+            shotRegions = map(ShotCache.HEADER_SIZE, shotsSize);
+            echoRegions = map(ShotCache.HEADER_SIZE + shotsSize, echoesSize);
+
+        }catch(IOException ex){
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private MappedByteBuffer[] map(long position, long size) throws IOException {
+
+        MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) / REGION_SIZE)];
+
+        for (int i = 0; i < regions.length; i++) {
+            long offset = i * REGION_SIZE;
+            regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position + offset, Math.min(REGION_SIZE, size - offset));
+        }
+
+        return regions;
+    }
+
+    private void checkIndex(long index) {
+
+        if(index < 0 || index >= nbShots){
+            throw new IndexOutOfBoundsException("Shot " + index + ", shots number: " + nbShots);
+        }
+    }
+
+    /**
+     * Get a shot.
+     * @param index index of the shot
+     * @return the shot, with its mask if one was stored
+     */
+    public Shot getShot(long index) {
+
+        checkIndex(index);
+
+        long position = index * ShotCache.SHOT_SIZE;
+        ByteBuffer region = shotRegions[(int) (position / REGION_SIZE)];
+        int offset = (int) (position % REGION_SIZE);
+
+        Point3d origin = new Point3d(
+                region.getDouble(offset + ShotCache.ORIGIN_OFFSET),
+                region.getDouble(offset + ShotCache.ORIGIN_OFFSET + 8),
+                region.getDouble(offset + ShotCache.ORIGIN_OFFSET + 16));
+
+        Vector3d direction = new Vector3d(
+                region.getDouble(offset + ShotCache.DIRECTION_OFFSET),
+                region.getDouble(offset + ShotCache.DIRECTION_OFFSET + 8),
+                region.getDouble(offset + ShotCache.DIRECTION_OFFSET + 16));
+
+        long firstEcho = region.getLong(offset + ShotCache.FIRST_ECHO_OFFSET);
+        int nbShotEchoes = region.getInt(offset + ShotCache.NB_ECHOES_OFFSET);
+        byte flags = region.get(offset + ShotCache.FLAGS_OFFSET);
+
+        double[] ranges = new double[nbShotEchoes];
+        boolean[] mask = (flags & ShotCache.HAS_MASK) != 0 ? new boolean[nbShotEchoes] : null;
+
+        for (int i = 0; i < nbShotEchoes; i++) {
+
+            long echoPosition = (firstEcho + i) * ShotCache.ECHO_SIZE;
+            ByteBuffer echoRegion = echoRegions[(int) (echoPosition / REGION_SIZE)];
+            int echoOffset = (int) (echoPosition % REGION_SIZE);
+
+            ranges[i] = echoRegion.getDouble(echoOffset + ShotCache.RANGE_OFFSET);
+
+            if(mask != null){
+                mask[i] = echoRegion.get(echoOffset + ShotCache.MASK_OFFSET) != 0;
+            }
+        }
+
+        Shot shot = new Shot(origin, direction, ranges);
+        shot.setMask(mask);
+
+        return shot;
+    }
+
+    /**
+     * Get the classifications of the echoes of a shot.
+     * @param index index of the shot
+     * @return the classifications, null if they were not stored
+     */
+    public int[] getClassifications(long index) {
+
+        checkIndex(index);
+
+        long position = index * ShotCache.SHOT_SIZE;
+        ByteBuffer region = shotRegions[(int) (position / REGION_SIZE)];
+        int offset = (int) (position % REGION_SIZE);
+
+        if((region.get(offset + ShotCache.FLAGS_OFFSET) & ShotCache.HAS_CLASSIFICATIONS) == 0){
+            return null;
+        }
+
+        long firstEcho = region.getLong(offset + ShotCache.FIRST_ECHO_OFFSET);
+        int[] classifications = new int[region.getInt(offset + ShotCache.NB_ECHOES_OFFSET)];
+
+        for (int i = 0; i < classifications.length; i++) {
+
+            long echoPosition = (firstEcho + i) * ShotCache.ECHO_SIZE;
+            ByteBuffer echoRegion = echoRegions[(int) (echoPosition / REGION_SIZE)];
+
+            classifications[i] = echoRegion.get((int) (echoPosition % REGION_SIZE) + ShotCache.CLASSIFICATION_OFFSET) & 0xff;
+        }
+
+        return classifications;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public long getNbShots() {
+        return nbShots;
+    }
+
+    public long getNbEchoes() {
+        return nbEchoes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,196 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.shot.cache;
+
+import fr.amap.lidar.amapvox.shot.Shot;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Write the shots of a scan into a cache file, see {@link ShotCache}.
+ *
+ * <p>The shots and the echoes are written in two temporary files, assembled into the
+ * cache file by {@link #commit()}. Closing the writer without committing deletes
+ * the temporary files, an incomplete cache is never seen by the readers.</p>
+ */
+public class ShotCacheWriter implements Closeable {
+
+    private final File cacheFile;
+    private final long key;
+
+    private final File shotsFile;
+    private final File echoesFile;
+    private final DataOutputStream shotsOutput;
+    private final DataOutputStream echoesOutput;
+
+    private long nbShots;
+    private long nbEchoes;
+    private boolean closed;
+
+    /**
+     *
+     * @param cacheFile the cache file to write, replaced on commit
+     * @param key key of the cache, see {@link ShotCache#computeKey}
+     * @throws IOException if the temporary files cannot be created
+     */
+    public ShotCacheWriter(File cacheFile, long key) throws IOException {
+
+        this.cacheFile = cacheFile;
+        this.key = key;
+
+        File directory = cacheFile.getAbsoluteFile().getParentFile();
+
+        if(directory != null){
+            Files.createDirectories(directory.toPath());
+        }
+
+        shotsFile = new File(directory, cacheFile.getName() + ".shots.tmp");
+        echoesFile = new File(directory, cacheFile.getName() + ".echoes.tmp");
+
+        shotsOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(shotsFile), 1 << 16));
+        echoesOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(echoesFile), 1 << 16));
+    }
+
+    /**
+     * Append a shot.
+     * @param shot the shot, its mask is stored if not null
+     * @param classifications classifications of the echoes, null if unknown
+     * @throws IOException if the shot cannot be written
+     */
+    public void write(Shot shot, int[] classifications) throws IOException {
+
+        int nbShotEchoes = shot.getEchoesNumber();
+        boolean[] mask = shot.getMask();
+
+        byte flags = 0;
+
+        if(mask != null){
+            flags |= ShotCache.HAS_MASK;
+        }
+
+        if(classifications != null){
+            flags |= ShotCache.HAS_CLASSIFICATIONS;
+        }
+
+        shotsOutput.writeDouble(shot.origin.x);
+        shotsOutput.writeDouble(shot.origin.y);
+        shotsOutput.writeDouble(shot.origin.z);
+        shotsOutput.writeDouble(shot.direction.x);
+        shotsOutput.writeDouble(shot.direction.y);
+        shotsOutput.writeDouble(shot.direction.z);
+        shotsOutput.writeLong(nbEchoes);
+        shotsOutput.writeInt(nbShotEchoes);
+        shotsOutput.writeByte(flags);
+        shotsOutput.write(0);
+        shotsOutput.write(0);
+        shotsOutput.write(0);
+
+        for (int i = 0; i < nbShotEchoes; i++) {
+            echoesOutput.writeDouble(shot.ranges[i]);
+            echoesOutput.writeByte(classifications == null ? 0 : classifications[i]);
+            echoesOutput.writeByte(mask != null && mask[i] ? 1 : 0);
+        }
+
+        nbShots++;
+        nbEchoes += nbShotEchoes;
+    }
+
+    /**
+     * Assemble the cache file, the writer is closed.
+     * @throws IOException if the cache file cannot be written
+     */
+    public void commit() throws IOException {
+
+        shotsOutput.close();
+        echoesOutput.close();
+
+        File tmpFile = new File(cacheFile.getAbsolutePath() + ".tmp");
+
+        try (FileChannel output = FileChannel.open(tmpFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            ByteBuffer header = ByteBuffer.allocate(ShotCache.HEADER_SIZE);
+            header.put(ShotCache.MAGIC);
+            header.putInt(ShotCache.VERSION);
+            header.putLong(key);
+            header.putLong(nbShots);
+            header.putLong(nbEchoes);
+            header.rewind();
+
+            while(header.hasRemaining()){
+                output.write(header);
+            }
+
+            transfer(shotsFile, output);
+            transfer(echoesFile, output);
+
+        }catch(IOException ex){
+            Files.deleteIfExists(tmpFile.toPath());
+            throw ex;
+        }finally{
+            close();
+        }
+
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void transfer(File file, FileChannel output) throws IOException {
+
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            long position = 0;
+            long size = input.size();
+
+            while(position < size){
+                position += input.transferTo(position, size - position, output);
+            }
+        }
+    }
+
+    public long getNbShots() {
+        return nbShots;
+    }
+
+    /**
+     * Close the writer and delete the temporary files, the cache file is left
+     * unchanged if {@link #commit()} was not called.
+     * @throws IOException if the temporary files cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+
+        if(closed){
+            return;
+        }
+
+        closed = true;
+
+        try{
+            shotsOutput.close();
+            echoesOutput.close();
+        }finally{
+            Files.deleteIfExists(shotsFile.toPath());
+            Files.deleteIfExists(echoesFile.toPath());
+        }
+    }
+}
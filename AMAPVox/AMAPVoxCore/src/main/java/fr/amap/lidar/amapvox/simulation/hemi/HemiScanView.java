@@ -25,6 +25,7 @@ import fr.amap.commons.math.vector.Vec3D;
 import fr.amap.commons.math.vector.Vec4D;
 import fr.amap.lidar.amapvox.voxelisation.EchoFilter;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Iterator;
 import javax.imageio.ImageIO;
 import javax.vecmath.Point2i;
@@ -362,61 +363,85 @@ public class HemiScanView implements Cancellable{
     
     private void hemiFromPAD(DirectionalTransmittance dt, List<Point3d> positions) throws Exception{
         
-        int positionID = 0;
-        
-        for(Point3d position : positions){
-            
-            initArrays();
+        //the pixels directions are the same for all the positions
+        List<Point2i> pixels = new ArrayList<>();
+        List<Vector3d> pixelDirections = new ArrayList<>();
+        List<Vector2f> pixelAngles = new ArrayList<>();
         
-            float center = nbPixels / 2;
-
-            for (int i = 0; i < nbPixels; i++) {
-                for (int j = 0; j < nbPixels; j++) {
+        float center = nbPixels / 2;
 
-                    if(cancelled){
-                        return;
-                    }
+        for (int i = 0; i < nbPixels; i++) {
+            for (int j = 0; j < nbPixels; j++) {
 
-                    float deltaX = i + 0.5f - center;
-                    float deltaY = j + 0.5f - center;
-                    double distToCenter = Math.sqrt((deltaX * deltaX) + (deltaY * deltaY));
+                float deltaX = i + 0.5f - center;
+                float deltaY = j + 0.5f - center;
+                double distToCenter = Math.sqrt((deltaX * deltaX) + (deltaY * deltaY));
 
-                    if (distToCenter < center) {
+                if (distToCenter < center) {
 
-                        double zenithAngle = (distToCenter/center)*Math.PI/2;
-                        double azimuthAngle = 0;
+                    double zenithAngle = (distToCenter/center)*Math.PI/2;
+                    double azimuthAngle = 0;
 
-                        if (deltaY != 0) {
-                            azimuthAngle = Math.atan(deltaX / deltaY);
-                            if (deltaY < 0) {
-                                azimuthAngle += Math.PI;
-                            } else if (deltaX < 0) {
-                                azimuthAngle += Math.PI * 2;
-                            }
+                    if (deltaY != 0) {
+                        azimuthAngle = Math.atan(deltaX / deltaY);
+                        if (deltaY < 0) {
+                            azimuthAngle += Math.PI;
                         } else if (deltaX < 0) {
-                            azimuthAngle = Math.PI / 2;
+                            azimuthAngle += Math.PI * 2;
                         }
-
-                        SphericalCoordinates sc = new SphericalCoordinates(azimuthAngle, zenithAngle);
-                        Vector3f direction = new Vector3f(sc.toCartesian());
-
-                        /*Vector3f direction = new Vector3f(0,0,1);
-                        Transformations transform = new Transformations();
-                        transform.setRotationAroundX(zenithAngle);
-                        transform.setRotationAroundZ(azimuthAngle);
-                        transform.apply(direction);*/
-
-                        /*if(direction.x != rayDirection.x || direction.y != rayDirection.y || direction.z != rayDirection.z){
-                            System.out.println("test");
-                        }*/
-                        pixTab[i][j].azimut = (float) Math.toDegrees(azimuthAngle);
-                        pixTab[i][j].zenith = (float) Math.toDegrees(zenithAngle);
-                        
-                        double transmittance = dt.directionalTransmittance(position, new Vector3d(direction.x, direction.y, direction.z));
-                        if(!Double.isNaN(transmittance)){
-                            pixTab[i][j].updatePixel((float)transmittance);
-                        }                    
+                    } else if (deltaX < 0) {
+                        azimuthAngle = Math.PI / 2;
                     }
+
+                    SphericalCoordinates sc = new SphericalCoordinates(azimuthAngle, zenithAngle);
+                    Vector3f direction = new Vector3f(sc.toCartesian());
+
+                    /*Vector3f direction = new Vector3f(0,0,1);
+                    Transformations transform = new Transformations();
+                    transform.setRotationAroundX(zenithAngle);
+                    transform.setRotationAroundZ(azimuthAngle);
+                    transform.apply(direction);*/
+
+                    /*if(direction.x != rayDirection.x || direction.y != rayDirection.y || direction.z != rayDirection.z){
+                        System.out.println("test");
+                    }*/
+                    pixels.add(new Point2i(i, j));
+                    pixelDirections.add(new Vector3d(direction.x, direction.y, direction.z));
+                    pixelAngles.add(new Vector2f((float) Math.toDegrees(azimuthAngle), (float) Math.toDegrees(zenithAngle)));
+                }
+            }
+        }
+        
+        Vector3d[] directions = pixelDirections.toArray(new Vector3d[pixelDirections.size()]);
+        double[] transmittances = new double[directions.length];
+        
+        int positionID = 0;
+        
+        for(Point3d position : positions){
+            
+            initArrays();
+            
+            //the rays are cast by chunks, the cancellation is checked between them
+            for (int from = 0; from < directions.length; from += DirectionalTransmittance.BATCH_CHUNK_SIZE) {
+                
+                if(cancelled){
+                    return;
+                }
+                
+                int to = Math.min(directions.length, from + DirectionalTransmittance.BATCH_CHUNK_SIZE);
+                dt.directionalTransmittance(position, directions, from, to, transmittances);
+            }
+            
+            for (int p = 0; p < transmittances.length; p++) {
+                
+                Pixel pixel = pixTab[pixels.get(p).x][pixels.get(p).y];
+                
+                pixel.azimut = pixelAngles.get(p).x;
+                pixel.zenith = pixelAngles.get(p).y;
+                
+                double transmittance = transmittances[p];
+                if(!Double.isNaN(transmittance)){
+                    pixel.updatePixel((float)transmittance);
                 }
             }
 
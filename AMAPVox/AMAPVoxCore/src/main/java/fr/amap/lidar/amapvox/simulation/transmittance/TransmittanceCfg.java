@@ -147,6 +147,14 @@ public class TransmittanceCfg extends Configuration{
                 parameters.setToricity(Boolean.valueOf(toricityValue));
             }
         }
+        
+        Element multiThreadingElement = processElement.getChild("multithreading");
+        if(multiThreadingElement != null){
+            String threadsValue = multiThreadingElement.getAttributeValue("threads");
+            if(threadsValue != null){
+                parameters.setNbThreads(Integer.valueOf(threadsValue));
+            }
+        }
 
         Element scannerPositionsElement = processElement.getChild("scanners-positions");
 
@@ -326,6 +334,7 @@ public class TransmittanceCfg extends Configuration{
         processElement.addContent(new Element("directions-number").setAttribute("value", String.valueOf(parameters.getDirectionsNumber())));
         processElement.addContent(new Element("directions-rotation").setAttribute("value", String.valueOf(parameters.getDirectionsRotation())));
         processElement.addContent(new Element("toricity").setAttribute("enable", String.valueOf(parameters.isToricity())));
+        processElement.addContent(new Element("multithreading").setAttribute("threads", String.valueOf(parameters.getNbThreads())));
         
         
         //scanners positions
@@ -32,6 +32,7 @@ public class TransmittanceParameters {
     private int directionsNumber;
     private float directionsRotation;
     private boolean toricity;
+    private int nbThreads = 1;
     
     //scanner positions
     private boolean useScanPositionsFile;
@@ -225,4 +226,17 @@ public class TransmittanceParameters {
     public void setToricity(boolean toricity) {
         this.toricity = toricity;
     }
+
+    public int getNbThreads() {
+        return nbThreads;
+    }
+
+    /**
+     * 
+     * @param nbThreads Number of threads sharing the sensor positions,
+     * the transmittances are the same whatever the number of threads.
+     */
+    public void setNbThreads(int nbThreads) {
+        this.nbThreads = nbThreads;
+    }
 }
@@ -21,6 +21,13 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.vecmath.Vector3d;
@@ -47,6 +54,7 @@ public class TransmittanceSim extends Process implements Cancellable{
     private float mntZmax;
     private float mntZmin;
     private Turtle turtle;
+    private Vector3d[] directions;
     private List<File> outputBitmapFiles;
 
     private List<Point3d> positions;
@@ -56,7 +64,7 @@ public class TransmittanceSim extends Process implements Cancellable{
     private TransmittanceCfg cfg;
     private VoxelSpace voxSpace;
     
-    private boolean cancelled;
+    private volatile boolean cancelled;
 
     @Override
     public boolean isCancelled() {
@@ -146,9 +154,6 @@ public class TransmittanceSim extends Process implements Cancellable{
 
         // TRANSMITTANCE
         logger.info("Computation of transmittance");
-        
-        int positionID = 0;
-        double transmitted;
 
         IncidentRadiation ir = solRad.get(0);
         
@@ -157,51 +162,166 @@ public class TransmittanceSim extends Process implements Cancellable{
         // Note: "rotation" is negate because the convention of "Transformations" is clockwise
         tr.setRotationAroundZ(Math.toRadians(-rotation));
         
-        int count = 0;
+        //the turtle directions are shared by all the periods
+        directions = new Vector3d[turtle.getNbDirections()];
         
-        for (Point3d position : positions) {
+        for (int t = 0; t < directions.length; t++) {
+            
+            Vector3d dir = new Vector3d(ir.directions[t]);
+            tr.apply(dir);
+            dir.normalize();
+            
+            directions[t] = dir;
+        }
+        
+        int nbThreads = Math.min(parameters.getNbThreads(), positions.size());
+        
+        if(nbThreads > 1){
+            processParallel(nbThreads);
+            return;
+        }
+        
+        for (int positionID = 0; positionID < positions.size(); positionID++) {
             
             fireProgress("Compute transmittance", positionID, positions.size());
             
-            for (int t = 0; t < turtle.getNbDirections(); t++) {
-                
-                if(cancelled){
-                    return;
-                }
-                
-                Vector3d dir = new Vector3d(ir.directions[t]);
-                tr.apply(dir);
-                dir.normalize();
+            if(!computeTransmittance(positionID)){
+                return;
+            }
 
-                transmitted = direcTransmittance.directionalTransmittance(position, dir);
-                
-                if(!Double.isNaN(transmitted)){
-                    
-                    for(int m=0 ; m < solRad.size();m++){
-                        ir = solRad.get(m);
+            if ((positionID + 1) % 1000 == 0) {
+                logger.info((positionID + 1) + "/" + positions.size());
+            }
+        }
+        
+    }
+    
+    /**
+     * Share the positions between several threads, each position fills its own row
+     * of the transmission table so the results do not depend on the scheduling.
+     * Progress is fired from the calling thread.
+     */
+    private void processParallel(int nbThreads) throws Exception{
+        
+        logger.info("Computing transmittance with " + nbThreads + " threads");
+        
+        final AtomicInteger nextPosition = new AtomicInteger();
+        final AtomicInteger nbPositionsDone = new AtomicInteger();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads, (Runnable r) -> {
+            Thread thread = new Thread(r, "transmittance-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        List<Future<Object>> futures = new ArrayList<>();
+        
+        try{
+            for (int i = 0; i < nbThreads; i++) {
+
+                futures.add(executor.submit(() -> {
+
+                    int positionID;
+
+                    while((positionID = nextPosition.getAndIncrement()) < positions.size()){
+
+                        if(!computeTransmittance(positionID)){
+                            break;
+                        }
+
+                        nbPositionsDone.incrementAndGet();
+                    }
+
+                    return null;
+                }));
+            }
+
+            int reported = -1;
+
+            for(Future<Object> future : futures){
+
+                while(true){
+
+                    try {
+                        future.get(100, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException ex) {
+
+                        int done = nbPositionsDone.get();
 
-                        //transmittance for the direction
-                        double transmittance = transmitted * ir.directionalGlobals[t];
+                        if(done != reported){
 
-                        transmissionPeriod[positionID][m] += transmittance;
+                            fireProgress("Compute transmittance", done, positions.size());
+
+                            if(done / 1000 > Math.max(reported, 0) / 1000){
+                                logger.info(done + "/" + positions.size());
+                            }
+
+                            reported = done;
+                        }
+                    } catch (ExecutionException ex) {
+                        if(ex.getCause() instanceof Exception){
+                            throw (Exception) ex.getCause();
+                        }
+                        throw ex;
                     }
-                }                
+                }
             }
             
-            for(int m=0 ; m < solRad.size();m++){
-                ir = solRad.get(m);
-                transmissionPeriod[positionID][m] /= ir.global;
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * Compute the transmittance of all the periods for a position.
+     * @param positionID index of the position
+     * @return false if the simulation was cancelled
+     */
+    private boolean computeTransmittance(int positionID){
+        
+        Point3d position = positions.get(positionID);
+        double[] transmissions = transmissionPeriod[positionID];
+        
+        //the positions are already computed in parallel, the rays of a position are cast in this thread
+        //by chunks, the cancellation is checked between them
+        double[] transmittedByDirection = new double[directions.length];
+        
+        for (int from = 0; from < directions.length; from += DirectionalTransmittance.BATCH_CHUNK_SIZE) {
+            
+            if(cancelled){
+                return false;
             }
+            
+            int to = Math.min(directions.length, from + DirectionalTransmittance.BATCH_CHUNK_SIZE);
+            direcTransmittance.directionalTransmittance(position, directions, from, to, transmittedByDirection);
+        }
+        
+        IncidentRadiation ir;
+        
+        for (int t = 0; t < directions.length; t++) {
 
-            positionID++;
-            count++;
+            double transmitted = transmittedByDirection[t];
 
-            if (count == 1000) {
-                logger.info(positionID + "/" + positions.size());
-                count = 0;
-            }
+            if(!Double.isNaN(transmitted)){
+
+                for(int m=0 ; m < solRad.size();m++){
+                    ir = solRad.get(m);
+
+                    //transmittance for the direction
+                    double transmittance = transmitted * ir.directionalGlobals[t];
+
+                    transmissions[m] += transmittance;
+                }
+            }                
+        }
+
+        for(int m=0 ; m < solRad.size();m++){
+            ir = solRad.get(m);
+            transmissions[m] /= ir.global;
         }
         
+        return true;
     }
     
     public void writeBitmaps() throws IOException{
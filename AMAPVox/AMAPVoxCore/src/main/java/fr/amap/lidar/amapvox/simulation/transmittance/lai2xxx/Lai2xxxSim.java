@@ -103,19 +103,20 @@ public class Lai2xxxSim implements Cancellable{
 
             int positionID = 0;
             double transmitted;
+            
+            Vector3d[] rayDirections = getRayDirections();
 
             for (Point3d position : positions) {
+                
+                if(cancelled){
+                    return;
+                }
+                
+                double[] transmittances = direcTransmittance.directionalTransmittance(position, rayDirections);
 
                 for (int t = 0; t < directions.length; t++) {
-                    
-                    if(cancelled){
-                        return;
-                    }
-
-                    Vector3d dir = new Vector3d(directions[t]);
-                    dir.normalize();
 
-                    transmitted = direcTransmittance.directionalTransmittance(position, dir);
+                    transmitted = transmittances[t];
                     transmittedStatistic.addValue(transmitted);
 
                     if(!Double.isNaN(transmitted)){
@@ -208,8 +209,16 @@ public class Lai2xxxSim implements Cancellable{
             double transmitted;
 
             Statistic NaNCounter = new Statistic();
+            
+            Vector3d[] rayDirections = getRayDirections();
 
             for (Point3d position : positions) {
+                
+                if(cancelled){
+                    return;
+                }
+                
+                double[] transmittances = direcTransmittance.directionalTransmittance(position, rayDirections);
 
                 for (int t = 0; t < directions.length; t++) {
 
@@ -217,10 +226,9 @@ public class Lai2xxxSim implements Cancellable{
                         return;
                     }
                     
-                    Vector3d dir = new Vector3d(directions[t]);
-                    dir.normalize();
+                    Vector3d dir = rayDirections[t];
 
-                    transmitted = direcTransmittance.directionalTransmittance(position, dir);
+                    transmitted = transmittances[t];
 
                     int ring = lai2xxx.getRingIDFromDirectionID(t);
 
@@ -367,6 +375,21 @@ public class Lai2xxxSim implements Cancellable{
         
     }
     
+    /**
+     * Normalized directions of the sensor, the rays of a position are cast in one batch.
+     */
+    private Vector3d[] getRayDirections(){
+        
+        Vector3d[] rayDirections = new Vector3d[directions.length];
+        
+        for (int t = 0; t < directions.length; t++) {
+            rayDirections[t] = new Vector3d(directions[t]);
+            rayDirections[t].normalize();
+        }
+        
+        return rayDirections;
+    }
+    
     //doublon (même méthode dans TransmittanceSim, à nettoyer)
     private void getSensorPositions() {
         
@@ -14,8 +14,8 @@ import fr.amap.commons.math.matrix.Mat4D;
 import fr.amap.commons.math.vector.Vec4D;
 import fr.amap.commons.raster.asc.AsciiGridHelper;
 import fr.amap.commons.raster.asc.Raster;
-import fr.amap.commons.structure.octree.Octree;
-import fr.amap.commons.structure.octree.OctreeFactory;
+import fr.amap.commons.structure.kdtree.KdTree;
+import fr.amap.commons.structure.kdtree.KdTreeFactory;
 import fr.amap.commons.math.util.BoundingBox3d;
 import fr.amap.commons.math.util.MatrixUtility;
 import fr.amap.commons.util.io.file.CSVFile;
@@ -94,24 +94,29 @@ public class Util {
         return terrain;
     }
     
-    public static Octree loadOctree(CSVFile pointcloudFile, Mat4D vopMatrix) {
+    /**
+     * Load a point cloud file into a kd-tree, faster to query than the octree.
+     * @param pointcloudFile point cloud file
+     * @param vopMatrix transformation applied to the points
+     * @return the kd-tree, null if the file cannot be read
+     */
+    public static KdTree loadKdTree(CSVFile pointcloudFile, Mat4D vopMatrix) {
 
-        Octree octree = null;
+        KdTree kdTree = null;
         
         if (pointcloudFile != null) {
 
             try {
                 LOGGER.info("Loading point cloud file...");
-                octree = OctreeFactory.createOctreeFromPointFile(pointcloudFile, OctreeFactory.DEFAULT_MAXIMUM_POINT_NUMBER, false, vopMatrix);
-                octree.build();
-                LOGGER.info("Point cloud file loaded");
+                kdTree = KdTreeFactory.createKdTreeFromPointFile(pointcloudFile, vopMatrix, Runtime.getRuntime().availableProcessors());
+                LOGGER.info("Point cloud file loaded (" + kdTree.size() + " points)");
                 
             } catch (Exception ex) {
                 LOGGER.error(ex);
             }
         }
 
-        return octree;
+        return kdTree;
     }
     
     /**
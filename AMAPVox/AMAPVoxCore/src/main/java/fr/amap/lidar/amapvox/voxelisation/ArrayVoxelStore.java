@@ -0,0 +1,364 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.commons.Voxel;
+import javax.vecmath.Point3i;
+
+/**
+ * Column oriented voxel store, one primitive array per attribute.
+ *
+ * <p>During the shots propagation a voxel costs 37 bytes (two int, five float,
+ * two double and a flag byte), against more than 140 bytes for a {@link Voxel}
+ * instance and its reference. The arrays only used by the transmittance modes 2 and 3
+ * and the arrays holding the results of the PAD computation are allocated
+ * on first write.</p>
+ */
+public class ArrayVoxelStore implements VoxelStore {
+
+    private final static byte INITIALIZED = 1;
+    private final static byte NOT_LAST_ECHO = 2;
+    private final static byte NOT_VALID = 4;
+
+    private final Point3i split;
+    private final int size;
+    private final int strideI;
+
+    private final byte[] flags;
+    private final int[] nbSampling;
+    private final int[] nbEchos;
+    private final float[] lgTotal;
+    private final float[] angleMean;
+    private final float[] groundDistance;
+    private final double[] bvEntering;
+    private final double[] bvIntercepted;
+
+    //allocated on demand
+    private double[] transmittanceTmp;
+    private double[] sumSurfMulLength;
+    private double[] sumSurfMulLengthMulEnt;
+    private float[] transmittance;
+    private float[] padBVTotal;
+
+    /**
+     *
+     * @param split number of voxels along x, y and z
+     */
+    public ArrayVoxelStore(Point3i split) {
+
+        long nbVoxels = (long) split.x * split.y * split.z;
+
+        if(nbVoxels > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Too many voxels (" + nbVoxels + "), maximum is " + Integer.MAX_VALUE);
+        }
+
+        this.split = new Point3i(split);
+        this.size = (int) nbVoxels;
+        this.strideI = split.y * split.z;
+
+        flags = new byte[size];
+        nbSampling = new int[size];
+        nbEchos = new int[size];
+        lgTotal = new float[size];
+        angleMean = new float[size];
+        groundDistance = new float[size];
+        bvEntering = new double[size];
+        bvIntercepted = new double[size];
+    }
+
+    @Override
+    public Point3i getSplit() {
+        return new Point3i(split);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int index(int i, int j, int k) {
+        return i * strideI + j * split.z + k;
+    }
+
+    @Override
+    public boolean isInitialized(int index) {
+        return (flags[index] & INITIALIZED) != 0;
+    }
+
+    @Override
+    public void initialize(int index, float groundDistance) {
+        this.groundDistance[index] = groundDistance;
+        flags[index] |= INITIALIZED;
+    }
+
+    @Override
+    public int getNbSampling(int index) {
+        return nbSampling[index];
+    }
+
+    @Override
+    public void incrementNbSampling(int index) {
+        nbSampling[index]++;
+    }
+
+    @Override
+    public int getNbEchos(int index) {
+        return nbEchos[index];
+    }
+
+    @Override
+    public void incrementNbEchos(int index) {
+        nbEchos[index]++;
+    }
+
+    @Override
+    public float getLgTotal(int index) {
+        return lgTotal[index];
+    }
+
+    @Override
+    public void addLgTotal(int index, double length) {
+        lgTotal[index] += length;
+    }
+
+    @Override
+    public float getAngleMean(int index) {
+        return angleMean[index];
+    }
+
+    @Override
+    public void setAngleMean(int index, float angleMean) {
+        this.angleMean[index] = angleMean;
+    }
+
+    @Override
+    public void addAngle(int index, double angle) {
+        angleMean[index] += angle;
+    }
+
+    @Override
+    public float getGroundDistance(int index) {
+        return groundDistance[index];
+    }
+
+    @Override
+    public double getBvEntering(int index) {
+        return bvEntering[index];
+    }
+
+    @Override
+    public void addBvEntering(int index, double bvEntering) {
+        this.bvEntering[index] += bvEntering;
+    }
+
+    @Override
+    public double getBvIntercepted(int index) {
+        return bvIntercepted[index];
+    }
+
+    @Override
+    public void addBvIntercepted(int index, double bvIntercepted) {
+        this.bvIntercepted[index] += bvIntercepted;
+    }
+
+    @Override
+    public double getTransmittanceTmp(int index) {
+        return transmittanceTmp == null ? 0 : transmittanceTmp[index];
+    }
+
+    @Override
+    public void addTransmittanceTmp(int index, double transmittance) {
+
+        if(transmittanceTmp == null){
+            transmittanceTmp = new double[size];
+        }
+
+        transmittanceTmp[index] += transmittance;
+    }
+
+    @Override
+    public double getSumSurfMulLength(int index) {
+        return sumSurfMulLength == null ? 0 : sumSurfMulLength[index];
+    }
+
+    @Override
+    public void addSumSurfMulLength(int index, double surfMulLength) {
+
+        if(sumSurfMulLength == null){
+            sumSurfMulLength = new double[size];
+        }
+
+        sumSurfMulLength[index] += surfMulLength;
+    }
+
+    @Override
+    public double getSumSurfMulLengthMulEnt(int index) {
+        return sumSurfMulLengthMulEnt == null ? 0 : sumSurfMulLengthMulEnt[index];
+    }
+
+    @Override
+    public void addSumSurfMulLengthMulEnt(int index, double surfMulLengthMulEnt) {
+
+        if(sumSurfMulLengthMulEnt == null){
+            sumSurfMulLengthMulEnt = new double[size];
+        }
+
+        sumSurfMulLengthMulEnt[index] += surfMulLengthMulEnt;
+    }
+
+    @Override
+    public double getLMeanTotal(int index) {
+
+        if(nbSampling[index] >= nbEchos[index]){
+            return lgTotal[index] / nbSampling[index];
+        }
+
+        return 0;
+    }
+
+    @Override
+    public float getTransmittance(int index) {
+        return transmittance == null ? 0 : transmittance[index];
+    }
+
+    @Override
+    public void setTransmittance(int index, float transmittance) {
+
+        if(this.transmittance == null){
+            this.transmittance = new float[size];
+        }
+
+        this.transmittance[index] = transmittance;
+    }
+
+    @Override
+    public float getPadBVTotal(int index) {
+        return padBVTotal == null ? 0 : padBVTotal[index];
+    }
+
+    @Override
+    public void setPadBVTotal(int index, float pad) {
+
+        if(padBVTotal == null){
+            padBVTotal = new float[size];
+        }
+
+        padBVTotal[index] = pad;
+    }
+
+    @Override
+    public boolean isLastEcho(int index) {
+        return (flags[index] & NOT_LAST_ECHO) == 0;
+    }
+
+    @Override
+    public void setLastEcho(int index, boolean lastEcho) {
+
+        if(lastEcho){
+            flags[index] &= ~NOT_LAST_ECHO;
+        }else{
+            flags[index] |= NOT_LAST_ECHO;
+        }
+    }
+
+    @Override
+    public boolean isValid(int index) {
+        return (flags[index] & NOT_VALID) == 0;
+    }
+
+    @Override
+    public void setValid(int index, boolean valid) {
+
+        if(valid){
+            flags[index] &= ~NOT_VALID;
+        }else{
+            flags[index] |= NOT_VALID;
+        }
+    }
+
+    @Override
+    public void merge(VoxelStore other) {
+
+        if(other.size() != size){
+            throw new IllegalArgumentException("Voxel stores sizes differ");
+        }
+
+        for (int index = 0; index < size; index++) {
+
+            if(!other.isInitialized(index)){
+                continue;
+            }
+
+            if(!isInitialized(index)){
+                initialize(index, other.getGroundDistance(index));
+            }
+
+            nbSampling[index] += other.getNbSampling(index);
+            nbEchos[index] += other.getNbEchos(index);
+            lgTotal[index] += other.getLgTotal(index);
+            angleMean[index] += other.getAngleMean(index);
+            bvEntering[index] += other.getBvEntering(index);
+            bvIntercepted[index] += other.getBvIntercepted(index);
+
+            if(other.getTransmittanceTmp(index) != 0){
+                addTransmittanceTmp(index, other.getTransmittanceTmp(index));
+            }
+
+            if(other.getSumSurfMulLength(index) != 0){
+                addSumSurfMulLength(index, other.getSumSurfMulLength(index));
+            }
+
+            if(other.getSumSurfMulLengthMulEnt(index) != 0){
+                addSumSurfMulLengthMulEnt(index, other.getSumSurfMulLengthMulEnt(index));
+            }
+
+            if(!other.isLastEcho(index)){
+                setLastEcho(index, false);
+            }
+
+            if(!other.isValid(index)){
+                setValid(index, false);
+            }
+        }
+    }
+
+    @Override
+    public Voxel getVoxel(int i, int j, int k, Voxel voxel) {
+
+        int index = index(i, j, k);
+
+        voxel.$i = i;
+        voxel.$j = j;
+        voxel.$k = k;
+        voxel.nbSampling = nbSampling[index];
+        voxel.nbEchos = nbEchos[index];
+        voxel.lgTotal = lgTotal[index];
+        voxel.angleMean = angleMean[index];
+        voxel.ground_distance = groundDistance[index];
+        voxel.bvEntering = bvEntering[index];
+        voxel.bvIntercepted = bvIntercepted[index];
+        voxel.transmittance_tmp = getTransmittanceTmp(index);
+        voxel.sumSurfMulLength = getSumSurfMulLength(index);
+        voxel.sumSurfMulLengthMulEnt = getSumSurfMulLengthMulEnt(index);
+        voxel.lMeanTotal = getLMeanTotal(index);
+        voxel.transmittance = getTransmittance(index);
+        voxel.PadBVTotal = getPadBVTotal(index);
+        voxel._lastEcho = isLastEcho(index);
+        voxel._valid = isValid(index);
+
+        return voxel;
+    }
+}
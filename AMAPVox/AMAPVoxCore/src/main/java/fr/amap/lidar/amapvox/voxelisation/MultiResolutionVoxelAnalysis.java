@@ -0,0 +1,246 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.commons.raster.asc.Raster;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.GroundEnergyParams;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import javax.vecmath.Vector3d;
+import org.apache.log4j.Logger;
+
+/**
+ * Voxelisation of the same shots at several resolutions in a single pass.
+ *
+ * <p>This analysis voxelises the voxel space of the configuration, the shots are also
+ * propagated in one grid per additional resolution. The grids share the bounding box of the
+ * configuration, the number of voxels of a grid is the one of a voxel space created with its resolution
+ * (see {@link VoxelParameters#resample(float)}). The shots are read, transformed and filtered once, the echoes
+ * are filtered once by the mask, the DTM distance and the point cloud filters, and the decisions are given to every grid.
+ * The DTM is still queried per grid for the ground distance of its voxels. Each grid is then identical to the
+ * voxelisation of the shots at its resolution.</p>
+ *
+ * <p>The additional grids are written next to the output file, see {@link #getResolutionFile(File, float)}.
+ * The ground energy is computed for the voxel space of the configuration only.</p>
+ */
+public class MultiResolutionVoxelAnalysis extends VoxelAnalysis{
+
+    private final static Logger LOGGER = Logger.getLogger(MultiResolutionVoxelAnalysis.class);
+
+    private final float[] resolutions;
+    private final VoxelParameters[] gridParameters;
+    private final VoxelAnalysis[] grids;
+
+    //the shots are filtered once for all the grids
+    private final ShotFilter multiResShotFilter;
+
+    private final Vector3d direction = new Vector3d();
+
+    private boolean[] keptEchoes;
+
+    /**
+     *
+     * @param terrain digital terrain model, can be null
+     * @param pointcloudFilters point cloud filters, can be null
+     * @param cfg voxelisation configuration
+     * @param resolutions additional resolutions
+     */
+    public MultiResolutionVoxelAnalysis(Raster terrain, List<PointcloudFilter> pointcloudFilters, VoxelAnalysisCfg cfg, float[] resolutions) {
+
+        super(terrain, pointcloudFilters, cfg);
+
+        if(cfg.isExportShotSegment()){
+            LOGGER.warn("Shot segments are exported for the resolution " + cfg.getVoxelParameters().infos.getResolution() + " only");
+        }
+
+        this.resolutions = resolutions.clone();
+
+        gridParameters = new VoxelParameters[resolutions.length];
+        grids = new VoxelAnalysis[resolutions.length];
+
+        for (int i = 0; i < resolutions.length; i++) {
+
+            gridParameters[i] = cfg.getVoxelParameters().resample(resolutions[i]);
+
+            //the ground energy parameters are shared by the resampled parameters
+            gridParameters[i].setGroundEnergyParams(new GroundEnergyParams());
+
+            VoxelAnalysisCfg gridCfg = new VoxelAnalysisCfg();
+            gridCfg.setVoxelParameters(gridParameters[i]);
+
+            //output format of the voxel space of the configuration
+            gridCfg.setVoxelsFormat(cfg.getVoxelsFormat());
+            gridCfg.setCompressVoxels(cfg.isCompressVoxels());
+
+            if(cfg.getOutputFile() != null){
+                gridCfg.setOutputFile(getResolutionFile(cfg.getOutputFile(), resolutions[i]));
+            }
+
+            //the echoes are filtered by this analysis, the terrain gives the ground distance of the voxels
+            grids[i] = new VoxelAnalysis(terrain, null, gridCfg);
+        }
+
+        multiResShotFilter = getShotFilter();
+        setShotFilter(null);
+    }
+
+    @Override
+    public void createVoxelSpace() {
+
+        super.createVoxelSpace();
+
+        for(VoxelAnalysis grid : grids){
+            grid.createVoxelSpace();
+        }
+    }
+
+    /**
+     * Propagate a shot in the voxel space of the configuration and in the grids of the additional resolutions.
+     * @param shot shot to propagate
+     * @throws IOException if the shot segments cannot be written
+     */
+    @Override
+    public void processOneShot(Shot shot) throws IOException {
+
+        if(multiResShotFilter != null && !multiResShotFilter.doFiltering(shot)){
+            return;
+        }
+
+        //the direction is normalized in place, each grid gets the direction read from the file
+        direction.set(shot.direction);
+
+        shot.direction.normalize();
+        keptEchoes = filterEchoes(shot, keptEchoes);
+        shot.direction.set(direction);
+
+        super.processOneShot(shot, keptEchoes);
+
+        //the shot is counted once, the voxels of every grid are counted
+        VoxelisationMetrics metrics = getMetrics();
+        long startTime = metrics != null ? System.nanoTime() : 0;
+
+        for(VoxelAnalysis grid : grids){
+
+            long nbVoxelsTraversed = grid.getNbVoxelsTraversed();
+
+            shot.direction.set(direction);
+            grid.processOneShot(shot, keptEchoes);
+
+            if(metrics != null){
+                metrics.addVoxelsTraversed(grid.getNbVoxelsTraversed() - nbVoxelsTraversed);
+            }
+        }
+
+        if(metrics != null){
+            metrics.addTime(VoxelisationMetrics.Stage.PROPAGATE, System.nanoTime() - startTime);
+        }
+    }
+
+    @Override
+    public void computePADs() {
+
+        super.computePADs();
+
+        for(VoxelAnalysis grid : grids){
+            grid.computePADs();
+        }
+    }
+
+    /**
+     * Write the voxel space of the configuration in the output file and the additional
+     * resolutions in the files given by {@link #getResolutionFile(File, float)}.
+     * @param format format of the voxel files
+     * @param outputFile output file of the voxel space of the configuration
+     * @throws Exception if a voxel file cannot be written
+     */
+    @Override
+    public void write(VoxelsFormat format, File outputFile) throws Exception {
+
+        super.write(format, outputFile);
+
+        for (int i = 0; i < grids.length; i++) {
+
+            File resolutionFile = getResolutionFile(outputFile, resolutions[i]);
+
+            LOGGER.info("Writing resolution " + resolutions[i] + " in " + resolutionFile);
+
+            grids[i].write(format, resolutionFile);
+        }
+    }
+
+    /**
+     * Get the voxel file of an additional resolution.
+     * @param outputFile output file of the voxel space of the configuration
+     * @param resolution additional resolution
+     * @return the output file name with the resolution appended before the extension (voxels.vox gives voxels_2.0m.vox)
+     */
+    public static File getResolutionFile(File outputFile, float resolution) {
+
+        String name = outputFile.getName();
+        int extensionIndex = name.lastIndexOf('.');
+
+        String suffix = "_" + resolution + "m";
+
+        if(extensionIndex > 0){
+            name = name.substring(0, extensionIndex) + suffix + name.substring(extensionIndex);
+        }else{
+            name = name + suffix;
+        }
+
+        return new File(outputFile.getParentFile(), name);
+    }
+
+    /**
+     *
+     * @return the additional resolutions
+     */
+    public float[] getResolutions() {
+        return resolutions.clone();
+    }
+
+    /**
+     * Get the grid of an additional resolution.
+     * @param index index of the resolution in {@link #getResolutions()}
+     * @return the voxelisation at this resolution
+     */
+    public VoxelAnalysis getGrid(int index) {
+        return grids[index];
+    }
+
+    /**
+     * Get the voxel parameters of an additional resolution.
+     * @param index index of the resolution in {@link #getResolutions()}
+     * @return the parameters of the grid at this resolution
+     */
+    public VoxelParameters getGridParameters(int index) {
+        return gridParameters[index];
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+
+        super.setCancelled(cancelled);
+
+        for(VoxelAnalysis grid : grids){
+            grid.setCancelled(cancelled);
+        }
+    }
+}
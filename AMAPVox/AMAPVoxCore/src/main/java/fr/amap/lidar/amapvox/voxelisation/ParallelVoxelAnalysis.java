@@ -0,0 +1,460 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.commons.raster.asc.Raster;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Multi-threaded shot propagation for a single voxelisation.
+ *
+ * <p>Shots given to {@link #processOneShot(Shot)} are grouped into batches of
+ * {@link #BATCH_SIZE} shots, the batches are dispatched round-robin to the worker
+ * threads. Each worker owns a private {@link VoxelAnalysis} so the voxel accumulators
+ * (nbSampling, nbEchos, lgTotal, angleMean, bvEntering, bvIntercepted, transmittance_tmp,
+ * sumSurfMulLength, sumSurfMulLengthMulEnt) and the ground energy are never shared between threads.
+ * The partial accumulators are reduced into this instance, in worker order, before
+ * {@link #computePADs()}, {@link #write(VoxelsFormat, File)} or {@link #getVoxels()}.
+ * Independent shot sources, such as the column bands of a gridded scan, can also be read
+ * concurrently by {@link #processShots(List)}, each reading thread feeding its own worker.</p>
+ *
+ * <p>Determinism: for a given number of threads the shot to worker assignment and the
+ * reduction order are fixed, so two runs give bit-for-bit identical files.
+ * Compared to the serial {@link VoxelAnalysis}, only the summation order of the accumulators changes:
+ * counters are identical, double accumulators agree within a relative tolerance of 1e-9 and
+ * float accumulators (lgTotal, angleMean) within nbSampling &times; 6e-8 (float epsilon),
+ * which propagates the same relative error to the transmittance and the PAD.</p>
+ *
+ * <p>Memory: each worker allocates its own voxel grid, the peak memory is thus
+ * (threads + 1) times the one of the serial voxelisation.
+ * The shot segments export is not supported, the analysis falls back to a single thread when it is enabled.</p>
+ */
+public class ParallelVoxelAnalysis extends VoxelAnalysis{
+
+    private final static Logger LOGGER = Logger.getLogger(ParallelVoxelAnalysis.class);
+
+    /**
+     * Number of shots sent at once to a worker thread
+     */
+    public final static int BATCH_SIZE = 1024;
+
+    //number of pending batches per worker before the reading thread is blocked
+    private final static int QUEUE_CAPACITY = 4;
+
+    private final static List<Shot> END_OF_SHOTS = new ArrayList<>(0);
+
+    private final int nbThreads;
+    private VoxelAnalysis[] workers;
+    private final List<BlockingQueue<List<Shot>>> queues;
+    private final List<Future<Object>> futures;
+    private ExecutorService executor;
+
+    private List<Shot> currentBatch;
+    private long nbBatches;
+    private boolean reduced;
+    private int nbShotsReduced;
+
+    /**
+     *
+     * @param terrain digital terrain model, can be null
+     * @param pointcloudFilters point cloud filters, can be null
+     * @param cfg voxelisation configuration
+     * @param nbThreads number of worker threads
+     */
+    public ParallelVoxelAnalysis(Raster terrain, List<PointcloudFilter> pointcloudFilters, VoxelAnalysisCfg cfg, int nbThreads) {
+
+        super(terrain, pointcloudFilters, cfg);
+
+        if(nbThreads > 1 && cfg.isExportShotSegment()){
+            LOGGER.warn("Shot segments export is not supported by the multi-threaded voxelisation, using a single thread");
+            nbThreads = 1;
+        }
+
+        this.nbThreads = Math.max(1, nbThreads);
+        this.queues = new ArrayList<>();
+        this.futures = new ArrayList<>();
+
+        if(this.nbThreads > 1){
+
+            workers = new VoxelAnalysis[this.nbThreads];
+
+            for(int i = 0 ; i < this.nbThreads ; i++){
+                workers[i] = new VoxelAnalysis(terrain, pointcloudFilters, cfg);
+                queues.add(new ArrayBlockingQueue<List<Shot>>(QUEUE_CAPACITY));
+            }
+        }
+    }
+
+    @Override
+    public void createVoxelSpace() {
+
+        super.createVoxelSpace();
+
+        if(workers == null){
+            return;
+        }
+
+        for(VoxelAnalysis worker : workers){
+            worker.createVoxelSpace();
+        }
+
+        executor = Executors.newFixedThreadPool(nbThreads, (Runnable r) -> {
+            Thread thread = new Thread(r, "voxelisation-worker-" + futures.size());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for(int i = 0 ; i < nbThreads ; i++){
+
+            final VoxelAnalysis worker = workers[i];
+            final BlockingQueue<List<Shot>> queue = queues.get(i);
+
+            futures.add(executor.submit(() -> {
+
+                List<Shot> batch;
+
+                while((batch = queue.take()) != END_OF_SHOTS){
+
+                    for(Shot shot : batch){
+                        worker.processOneShot(shot);
+                    }
+                }
+
+                return null;
+            }));
+        }
+
+        currentBatch = new ArrayList<>(BATCH_SIZE);
+        reduced = false;
+    }
+
+    /**
+     * Queue a shot for propagation, the shot must not be modified afterwards.
+     * @param shot shot to propagate
+     * @throws IOException if a worker thread failed or if the reading thread was interrupted
+     */
+    @Override
+    public void processOneShot(Shot shot) throws IOException {
+
+        if(workers == null){
+            super.processOneShot(shot);
+            return;
+        }
+
+        if(executor == null){
+            LOGGER.error("Workers not started, createVoxelSpace() has to be called first");
+            return;
+        }
+
+        currentBatch.add(shot);
+
+        if(currentBatch.size() == BATCH_SIZE){
+            dispatch(currentBatch, (int) (nbBatches % nbThreads));
+            nbBatches++;
+            currentBatch = new ArrayList<>(BATCH_SIZE);
+        }
+    }
+
+    /**
+     * Read several independent shot sources concurrently, for instance the column bands of a gridded scan.
+     *
+     * <p>The reading thread i reads the sources i, i + threads, i + 2 &times; threads... in this order
+     * and its shots are propagated by the worker i only, so the shot to worker assignment stays fixed
+     * and the voxelisation deterministic for a given number of threads. The sources have to be
+     * thread-safe with respect to each other. Returns once all the sources are read, the propagation
+     * of their last shots is awaited by {@link #reduce()}.</p>
+     *
+     * @param sources shot sources, a source returns null at the end of its shots
+     * @throws IOException if a source or a worker thread failed or if the calling thread was interrupted
+     */
+    public void processShots(List<? extends ShotPipeline.Source<Shot>> sources) throws IOException {
+
+        if(workers == null){
+
+            try {
+                for(ShotPipeline.Source<Shot> source : sources){
+
+                    Shot shot;
+                    while((shot = source.next()) != null){
+                        super.processOneShot(shot);
+                    }
+                }
+            } catch (IOException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new IOException("Shot reading failed", ex);
+            }
+
+            return;
+        }
+
+        if(executor == null){
+            LOGGER.error("Workers not started, createVoxelSpace() has to be called first");
+            return;
+        }
+
+        //shots given one by one before are dispatched first
+        if(!currentBatch.isEmpty()){
+            dispatch(currentBatch, (int) (nbBatches % nbThreads));
+            nbBatches++;
+            currentBatch = new ArrayList<>(BATCH_SIZE);
+        }
+
+        ExecutorService readers = Executors.newFixedThreadPool(nbThreads, (Runnable r) -> {
+            Thread thread = new Thread(r, "voxelisation-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<Object>> readerFutures = new ArrayList<>(nbThreads);
+
+            for(int i = 0 ; i < nbThreads ; i++){
+
+                final int workerIndex = i;
+
+                readerFutures.add(readers.submit(() -> {
+
+                    List<Shot> batch = new ArrayList<>(BATCH_SIZE);
+
+                    for(int s = workerIndex ; s < sources.size() ; s += nbThreads){
+
+                        ShotPipeline.Source<Shot> source = sources.get(s);
+
+                        Shot shot;
+                        while((shot = source.next()) != null){
+
+                            batch.add(shot);
+
+                            if(batch.size() == BATCH_SIZE){
+                                dispatch(batch, workerIndex);
+                                batch = new ArrayList<>(BATCH_SIZE);
+                            }
+                        }
+                    }
+
+                    if(!batch.isEmpty()){
+                        dispatch(batch, workerIndex);
+                    }
+
+                    return null;
+                }));
+            }
+
+            for(Future<Object> future : readerFutures){
+                waitFor(future);
+            }
+
+        } finally {
+            readers.shutdownNow();
+        }
+    }
+
+    private void dispatch(List<Shot> batch, int workerIndex) throws IOException {
+
+        BlockingQueue<List<Shot>> queue = queues.get(workerIndex);
+
+        try {
+            //back-pressure, wait for the worker while checking that none of them died
+            while(!queue.offer(batch, 100, TimeUnit.MILLISECONDS)){
+                checkWorkers();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Voxelisation interrupted");
+        }
+    }
+
+    private void checkWorkers() throws IOException{
+
+        for(Future<Object> future : futures){
+            if(future.isDone()){
+                waitFor(future);
+                throw new IOException("A voxelisation worker stopped before the end of the shots");
+            }
+        }
+    }
+
+    private void waitFor(Future<Object> future) throws IOException{
+
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Voxelisation interrupted");
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException){
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Voxelisation worker failed", ex.getCause());
+        } catch (java.util.concurrent.CancellationException ex){
+            throw new InterruptedIOException("Voxelisation cancelled");
+        }
+    }
+
+    /**
+     * Wait for the end of the shots propagation and sum the accumulators of the workers.
+     * Called implicitly by {@link #computePADs()}, {@link #write(VoxelsFormat, File)} and {@link #getVoxels()}.
+     * @throws IOException if a worker thread failed
+     */
+    public void reduce() throws IOException {
+
+        if(workers == null || reduced){
+            return;
+        }
+
+        if(!currentBatch.isEmpty()){
+            dispatch(currentBatch, (int) (nbBatches % nbThreads));
+            nbBatches++;
+            currentBatch = new ArrayList<>(0);
+        }
+
+        for(int i = 0 ; i < nbThreads ; i++){
+            dispatch(END_OF_SHOTS, i);
+        }
+
+        for(Future<Object> future : futures){
+            waitFor(future);
+        }
+
+        executor.shutdown();
+
+        LOGGER.info("Reducing voxel accumulators of " + nbThreads + " threads");
+
+        VoxelStore voxels = super.getVoxels();
+        GroundEnergy[][] groundEnergy = getGroundEnergy();
+
+        nbShotsReduced = 0;
+
+        for(VoxelAnalysis worker : workers){
+
+            nbShotsReduced += worker.getNbShotsProcessed();
+
+            voxels.merge(worker.getVoxels());
+
+            GroundEnergy[][] partialGroundEnergy = worker.getGroundEnergy();
+
+            if(groundEnergy != null && partialGroundEnergy != null){
+
+                for (int i = 0; i < groundEnergy.length; i++) {
+                    for (int j = 0; j < groundEnergy[i].length; j++) {
+                        groundEnergy[i][j].groundEnergyActual += partialGroundEnergy[i][j].groundEnergyActual;
+                        groundEnergy[i][j].groundEnergyPotential += partialGroundEnergy[i][j].groundEnergyPotential;
+                    }
+                }
+            }
+        }
+
+        //release the worker grids
+        workers = null;
+        reduced = true;
+    }
+
+    private void ensureReduced(){
+
+        try {
+            reduce();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Multi-threaded voxelisation failed", ex);
+        }
+    }
+
+    @Override
+    public void computePADs() {
+        ensureReduced();
+        super.computePADs();
+    }
+
+    @Override
+    public void write(VoxelsFormat format, File outputFile) throws Exception {
+        reduce();
+        super.write(format, outputFile);
+    }
+
+    @Override
+    public void writeGroundEnergy() throws IOException {
+        reduce();
+        super.writeGroundEnergy();
+    }
+
+    @Override
+    public VoxelStore getVoxels() {
+        ensureReduced();
+        return super.getVoxels();
+    }
+
+    @Override
+    public int getNbShotsProcessed() {
+
+        if(reduced){
+            return nbShotsReduced;
+        }else if(workers != null){
+
+            int nbShotsProcessed = 0;
+            for(VoxelAnalysis worker : workers){
+                nbShotsProcessed += worker.getNbShotsProcessed();
+            }
+            return nbShotsProcessed;
+        }
+
+        return super.getNbShotsProcessed();
+    }
+
+    /**
+     * The metrics are shared by the worker threads.
+     * @param metrics metrics of the run, null to disable the instrumentation
+     */
+    @Override
+    public void setMetrics(VoxelisationMetrics metrics) {
+
+        super.setMetrics(metrics);
+
+        if(workers != null){
+            for(VoxelAnalysis worker : workers){
+                worker.setMetrics(metrics);
+            }
+        }
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+
+        super.setCancelled(cancelled);
+
+        if(cancelled && executor != null){
+            executor.shutdownNow();
+        }
+    }
+
+    public int getNbThreads() {
+        return nbThreads;
+    }
+}
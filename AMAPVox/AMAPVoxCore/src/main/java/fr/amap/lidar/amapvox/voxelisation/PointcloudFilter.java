@@ -14,6 +14,7 @@ For further information, please contact Gregoire Vincent.
 
 package fr.amap.lidar.amapvox.voxelisation;
 
+import fr.amap.commons.structure.kdtree.KdTree;
 import fr.amap.commons.structure.octree.Octree;
 import fr.amap.commons.math.point.Point3D;
 import fr.amap.commons.math.point.Point3F;
@@ -33,6 +34,7 @@ public class PointcloudFilter {
     private float pointcloudErrorMargin;
     private boolean keep;
     private Octree octree;
+    private KdTree kdTree;
 
 
     public PointcloudFilter(CSVFile pointcloudFile, float pointcloudErrorMargin, boolean keep) {
@@ -72,12 +74,28 @@ public class PointcloudFilter {
     public void setOctree(Octree octree) {
         this.octree = octree;
     }
+
+    public KdTree getKdTree() {
+        return kdTree;
+    }
+
+    /**
+     * Set the kd-tree of the point cloud, it is used instead of the octree if both are set.
+     * @param kdTree kd-tree of the point cloud
+     */
+    public void setKdTree(KdTree kdTree) {
+        this.kdTree = kdTree;
+    }
     
     public boolean doFiltering(Point3d point){
         
         boolean test;
 
-        test = octree.isPointBelongsToPointcloud(new Point3D(point.x, point.y, point.z), pointcloudErrorMargin, Octree.INCREMENTAL_SEARCH);
+        if(kdTree != null){
+            test = kdTree.hasPointWithin(point.x, point.y, point.z, pointcloudErrorMargin);
+        }else{
+            test = octree.isPointBelongsToPointcloud(new Point3D(point.x, point.y, point.z), pointcloudErrorMargin, Octree.INCREMENTAL_SEARCH);
+        }
         
         if(keep){
             return test;
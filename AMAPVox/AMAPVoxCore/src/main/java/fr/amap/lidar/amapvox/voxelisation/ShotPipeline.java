@@ -0,0 +1,381 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Staged reading of the shots of a voxelisation: decode &rarr; transform &rarr; propagate.
+ *
+ * <p>A reader thread decodes the raw shots of the scan, a transform thread turns them into
+ * voxelisation shots (matrix transformation, shot filtering, echo mask, shot cache...) and the thread calling
+ * {@link #next()} propagates them, so the decoding of the next shots overlaps the propagation
+ * even when the propagation itself is single-threaded.</p>
+ *
+ * <p>The stages exchange batches of {@link #BATCH_SIZE} shots through bounded queues of
+ * {@link #QUEUE_CAPACITY} batches: a stage waits when the next one is late (back-pressure),
+ * the memory held by the pipeline is thus bounded. The consumed batches are sent back to the
+ * stage that filled them and reused. The order of the shots is kept.</p>
+ *
+ * <p>The raw shots are handed from a thread to the other, the source must return a new object on each call.
+ * An exception thrown by a stage is rethrown by {@link #next()}. The pipeline has to be closed,
+ * closing it before the end of the shots stops the stages.</p>
+ *
+ * @param <T> type of the raw shots
+ */
+public class ShotPipeline<T> implements Closeable{
+
+    private final static Logger LOGGER = Logger.getLogger(ShotPipeline.class);
+
+    /**
+     * Number of shots exchanged at once between two stages
+     */
+    public final static int BATCH_SIZE = 1024;
+
+    /**
+     * Number of pending batches between two stages before the first one waits
+     */
+    public final static int QUEUE_CAPACITY = 4;
+
+    /**
+     * Reader stage, decodes the raw shots.
+     * @param <T> type of the raw shots
+     */
+    public interface Source<T>{
+
+        /**
+         * Decode the next raw shot.
+         * @return the next raw shot, null at the end of the shots
+         * @throws Exception if the shot cannot be read
+         */
+        public T next() throws Exception;
+    }
+
+    /**
+     * Transform stage, converts a raw shot into a voxelisation shot.
+     * @param <T> type of the raw shots
+     */
+    public interface Transform<T>{
+
+        /**
+         * Transform a raw shot.
+         * @param rawShot raw shot
+         * @return the shot to propagate, null to drop the raw shot
+         * @throws Exception if the shot cannot be transformed
+         */
+        public Shot transform(T rawShot) throws Exception;
+    }
+
+    private final Source<T> source;
+    private final Transform<T> transform;
+    private final VoxelisationMetrics metrics;
+
+    //decoded batches, then the batches of the reader stage to reuse
+    private final BlockingQueue<List<T>> rawBatches;
+    private final BlockingQueue<List<T>> freeRawBatches;
+
+    //transformed batches, then the batches of the transform stage to reuse
+    private final BlockingQueue<List<Shot>> shotBatches;
+    private final BlockingQueue<List<Shot>> freeShotBatches;
+
+    private final List<Future<Object>> futures;
+    private ExecutorService executor;
+
+    private List<Shot> currentBatch;
+    private int currentIndex;
+    private boolean finished;
+
+    /**
+     *
+     * @param source reader stage
+     * @param transform transform stage
+     * @param metrics metrics of the run, the decoding and the transformation are timed, can be null
+     */
+    public ShotPipeline(Source<T> source, Transform<T> transform, VoxelisationMetrics metrics) {
+
+        this.source = source;
+        this.transform = transform;
+        this.metrics = metrics;
+
+        //a batch is either being filled, queued or consumed, the free queues cannot overflow
+        rawBatches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        freeRawBatches = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+        shotBatches = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        freeShotBatches = new ArrayBlockingQueue<>(QUEUE_CAPACITY + 2);
+
+        for(int i = 0 ; i < QUEUE_CAPACITY + 2 ; i++){
+            freeRawBatches.add(new ArrayList<T>(BATCH_SIZE));
+            freeShotBatches.add(new ArrayList<Shot>(BATCH_SIZE));
+        }
+
+        futures = new ArrayList<>(2);
+    }
+
+    /**
+     *
+     * @param iterator raw shots, null elements are skipped
+     * @param transform transform stage
+     * @param metrics metrics of the run, the decoding and the transformation are timed, can be null
+     */
+    public ShotPipeline(Iterator<T> iterator, Transform<T> transform, VoxelisationMetrics metrics) {
+
+        this(() -> {
+
+            while(iterator.hasNext()){
+
+                T rawShot = iterator.next();
+
+                if(rawShot != null){
+                    return rawShot;
+                }
+            }
+
+            return null;
+
+        }, transform, metrics);
+    }
+
+    /**
+     * Start the reader and transform stages.
+     */
+    public void start(){
+
+        if(executor != null){
+            return;
+        }
+
+        executor = Executors.newFixedThreadPool(2, (Runnable r) -> {
+            Thread thread = new Thread(r, "shot-pipeline-" + (futures.isEmpty() ? "reader" : "transform"));
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        futures.add(executor.submit(this::read));
+        futures.add(executor.submit(this::transform));
+    }
+
+    private Object read() throws Exception{
+
+        List<T> batch = freeRawBatches.take();
+
+        T rawShot;
+
+        do{
+            long startTime = metrics != null ? System.nanoTime() : 0;
+
+            rawShot = source.next();
+
+            if(metrics != null){
+                metrics.addTime(VoxelisationMetrics.Stage.DECODE, System.nanoTime() - startTime);
+            }
+
+            if(rawShot != null){
+
+                batch.add(rawShot);
+
+                if(metrics != null){
+                    metrics.shotRead();
+                }
+            }
+
+            if(batch.size() == BATCH_SIZE || (rawShot == null && !batch.isEmpty())){
+                rawBatches.put(batch);
+                batch = freeRawBatches.take();
+            }
+
+        }while(rawShot != null);
+
+        //an empty batch ends the shots
+        rawBatches.put(batch);
+
+        return null;
+    }
+
+    private Object transform() throws Exception{
+
+        List<Shot> batch = freeShotBatches.take();
+
+        List<T> rawBatch;
+
+        do{
+            rawBatch = rawBatches.take();
+
+            long startTime = metrics != null ? System.nanoTime() : 0;
+
+            for(T rawShot : rawBatch){
+
+                Shot shot = transform.transform(rawShot);
+
+                if(shot != null){
+                    batch.add(shot);
+                }
+            }
+
+            if(metrics != null){
+                metrics.addTime(VoxelisationMetrics.Stage.TRANSFORM, System.nanoTime() - startTime);
+            }
+
+            boolean end = rawBatch.isEmpty();
+
+            rawBatch.clear();
+            freeRawBatches.put(rawBatch);
+
+            if(!batch.isEmpty()){
+                shotBatches.put(batch);
+                batch = freeShotBatches.take();
+            }
+
+            if(end){
+                break;
+            }
+
+        }while(true);
+
+        shotBatches.put(batch);
+
+        return null;
+    }
+
+    /**
+     * Get the next shot to propagate, waits for the transform stage if needed.
+     * @return the next shot, null at the end of the shots
+     * @throws IOException if a stage failed or if the thread was interrupted
+     */
+    public Shot next() throws IOException{
+
+        if(finished){
+            return null;
+        }
+
+        if(executor == null){
+            start();
+        }
+
+        if(currentBatch == null || currentIndex == currentBatch.size()){
+
+            if(currentBatch != null){
+                currentBatch.clear();
+                freeShotBatches.add(currentBatch);
+            }
+
+            currentBatch = takeBatch();
+            currentIndex = 0;
+
+            if(currentBatch.isEmpty()){
+                finished = true;
+                waitForStages();
+                return null;
+            }
+        }
+
+        return currentBatch.get(currentIndex++);
+    }
+
+    private List<Shot> takeBatch() throws IOException{
+
+        try {
+            List<Shot> batch;
+
+            //wait for the transform stage while checking that none of the stages died
+            while((batch = shotBatches.poll(100, TimeUnit.MILLISECONDS)) == null){
+                checkStages();
+            }
+
+            return batch;
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Shot reading interrupted");
+        }
+    }
+
+    private void checkStages() throws IOException{
+
+        for(Future<Object> future : futures){
+            if(future.isDone()){
+                waitFor(future);
+            }
+        }
+
+        //a stage ending normally has already queued the end of the shots
+        if(futures.get(1).isDone() && shotBatches.isEmpty()){
+            throw new IOException("Shot pipeline stopped before the end of the shots");
+        }
+    }
+
+    private void waitForStages() throws IOException{
+
+        for(Future<Object> future : futures){
+            waitFor(future);
+        }
+
+        executor.shutdown();
+    }
+
+    private void waitFor(Future<Object> future) throws IOException{
+
+        try {
+            future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Shot reading interrupted");
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException){
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Shot pipeline stage failed", ex.getCause());
+        } catch (CancellationException ex){
+            throw new InterruptedIOException("Shot reading cancelled");
+        }
+    }
+
+    /**
+     * Stop the stages if the shots were not all read and wait for their end,
+     * the source can be closed afterwards.
+     */
+    @Override
+    public void close(){
+
+        if(executor == null){
+            return;
+        }
+
+        executor.shutdownNow();
+
+        try {
+            if(!executor.awaitTermination(10, TimeUnit.SECONDS)){
+                LOGGER.warn("Shot pipeline stages still running");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
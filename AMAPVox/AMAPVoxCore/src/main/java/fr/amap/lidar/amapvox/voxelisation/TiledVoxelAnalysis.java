@@ -0,0 +1,651 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.commons.raster.asc.Raster;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import fr.amap.lidar.amapvox.voxelisation.postproc.NaNsCorrection;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import org.apache.log4j.Logger;
+
+/**
+ * Voxelisation of a large voxel space by tiles, see {@link VoxelTiling}.
+ *
+ * <p>The shots given to {@link #processOneShot(Shot)} are not propagated but written to a shot
+ * file per tile crossed by the shot, in a working directory. {@link #computePADs()} then voxelises
+ * the tiles independently, {@link VoxelAnalysisCfg#getNbThreads()} tiles at a time, and writes the
+ * computed voxels of each tile core to a file. The tile files are finally stitched
+ * into a read-only voxel store used by {@link #write(VoxelsFormat, File)} and {@link #getVoxels()}.
+ * The peak memory is the one of the voxelisation of a tile per thread.</p>
+ *
+ * <p>Seamless result: a tile propagates the whole shot through its bounding box and groups the
+ * echoes falling in the same voxel as the voxelisation of the whole space would, so the voxels of
+ * the tile cores get the accumulators of a single voxelisation, only the rounding of the voxel
+ * boundaries may differ. The NaNs correction is applied per tile on the core and the margin, the
+ * result matches the one of a single voxelisation as long as the neighbourhood used to correct a
+ * voxel of a core stays inside the margin.
+ * The ground energy and the shot segments export are not supported.</p>
+ *
+ * <p>Several processes: the tiles are claimed with a lock file, so processes sharing the working directory
+ * can voxelise the tiles with {@link #voxeliseTiles()} once the shots are routed.
+ * The process routing the shots waits for the tiles voxelised by the other processes before stitching.
+ * The modification time of a lock file is refreshed while its tile is voxelised; if it is older than
+ * {@link #getLockTimeout()}, the owner is considered dead and the routing process voxelises the tile itself.
+ * The processes sharing the working directory need synchronized clocks.
+ * The working directory is cleared when the routing starts.</p>
+ */
+public class TiledVoxelAnalysis extends VoxelAnalysis{
+
+    private final static Logger LOGGER = Logger.getLogger(TiledVoxelAnalysis.class);
+
+    //maximum number of shot files opened at the same time
+    private final static int MAX_OPEN_SHOT_FILES = 256;
+
+    private final static String ROUTING_DONE_FILE = "routing.done";
+
+    /**
+     * Default time without refresh after which a tile lock is abandoned, in milliseconds.
+     */
+    public final static long DEFAULT_LOCK_TIMEOUT = 120000;
+
+    private final VoxelAnalysisCfg cfg;
+    private final VoxelTiling tiling;
+    private final File workingDirectory;
+    private final int nbThreads;
+
+    private Map<Integer, DataOutputStream> shotWriters;
+    private int[] crossedTiles;
+    private int nbShotsRouted;
+    private boolean routingDone;
+
+    private TiledVoxelStore tiledVoxels;
+    private volatile ExecutorService executor;
+    private long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+
+    /**
+     *
+     * @param terrain digital terrain model, can be null
+     * @param pointcloudFilters point cloud filters, can be null
+     * @param cfg voxelisation configuration of the whole voxel space
+     * @param tileSize number of voxels of the tile cores along x and y
+     * @param margin number of voxels around the tile cores
+     * @param workingDirectory directory of the shot files and of the tile files
+     */
+    public TiledVoxelAnalysis(Raster terrain, List<PointcloudFilter> pointcloudFilters, VoxelAnalysisCfg cfg, int tileSize, int margin, File workingDirectory) {
+
+        super(terrain, pointcloudFilters, cfg);
+
+        if(cfg.isExportShotSegment()){
+            LOGGER.warn("Shot segments export is not supported by the tiled voxelisation");
+        }
+
+        if(cfg.getVoxelParameters().getGroundEnergyParams() != null && cfg.getVoxelParameters().getGroundEnergyParams().isCalculateGroundEnergy()){
+            LOGGER.warn("Ground energy is not supported by the tiled voxelisation");
+        }
+
+        this.cfg = cfg;
+        this.tiling = new VoxelTiling(cfg.getVoxelParameters(), tileSize, margin);
+        this.workingDirectory = workingDirectory;
+        this.nbThreads = Math.max(1, cfg.getNbThreads());
+
+        LOGGER.info("Voxel space cut into " + tiling.getNbTiles() + " tiles of " + tileSize + " voxels, margin of " + margin + " voxels");
+    }
+
+    private File getShotFile(int tile) {
+        return new File(workingDirectory, "tile_" + tile + ".shots");
+    }
+
+    private File getLockFile(int tile) {
+        return new File(workingDirectory, "tile_" + tile + ".lock");
+    }
+
+    private File getTileFile(int tile) {
+        return new File(workingDirectory, "tile_" + tile + ".vox");
+    }
+
+    public long getLockTimeout() {
+        return lockTimeout;
+    }
+
+    /**
+     * Set the time after which the lock of a tile not refreshed by its owner is abandoned,
+     * the lock is refreshed every quarter of this time.
+     * @param lockTimeout time in milliseconds
+     */
+    public void setLockTimeout(long lockTimeout) {
+        this.lockTimeout = Math.max(1, lockTimeout);
+    }
+
+    /**
+     * Clear the working directory and prepare the shot files, the voxels are not allocated.
+     */
+    @Override
+    public void createVoxelSpace() {
+
+        createVoxelManager();
+
+        deleteWorkingDirectory();
+
+        try {
+            Files.createDirectories(workingDirectory.toPath());
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Cannot create the working directory " + workingDirectory, ex);
+        }
+
+        //least recently used shot files are closed, they are reopened in append mode
+        shotWriters = new LinkedHashMap<Integer, DataOutputStream>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, DataOutputStream> eldest) {
+
+                if(size() > MAX_OPEN_SHOT_FILES){
+                    try {
+                        eldest.getValue().close();
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                    return true;
+                }
+
+                return false;
+            }
+        };
+
+        crossedTiles = new int[tiling.getNbTiles()];
+        nbShotsRouted = 0;
+        routingDone = false;
+        tiledVoxels = null;
+    }
+
+    /**
+     * Write the shot to the shot files of the tiles it crosses.
+     * @param shot shot to route, it is not modified
+     * @throws IOException if a shot file cannot be written
+     */
+    @Override
+    public void processOneShot(Shot shot) throws IOException {
+
+        if(shotWriters == null){
+            LOGGER.error("Shot files not initialized, createVoxelSpace() has to be called first");
+            return;
+        }
+
+        if(getShotFilter() != null && !getShotFilter().doFiltering(shot)){
+            return;
+        }
+
+        //the shot is propagated until its last echo
+        Vector3d direction = new Vector3d(shot.direction);
+        direction.normalize();
+
+        double length = shot.getEchoesNumber() == 0 ? 999999 : shot.ranges[shot.getEchoesNumber() - 1];
+
+        int nbCrossedTiles = tiling.route(shot.origin, direction, length, crossedTiles);
+
+        try {
+            for (int t = 0; t < nbCrossedTiles; t++) {
+                writeShot(getShotWriter(crossedTiles[t]), shot);
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        }
+
+        nbShotsRouted++;
+
+        //the voxels traversed are counted when the tiles are voxelised
+        if(getMetrics() != null){
+            getMetrics().shotKept(shot.getEchoesNumber(), 0);
+        }
+    }
+
+    private DataOutputStream getShotWriter(int tile) throws IOException {
+
+        DataOutputStream writer = shotWriters.get(tile);
+
+        if(writer == null){
+            writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getShotFile(tile), true), 1 << 14));
+            shotWriters.put(tile, writer);
+        }
+
+        return writer;
+    }
+
+    private static void writeShot(DataOutputStream writer, Shot shot) throws IOException {
+
+        writer.writeDouble(shot.origin.x);
+        writer.writeDouble(shot.origin.y);
+        writer.writeDouble(shot.origin.z);
+        writer.writeDouble(shot.direction.x);
+        writer.writeDouble(shot.direction.y);
+        writer.writeDouble(shot.direction.z);
+
+        int nbEchoes = shot.getEchoesNumber();
+        writer.writeInt(nbEchoes);
+
+        for (int e = 0; e < nbEchoes; e++) {
+            writer.writeDouble(shot.ranges[e]);
+        }
+
+        boolean[] mask = shot.getMask();
+        writer.writeBoolean(mask != null);
+
+        if(mask != null){
+            for (int e = 0; e < nbEchoes; e++) {
+                writer.writeBoolean(mask[e]);
+            }
+        }
+    }
+
+    private static Shot readShot(DataInputStream reader) throws IOException {
+
+        double x;
+
+        try {
+            x = reader.readDouble();
+        } catch (EOFException ex) {
+            return null;
+        }
+
+        Point3d origin = new Point3d(x, reader.readDouble(), reader.readDouble());
+        Vector3d direction = new Vector3d(reader.readDouble(), reader.readDouble(), reader.readDouble());
+
+        double[] ranges = new double[reader.readInt()];
+
+        for (int e = 0; e < ranges.length; e++) {
+            ranges[e] = reader.readDouble();
+        }
+
+        Shot shot = new Shot(origin, direction, ranges);
+
+        if(reader.readBoolean()){
+
+            boolean[] mask = new boolean[ranges.length];
+
+            for (int e = 0; e < mask.length; e++) {
+                mask[e] = reader.readBoolean();
+            }
+
+            shot.setMask(mask);
+        }
+
+        return shot;
+    }
+
+    /**
+     * Close the shot files and let the other processes voxelise the tiles.
+     * @throws IOException if a shot file cannot be closed
+     */
+    public void finishRouting() throws IOException {
+
+        if(routingDone || shotWriters == null){
+            return;
+        }
+
+        for(DataOutputStream writer : shotWriters.values()){
+            writer.close();
+        }
+
+        shotWriters.clear();
+
+        Files.createFile(new File(workingDirectory, ROUTING_DONE_FILE).toPath());
+        routingDone = true;
+
+        LOGGER.info("Shots routed: " + nbShotsRouted);
+    }
+
+    /**
+     * Voxelise the tiles not claimed by another process, {@link VoxelAnalysisCfg#getNbThreads()} tiles at a time.
+     * Wait for the end of the shots routing if needed, the tiles still voxelised by other processes are not waited for.
+     * @throws Exception if a tile voxelisation failed
+     */
+    public void voxeliseTiles() throws Exception {
+
+        waitForFile(new File(workingDirectory, ROUTING_DONE_FILE));
+
+        if(getVoxelManager() == null){
+            createVoxelManager();
+        }
+
+        final AtomicInteger nextTile = new AtomicInteger();
+        final AtomicInteger nbTilesDone = new AtomicInteger();
+
+        executor = Executors.newFixedThreadPool(nbThreads, (Runnable r) -> {
+            Thread thread = new Thread(r, "tile-voxelisation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<Object>> futures = new ArrayList<>();
+
+            for (int t = 0; t < nbThreads; t++) {
+
+                futures.add(executor.submit(() -> {
+
+                    int tile;
+
+                    while((tile = nextTile.getAndIncrement()) < tiling.getNbTiles() && !isCancelled()){
+
+                        //another process voxelises the tile, or already did it
+                        if(!getLockFile(tile).createNewFile()){
+                            continue;
+                        }
+
+                        voxeliseClaimedTile(tile);
+
+                        int nbTiles = nbTilesDone.incrementAndGet();
+                        fireProgress("Tiles voxelisation", nbTiles, tiling.getNbTiles());
+                    }
+
+                    return null;
+                }));
+            }
+
+            for(Future<Object> future : futures){
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    if(ex.getCause() instanceof Exception){
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Voxelise a tile whose lock is held, the lock file is touched while the tile is voxelised.
+     */
+    private void voxeliseClaimedTile(int tile) throws Exception {
+
+        File lockFile = getLockFile(tile);
+        long period = Math.max(1, lockTimeout / 4);
+
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "tile-lock-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        heartbeat.scheduleAtFixedRate(() -> {
+            if(!lockFile.setLastModified(System.currentTimeMillis())){
+                LOGGER.warn("Cannot refresh the lock of tile " + tile);
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+
+        try {
+            voxeliseTile(tiling.getTile(tile));
+        } finally {
+            heartbeat.shutdownNow();
+        }
+    }
+
+    private void voxeliseTile(VoxelTiling.Tile tile) throws Exception {
+
+        VoxelParameters parameters = tile.getParameters();
+
+        VoxelAnalysisCfg tileCfg = new VoxelAnalysisCfg();
+        tileCfg.setVoxelParameters(parameters);
+        tileCfg.setShotFilter(cfg.getShotFilter());
+        tileCfg.setEchoFilter(cfg.getEchoFilter());
+
+        VoxelAnalysis voxelAnalysis = new VoxelAnalysis(getDtm(), getPointcloudFilters(), tileCfg);
+        voxelAnalysis.setReferenceVoxelManager(getVoxelManager());
+        voxelAnalysis.createVoxelSpace();
+
+        File shotFile = getShotFile(tile.getIndex());
+
+        long startTime = System.nanoTime();
+
+        if(shotFile.exists()){
+
+            try (DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(shotFile), 1 << 16))) {
+
+                Shot shot;
+
+                while((shot = readShot(reader)) != null){
+
+                    if(isCancelled()){
+                        return;
+                    }
+
+                    voxelAnalysis.processOneShot(shot);
+                }
+            }
+
+        }else if(getTileFile(tile.getIndex()).exists()){
+            //the shot file is deleted once the tile is written, by the previous owner of the lock
+            return;
+        }
+
+        if(getMetrics() != null){
+            getMetrics().addVoxelsTraversed(voxelAnalysis.getNbVoxelsTraversed());
+            getMetrics().addTime(VoxelisationMetrics.Stage.PROPAGATE, System.nanoTime() - startTime);
+        }
+
+        voxelAnalysis.computePADs();
+
+        if(parameters.getNaNsCorrectionParams().isActivate()){
+            NaNsCorrection naNsCorrection = new NaNsCorrection();
+            //the tiles are already processed in parallel
+            naNsCorrection.setNbThreads(1);
+            naNsCorrection.correct(parameters, voxelAnalysis.getVoxels());
+        }
+
+        //unique, a tile taken over can be written by its previous owner at the same time
+        File tmpFile = File.createTempFile("tile_" + tile.getIndex() + "_", ".tmp", workingDirectory);
+
+        TiledVoxelStore.writeCore(voxelAnalysis.getVoxels(), tile, tmpFile);
+        Files.move(tmpFile.toPath(), getTileFile(tile.getIndex()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        Files.deleteIfExists(shotFile.toPath());
+
+        LOGGER.info("Tile " + tile.getIndex() + " voxelised, " + voxelAnalysis.getNbShotsProcessed() + " shots");
+    }
+
+    private void waitForFile(File file) throws InterruptedIOException {
+
+        while(!file.exists()){
+
+            if(isCancelled()){
+                throw new InterruptedIOException("Voxelisation cancelled");
+            }
+
+            try {
+                Thread.sleep(500);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Voxelisation interrupted");
+            }
+        }
+    }
+
+    /**
+     * Wait for a tile voxelised by another process, voxelise it if its lock is not refreshed anymore.
+     */
+    private void waitForTile(int tile) throws Exception {
+
+        File tileFile = getTileFile(tile);
+        File lockFile = getLockFile(tile);
+
+        while(!tileFile.exists()){
+
+            if(isCancelled()){
+                throw new InterruptedIOException("Voxelisation cancelled");
+            }
+
+            //0 if the lock file does not exist
+            long lastModified = lockFile.lastModified();
+
+            if(System.currentTimeMillis() - lastModified > lockTimeout){
+
+                LOGGER.warn("Lock of tile " + tile + " not refreshed since " + lockTimeout + " ms, tile voxelised by this process");
+
+                lockFile.createNewFile();
+                voxeliseClaimedTile(tile);
+
+                continue;
+            }
+
+            try {
+                Thread.sleep(Math.min(500, lockTimeout));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Voxelisation interrupted");
+            }
+        }
+    }
+
+    /**
+     * Route the remaining shots, voxelise the tiles, wait for the tiles voxelised by other processes and stitch them.
+     * @throws IOException if a tile voxelisation failed
+     */
+    public void stitch() throws IOException {
+
+        if(tiledVoxels != null){
+            return;
+        }
+
+        File[] tileFiles = new File[tiling.getNbTiles()];
+
+        try {
+            finishRouting();
+            voxeliseTiles();
+
+            for (int t = 0; t < tileFiles.length; t++) {
+                tileFiles[t] = getTileFile(t);
+                waitForTile(t);
+            }
+
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException("Tile voxelisation failed", ex);
+        }
+
+        tiledVoxels = new TiledVoxelStore(tiling, tileFiles);
+        setComputedVoxels(tiledVoxels);
+    }
+
+    private void ensureStitched(){
+
+        try {
+            stitch();
+        } catch (IOException ex) {
+            throw new IllegalStateException("Tiled voxelisation failed", ex);
+        }
+    }
+
+    @Override
+    public void computePADs() {
+        ensureStitched();
+    }
+
+    @Override
+    public void computePAD(int i, int j, int k) {
+        ensureStitched();
+    }
+
+    @Override
+    public void write(VoxelsFormat format, File outputFile) throws Exception {
+        stitch();
+        super.write(format, outputFile);
+    }
+
+    @Override
+    public void writeGroundEnergy() throws IOException {
+        LOGGER.warn("Ground energy is not supported by the tiled voxelisation, no file written");
+    }
+
+    @Override
+    public VoxelStore getVoxels() {
+        return tiledVoxels;
+    }
+
+    /**
+     * Delete the files of the tiled voxelisation and the working directory if it is empty,
+     * the voxels are not available anymore.
+     */
+    public void deleteWorkingDirectory() {
+
+        tiledVoxels = null;
+
+        File[] files = workingDirectory.listFiles((File dir, String name) -> name.startsWith("tile_") || name.equals(ROUTING_DONE_FILE));
+
+        if(files == null){
+            return;
+        }
+
+        for(File file : files){
+            //a mapped file cannot be deleted on some systems until the mapping is garbage collected
+            if(!file.delete() && file.exists()){
+                LOGGER.warn("Cannot delete " + file);
+            }
+        }
+
+        workingDirectory.delete();
+    }
+
+    @Override
+    public int getNbShotsProcessed() {
+        return nbShotsRouted;
+    }
+
+    public VoxelTiling getTiling() {
+        return tiling;
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+
+        super.setCancelled(cancelled);
+
+        if(cancelled && executor != null){
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,429 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.commons.Voxel;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import javax.vecmath.Point3i;
+
+/**
+ * Read-only voxel store stitching the cores of the tiles of a {@link VoxelTiling}.
+ *
+ * <p>The computed voxels of the core of each tile are stored in a file of fixed size records
+ * (flags, nbSampling, nbEchos, lgTotal, angleMean, ground distance, bvEntering, bvIntercepted,
+ * transmittance_tmp, sumSurfMulLength, sumSurfMulLengthMulEnt, transmittance, PAD), in the i, j, k order
+ * of the core. The files are memory mapped, so the stitched voxel space is not held in the heap.</p>
+ *
+ * <p>The voxel indices are the ones of the whole voxel space. Accessing the voxels by their linear
+ * index requires less than {@link Integer#MAX_VALUE} voxels, {@link #getVoxel(int, int, int, Voxel)}
+ * has no such limit.</p>
+ */
+class TiledVoxelStore implements VoxelStore {
+
+    private final static byte INITIALIZED = 1;
+    private final static byte NOT_LAST_ECHO = 2;
+    private final static byte NOT_VALID = 4;
+
+    final static int RECORD_SIZE = 69;
+
+    //offsets of the fields in a record
+    private final static int NB_SAMPLING = 1;
+    private final static int NB_ECHOS = 5;
+    private final static int LG_TOTAL = 9;
+    private final static int ANGLE_MEAN = 13;
+    private final static int GROUND_DISTANCE = 17;
+    private final static int BV_ENTERING = 21;
+    private final static int BV_INTERCEPTED = 29;
+    private final static int TRANSMITTANCE_TMP = 37;
+    private final static int SUM_SURF_MUL_LENGTH = 45;
+    private final static int SUM_SURF_MUL_LENGTH_MUL_ENT = 53;
+    private final static int TRANSMITTANCE = 61;
+    private final static int PAD = 65;
+
+    private final VoxelTiling tiling;
+    private final Point3i split;
+    private final MappedByteBuffer[] buffers;
+
+    /**
+     *
+     * @param tiling tiling of the voxel space
+     * @param tileFiles computed voxels of the tile cores, indexed by tile
+     * @throws IOException if a file cannot be mapped
+     */
+    TiledVoxelStore(VoxelTiling tiling, File[] tileFiles) throws IOException {
+
+        this.tiling = tiling;
+        this.split = tiling.getSplit();
+        this.buffers = new MappedByteBuffer[tiling.getNbTiles()];
+
+        for (int t = 0; t < buffers.length; t++) {
+
+            Point3i coreSplit = tiling.getTile(t).getCoreSplit();
+            long expectedLength = (long) coreSplit.x * coreSplit.y * coreSplit.z * RECORD_SIZE;
+
+            try (RandomAccessFile file = new RandomAccessFile(tileFiles[t], "r")) {
+
+                if(file.length() != expectedLength){
+                    throw new IOException("Tile file " + tileFiles[t] + " is truncated");
+                }
+
+                if(expectedLength > Integer.MAX_VALUE){
+                    throw new IOException("Tile file " + tileFiles[t] + " is too large to be mapped, reduce the tile size");
+                }
+
+                //the mapping remains valid after the file is closed
+                buffers[t] = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, expectedLength);
+            }
+        }
+    }
+
+    /**
+     * Write the computed voxels of the core of a tile.
+     * @param voxels computed voxels of the tile, core and margin
+     * @param tile tile
+     * @param file output file
+     * @throws IOException if the file cannot be written
+     */
+    static void writeCore(VoxelStore voxels, VoxelTiling.Tile tile, File file) throws IOException {
+
+        Point3i offset = new Point3i(tile.getCoreMin());
+        offset.sub(tile.getMin());
+
+        Point3i coreSplit = tile.getCoreSplit();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+
+            for (int i = 0; i < coreSplit.x; i++) {
+                for (int j = 0; j < coreSplit.y; j++) {
+                    for (int k = 0; k < coreSplit.z; k++) {
+
+                        int index = voxels.index(i + offset.x, j + offset.y, k);
+
+                        byte flags = 0;
+
+                        if(voxels.isInitialized(index)){
+                            flags |= INITIALIZED;
+                        }
+                        if(!voxels.isLastEcho(index)){
+                            flags |= NOT_LAST_ECHO;
+                        }
+                        if(!voxels.isValid(index)){
+                            flags |= NOT_VALID;
+                        }
+
+                        out.writeByte(flags);
+                        out.writeInt(voxels.getNbSampling(index));
+                        out.writeInt(voxels.getNbEchos(index));
+                        out.writeFloat(voxels.getLgTotal(index));
+                        out.writeFloat(voxels.getAngleMean(index));
+                        out.writeFloat(voxels.getGroundDistance(index));
+                        out.writeDouble(voxels.getBvEntering(index));
+                        out.writeDouble(voxels.getBvIntercepted(index));
+                        out.writeDouble(voxels.getTransmittanceTmp(index));
+                        out.writeDouble(voxels.getSumSurfMulLength(index));
+                        out.writeDouble(voxels.getSumSurfMulLengthMulEnt(index));
+                        out.writeFloat(voxels.getTransmittance(index));
+                        out.writeFloat(voxels.getPadBVTotal(index));
+                    }
+                }
+            }
+        }
+    }
+
+    //tile index in the high bits, position of the record in the low bits
+    private long locate(int i, int j, int k) {
+
+        VoxelTiling.Tile tile = tiling.getTile(i, j);
+        Point3i coreMin = tile.getCoreMin();
+        Point3i coreSplit = tile.getCoreSplit();
+
+        int position = (((i - coreMin.x) * coreSplit.y + (j - coreMin.y)) * coreSplit.z + k) * RECORD_SIZE;
+
+        return ((long) tile.getIndex() << 32) | position;
+    }
+
+    private long locate(int index) {
+
+        int strideI = split.y * split.z;
+        int i = index / strideI;
+        int j = (index % strideI) / split.z;
+        int k = index % split.z;
+
+        return locate(i, j, k);
+    }
+
+    private MappedByteBuffer buffer(long location) {
+        return buffers[(int) (location >>> 32)];
+    }
+
+    private static int position(long location) {
+        return (int) location;
+    }
+
+    private byte getFlags(long location) {
+        return buffer(location).get(position(location));
+    }
+
+    private int getInt(long location, int field) {
+        return buffer(location).getInt(position(location) + field);
+    }
+
+    private float getFloat(long location, int field) {
+        return buffer(location).getFloat(position(location) + field);
+    }
+
+    private double getDouble(long location, int field) {
+        return buffer(location).getDouble(position(location) + field);
+    }
+
+    @Override
+    public Point3i getSplit() {
+        return new Point3i(split);
+    }
+
+    @Override
+    public int size() {
+
+        long size = (long) split.x * split.y * split.z;
+
+        if(size > Integer.MAX_VALUE){
+            throw new IllegalStateException("Too many voxels (" + size + ") for a linear index");
+        }
+
+        return (int) size;
+    }
+
+    @Override
+    public int index(int i, int j, int k) {
+
+        long index = ((long) i * split.y + j) * split.z + k;
+
+        if(index > Integer.MAX_VALUE){
+            throw new IllegalStateException("Too many voxels for a linear index");
+        }
+
+        return (int) index;
+    }
+
+    @Override
+    public boolean isInitialized(int index) {
+        return (getFlags(locate(index)) & INITIALIZED) != 0;
+    }
+
+    @Override
+    public int getNbSampling(int index) {
+        return getInt(locate(index), NB_SAMPLING);
+    }
+
+    @Override
+    public int getNbEchos(int index) {
+        return getInt(locate(index), NB_ECHOS);
+    }
+
+    @Override
+    public float getLgTotal(int index) {
+        return getFloat(locate(index), LG_TOTAL);
+    }
+
+    @Override
+    public float getAngleMean(int index) {
+        return getFloat(locate(index), ANGLE_MEAN);
+    }
+
+    @Override
+    public float getGroundDistance(int index) {
+        return getFloat(locate(index), GROUND_DISTANCE);
+    }
+
+    @Override
+    public double getBvEntering(int index) {
+        return getDouble(locate(index), BV_ENTERING);
+    }
+
+    @Override
+    public double getBvIntercepted(int index) {
+        return getDouble(locate(index), BV_INTERCEPTED);
+    }
+
+    @Override
+    public double getTransmittanceTmp(int index) {
+        return getDouble(locate(index), TRANSMITTANCE_TMP);
+    }
+
+    @Override
+    public double getSumSurfMulLength(int index) {
+        return getDouble(locate(index), SUM_SURF_MUL_LENGTH);
+    }
+
+    @Override
+    public double getSumSurfMulLengthMulEnt(int index) {
+        return getDouble(locate(index), SUM_SURF_MUL_LENGTH_MUL_ENT);
+    }
+
+    @Override
+    public double getLMeanTotal(int index) {
+        return getLMeanTotal(locate(index));
+    }
+
+    private double getLMeanTotal(long location) {
+
+        int nbSampling = getInt(location, NB_SAMPLING);
+
+        if(nbSampling >= getInt(location, NB_ECHOS)){
+            return getFloat(location, LG_TOTAL) / nbSampling;
+        }
+
+        return 0;
+    }
+
+    @Override
+    public float getTransmittance(int index) {
+        return getFloat(locate(index), TRANSMITTANCE);
+    }
+
+    @Override
+    public float getPadBVTotal(int index) {
+        return getFloat(locate(index), PAD);
+    }
+
+    @Override
+    public boolean isLastEcho(int index) {
+        return (getFlags(locate(index)) & NOT_LAST_ECHO) == 0;
+    }
+
+    @Override
+    public boolean isValid(int index) {
+        return (getFlags(locate(index)) & NOT_VALID) == 0;
+    }
+
+    @Override
+    public Voxel getVoxel(int i, int j, int k, Voxel voxel) {
+
+        long location = locate(i, j, k);
+        byte flags = getFlags(location);
+
+        voxel.$i = i;
+        voxel.$j = j;
+        voxel.$k = k;
+        voxel.nbSampling = getInt(location, NB_SAMPLING);
+        voxel.nbEchos = getInt(location, NB_ECHOS);
+        voxel.lgTotal = getFloat(location, LG_TOTAL);
+        voxel.angleMean = getFloat(location, ANGLE_MEAN);
+        voxel.ground_distance = getFloat(location, GROUND_DISTANCE);
+        voxel.bvEntering = getDouble(location, BV_ENTERING);
+        voxel.bvIntercepted = getDouble(location, BV_INTERCEPTED);
+        voxel.transmittance_tmp = getDouble(location, TRANSMITTANCE_TMP);
+        voxel.sumSurfMulLength = getDouble(location, SUM_SURF_MUL_LENGTH);
+        voxel.sumSurfMulLengthMulEnt = getDouble(location, SUM_SURF_MUL_LENGTH_MUL_ENT);
+        voxel.lMeanTotal = getLMeanTotal(location);
+        voxel.transmittance = getFloat(location, TRANSMITTANCE);
+        voxel.PadBVTotal = getFloat(location, PAD);
+        voxel._lastEcho = (flags & NOT_LAST_ECHO) == 0;
+        voxel._valid = (flags & NOT_VALID) == 0;
+
+        return voxel;
+    }
+
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("The voxels of a tiled voxelisation are read-only");
+    }
+
+    @Override
+    public void initialize(int index, float groundDistance) {
+        throw readOnly();
+    }
+
+    @Override
+    public void incrementNbSampling(int index) {
+        throw readOnly();
+    }
+
+    @Override
+    public void incrementNbEchos(int index) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addLgTotal(int index, double length) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setAngleMean(int index, float angleMean) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addAngle(int index, double angle) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addBvEntering(int index, double bvEntering) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addBvIntercepted(int index, double bvIntercepted) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addTransmittanceTmp(int index, double transmittance) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addSumSurfMulLength(int index, double surfMulLength) {
+        throw readOnly();
+    }
+
+    @Override
+    public void addSumSurfMulLengthMulEnt(int index, double surfMulLengthMulEnt) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setTransmittance(int index, float transmittance) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setPadBVTotal(int index, float pad) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setLastEcho(int index, boolean lastEcho) {
+        throw readOnly();
+    }
+
+    @Override
+    public void setValid(int index, boolean valid) {
+        throw readOnly();
+    }
+
+    @Override
+    public void merge(VoxelStore other) {
+        throw readOnly();
+    }
+}
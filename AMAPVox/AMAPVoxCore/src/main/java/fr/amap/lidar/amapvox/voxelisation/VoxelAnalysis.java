@@ -7,9 +7,10 @@ import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.geometry.LineSegment;
 import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.util.BoundingBox3d;
 import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.Scene;
 import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelManager;
-import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelManager.VoxelCrossingContext;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelTraversal;
 import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelManagerSettings;
 import fr.amap.commons.raster.asc.Raster;
+import fr.amap.commons.raster.asc.RasterQuery;
 import fr.amap.commons.raster.multiband.BCommon;
 import fr.amap.commons.raster.multiband.BHeader;
 import fr.amap.commons.raster.multiband.BSQ;
@@ -26,6 +27,8 @@ import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsF
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.GroundEnergyParams;
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.EchoesWeightParams;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import fr.amap.lidar.amapvox.voxwriter.BinaryVoxelFileWriter;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
@@ -36,6 +39,7 @@ import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.util.List;
 import java.util.logging.Level;
@@ -50,13 +54,22 @@ public class VoxelAnalysis extends Process implements Cancellable{
     
     private boolean cancelled;
 
-    private Voxel voxels[][][];
+    private VoxelStore voxels;
     private VoxelManager voxelManager;
+    //voxel space of reference for the echoes grouping, when this analysis is a part of a larger voxel space
+    private VoxelManager referenceVoxelManager;
+    private VoxelTraversal traversal;
+    private Point3d minCorner;
+    private Point3d voxelSize;
 
     private float MAX_PAD = 3;
 
     private int nbShotsProcessed;
     private int tmpNbShotsProcessed = 0;
+    private long nbVoxelsTraversed;
+
+    //counters and timers of the run, null if the run is not instrumented
+    private VoxelisationMetrics metrics;
 
     private float[][] weighting;
     private float[][] residualEnergyTable;
@@ -73,9 +86,11 @@ public class VoxelAnalysis extends Process implements Cancellable{
     private boolean isSet = false;
 
     private Raster dtm;
+    private RasterQuery dtmQuery;
+    private boolean dtmInterpolation;
 
     private boolean shotChanged = false;
-    private Voxel lastVoxelSampled;
+    private int lastVoxelSampled = -1;
     private int lastShotId;
     
     private LaserSpecification laserSpec;
@@ -161,14 +176,23 @@ public class VoxelAnalysis extends Process implements Cancellable{
 
         float distance = 0;
 
-        if (dtm != null && parameters.getDtmFilteringParams().useDTMCorrection()) {
-            distance = z - (float) (dtm.getSimpleHeight(x, y));
+        if (dtmQuery != null) {
+            distance = z - getGroundHeight(x, y);
         }else{
             distance = z;
         }
 
         return distance;
     }
+    
+    private float getGroundHeight(float x, float y) {
+        
+        if (dtmInterpolation) {
+            return dtmQuery.getBilinearHeight(x, y);
+        } else {
+            return dtmQuery.getNearestHeight(x, y);
+        }
+    }
             
     public VoxelAnalysis(Raster terrain, List<PointcloudFilter> pointcloudFilters, VoxelAnalysisCfg cfg) {
 
@@ -193,6 +217,11 @@ public class VoxelAnalysis extends Process implements Cancellable{
         this.parameters.infos.setTransmittanceMode(parameters.getTransmittanceMode());
         this.parameters.infos.setPathLengthMode(parameters.getPathLengthMode());
         
+        if (dtm != null && parameters.getDtmFilteringParams().useDTMCorrection()) {
+            dtmQuery = dtm.getQuery();
+            dtmInterpolation = parameters.getDtmFilteringParams().isBilinearInterpolation();
+        }
+        
         if(parameters.getEchoesWeightParams().getWeightingMode() != EchoesWeightParams.WEIGHTING_NONE){
             weighting = parameters.getEchoesWeightParams().getWeightingData();
             generateResidualEnergyTable();
@@ -270,6 +299,17 @@ public class VoxelAnalysis extends Process implements Cancellable{
     }
 
     public void processOneShot(final Shot shot) throws IOException {
+        processOneShot(shot, null);
+    }
+
+    /**
+     * Propagate a shot whose echoes are already filtered.
+     * @param shot shot to propagate
+     * @param keptEchoes echoes kept by the filters (see {@link #filterEchoes(Shot, boolean[])}),
+     * null to filter the echoes with the filters of this analysis
+     * @throws IOException if the shot segments cannot be written
+     */
+    void processOneShot(final Shot shot, boolean[] keptEchoes) throws IOException {
 
         if (voxelManager == null) {
             LOGGER.error("VoxelManager not initialized, what happened??");
@@ -278,6 +318,9 @@ public class VoxelAnalysis extends Process implements Cancellable{
         
         if((shotFilter != null && shotFilter.doFiltering(shot)) || shotFilter == null ){
             
+            long startTime = metrics != null ? System.nanoTime() : 0;
+            long nbVoxelsTraversedBefore = nbVoxelsTraversed;
+            
             if(tmpNbShotsProcessed == 1000000){
                 LOGGER.info("Shots processed: " + nbShotsProcessed);
                 tmpNbShotsProcessed = 0;
@@ -290,7 +333,7 @@ public class VoxelAnalysis extends Process implements Cancellable{
 
                 LineSegment seg = new LineSegment(shot.origin, shot.direction, 999999);
                 Point3d echo = new Point3d(seg.getEnd());
-                propagate(origin, echo, 1, 1, false, nbShotsProcessed, shot, -1);
+                propagate(origin, echo, 1, 1, false, nbShotsProcessed, shot, -1, keptEchoes);
 
             } else {
 
@@ -353,7 +396,7 @@ public class VoxelAnalysis extends Process implements Cancellable{
                         lastEcho = i == shot.getEchoesNumber() - 1;
 
                         // propagate
-                        propagate(origin, echo, beamFraction, residualEnergy, lastEcho, nbShotsProcessed, shot, i);
+                        propagate(origin, echo, beamFraction, residualEnergy, lastEcho, nbShotsProcessed, shot, i, keptEchoes);
                         
                         
                         origin = new Point3d(echo);
@@ -363,6 +406,11 @@ public class VoxelAnalysis extends Process implements Cancellable{
 
             nbShotsProcessed++;
             tmpNbShotsProcessed++;
+            
+            if(metrics != null){
+                metrics.shotKept(shot.getEchoesNumber(), nbVoxelsTraversed - nbVoxelsTraversedBefore);
+                metrics.addTime(VoxelisationMetrics.Stage.PROPAGATE, System.nanoTime() - startTime);
+            }
         }
         
     }
@@ -386,8 +434,10 @@ public class VoxelAnalysis extends Process implements Cancellable{
             return false;
         }
 
-        Point3i indices1 = voxelManager.getVoxelIndicesFromPoint(echo1);
-        Point3i indices2 = voxelManager.getVoxelIndicesFromPoint(echo2);
+        VoxelManager manager = referenceVoxelManager != null ? referenceVoxelManager : voxelManager;
+
+        Point3i indices1 = manager.getVoxelIndicesFromPoint(echo1);
+        Point3i indices2 = manager.getVoxelIndicesFromPoint(echo2);
 
         return indices1 != null && indices2 != null && indices1.equals(indices2);
     }
@@ -402,83 +452,55 @@ public class VoxelAnalysis extends Process implements Cancellable{
      * @param shotID current shot (id)
      * @param shot current shot processed
      * @param echoRank current echo processed (rank)
+     * @param keptEchoes echoes of the shot kept by the filters, null to filter the echo here
      */
-    private void propagate(Point3d origin, Point3d echo, double beamFraction, double residualEnergy, boolean lastEcho, int shotID, Shot shot, int echoRank) {
+    private void propagate(Point3d origin, Point3d echo, double beamFraction, double residualEnergy, boolean lastEcho, int shotID, Shot shot, int echoRank, boolean[] keptEchoes) {
         
         //get shot line
         LineElement lineElement = new LineSegment(origin, echo);
 
         //get the first voxel cross by the line
-        VoxelCrossingContext context = voxelManager.getFirstVoxelV2(lineElement);
+        boolean crossing = traversal.start(lineElement);
 
         double distanceToHit = lineElement.getLength();
 
-        //calculate ground distance
-        
-        boolean keepEcho = true, keepEchoPointCloudFiltering = true;
-        
-        //echo filtering
-        if(pointcloudFilters != null){
-            for(PointcloudFilter filter : pointcloudFilters){
-                keepEchoPointCloudFiltering = keepEchoPointCloudFiltering && filter.doFiltering(echo);
-            }
-        }
-        
-        if(!keepEchoOfShot(shot, echoRank)){ //mask
-            keepEcho = false;
-        }
-        
-        if(keepEcho && parameters.getDtmFilteringParams().useDTMCorrection()){ //DTM
-            
-            float echoDistance = getGroundDistance((float) echo.x, (float) echo.y, (float) echo.z);
-            
-            if(echoDistance < parameters.getDtmFilteringParams().getMinDTMDistance() || Float.isNaN(echoDistance)){
-                keepEcho = false;
-            }
-        }
-        
-        if(keepEcho && !keepEchoPointCloudFiltering){ //point cloud filtering
-            keepEcho = false;
-        }
-        
-//        keepEcho = keepEchoOfShot(shot, echoRank) && // mask
-//                ((parameters.getDtmFilteringParams().useDTMCorrection() && //DTM
-//                echoDistance >= parameters.getDtmFilteringParams().getMinDTMDistance() &&
-//                !Float.isNaN(echoDistance)) ||
-//                !parameters.getDtmFilteringParams().useDTMCorrection()) &&
-//                keepEchoPointCloudFiltering;
+        //echo filtering, the decisions can be computed once for several voxel spaces
+        boolean keepEcho = keptEchoes != null ? keptEchoes[Math.max(0, echoRank)] : keepEcho(shot, echoRank, echo);
 
-        while ((context != null) && (context.indices != null)) {
+        while (crossing && traversal.next()) {
 
             //distance from the last origin to the point in which the ray enter the voxel
-            double d1 = context.length;
+            double d1 = traversal.getEntry();
 
-            //current voxel
-            Point3i indices = context.indices;
+            //distance from the last origin to the point in which the ray exit the voxel
+            double d2 = traversal.getExit();
 
-            context = voxelManager.CrossVoxel(lineElement, context.indices);
+            //current voxel
+            int i = traversal.getI();
+            int j = traversal.getJ();
+            int k = traversal.getK();
 
-            //distance from the last origin to the point in which the ray exit the voxel
-            double d2 = context.length;
-            
+            int vox = voxels.index(i, j, k);
             
-            //instantiate on the fly, when the voxel is crossed
-            if (voxels[indices.x][indices.y][indices.z] == null) {
-                voxels[indices.x][indices.y][indices.z] = initVoxel(indices.x, indices.y, indices.z);
+            nbVoxelsTraversed++;
+
+            //initialize on the fly, when the voxel is crossed
+            if (!voxels.isInitialized(vox)) {
+                initVoxel(vox, i, j, k);
             }
 
-            Voxel vox = voxels[indices.x][indices.y][indices.z];
-            
             double surface;
 
             //recalculé pour éviter le stockage de trois doubles (24 octets) par voxel.
-            Point3d voxelPosition = getPosition(new Point3i(indices.x, indices.y, indices.z));
-            double distance = voxelPosition.distance(shot.origin);
-            
+            double dx = minCorner.x + (voxelSize.x / 2.0d) + (i * voxelSize.x) - shot.origin.x;
+            double dy = minCorner.y + (voxelSize.y / 2.0d) + (j * voxelSize.y) - shot.origin.y;
+            double dz = minCorner.z + (voxelSize.z / 2.0d) + (k * voxelSize.z) - shot.origin.z;
+            double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
             //don't continue the propagation if the current sampled voxel is below the ground
-            if(parameters.getGroundEnergyParams() == null || 
+            if(parameters.getGroundEnergyParams() == null ||
                             !parameters.getGroundEnergyParams().isCalculateGroundEnergy()){
-                if(vox.ground_distance < voxelManager.getVoxelSpace().getVoxelSize().z/2.0f){
+                if(voxels.getGroundDistance(vox) < voxelSize.z/2.0f){
                     break;
                 }
             }
@@ -505,16 +527,16 @@ public class VoxelAnalysis extends Process implements Cancellable{
              */
             if (d2 < distanceToHit) {
 
-                if(shotID == lastShotId && lastVoxelSampled != null && lastVoxelSampled == vox){
+                if(shotID == lastShotId && lastVoxelSampled == vox){
                     //pour n'échantillonner qu'une fois le voxel pour un tir
                 }else{
                     longueur = d2 - d1;
-                    
-                    vox.lgTotal += longueur;
-                
-                    vox.nbSampling++;
 
-                    vox.angleMean += shot.getAngle();
+                    voxels.addLgTotal(vox, longueur);
+
+                    voxels.incrementNbSampling(vox);
+
+                    voxels.addAngle(vox, shot.getAngle());
                     
                     //double volume = longueur * ONE_THIRD_OF_PI * ((r*r)+(R*R)+(r*R));
                     //vox.bvEntering += volume * (Math.round(residualEnergy*10000)/10000.0);
@@ -522,13 +544,13 @@ public class VoxelAnalysis extends Process implements Cancellable{
                     surfMulLength = surface * longueur;
                     entering = (Math.round(residualEnergy*10000)/10000.0);
                     surfMulLengthMulEnt = entering * surfMulLength; //CL
-                    vox.bvEntering += (entering * surfMulLength);
+                    voxels.addBvEntering(vox, entering * surfMulLength);
 
                     lastVoxelSampled = vox;
                     lastShotId = shotID;
-                    
+
                     test = true;
-                    vox._valid = false;
+                    voxels.setValid(vox, false);
                 }
                 
                 /*
@@ -551,14 +573,14 @@ public class VoxelAnalysis extends Process implements Cancellable{
                             parameters.getGroundEnergyParams().isCalculateGroundEnergy() &&
                             parameters.infos.getType() != VoxelSpaceInfos.Type.TLS) {
 
-                        if (vox.ground_distance < parameters.getDtmFilteringParams().getMinDTMDistance()) {
-                            groundEnergy[vox.$i][vox.$j].groundEnergyPotential++;
+                        if (voxels.getGroundDistance(vox) < parameters.getDtmFilteringParams().getMinDTMDistance()) {
+                            groundEnergy[i][j].groundEnergyPotential++;
                             shotChanged = false;
-                            context = null; // sortie de la boucle 
+                            break; // sortie de la boucle
                         }
 
                     } else {
-                        context = null;// sortie de la boucle 
+                        break;// sortie de la boucle
                     }
 
                 }
@@ -585,27 +607,27 @@ public class VoxelAnalysis extends Process implements Cancellable{
                     }else{
                         longueur = (d2 - d1); //test
                     }
-                    vox._valid = false;
+                    voxels.setValid(vox, false);
                 } else {
                     longueur = (d2 - d1);
                 }
                     
-                if(shotID == lastShotId && lastVoxelSampled != null && lastVoxelSampled == vox){
+                if(shotID == lastShotId && lastVoxelSampled == vox){
                     //pour n'échantillonner qu'une fois le voxel pour un tir
                 }else{
-                    
+
                     test = true;
-                    
-                    vox.nbSampling++;
 
-                    vox.lgTotal += longueur;
+                    voxels.incrementNbSampling(vox);
+
+                    voxels.addLgTotal(vox, longueur);
+
+                    voxels.addAngle(vox, shot.getAngle());
 
-                    vox.angleMean += shot.getAngle();
-                    
                     surfMulLength = surface * longueur;
                     entering = (Math.round(residualEnergy*10000)/10000.0);
                     surfMulLengthMulEnt = entering * surfMulLength; //CL
-                    vox.bvEntering += (entering * surfMulLength);
+                    voxels.addBvEntering(vox, entering * surfMulLength);
                     
                     lastVoxelSampled = vox;
                     lastShotId = shotID;
@@ -616,21 +638,21 @@ public class VoxelAnalysis extends Process implements Cancellable{
                     test = true;
 
                     if(!lastEcho){
-                        vox._lastEcho = false;
+                        voxels.setLastEcho(vox, false);
                     }
-                    vox.nbEchos++;
+                    voxels.incrementNbEchos(vox);
 
                     surfMulLength = surface * longueur;
                     intercepted = (Math.round(beamFraction*10000)/10000.0);
-                    vox.bvIntercepted += (intercepted * surfMulLength);
+                    voxels.addBvIntercepted(vox, intercepted * surfMulLength);
 
                 } else {
 
                     if (parameters.getGroundEnergyParams() != null && 
                             parameters.getGroundEnergyParams().isCalculateGroundEnergy() &&
                             parameters.infos.getType() != VoxelSpaceInfos.Type.TLS && !isSet) {
-                        groundEnergy[vox.$i][vox.$j].groundEnergyActual += residualEnergy;
-                        groundEnergy[vox.$i][vox.$j].groundEnergyPotential++;
+                        groundEnergy[i][j].groundEnergyActual += residualEnergy;
+                        groundEnergy[i][j].groundEnergyPotential++;
 
                         isSet = true;
                     }
@@ -651,16 +673,16 @@ public class VoxelAnalysis extends Process implements Cancellable{
                     }
                 }
                 
-                vox.transmittance_tmp += transNorm;
-                
-                vox.sumSurfMulLengthMulEnt += surfMulLengthMulEnt; //CL
+                voxels.addTransmittanceTmp(vox, transNorm);
+
+                voxels.addSumSurfMulLengthMulEnt(vox, surfMulLengthMulEnt); //CL
+
+                voxels.addSumSurfMulLength(vox, surfMulLength);
 
-                vox.sumSurfMulLength += surfMulLength;
-                
                 if(cfg.isExportShotSegment()){
                     double currentNormalizedTrans = transNorm/surfMulLengthMulEnt;
                     try {
-                        shotSegmentWriter.write(vox.$i+" "+vox.$j+" "+vox.$k+" "+currentNormalizedTrans+" "+surfMulLengthMulEnt+"\n");
+                        shotSegmentWriter.write(i+" "+j+" "+k+" "+currentNormalizedTrans+" "+surfMulLengthMulEnt+"\n");
                     } catch (IOException ex) {
                         java.util.logging.Logger.getLogger(VoxelAnalysis.class.getName()).log(Level.SEVERE, null, ex);
                     }
@@ -672,6 +694,70 @@ public class VoxelAnalysis extends Process implements Cancellable{
 
     }
     
+    /**
+     * Tell if an echo is kept by the mask of the shot, the DTM filtering and the point cloud filters.
+     * @param shot current shot processed
+     * @param echoRank current echo processed (rank), -1 for a shot without echoes
+     * @param echo current echo (position in voxel space)
+     * @return true if the echo is kept
+     */
+    private boolean keepEcho(Shot shot, int echoRank, Point3d echo) {
+        
+        boolean keepEcho = true, keepEchoPointCloudFiltering = true;
+        
+        //echo filtering
+        if(pointcloudFilters != null){
+            for(PointcloudFilter filter : pointcloudFilters){
+                keepEchoPointCloudFiltering = keepEchoPointCloudFiltering && filter.doFiltering(echo);
+            }
+        }
+        
+        if(!keepEchoOfShot(shot, echoRank)){ //mask
+            keepEcho = false;
+        }
+        
+        if(keepEcho && parameters.getDtmFilteringParams().useDTMCorrection()){ //DTM
+            
+            float echoDistance = getGroundDistance((float) echo.x, (float) echo.y, (float) echo.z);
+            
+            if(echoDistance < parameters.getDtmFilteringParams().getMinDTMDistance() || Float.isNaN(echoDistance)){
+                keepEcho = false;
+            }
+        }
+        
+        if(keepEcho && !keepEchoPointCloudFiltering){ //point cloud filtering
+            keepEcho = false;
+        }
+        
+        return keepEcho;
+    }
+    
+    /**
+     * Get the echoes of a shot kept by the filters, computed once when the shot is propagated in several voxel spaces
+     * sharing the filters and the DTM (see {@link #processOneShot(Shot, boolean[])}).
+     * @param shot shot whose direction is normalized
+     * @param keptEchoes array reused if it is long enough, can be null
+     * @return the decision per echo, a single decision for the end of the ray of a shot without echoes
+     */
+    boolean[] filterEchoes(Shot shot, boolean[] keptEchoes) {
+        
+        int nbEchoes = shot.getEchoesNumber();
+        
+        if(keptEchoes == null || keptEchoes.length < Math.max(1, nbEchoes)){
+            keptEchoes = new boolean[Math.max(1, nbEchoes)];
+        }
+        
+        if(nbEchoes == 0){
+            keptEchoes[0] = keepEcho(shot, -1, new LineSegment(shot.origin, shot.direction, 999999).getEnd());
+        }else{
+            for (int i = 0; i < nbEchoes; i++) {
+                keptEchoes[i] = keepEcho(shot, i, getEchoLocation(shot, i));
+            }
+        }
+        
+        return keptEchoes;
+    }
+    
     private boolean keepEchoOfShot(Shot shot, int echoID){
         
         if(shot.getMask() == null){
@@ -752,61 +838,74 @@ public class VoxelAnalysis extends Process implements Cancellable{
         return computePADFromNormTransmittance(transmittance, angleMean, MAX_PAD, direcTransmittance);
     }
     
-    public Voxel computePADFromVoxel(Voxel voxel, int i, int j, int k) {
-        
-        if (voxel == null) {
+    /**
+     * Compute the normalized transmittance and the PAD of a voxel, the mean angle is averaged in place.
+     * @param i voxel index along x
+     * @param j voxel index along y
+     * @param k voxel index along z
+     */
+    public void computePAD(int i, int j, int k) {
+
+        int voxel = voxels.index(i, j, k);
 
-            voxel = initVoxel(i, j, k);
+        if (!voxels.isInitialized(voxel)) {
+            initVoxel(voxel, i, j, k);
         }
-        
-        voxel.angleMean = voxel.angleMean / voxel.nbSampling;
 
-        if (voxel.nbSampling >= voxel.nbEchos) {
+        float angleMean = voxels.getAngleMean(voxel) / voxels.getNbSampling(voxel);
+        voxels.setAngleMean(voxel, angleMean);
 
-            voxel.lMeanTotal = voxel.lgTotal / (voxel.nbSampling);
+        double lMeanTotal = voxels.getLMeanTotal(voxel);
 
-        }
-        
         float normalizedTransmittance;
-        
+
         switch(transMode){
             case 2:
-                normalizedTransmittance = computeNormTransmittanceMode2(voxel.transmittance_tmp, voxel.sumSurfMulLength, voxel.lMeanTotal);
+                normalizedTransmittance = computeNormTransmittanceMode2(voxels.getTransmittanceTmp(voxel), voxels.getSumSurfMulLength(voxel), lMeanTotal);
                 break;
             case 3:
                 //normalizedTransmittance = computeNormTransmittanceV2(voxel.transmittance_tmp, voxel.sumSurfMulLength);
-                normalizedTransmittance = computeNormTransmittanceMode3(voxel.transmittance_tmp, voxel.sumSurfMulLengthMulEnt); //CL
+                normalizedTransmittance = computeNormTransmittanceMode3(voxels.getTransmittanceTmp(voxel), voxels.getSumSurfMulLengthMulEnt(voxel)); //CL
                 break;
-                
+
             case 1:
             default:
-                float transmittance = computeTransmittance(voxel.bvEntering, voxel.bvIntercepted);
-                normalizedTransmittance = computeNormTransmittance(transmittance, voxel.lMeanTotal);
+                float transmittance = computeTransmittance(voxels.getBvEntering(voxel), voxels.getBvIntercepted(voxel));
+                normalizedTransmittance = computeNormTransmittance(transmittance, lMeanTotal);
         }
-        
-        voxel.transmittance = normalizedTransmittance;
-        voxel.PadBVTotal = computePADFromNormTransmittance(normalizedTransmittance, voxel.angleMean);
-        
-        return voxel;
+
+        voxels.setTransmittance(voxel, normalizedTransmittance);
+        voxels.setPadBVTotal(voxel, computePADFromNormTransmittance(normalizedTransmittance, angleMean));
     }
-    
+
     public void computePADs(){
-        
+
         for (int i = 0; i < parameters.infos.getSplit().x; i++) {
             for (int j = 0; j < parameters.infos.getSplit().y; j++) {
                 for (int k = 0; k < parameters.infos.getSplit().z; k++) {
-
-                    Voxel voxel = voxels[i][j][k];
-                    voxels[i][j][k] = computePADFromVoxel(voxel, i, j, k);
+                    computePAD(i, j, k);
                 }
             }
         }
-        
+
         padComputed = true;
     }
     
     public void write(VoxelsFormat format, File outputFile) throws FileNotFoundException, Exception{
         
+        long startTime = System.nanoTime();
+        
+        try{
+            writeVoxels(format, outputFile);
+        }finally{
+            if(metrics != null){
+                metrics.addTime(VoxelisationMetrics.Stage.WRITE, System.nanoTime() - startTime);
+            }
+        }
+    }
+    
+    private void writeVoxels(VoxelsFormat format, File outputFile) throws FileNotFoundException, Exception{
+        
         //tmp
         //writer.close();
         
@@ -826,8 +925,11 @@ public class VoxelAnalysis extends Process implements Cancellable{
                 writer.write(parameters.infos.headerToString()+"\n");
                 writer.write(Voxel.getHeader(Voxel.class) + "\n");
 
-                int count = 0;
-                int nbLines = parameters.infos.getSplit().x * parameters.infos.getSplit().y * parameters.infos.getSplit().z;
+                long count = 0;
+                long nbLines = (long) parameters.infos.getSplit().x * parameters.infos.getSplit().y * parameters.infos.getSplit().z;
+
+                //one instance reused for the formatting of every line
+                Voxel voxel = new Voxel();
 
                 for (int i = 0; i < parameters.infos.getSplit().x; i++) {
                     for (int j = 0; j < parameters.infos.getSplit().y; j++) {
@@ -839,13 +941,11 @@ public class VoxelAnalysis extends Process implements Cancellable{
 
                             fireProgress("Writing file", count, nbLines);
 
-                            Voxel voxel = voxels[i][j][k];
-
                             if (!padComputed) {
-                                voxel = computePADFromVoxel(voxel, i, j, k);
+                                computePAD(i, j, k);
                             }
 
-                            writer.write(voxel.toString() + "\n");
+                            writer.write(voxels.getVoxel(i, j, k, voxel).toString() + "\n");
                             
                             /*if(voxel._valid && voxel.nbSampling > 0){
                                 System.out.println(voxel.toString());
@@ -867,6 +967,60 @@ public class VoxelAnalysis extends Process implements Cancellable{
             } catch (Exception e) {
                 throw e;
             }
+        }else if(format == VoxelsFormat.BINARY){
+
+            //same columns as the text file
+            String[] columnNames = Voxel.getHeader(Voxel.class).split(" ");
+            Field[] fields = new Field[columnNames.length];
+
+            for (int c = 0; c < columnNames.length; c++) {
+                try {
+                    fields[c] = Voxel.class.getField(columnNames[c]);
+                } catch (NoSuchFieldException ex) {
+                    fields[c] = Voxel.class.getField("$" + columnNames[c]);
+                }
+            }
+
+            try (BinaryVoxelFileWriter writer = new BinaryVoxelFileWriter(outputFile, parameters.infos, columnNames, cfg.isCompressVoxels())) {
+
+                long count = 0;
+                long nbLines = (long) parameters.infos.getSplit().x * parameters.infos.getSplit().y * parameters.infos.getSplit().z;
+
+                Voxel voxel = new Voxel();
+                float[] values = new float[columnNames.length];
+
+                for (int i = 0; i < parameters.infos.getSplit().x; i++) {
+                    for (int j = 0; j < parameters.infos.getSplit().y; j++) {
+                        for (int k = 0; k < parameters.infos.getSplit().z; k++) {
+
+                            if(isCancelled()){
+                                return;
+                            }
+
+                            fireProgress("Writing file", count, nbLines);
+
+                            if (!padComputed) {
+                                computePAD(i, j, k);
+                            }
+
+                            voxels.getVoxel(i, j, k, voxel);
+
+                            for (int c = 0; c < fields.length; c++) {
+                                values[c] = (float) fields[c].getDouble(voxel);
+                            }
+
+                            writer.write(values);
+
+                            count++;
+                        }
+                    }
+                }
+            }
+
+            padComputed = true;
+
+            LOGGER.info("file written ( " + TimeCounter.getElapsedStringTimeInSeconds(start_time) + " )");
+
         }else if(format == VoxelsFormat.RASTER){
 
             float scale = 1.0f;
@@ -900,9 +1054,10 @@ public class VoxelAnalysis extends Process implements Cancellable{
                     
                     for (int k = parameters.infos.getSplit().z - 1; k >= 0; k--) {
 
-                        Voxel vox = voxels[i][j][k];
+                        int vox = voxels.index(i, j, k);
+                        float pad = voxels.getPadBVTotal(vox);
 
-                        if (vox != null && vox.ground_distance >= 0 && vox.PadBVTotal > 0 && !Float.isNaN(vox.PadBVTotal)) {
+                        if (voxels.isInitialized(vox) && voxels.getGroundDistance(vox) >= 0 && pad > 0 && !Float.isNaN(pad)) {
                             
                             //calcul de la position de départ
                             Point3d voxelPosition = getPosition(new Point3i(i, j, k));
@@ -938,7 +1093,7 @@ public class VoxelAnalysis extends Process implements Cancellable{
                             }
                             
                             float volume = (float) (subVoxelSize.x * subVoxelSize.y * subVoxelSize.z * nbSubVoxelsAboveGround);
-                            double lai = vox.PadBVTotal * volume;
+                            double lai = pad * volume;
 
                             laiSum += lai;
                         }
@@ -1049,7 +1204,7 @@ public class VoxelAnalysis extends Process implements Cancellable{
 
         try {
             
-            voxels = new Voxel[parameters.infos.getSplit().x][parameters.infos.getSplit().y][parameters.infos.getSplit().z];
+            voxels = new ArrayVoxelStore(parameters.infos.getSplit());
 
             if (parameters.getGroundEnergyParams() != null && 
                     parameters.getGroundEnergyParams().isCalculateGroundEnergy() && parameters.infos.getType() != Type.TLS) {
@@ -1066,12 +1221,7 @@ public class VoxelAnalysis extends Process implements Cancellable{
                 }
             }
 
-            Scene scene = new Scene();
-            scene.setBoundingBox(new BoundingBox3d(parameters.infos.getMinCorner(), parameters.infos.getMaxCorner()));
-
-            voxelManager = new VoxelManager(scene, new VoxelManagerSettings(parameters.infos.getSplit(), VoxelManagerSettings.NON_TORIC_FINITE_BOX_TOPOLOGY));
-
-            LOGGER.info(voxelManager.getInformations());
+            createVoxelManager();
 
         } catch (Exception e) {
             LOGGER.error(e + " " + this.getClass().getName());
@@ -1079,17 +1229,32 @@ public class VoxelAnalysis extends Process implements Cancellable{
 
     }
 
-    private Voxel initVoxel(int i, int j, int k) {
+    /**
+     * Create the geometry of the voxel space (bounding box, voxel size and traversal)
+     * without allocating the voxels.
+     */
+    void createVoxelManager() {
+
+        Scene scene = new Scene();
+        scene.setBoundingBox(new BoundingBox3d(parameters.infos.getMinCorner(), parameters.infos.getMaxCorner()));
+
+        voxelManager = new VoxelManager(scene, new VoxelManagerSettings(parameters.infos.getSplit(), VoxelManagerSettings.NON_TORIC_FINITE_BOX_TOPOLOGY));
+        traversal = voxelManager.createTraversal();
+        minCorner = parameters.infos.getMinCorner();
+        voxelSize = voxelManager.getVoxelSpace().getVoxelSize();
 
-        Voxel vox = new Voxel(i, j, k);
+        LOGGER.info(voxelManager.getInformations());
+    }
+
+    private void initVoxel(int index, int i, int j, int k) {
 
         Point3d position = getPosition(new Point3i(i, j, k));
 
         float dist;
 
-        if (dtm != null && parameters.getDtmFilteringParams().useDTMCorrection()) {
+        if (dtmQuery != null) {
 
-            float dtmHeightXY = dtm.getSimpleHeight((float) position.x, (float) position.y);
+            float dtmHeightXY = getGroundHeight((float) position.x, (float) position.y);
             if (Float.isNaN(dtmHeightXY)) {
                 dist = (float) (position.z);
             } else {
@@ -1100,19 +1265,68 @@ public class VoxelAnalysis extends Process implements Cancellable{
             dist = (float) (position.z - parameters.infos.getMinCorner().z);
         }
 
-        vox.ground_distance = dist;
-
-        return vox;
+        voxels.initialize(index, dist);
     }
 
     public int getNbShotsProcessed() {
         return nbShotsProcessed;
     }
 
-    public Voxel[][][] getVoxels() {
+    /**
+     *
+     * @return the number of voxels traversed by the shots propagated in this voxel space
+     */
+    public long getNbVoxelsTraversed() {
+        return nbVoxelsTraversed;
+    }
+
+    /**
+     *
+     * @return the metrics of the run, null if the run is not instrumented
+     */
+    public VoxelisationMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Count the shots kept, the echoes and the voxels traversed, and time the propagation
+     * and the writing of the voxel file in the metrics of the run.
+     * @param metrics metrics of the run, null to disable the instrumentation
+     */
+    public void setMetrics(VoxelisationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public VoxelStore getVoxels() {
         return voxels;
     }
 
+    GroundEnergy[][] getGroundEnergy() {
+        return groundEnergy;
+    }
+
+    VoxelManager getVoxelManager() {
+        return voxelManager;
+    }
+
+    /**
+     * Set the voxel space used to decide whether two echoes fall in the same voxel.
+     * A voxelisation restricted to a part of a voxel space groups the echoes like
+     * the voxelisation of the whole space, even outside of its bounding box.
+     * @param referenceVoxelManager voxel space of reference
+     */
+    void setReferenceVoxelManager(VoxelManager referenceVoxelManager) {
+        this.referenceVoxelManager = referenceVoxelManager;
+    }
+
+    /**
+     * Replace the voxels by voxels whose PAD is already computed.
+     * @param voxels computed voxels
+     */
+    void setComputedVoxels(VoxelStore voxels) {
+        this.voxels = voxels;
+        this.padComputed = true;
+    }
     public ShotFilter getShotFilter() {
         return shotFilter;
     }
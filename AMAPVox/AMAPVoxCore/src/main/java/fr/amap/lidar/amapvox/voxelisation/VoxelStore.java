@@ -0,0 +1,140 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.commons.Voxel;
+import javax.vecmath.Point3i;
+
+/**
+ * Accessor to the voxel attributes of a voxel space.
+ *
+ * <p>Voxels are addressed by a linear index, see {@link #index(int, int, int)}.
+ * The attribute names follow the fields of {@link Voxel}, which remains the
+ * representation of a single voxel for the text output.</p>
+ */
+public interface VoxelStore {
+
+    /**
+     * @return number of voxels along x, y and z
+     */
+    public Point3i getSplit();
+
+    /**
+     * @return total number of voxels
+     */
+    public int size();
+
+    /**
+     * Linear index of a voxel, k varies fastest, then j, then i.
+     * @param i voxel index along x
+     * @param j voxel index along y
+     * @param k voxel index along z
+     * @return linear index
+     */
+    public int index(int i, int j, int k);
+
+    /**
+     * @param index linear index
+     * @return true if the voxel has been crossed or its PAD computed
+     */
+    public boolean isInitialized(int index);
+
+    /**
+     * Mark the voxel as initialized.
+     * @param index linear index
+     * @param groundDistance distance from the voxel center to the ground
+     */
+    public void initialize(int index, float groundDistance);
+
+    public int getNbSampling(int index);
+
+    public void incrementNbSampling(int index);
+
+    public int getNbEchos(int index);
+
+    public void incrementNbEchos(int index);
+
+    public float getLgTotal(int index);
+
+    public void addLgTotal(int index, double length);
+
+    public float getAngleMean(int index);
+
+    public void setAngleMean(int index, float angleMean);
+
+    public void addAngle(int index, double angle);
+
+    public float getGroundDistance(int index);
+
+    public double getBvEntering(int index);
+
+    public void addBvEntering(int index, double bvEntering);
+
+    public double getBvIntercepted(int index);
+
+    public void addBvIntercepted(int index, double bvIntercepted);
+
+    public double getTransmittanceTmp(int index);
+
+    public void addTransmittanceTmp(int index, double transmittance);
+
+    public double getSumSurfMulLength(int index);
+
+    public void addSumSurfMulLength(int index, double surfMulLength);
+
+    public double getSumSurfMulLengthMulEnt(int index);
+
+    public void addSumSurfMulLengthMulEnt(int index, double surfMulLengthMulEnt);
+
+    /**
+     * Mean path length, lgTotal / nbSampling when there are not more echoes than samplings, 0 otherwise.
+     * @param index linear index
+     * @return mean path length
+     */
+    public double getLMeanTotal(int index);
+
+    public float getTransmittance(int index);
+
+    public void setTransmittance(int index, float transmittance);
+
+    public float getPadBVTotal(int index);
+
+    public void setPadBVTotal(int index, float pad);
+
+    public boolean isLastEcho(int index);
+
+    public void setLastEcho(int index, boolean lastEcho);
+
+    public boolean isValid(int index);
+
+    public void setValid(int index, boolean valid);
+
+    /**
+     * Add the accumulators of another store of the same size to this one.
+     * Voxels initialized only in the other store are copied.
+     * @param other store to add
+     */
+    public void merge(VoxelStore other);
+
+    /**
+     * Copy the attributes of a voxel into a {@link Voxel} instance.
+     * @param i voxel index along x
+     * @param j voxel index along y
+     * @param k voxel index along z
+     * @param voxel instance to fill, allows reuse when iterating
+     * @return the filled voxel
+     */
+    public Voxel getVoxel(int i, int j, int k, Voxel voxel);
+}
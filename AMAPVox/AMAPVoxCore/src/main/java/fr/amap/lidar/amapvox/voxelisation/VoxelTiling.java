@@ -0,0 +1,288 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+
+/**
+ * Cut a voxel space into tiles along x and y, each tile holds the whole height of the voxel space.
+ *
+ * <p>The tiles are aligned on the voxels of the voxel space. The core of a tile is the part of
+ * the voxel space the tile is responsible for, the cores do not overlap and cover the voxel space.
+ * A tile is voxelised on its core extended by a margin of a few voxels (clipped to the voxel space),
+ * so that the post-processing of the voxels near the core edges (NaNs correction) sees the
+ * neighbouring voxels.</p>
+ *
+ * <p>The tiles are numbered along y first: tile (tx, ty) has the index tx * nbTilesY + ty.</p>
+ */
+public class VoxelTiling {
+
+    private final VoxelParameters parameters;
+    private final Point3i split;
+    private final Point3d minCorner;
+    private final Point3d maxCorner;
+    private final Point3d voxelSize;
+
+    private final int tileSize;
+    private final int margin;
+    private final int nbTilesX;
+    private final int nbTilesY;
+    private final Tile[] tiles;
+
+    /**
+     * Tile of a voxel space.
+     */
+    public class Tile {
+
+        private final int index;
+        private final int coreMinX, coreMinY, coreMaxX, coreMaxY;
+        private final int minX, minY, maxX, maxY;
+        private final Point3d boxMin;
+        private final Point3d boxMax;
+
+        private Tile(int index, int tx, int ty) {
+
+            this.index = index;
+
+            coreMinX = tx * tileSize;
+            coreMinY = ty * tileSize;
+            coreMaxX = Math.min(coreMinX + tileSize, split.x);
+            coreMaxY = Math.min(coreMinY + tileSize, split.y);
+
+            minX = Math.max(coreMinX - margin, 0);
+            minY = Math.max(coreMinY - margin, 0);
+            maxX = Math.min(coreMaxX + margin, split.x);
+            maxY = Math.min(coreMaxY + margin, split.y);
+
+            //the corners on the voxel space borders are the ones of the voxel space
+            boxMin = new Point3d(
+                    minX == 0 ? minCorner.x : minCorner.x + minX * voxelSize.x,
+                    minY == 0 ? minCorner.y : minCorner.y + minY * voxelSize.y,
+                    minCorner.z);
+
+            boxMax = new Point3d(
+                    maxX == split.x ? maxCorner.x : minCorner.x + maxX * voxelSize.x,
+                    maxY == split.y ? maxCorner.y : minCorner.y + maxY * voxelSize.y,
+                    maxCorner.z);
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the first voxel of the core along x and y, in the voxel space
+         */
+        public Point3i getCoreMin() {
+            return new Point3i(coreMinX, coreMinY, 0);
+        }
+
+        /**
+         * @return the number of voxels of the core along x, y and z
+         */
+        public Point3i getCoreSplit() {
+            return new Point3i(coreMaxX - coreMinX, coreMaxY - coreMinY, split.z);
+        }
+
+        /**
+         * @return the first voxel of the tile (core and margin) along x and y, in the voxel space
+         */
+        public Point3i getMin() {
+            return new Point3i(minX, minY, 0);
+        }
+
+        /**
+         * @return the number of voxels of the tile (core and margin) along x, y and z
+         */
+        public Point3i getSplit() {
+            return new Point3i(maxX - minX, maxY - minY, split.z);
+        }
+
+        /**
+         * Voxelisation parameters of the tile, core and margin.
+         * @return the parameters of the voxel space restricted to the tile
+         */
+        public VoxelParameters getParameters() {
+            return parameters.subSpace(new Point3d(boxMin), new Point3d(boxMax), getSplit());
+        }
+
+        private boolean intersects(Point3d start, Vector3d direction, double length) {
+
+            //slightly extended box, a shot given to a tile it does not cross is ignored by the tile
+            double[] t = {0, length};
+
+            return clip(start.x, direction.x, boxMin.x - voxelSize.x / 2, boxMax.x + voxelSize.x / 2, t)
+                    && clip(start.y, direction.y, boxMin.y - voxelSize.y / 2, boxMax.y + voxelSize.y / 2, t);
+        }
+    }
+
+    /**
+     *
+     * @param parameters parameters of the whole voxel space
+     * @param tileSize number of voxels of the tile cores along x and y
+     * @param margin number of voxels added to each side of the core of the tiles
+     */
+    public VoxelTiling(VoxelParameters parameters, int tileSize, int margin) {
+
+        if(tileSize < 1){
+            throw new IllegalArgumentException("Tile size must be at least one voxel");
+        }
+
+        if(margin < 0){
+            throw new IllegalArgumentException("Tile margin cannot be negative");
+        }
+
+        this.parameters = parameters;
+        this.split = new Point3i(parameters.infos.getSplit());
+        this.minCorner = new Point3d(parameters.infos.getMinCorner());
+        this.maxCorner = new Point3d(parameters.infos.getMaxCorner());
+        this.voxelSize = new Point3d(
+                (maxCorner.x - minCorner.x) / split.x,
+                (maxCorner.y - minCorner.y) / split.y,
+                (maxCorner.z - minCorner.z) / split.z);
+
+        this.tileSize = tileSize;
+        this.margin = margin;
+
+        long tileVoxels = (long) (tileSize + 2 * margin) * (tileSize + 2 * margin) * split.z;
+
+        if(tileVoxels > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Too many voxels per tile (" + tileVoxels + "), reduce the tile size");
+        }
+
+        nbTilesX = (split.x + tileSize - 1) / tileSize;
+        nbTilesY = (split.y + tileSize - 1) / tileSize;
+
+        tiles = new Tile[nbTilesX * nbTilesY];
+
+        for (int tx = 0; tx < nbTilesX; tx++) {
+            for (int ty = 0; ty < nbTilesY; ty++) {
+                int index = tx * nbTilesY + ty;
+                tiles[index] = new Tile(index, tx, ty);
+            }
+        }
+    }
+
+    //clip the parametric interval t of a ray to a slab, Kay and Kajiya
+    private static boolean clip(double start, double direction, double min, double max, double[] t) {
+
+        if(direction == 0){
+            return start >= min && start <= max;
+        }
+
+        double t0 = (min - start) / direction;
+        double t1 = (max - start) / direction;
+
+        if(t0 > t1){
+            double tmp = t0;
+            t0 = t1;
+            t1 = tmp;
+        }
+
+        t[0] = Math.max(t[0], t0);
+        t[1] = Math.min(t[1], t1);
+
+        return t[0] <= t[1];
+    }
+
+    /**
+     * Find the tiles crossed by a segment.
+     * @param start start of the segment
+     * @param direction normalized direction of the segment
+     * @param length length of the segment
+     * @param crossedTiles indices of the crossed tiles, must hold {@link #getNbTiles()} values
+     * @return number of crossed tiles
+     */
+    public int route(Point3d start, Vector3d direction, double length, int[] crossedTiles) {
+
+        //part of the segment inside the voxel space
+        double[] t = {0, length};
+
+        if(!clip(start.x, direction.x, minCorner.x, maxCorner.x, t)
+                || !clip(start.y, direction.y, minCorner.y, maxCorner.y, t)
+                || !clip(start.z, direction.z, minCorner.z, maxCorner.z, t)){
+            return 0;
+        }
+
+        double x0 = start.x + t[0] * direction.x;
+        double x1 = start.x + t[1] * direction.x;
+        double y0 = start.y + t[0] * direction.y;
+        double y1 = start.y + t[1] * direction.y;
+
+        //candidate tiles from the xy extent, enlarged by the margin
+        int minTileX = getTileCoordinate((Math.min(x0, x1) - minCorner.x) / voxelSize.x - margin - 1, nbTilesX);
+        int maxTileX = getTileCoordinate((Math.max(x0, x1) - minCorner.x) / voxelSize.x + margin + 1, nbTilesX);
+        int minTileY = getTileCoordinate((Math.min(y0, y1) - minCorner.y) / voxelSize.y - margin - 1, nbTilesY);
+        int maxTileY = getTileCoordinate((Math.max(y0, y1) - minCorner.y) / voxelSize.y + margin + 1, nbTilesY);
+
+        Point3d clippedStart = new Point3d(x0, y0, 0);
+        double clippedLength = t[1] - t[0];
+
+        int nbCrossedTiles = 0;
+
+        for (int tx = minTileX; tx <= maxTileX; tx++) {
+            for (int ty = minTileY; ty <= maxTileY; ty++) {
+
+                Tile tile = tiles[tx * nbTilesY + ty];
+
+                if(tile.intersects(clippedStart, direction, clippedLength)){
+                    crossedTiles[nbCrossedTiles++] = tile.index;
+                }
+            }
+        }
+
+        return nbCrossedTiles;
+    }
+
+    private int getTileCoordinate(double voxelCoordinate, int nbTiles) {
+
+        int coordinate = (int) Math.floor(voxelCoordinate / tileSize);
+
+        return Math.max(0, Math.min(coordinate, nbTiles - 1));
+    }
+
+    /**
+     * Get the tile whose core holds a voxel.
+     * @param i voxel index along x
+     * @param j voxel index along y
+     * @return the tile
+     */
+    public Tile getTile(int i, int j) {
+        return tiles[(i / tileSize) * nbTilesY + (j / tileSize)];
+    }
+
+    public Tile getTile(int index) {
+        return tiles[index];
+    }
+
+    public int getNbTiles() {
+        return tiles.length;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getMargin() {
+        return margin;
+    }
+
+    public Point3i getSplit() {
+        return new Point3i(split);
+    }
+}
@@ -0,0 +1,474 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation.als;
+
+import fr.amap.amapvox.als.LasPoint;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import org.apache.log4j.Logger;
+
+/**
+ * Sort las points by gps time with a bounded number of points in memory.
+ *
+ * <p>Points are buffered and, each time the buffer is full, sorted and written
+ * to a temporary run file. The sorted points are then read back with a k-way
+ * merge of the runs. Runs are consecutive parts of the input sorted with a
+ * stable sort and the merge keeps the run order for equal times, so the points
+ * come in the same order as with {@link Collections#sort(List)} on the whole
+ * input. When all the points fit in the buffer nothing is written.</p>
+ *
+ * <p>Each merged run holds an open file and a read buffer of {@value #RUN_BUFFER_SIZE} bytes,
+ * so the number of runs merged at once is bounded by the memory budget (and by
+ * {@value #MAX_MERGE_FAN_IN} open files). When there are more runs, consecutive runs are
+ * merged into intermediate runs, in several passes if needed.</p>
+ */
+public class LasPointSorter implements Closeable {
+
+    private final static Logger LOGGER = Logger.getLogger(LasPointSorter.class);
+
+    /**
+     * Approximate memory used by a buffered point (object and list reference).
+     */
+    public final static int POINT_MEMORY_SIZE = 72;
+
+    private final static int RUN_BUFFER_SIZE = 65536;
+
+    /**
+     * Maximum number of run files read at the same time.
+     */
+    public final static int MAX_MERGE_FAN_IN = 64;
+
+    private final int maxPointsInMemory;
+    private final int maxFanIn;
+    private final File tempDirectory;
+
+    private final List<LasPoint> buffer;
+    private final List<File> runs;
+
+    private int nbRuns;
+    private long size;
+    private double minTime = Double.POSITIVE_INFINITY;
+    private double maxTime = Double.NEGATIVE_INFINITY;
+    private boolean sorted;
+
+    /**
+     *
+     * @param maxPointsInMemory number of points sorted in memory before writing a run
+     * @param tempDirectory directory of the run files, null for the default temporary directory
+     */
+    public LasPointSorter(int maxPointsInMemory, File tempDirectory) {
+
+        if(maxPointsInMemory < 1){
+            throw new IllegalArgumentException("At least one point has to be kept in memory");
+        }
+
+        this.maxPointsInMemory = maxPointsInMemory;
+        this.tempDirectory = tempDirectory;
+
+        //the read buffers of the merged runs fit in the memory budget of the points
+        maxFanIn = (int) Math.max(2, Math.min(MAX_MERGE_FAN_IN, (long) maxPointsInMemory * POINT_MEMORY_SIZE / RUN_BUFFER_SIZE));
+
+        buffer = new ArrayList<>();
+        runs = new ArrayList<>();
+    }
+
+    /**
+     * Memory bounded sorter.
+     *
+     * @param memoryBudget memory in bytes for the buffered points
+     * @param tempDirectory directory of the run files, null for the default temporary directory
+     * @return the sorter
+     */
+    public static LasPointSorter withMemoryBudget(long memoryBudget, File tempDirectory) {
+        return new LasPointSorter((int) Math.max(1, Math.min(Integer.MAX_VALUE - 8, memoryBudget / POINT_MEMORY_SIZE)), tempDirectory);
+    }
+
+    /**
+     * In memory sorter, nothing is written.
+     *
+     * @return the sorter
+     */
+    public static LasPointSorter inMemory() {
+        return new LasPointSorter(Integer.MAX_VALUE - 8, null);
+    }
+
+    /**
+     * Add a point, to be called before {@link #sort()}.
+     *
+     * @param point point
+     * @throws IOException if a run cannot be written
+     */
+    public void add(LasPoint point) throws IOException {
+
+        if(sorted){
+            throw new IllegalStateException("Points are already sorted");
+        }
+
+        buffer.add(point);
+        size++;
+
+        if(point.t < minTime){
+            minTime = point.t;
+        }
+        if(point.t > maxTime){
+            maxTime = point.t;
+        }
+
+        if(buffer.size() == maxPointsInMemory){
+            writeRun();
+        }
+    }
+
+    private void writeRun() throws IOException {
+
+        Collections.sort(buffer);
+
+        File run = createRunFile();
+        runs.add(run);
+        nbRuns++;
+
+        try (DataOutputStream output = openRun(run)) {
+
+            for (LasPoint point : buffer) {
+                writePoint(output, point);
+            }
+        }
+
+        LOGGER.debug("Run " + runs.size() + " written (" + buffer.size() + " points)");
+
+        buffer.clear();
+    }
+
+    private File createRunFile() throws IOException {
+
+        File run = File.createTempFile("amapvox_points_", ".run", tempDirectory);
+        run.deleteOnExit();
+
+        return run;
+    }
+
+    private static DataOutputStream openRun(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), RUN_BUFFER_SIZE));
+    }
+
+    private static void writePoint(DataOutputStream output, LasPoint point) throws IOException {
+
+        //x, y, z, t as double, r, n, i, classification as int
+        output.writeDouble(point.x);
+        output.writeDouble(point.y);
+        output.writeDouble(point.z);
+        output.writeDouble(point.t);
+        output.writeInt(point.r);
+        output.writeInt(point.n);
+        output.writeInt(point.i);
+        output.writeInt(point.classification);
+    }
+
+    /**
+     * Merge groups of consecutive runs until the runs can be merged at once.
+     */
+    private void reduceRuns() throws IOException {
+
+        while (runs.size() > maxFanIn) {
+
+            List<File> mergedRuns = new ArrayList<>();
+
+            try {
+                for (int start = 0; start < runs.size(); start += maxFanIn) {
+
+                    List<File> group = runs.subList(start, Math.min(start + maxFanIn, runs.size()));
+
+                    if(group.size() == 1){
+                        mergedRuns.add(group.get(0));
+                        continue;
+                    }
+
+                    File run = createRunFile();
+                    mergedRuns.add(run);
+
+                    try (DataOutputStream output = openRun(run); MergeIterator iterator = new MergeIterator(group)) {
+
+                        while (iterator.hasNext()) {
+                            writePoint(output, iterator.next());
+                        }
+
+                    } catch (UncheckedIOException ex) {
+                        throw ex.getCause();
+                    }
+                }
+
+            } catch (IOException ex) {
+
+                for (File run : mergedRuns) {
+                    if(!runs.contains(run)){
+                        run.delete();
+                    }
+                }
+
+                throw ex;
+            }
+
+            for (File run : runs) {
+                if(!mergedRuns.contains(run) && !run.delete()){
+                    LOGGER.warn("Cannot delete temporary file " + run.getAbsolutePath());
+                }
+            }
+
+            LOGGER.debug(runs.size() + " runs merged into " + mergedRuns.size() + " runs");
+
+            runs.clear();
+            runs.addAll(mergedRuns);
+        }
+    }
+
+    /**
+     * End of the input.
+     *
+     * @throws IOException if the last run cannot be written
+     */
+    public void sort() throws IOException {
+
+        if(sorted){
+            return;
+        }
+
+        if(runs.isEmpty()){
+            Collections.sort(buffer);
+        }else{
+
+            if(!buffer.isEmpty()){
+                writeRun();
+            }
+
+            reduceRuns();
+        }
+
+        sorted = true;
+    }
+
+    /**
+     * Iterate over the sorted points, can be called several times.
+     *
+     * <p>When the points were written to runs, the iterator throws an
+     * {@link UncheckedIOException} if a run cannot be read.</p>
+     *
+     * @return points sorted by gps time
+     * @throws IOException if a run cannot be opened
+     */
+    public Iterator<LasPoint> iterator() throws IOException {
+
+        if(!sorted){
+            throw new IllegalStateException("Points are not sorted");
+        }
+
+        if(runs.isEmpty()){
+            return buffer.iterator();
+        }
+
+        return new MergeIterator(runs);
+    }
+
+    /**
+     *
+     * @return number of points
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     *
+     * @return number of sorted runs written, 0 if the points were sorted in memory
+     */
+    public int getNbRuns() {
+        return nbRuns;
+    }
+
+    /**
+     *
+     * @return maximum number of runs merged at once
+     */
+    public int getMaxFanIn() {
+        return maxFanIn;
+    }
+
+    public double getMinTime() {
+        return minTime;
+    }
+
+    public double getMaxTime() {
+        return maxTime;
+    }
+
+    /**
+     * Delete the run files.
+     */
+    @Override
+    public void close() {
+
+        for (File run : runs) {
+            if(!run.delete()){
+                LOGGER.warn("Cannot delete temporary file " + run.getAbsolutePath());
+            }
+        }
+
+        runs.clear();
+        buffer.clear();
+    }
+
+    private static class RunCursor implements Closeable {
+
+        private final int run;
+        private final DataInputStream input;
+        private LasPoint current;
+
+        RunCursor(int run, File file) throws IOException {
+            this.run = run;
+            this.input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), RUN_BUFFER_SIZE));
+        }
+
+        boolean advance() throws IOException {
+
+            double x;
+
+            try {
+                x = input.readDouble();
+            } catch (EOFException ex) {
+                current = null;
+                return false;
+            }
+
+            double y = input.readDouble();
+            double z = input.readDouble();
+            double t = input.readDouble();
+            int r = input.readInt();
+            int n = input.readInt();
+            int i = input.readInt();
+            int classification = input.readInt();
+
+            current = new LasPoint(x, y, z, r, n, i, (short) classification, t);
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+
+    private static class MergeIterator implements Iterator<LasPoint>, Closeable {
+
+        private final PriorityQueue<RunCursor> queue;
+
+        MergeIterator(List<File> runs) throws IOException {
+
+            //equal times are taken in run order
+            queue = new PriorityQueue<>(runs.size(), new Comparator<RunCursor>() {
+                @Override
+                public int compare(RunCursor o1, RunCursor o2) {
+
+                    int comparison = o1.current.compareTo(o2.current);
+
+                    if(comparison != 0){
+                        return comparison;
+                    }
+
+                    return Integer.compare(o1.run, o2.run);
+                }
+            });
+
+            try {
+                for (int i = 0; i < runs.size(); i++) {
+
+                    RunCursor cursor = new RunCursor(i, runs.get(i));
+
+                    if(cursor.advance()){
+                        queue.add(cursor);
+                    }else{
+                        cursor.close();
+                    }
+                }
+            } catch (IOException ex) {
+                closeAll();
+                throw ex;
+            }
+        }
+
+        private void closeAll() {
+
+            for (RunCursor cursor : queue) {
+                try {
+                    cursor.close();
+                } catch (IOException ex) {
+                    LOGGER.warn("Cannot close run file", ex);
+                }
+            }
+
+            queue.clear();
+        }
+
+        @Override
+        public void close() {
+            closeAll();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public LasPoint next() {
+
+            RunCursor cursor = queue.poll();
+
+            if(cursor == null){
+                throw new NoSuchElementException();
+            }
+
+            LasPoint point = cursor.current;
+
+            try {
+                if(cursor.advance()){
+                    queue.add(cursor);
+                }else{
+                    cursor.close();
+                }
+            } catch (IOException ex) {
+                closeAll();
+                throw new UncheckedIOException("Cannot read points run", ex);
+            }
+
+            return point;
+        }
+    }
+}
@@ -11,25 +11,29 @@ import fr.amap.commons.util.ProcessingListener;
 import fr.amap.commons.raster.asc.AsciiGridHelper;
 import fr.amap.commons.raster.asc.Raster;
 import fr.amap.commons.math.util.MatrixUtility;
+import fr.amap.lidar.amapvox.voxelisation.MultiResolutionVoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.ParallelVoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.ShotPipeline;
 import fr.amap.lidar.amapvox.voxelisation.SimpleShotFilter;
+import fr.amap.lidar.amapvox.voxelisation.TiledVoxelAnalysis;
 import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
 import fr.amap.lidar.amapvox.voxelisation.configuration.ALSVoxCfg;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
 import fr.amap.lidar.amapvox.voxelisation.postproc.NaNsCorrection;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 import fr.amap.commons.util.Cancellable;
 import fr.amap.commons.util.ProcessingAdapter;
-import fr.amap.commons.util.io.file.FileManager;
 import fr.amap.lidar.amapvox.commons.Configuration;
 import fr.amap.lidar.amapvox.commons.Voxel;
 import fr.amap.lidar.amapvox.shot.Shot;
-import java.io.BufferedReader;
-import java.io.FileReader;
-import javax.vecmath.Point3d;
-import javax.vecmath.Vector3d;
+import fr.amap.lidar.amapvox.shot.cache.ShotCache;
+import fr.amap.lidar.amapvox.shot.cache.ShotCacheReader;
+import fr.amap.lidar.amapvox.shot.cache.ShotCacheWriter;
 
 /**
  *
@@ -47,6 +51,7 @@ public class LasVoxelisation extends Process implements Cancellable{
     private Raster terrain = null;
     private NaNsCorrection naNsCorrection = null;
     private VoxelAnalysis voxelAnalysis = null;
+    private VoxelisationMetrics metrics = null;
 
     public LasVoxelisation() {
         
@@ -85,178 +90,430 @@ public class LasVoxelisation extends Process implements Cancellable{
         
         cfg.setShotFilter(new SimpleShotFilter(cfg.getShotFilters()));
         
-        Mat4D transfMatrix = MatrixUtility.convertMatrix4dToMat4D(cfg.getVopMatrix());
-        if (transfMatrix == null) {
-            transfMatrix = Mat4D.identity();
-        }
+        Mat4D transfMatrix = getTransformation(cfg);
         
         if(update || terrain == null){
-            
-            if(cfg.getVoxelParameters().getDtmFilteringParams().getDtmFile() != null && cfg.getVoxelParameters().getDtmFilteringParams().useDTMCorrection() ){
-            
-                fireProgress("Reading DTM file", 0, 100);
-
-                try {
-                    terrain = AsciiGridHelper.readFromAscFile(cfg.getVoxelParameters().getDtmFilteringParams().getDtmFile());
-                    
-                    if(cfg.getVoxelParameters().getDtmFilteringParams().isUseVOPMatrix()){
-                        terrain.setTransformationMatrix(transfMatrix);
-                    }
-                    
-                } catch (Exception ex) {
-                    throw ex;
-                }
-            } 
+            readTerrain(cfg, transfMatrix);
+        }
+        
+        boolean groundEnergy = cfg.getVoxelParameters().getGroundEnergyParams() != null &&
+                cfg.getVoxelParameters().getGroundEnergyParams().isCalculateGroundEnergy();
+        
+        if(cfg.getTileSize() > 0 && groundEnergy){
+            logger.warn("The ground energy requires the whole voxel space, the voxel space is not tiled");
         }
         
-        voxelAnalysis = new VoxelAnalysis(terrain, null, cfg);
+        boolean multiResolution = cfg.getMultiResolutions() != null && cfg.getMultiResolutions().length > 0;
+        
+        if(multiResolution && (cfg.getTileSize() > 0 || cfg.getNbThreads() > 1)){
+            logger.warn("The multi-resolution voxelisation is neither tiled nor multi-threaded");
+        }
+        
+        if(multiResolution){
+            voxelAnalysis = new MultiResolutionVoxelAnalysis(terrain, null, cfg, cfg.getMultiResolutions());
+        }else if(cfg.getTileSize() > 0 && !groundEnergy){
+            voxelAnalysis = createTiledVoxelAnalysis(cfg);
+        }else if(cfg.getNbThreads() > 1){
+            voxelAnalysis = new ParallelVoxelAnalysis(terrain, null, cfg, cfg.getNbThreads());
+        }else{
+            voxelAnalysis = new VoxelAnalysis(terrain, null, cfg);
+        }
         voxelAnalysis.createVoxelSpace();
         
-        if(cfg.getInputType() == Configuration.InputType.SHOTS_FILE){
-            
-            BufferedReader reader = new BufferedReader(new FileReader(cfg.getInputFile()));
+        metrics = VoxelisationMetrics.create(cfg, cfg.getOutputFile());
+        voxelAnalysis.setMetrics(metrics);
+        
+        try{
+            File cacheFile = null;
+            long cacheKey = 0;
+            boolean replayCache = false;
+        
+            if(cfg.getShotCacheDirectory() != null){
             
-            fireProgress("Voxelisation", 0, 100);
-
-            long shotId = 0;
-            long nbShots = FileManager.getLineNumber(cfg.getInputFile());
+                if(cfg.getInputType() == Configuration.InputType.SHOTS_FILE){
+                    cacheKey = ShotCache.computeKey(null, "shots-file", cfg.getInputFile());
+                }else{
+                    cacheKey = ShotCache.computeKey(transfMatrix, "las trajectory="+cfg.getTrajectoryFile().getColumnAssignment(),
+                            cfg.getInputFile(), cfg.getTrajectoryFile());
+                }
             
-            String line;
+                cacheFile = ShotCache.getCacheFile(cfg.getShotCacheDirectory(), cfg.getInputFile(), cacheKey);
+                replayCache = ShotCache.isValid(cacheFile, cacheKey);
+            }
+        
+            ShotCacheWriter cacheWriter = (cacheFile != null && !replayCache) ? new ShotCacheWriter(cacheFile, cacheKey) : null;
+        
+            try{
+                boolean completed;
             
-            //skip header
-            reader.readLine();
+                if(replayCache){
+                    completed = replayShotCache(cacheFile);
+                }else if(cfg.getInputType() == Configuration.InputType.SHOTS_FILE){
+                    completed = processShotsFile(cfg, cacheWriter);
+                }else{
+                    completed = processPointsFile(cfg, transfMatrix, cacheWriter);
+                }
             
-            while((line = reader.readLine()) != null){
-                String[] split = line.split(" ");
-                
-                if(isCancelled()){
+                if(!completed){
                     return null;
                 }
-                
-                double xOrigin = Double.valueOf(split[0]);
-                double yOrigin = Double.valueOf(split[1]);
-                double zOrigin = Double.valueOf(split[2]);
-                
-                double xDirection = Double.valueOf(split[3]);
-                double yDirection = Double.valueOf(split[4]);
-                double zDirection = Double.valueOf(split[5]);
-                
-                int nbEchos = Integer.valueOf(split[6]);
-                
-                double[] ranges = new double[nbEchos];
-                int[] classifications = new int[nbEchos];
-                
-                for (int i = 0; i < ranges.length; i++) {
-                    
-                    if((14+i) > split.length){
-                        throw new Exception("Columns missing inside shot file");
-                    }
-                    
-                    ranges[i] = Double.valueOf(split[7+i]);
-                    classifications[i] = Integer.valueOf(split[14+i]);
+            
+                if(cacheWriter != null){
+                    cacheWriter.commit();
+                    logger.info("Shots cached in "+cacheFile);
+                }
+            }finally{
+                if(cacheWriter != null){
+                    cacheWriter.close();
                 }
-                
-                AlsShot shot = new AlsShot(new Point3d(xOrigin, yOrigin, zOrigin), new Vector3d(xDirection, yDirection, zDirection), ranges);
-                shot.classifications = classifications;
-                shot.setMask(getMask(shot));
-                
-                fireProgress("Voxelisation...", shotId, nbShots);
-                
-                voxelAnalysis.processOneShot(new fr.amap.lidar.amapvox.shot.Shot(shot.origin, shot.direction, shot.ranges));
-                
-                shotId++;
             }
-            
-            reader.close();
-            
+        
             logger.info("Shots processed: "+voxelAnalysis.getNbShotsProcessed());
-            
-        }else{
-            if(update || conversion == null){
-            
-                conversion = new PointsToShot(cfg.getTrajectoryFile(), cfg.getInputFile(), transfMatrix);
-
-                conversion.addProcessingListener(new ProcessingListener() {
+        
+    //        Voxel[][][] voxels = voxelAnalysis.getVoxels();
+    //        
+        
+            //appel code R via JRI
+        
+            //récupération résultat R
+        
+            voxelAnalysis.computePADs();
 
-                    @Override
-                    public void processingStepProgress(String progressMsg, long progress, long max) {
+            //à désactiver par défaut car ce traitement ne sera plus nécessaire après correction dans R
+            //the tiles are corrected when they are voxelised
+            if(cfg.getVoxelParameters().getNaNsCorrectionParams().isActivate() && !(voxelAnalysis instanceof TiledVoxelAnalysis)){
 
-                        fireProgress(progressMsg, progress, max);
-                    }
+                fireProgress("NA correction", 0, 100);
 
-                    @Override
-                    public void processingFinished(float duration) {
-                        fireFinished(duration);
+                naNsCorrection = new NaNsCorrection();
+                naNsCorrection.correct(cfg.getVoxelParameters(), voxelAnalysis.getVoxels());
+            
+                if(voxelAnalysis instanceof MultiResolutionVoxelAnalysis){
+                
+                    MultiResolutionVoxelAnalysis multiResAnalysis = (MultiResolutionVoxelAnalysis) voxelAnalysis;
+                
+                    for(int i=0;i<multiResAnalysis.getResolutions().length;i++){
+                        naNsCorrection.correct(multiResAnalysis.getGridParameters(i), multiResAnalysis.getGrid(i).getVoxels());
                     }
-                });
-
-                try {
-                    conversion.init();
-                } catch (IOException ex) {
-                    logger.error(ex);
-                    throw ex;
-                } catch (Exception ex) {
-                    logger.error(ex);
-                    throw ex;
                 }
-            }else{
-
             }
 
-            fireProgress("Voxelisation", 0, 100);
+            voxelAnalysis.addProcessingListener(new ProcessingAdapter() {
+                @Override
+                public void processingStepProgress(String progressMsg, long progress, long max) {
+                    fireProgress(progressMsg, progress, max);
+                }
+            });
 
-            PointsToShotIterator iterator = conversion.iterator();
+            voxelAnalysis.write(cfg.getVoxelsFormat(), cfg.getOutputFile());
 
-            AlsShot shot;
+            if(cfg.getVoxelParameters().getGroundEnergyParams() != null &&
+                    cfg.getVoxelParameters().getGroundEnergyParams().isCalculateGroundEnergy()){
+                voxelAnalysis.writeGroundEnergy();
+            }
+        
+            if(voxelAnalysis instanceof TiledVoxelAnalysis){
+                ((TiledVoxelAnalysis) voxelAnalysis).deleteWorkingDirectory();
+            }
 
-            while((shot = iterator.next()) != null){
+            return cfg.getOutputFile();
+        }finally{
+            if(metrics != null){
+                metrics.finish(VoxelisationMetrics.getSummaryFile(cfg.getOutputFile(), cfg.getMetricsFormat()));
+                metrics = null;
+            }
+        }
+    }
+    
+    /**
+     * Voxelise the shots of a shot text file, the file is parsed by a {@link ShotFileReader} with the threads of the configuration.
+     * @param cfg configuration of the voxelisation
+     * @param cacheWriter writer of the shot cache, null if the shots are not cached
+     * @return false if the voxelisation was cancelled
+     * @throws Exception if the file cannot be read
+     */
+    private boolean processShotsFile(ALSVoxCfg cfg, ShotCacheWriter cacheWriter) throws Exception{
+        
+        fireProgress("Voxelisation", 0, 100);
+        
+        try(ShotFileReader reader = new ShotFileReader(cfg.getInputFile(), cfg.getNbThreads(), metrics)){
+            
+            Shot shot;
+            while((shot = reader.next()) != null){
 
                 if(isCancelled()){
-                    return null;
+                    return false;
                 }
 
-                fireProgress("Voxelisation...", iterator.getNbPointsProcessed(), iterator.getNbPoints());
+                fireProgress("Voxelisation...", reader.getPosition(), reader.getSize());
+
+                if(cacheWriter != null){
+                    cacheWriter.write(shot, null);
+                }
 
-                shot.setMask(getMask(shot));
                 voxelAnalysis.processOneShot(shot);
             }
-
-            logger.info("Shots processed: "+voxelAnalysis.getNbShotsProcessed());
         }
         
-//        Voxel[][][] voxels = voxelAnalysis.getVoxels();
-//        
+        return true;
+    }
+    
+    /**
+     * Convert the points of a las/laz file into shots and voxelise them,
+     * in a {@link ShotPipeline} if the configuration is pipelined.
+     * @param cfg configuration of the voxelisation
+     * @param transfMatrix transformation applied to the points
+     * @param cacheWriter writer of the shot cache, null if the shots are not cached
+     * @return false if the voxelisation was cancelled
+     * @throws Exception if the files cannot be read
+     */
+    private boolean processPointsFile(ALSVoxCfg cfg, Mat4D transfMatrix, ShotCacheWriter cacheWriter) throws Exception{
         
-        //appel code R via JRI
+        if(update || conversion == null){
+            
+            if(conversion != null){
+                conversion.close();
+            }
         
-        //récupération résultat R
+            conversion = new PointsToShot(cfg.getTrajectoryFile(), cfg.getInputFile(), transfMatrix);
+            conversion.setMemoryBudget(cfg.getPointsMemoryBudget() * 1024L * 1024L, cfg.getTemporaryDirectory());
+
+            conversion.addProcessingListener(new ProcessingListener() {
+
+                @Override
+                public void processingStepProgress(String progressMsg, long progress, long max) {
+
+                    fireProgress(progressMsg, progress, max);
+                }
+
+                @Override
+                public void processingFinished(float duration) {
+                    fireFinished(duration);
+                }
+            });
+
+            try {
+                conversion.init();
+            } catch (IOException ex) {
+                logger.error(ex);
+                throw ex;
+            } catch (Exception ex) {
+                logger.error(ex);
+                throw ex;
+            }
+        }else{
+
+        }
+
+        fireProgress("Voxelisation", 0, 100);
+
+        PointsToShotIterator iterator = conversion.iterator();
         
-        voxelAnalysis.computePADs();
+        if(cfg.isPipelined()){
+            
+            //the points read by the reader stage are published for the progress of the propagating thread
+            AtomicLong nbPointsRead = new AtomicLong();
+            
+            ShotPipeline.Source<AlsShot> source = () -> {
+                AlsShot shot = iterator.next();
+                nbPointsRead.lazySet(iterator.getNbPointsProcessed());
+                return shot;
+            };
+            
+            try(ShotPipeline<AlsShot> pipeline = new ShotPipeline<>(source, (AlsShot shot) -> maskShot(shot, cacheWriter), metrics)){
+                
+                Shot shot;
+                while((shot = pipeline.next()) != null){
 
-        //à désactiver par défaut car ce traitement ne sera plus nécessaire après correction dans R
-        if(cfg.getVoxelParameters().getNaNsCorrectionParams().isActivate()){
+                    if(isCancelled()){
+                        return false;
+                    }
 
-            fireProgress("NA correction", 0, 100);
+                    fireProgress("Voxelisation...", nbPointsRead.get(), iterator.getNbPoints());
 
-            naNsCorrection = new NaNsCorrection();
-            naNsCorrection.correct(cfg.getVoxelParameters(), voxelAnalysis.getVoxels());
+                    voxelAnalysis.processOneShot(shot);
+                }
+            }
+            
+            return true;
         }
 
-        voxelAnalysis.addProcessingListener(new ProcessingAdapter() {
+        AlsShot shot;
+
+        //the points are transformed while they are grouped into shots, the transformation is timed with the decoding
+        long startTime = metrics != null ? System.nanoTime() : 0;
+
+        while((shot = iterator.next()) != null){
+
+            if(metrics != null){
+                metrics.addTime(VoxelisationMetrics.Stage.DECODE, System.nanoTime() - startTime);
+                metrics.shotRead();
+            }
+
+            if(isCancelled()){
+                return false;
+            }
+
+            fireProgress("Voxelisation...", iterator.getNbPointsProcessed(), iterator.getNbPoints());
+
+            voxelAnalysis.processOneShot(maskShot(shot, cacheWriter));
+
+            if(metrics != null){
+                startTime = System.nanoTime();
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Cache a shot of the las/laz file with its classifications and compute its echoes mask.
+     * @param shot shot of the las/laz file
+     * @param cacheWriter writer of the shot cache, null if the shots are not cached
+     * @return the shot
+     * @throws IOException if the shot cannot be cached
+     */
+    private AlsShot maskShot(AlsShot shot, ShotCacheWriter cacheWriter) throws IOException{
+        
+        if(cacheWriter != null){
+            cacheWriter.write(shot, shot.classifications);
+        }
+
+        shot.setMask(getMask(shot));
+        
+        return shot;
+    }
+    
+    /**
+     * Voxelise the shots of a cache file instead of reading the input file, the echoes
+     * are filtered with their stored classifications.
+     * @param cacheFile a valid cache file of the input file
+     * @return false if the voxelisation was cancelled
+     * @throws IOException if the cache file cannot be read
+     */
+    private boolean replayShotCache(File cacheFile) throws IOException{
+        
+        logger.info("Replaying shot cache "+cacheFile);
+        
+        fireProgress("Voxelisation", 0, 100);
+        
+        try(ShotCacheReader reader = new ShotCacheReader(cacheFile)){
+            
+            for(long i=0;i<reader.getNbShots();i++){
+                
+                if(isCancelled()){
+                    return false;
+                }
+                
+                fireProgress("Voxelisation...", i, reader.getNbShots());
+                
+                long startTime = metrics != null ? System.nanoTime() : 0;
+                
+                int[] classifications = reader.getClassifications(i);
+                
+                Shot shot = reader.getShot(i);
+                
+                if(classifications != null){
+                    AlsShot alsShot = new AlsShot(shot.origin, shot.direction, shot.ranges, classifications, null);
+                    alsShot.setMask(getMask(alsShot));
+                    shot = alsShot;
+                }
+                
+                if(metrics != null){
+                    metrics.addTime(VoxelisationMetrics.Stage.DECODE, System.nanoTime() - startTime);
+                    metrics.shotRead();
+                }
+                
+                voxelAnalysis.processOneShot(shot);
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Voxelise the tiles of a tiled voxelisation run by another process with the same configuration,
+     * see {@link TiledVoxelAnalysis}. Waits for the other process to route the shots.
+     * @param cfg configuration of the tiled voxelisation
+     * @throws Exception if the voxelisation of a tile failed
+     */
+    public void processTiles(ALSVoxCfg cfg) throws Exception {
+        
+        setCancelled(false);
+        
+        if(cfg.getTileSize() <= 0){
+            throw new IllegalArgumentException("The voxelisation is not tiled");
+        }
+        
+        cfg.setShotFilter(new SimpleShotFilter(cfg.getShotFilters()));
+        
+        readTerrain(cfg, getTransformation(cfg));
+        
+        TiledVoxelAnalysis tiledVoxelAnalysis = createTiledVoxelAnalysis(cfg);
+        voxelAnalysis = tiledVoxelAnalysis;
+        
+        tiledVoxelAnalysis.addProcessingListener(new ProcessingAdapter() {
             @Override
             public void processingStepProgress(String progressMsg, long progress, long max) {
                 fireProgress(progressMsg, progress, max);
             }
         });
+        
+        tiledVoxelAnalysis.voxeliseTiles();
+    }
+    
+    private TiledVoxelAnalysis createTiledVoxelAnalysis(ALSVoxCfg cfg){
+        
+        File workingDirectory = cfg.getTilingDirectory();
+        
+        if(workingDirectory == null){
+            workingDirectory = new File(cfg.getOutputFile().getAbsolutePath() + ".tiles");
+        }
+        
+        return new TiledVoxelAnalysis(terrain, null, cfg, cfg.getTileSize(), cfg.getTileMargin(), workingDirectory);
+    }
+    
+    private static Mat4D getTransformation(ALSVoxCfg cfg){
+        
+        Mat4D transfMatrix = MatrixUtility.convertMatrix4dToMat4D(cfg.getVopMatrix());
+        if (transfMatrix == null) {
+            transfMatrix = Mat4D.identity();
+        }
+        
+        return transfMatrix;
+    }
+    
+    private void readTerrain(ALSVoxCfg cfg, Mat4D transfMatrix) throws Exception{
+        
+        if(cfg.getVoxelParameters().getDtmFilteringParams().getDtmFile() != null && cfg.getVoxelParameters().getDtmFilteringParams().useDTMCorrection() ){
 
-        voxelAnalysis.write(cfg.getVoxelsFormat(), cfg.getOutputFile());
+            fireProgress("Reading DTM file", 0, 100);
 
-        if(cfg.getVoxelParameters().getGroundEnergyParams() != null &&
-                cfg.getVoxelParameters().getGroundEnergyParams().isCalculateGroundEnergy()){
-            voxelAnalysis.writeGroundEnergy();
-        }
+            terrain = AsciiGridHelper.readFromAscFile(cfg.getVoxelParameters().getDtmFilteringParams().getDtmFile());
 
-        return cfg.getOutputFile();
+            if(cfg.getVoxelParameters().getDtmFilteringParams().isUseVOPMatrix()){
+                terrain.setTransformationMatrix(transfMatrix);
+            }
+        }
+    }
+    
+    /**
+     * Voxelise the tiles of a tiled ALS voxelisation in a separate process.
+     * @param args configuration file of the tiled voxelisation
+     * @throws Exception if the voxelisation of a tile failed
+     */
+    public static void main(String[] args) throws Exception {
+        
+        if(args.length != 1){
+            System.out.println("Usage : LasVoxelisation <configuration file>\n"
+                    + "Voxelise the tiles of a tiled ALS voxelisation run by another process with the same configuration file");
+            System.exit(-1);
+        }
+        
+        ALSVoxCfg cfg = new ALSVoxCfg();
+        cfg.readConfiguration(new File(args[0]));
+        
+        new LasVoxelisation().processTiles(cfg);
     }
     
     @Override
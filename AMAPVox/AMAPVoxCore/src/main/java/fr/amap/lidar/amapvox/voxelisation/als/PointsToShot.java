@@ -7,23 +7,26 @@ package fr.amap.lidar.amapvox.voxelisation.als;
 
 import fr.amap.amapvox.als.LasHeader;
 import fr.amap.amapvox.als.LasPoint;
-import fr.amap.amapvox.als.las.LasReader;
-import fr.amap.amapvox.als.las.PointDataRecordFormat;
+import fr.amap.amapvox.als.las.LasBatchReader;
+import fr.amap.amapvox.als.las.LasPointBatch;
 import fr.amap.amapvox.als.laz.LazExtraction;
 import fr.amap.commons.util.io.file.FileManager;
 import fr.amap.commons.math.matrix.Mat4D;
 import fr.amap.commons.util.Process;
 import fr.amap.commons.util.io.file.CSVFile;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import javax.vecmath.Vector3d;
+import java.util.NoSuchElementException;
 import fr.amap.commons.util.Cancellable;
 import fr.amap.lidar.amapvox.shot.Shot;
 import java.io.BufferedWriter;
@@ -42,7 +45,17 @@ public class PointsToShot extends Process implements IterableWithException<AlsSh
     private final Mat4D vopMatrix;
     
     private List<Trajectory> trajectoryList;
-    private List<LasPoint> lasPointList;
+    private LasPointSorter lasPoints;
+    
+    //memory for the points sorting, 0 to sort in memory
+    private long memoryBudget;
+    private File tempDirectory;
+    
+    //trajectory read on demand when trajectoryList is null
+    private int nbTrajectoryRecords;
+    private double minTime;
+    private double maxTime;
+    private TrajectoryRecords trajectoryRecords;
     
     private boolean cancelled;
     
@@ -53,51 +66,64 @@ public class PointsToShot extends Process implements IterableWithException<AlsSh
         this.inputFile = inputFile;
     }
 
+    /**
+     * Bound the memory used to sort the points and to read the trajectory.
+     * 
+     * <p>Points are sorted by chunks written to temporary files and merged while
+     * iterating, the trajectory file is read on demand when it is sorted by time.
+     * The result is the same as the in memory processing.</p>
+     * 
+     * @param memoryBudget memory in bytes for the points, 0 (default) to keep all the points in memory
+     * @param tempDirectory directory of the temporary files, null for the default temporary directory
+     */
+    public void setMemoryBudget(long memoryBudget, File tempDirectory) {
+        this.memoryBudget = memoryBudget;
+        this.tempDirectory = tempDirectory;
+    }
+
     public void init() throws FileNotFoundException, IOException, Exception {
                     
         /***reading las***/
 
-        lasPointList = new ArrayList<>();
+        close();
+        
+        if(memoryBudget > 0){
+            lasPoints = LasPointSorter.withMemoryBudget(memoryBudget, tempDirectory);
+        }else{
+            lasPoints = LasPointSorter.inMemory();
+        }
 
         LasHeader header;
 
         switch(FileManager.getExtension(inputFile)){
             case ".las":
 
-                LasReader lasReader = new LasReader();
-                try {
-                    lasReader.open(inputFile);
-                } catch (IOException ex) {
-                    throw ex;
-                } catch (Exception ex) {
-                    throw ex;
-                }
-                header = lasReader.getHeader();
+                try (LasBatchReader lasReader = new LasBatchReader(inputFile)) {
+                    
+                    header = lasReader.getHeader();
 
-                long maxIterations = header.getNumberOfPointrecords();
+                    long maxIterations = header.getNumberOfPointrecords();
 
-                int iterations = 0;
+                    LasPointBatch batch = new LasPointBatch(LasBatchReader.DEFAULT_BATCH_SIZE);
 
-                for (PointDataRecordFormat p : lasReader) {
+                    while (lasReader.read(batch) > 0) {
 
-                    fireProgress("Reading *.las", iterations, maxIterations);
-                    
-                    if(isCancelled()){
-                        return;
-                    }
+                        fireProgress("Reading *.las", lasReader.getPointsRead(), maxIterations);
 
-                    /*if(p.isHasQLineExtrabytes()){
-                        QLineExtrabytes qLineExtrabytes = p.getQLineExtrabytes();
-                        //logger.info("QLineExtrabytes" + qLineExtrabytes.getAmplitude()+" "+qLineExtrabytes.getPulseWidth());
-                    }*/
-                    Vector3d location = new Vector3d((p.getX() * header.getxScaleFactor()) + header.getxOffset(), (p.getY() * header.getyScaleFactor()) + header.getyOffset(), (p.getZ() * header.getzScaleFactor()) + header.getzOffset());
+                        if(isCancelled()){
+                            return;
+                        }
 
+                        for (int i = 0; i < batch.size(); i++) {
 
-                    LasPoint point = new LasPoint(location.x, location.y, location.z, p.getReturnNumber(), p.getNumberOfReturns(), p.getIntensity(), p.getClassification(), p.getGpsTime());
-                    lasPointList.add(point);
+                            LasPoint point = new LasPoint((batch.x[i] * header.getxScaleFactor()) + header.getxOffset(),
+                                    (batch.y[i] * header.getyScaleFactor()) + header.getyOffset(),
+                                    (batch.z[i] * header.getzScaleFactor()) + header.getzOffset(),
+                                    batch.returnNumber[i], batch.numberOfReturns[i], batch.intensity[i], batch.classification[i], batch.gpsTime[i]);
 
-
-                    iterations++;
+                            lasPoints.add(point);
+                        }
+                    }
                 }
                 break;
 
@@ -129,7 +155,7 @@ public class PointsToShot extends Process implements IterableWithException<AlsSh
                     p.z = (p.z * header.getzScaleFactor()) + header.getzOffset();
 
 
-                    lasPointList.add(p);
+                    lasPoints.add(p);
                     count++;
                 }
                 laz.close();
@@ -139,10 +165,14 @@ public class PointsToShot extends Process implements IterableWithException<AlsSh
 
         /***sort las by time***/
         //lasPointList.sort(null);
-        Collections.sort(lasPointList);
+        lasPoints.sort();
+        
+        if(lasPoints.size() == 0){
+            throw new Exception("ALS file doesn't contain any point");
+        }
 
-        double minTime = lasPointList.get(0).t;
-        double maxTime = lasPointList.get(lasPointList.size()-1).t;
+        minTime = lasPoints.getMinTime();
+        maxTime = lasPoints.getMaxTime();
         
         minTime -= 0.1; 
         maxTime += 0.1;
@@ -152,17 +182,80 @@ public class PointsToShot extends Process implements IterableWithException<AlsSh
             return;
         }
 
+        trajectoryList = null;
+        
+        if(memoryBudget > 0){
+            
+            //the trajectory is read on demand if it is sorted
+            int count = 0;
+            double lastTime = Double.NEGATIVE_INFINITY;
+            boolean sorted = true;
+            
+            try (TrajectoryRecords records = new TrajectoryRecords()) {
+                
+                while(records.hasNext()){
+                    
+                    Trajectory traj = records.next();
+                    
+                    if(traj.t < lastTime){
+                        sorted = false;
+                        break;
+                    }
+                    
+                    lastTime = traj.t;
+                    count++;
+                }
+            }
+            
+            if(sorted){
+                nbTrajectoryRecords = count;
+                return;
+            }
+        }
+
         trajectoryList = new ArrayList<>();
 
-        try {            
+        int lineNumber = FileManager.getLineNumber(trajectoryFile.getAbsolutePath());
+        
+        try (TrajectoryRecords records = new TrajectoryRecords()) {
+            
+            while (records.hasNext()) {
+                
+                trajectoryList.add(records.next());
+                
+                fireProgress("Reading trajectory file", records.count, lineNumber);
+            }
+        }
+
+        fireProgress("Sorting trajectory file", 99, 100);
 
-            BufferedReader reader = new BufferedReader(new FileReader(trajectoryFile));
+        Collections.sort(trajectoryList, new Comparator<Trajectory>() {
+            @Override
+            public int compare(Trajectory o1, Trajectory o2) {
+                return Double.compare(o1.t, o2.t);
+            }
+        });
 
-            String line;
-            
-            int lineNumber = FileManager.getLineNumber(trajectoryFile.getAbsolutePath());
-            int count = 0;
+        fireProgress("Sorting trajectory file finished", 100, 100);
+    }
+    
+    /**
+     * Trajectory records between the minimum and the maximum time of the points,
+     * in the order of the file.
+     */
+    private class TrajectoryRecords implements Iterator<Trajectory>, Closeable {
+        
+        private final BufferedReader reader;
+        private final int timeIndex, eastingIndex, northingIndex, elevationIndex;
+        
+        //number of lines read
+        private int count;
+        private Trajectory next;
+        
+        TrajectoryRecords() throws IOException {
             
+            reader = new BufferedReader(new FileReader(trajectoryFile));
+
             if(trajectoryFile.containsHeader()){
                 reader.readLine();
                 count++;
@@ -174,31 +267,29 @@ public class PointsToShot extends Process implements IterableWithException<AlsSh
             }
             
             Map<String, Integer> columnAssignment = trajectoryFile.getColumnAssignment();
-            Integer timeIndex = columnAssignment.get("Time");
             
-            if(timeIndex == null){
-                timeIndex = 3;
-            }
+            timeIndex = getColumnIndex(columnAssignment, "Time", 3);
+            eastingIndex = getColumnIndex(columnAssignment, "Easting", 0);
+            northingIndex = getColumnIndex(columnAssignment, "Northing", 1);
+            elevationIndex = getColumnIndex(columnAssignment, "Elevation", 2);
             
-            Integer eastingIndex = columnAssignment.get("Easting");
-            if(eastingIndex == null){
-                eastingIndex = 0;
-            }
+            next = read();
+        }
+        
+        private int getColumnIndex(Map<String, Integer> columnAssignment, String column, int defaultIndex){
             
-            Integer northingIndex = columnAssignment.get("Northing");
-            if(northingIndex == null){
-                northingIndex = 1;
-            }
+            Integer index = columnAssignment.get(column);
             
-            Integer elevationIndex = columnAssignment.get("Elevation");
-            if(elevationIndex == null){
-                elevationIndex = 2;
-            }
-
+            return index == null ? defaultIndex : index;
+        }
+        
+        private Trajectory read() throws IOException {
+            
+            String line;
             
             while ((line = reader.readLine()) != null) {
                 
-                fireProgress("Reading trajectory file", count, lineNumber);
+                count++;
 
                 String[] lineSplit = line.split(trajectoryFile.getColumnSeparator());
 
@@ -207,38 +298,85 @@ public class PointsToShot extends Process implements IterableWithException<AlsSh
                 //discard unused values
                 if(time >= minTime && time <= maxTime){
 
-                    Trajectory traj = new Trajectory(Double.valueOf(lineSplit[eastingIndex]), Double.valueOf(lineSplit[northingIndex]),
+                    return new Trajectory(Double.valueOf(lineSplit[eastingIndex]), Double.valueOf(lineSplit[northingIndex]),
                         Double.valueOf(lineSplit[elevationIndex]), time);
-
-                    trajectoryList.add(traj);
                 }
-                
-                count++;
             }
             
-            fireProgress("Sorting trajectory file", 99, 100);
+            close();
             
-            Collections.sort(trajectoryList, new Comparator<Trajectory>() {
-                @Override
-                public int compare(Trajectory o1, Trajectory o2) {
-                    return Double.compare(o1.t, o2.t);
-                }
-            });
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Trajectory next() {
             
-            fireProgress("Sorting trajectory file finished", 100, 100);
+            if(next == null){
+                throw new NoSuchElementException();
+            }
+            
+            Trajectory current = next;
+            
+            try {
+                next = read();
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Cannot read trajectory file", ex);
+            }
+            
+            return current;
+        }
 
-        } catch (FileNotFoundException ex) {
-            throw ex;
-        } catch (IOException ex) {
-            throw ex;
+        @Override
+        public void close() throws IOException {
+            reader.close();
         }
-        
     }
 
     @Override
     public PointsToShotIterator iterator() {
         
-        return new PointsToShotIterator(trajectoryList, lasPointList, vopMatrix);
+        try {
+            List<Trajectory> trajectory = trajectoryList;
+
+            if(trajectory == null){
+
+                if(trajectoryRecords != null){
+                    trajectoryRecords.close();
+                }
+
+                trajectoryRecords = new TrajectoryRecords();
+                trajectory = new TrajectoryWindow(trajectoryRecords, nbTrajectoryRecords);
+            }
+
+            return new PointsToShotIterator(trajectory, lasPoints.iterator(), lasPoints.size(), vopMatrix);
+            
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    
+    /**
+     * Delete the temporary files of the points sorting.
+     */
+    public void close() {
+        
+        if(lasPoints != null){
+            lasPoints.close();
+        }
+        
+        if(trajectoryRecords != null){
+            try {
+                trajectoryRecords.close();
+            } catch (IOException ex) {
+                //already closed
+            }
+            trajectoryRecords = null;
+        }
     }
     
 
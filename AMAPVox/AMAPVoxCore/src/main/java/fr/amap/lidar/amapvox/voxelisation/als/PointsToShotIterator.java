@@ -10,6 +10,7 @@ import fr.amap.commons.math.matrix.Mat4D;
 import fr.amap.commons.math.vector.Vec4D;
 import fr.amap.lidar.amapvox.shot.Shot;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
@@ -26,7 +27,7 @@ public class PointsToShotIterator implements IteratorWithException<fr.amap.lidar
     private int oldN = -1;
     private AlsShot shot = null;
     private int count = 0;
-    private int currentLasPointIndex = 0;
+    private long currentLasPointIndex = 0;
     private int index = 0;
     private LasShot mix;
     private int currentNbEchos = 0;
@@ -35,13 +36,30 @@ public class PointsToShotIterator implements IteratorWithException<fr.amap.lidar
     private final static float RATIO_REFLECTANCE_VEGETATION_SOL = 0.4f;
     
     private final List<Trajectory> trajectoryList;
-    private final List<LasPoint> lasPointList;
+    private final Iterator<LasPoint> lasPoints;
+    private final long nbPoints;
     private final Mat4D vopMatrix;
+    
+    //trajectory read on demand, null if the trajectory is in memory
+    private final TrajectoryWindow trajectoryWindow;
 
     public PointsToShotIterator(List<Trajectory> trajectoryList, List<LasPoint> lasPointList, Mat4D vopMatrix) {
+        this(trajectoryList, lasPointList.iterator(), lasPointList.size(), vopMatrix);
+    }
+    
+    /**
+     * 
+     * @param trajectoryList trajectory sorted by time, in memory or {@link TrajectoryWindow}
+     * @param lasPoints points sorted by time, read once
+     * @param nbPoints number of points
+     * @param vopMatrix transformation
+     */
+    public PointsToShotIterator(List<Trajectory> trajectoryList, Iterator<LasPoint> lasPoints, long nbPoints, Mat4D vopMatrix) {
         this.trajectoryList = trajectoryList;
-        this.lasPointList = lasPointList;
+        this.lasPoints = lasPoints;
+        this.nbPoints = nbPoints;
         this.vopMatrix = vopMatrix;
+        this.trajectoryWindow = trajectoryList instanceof TrajectoryWindow ? (TrajectoryWindow) trajectoryList : null;
     }
             
     @Override
@@ -184,11 +202,11 @@ public class PointsToShotIterator implements IteratorWithException<fr.amap.lidar
     @Override
     public AlsShot next() throws Exception {
         //parcours les points las jusqu'à retrouver un tir avec tous ses échos
-        for (int i=currentLasPointIndex;i<lasPointList.size(); i++) {
+        while (currentLasPointIndex < nbPoints) {
 
             if(!wasReturned){
 
-                LasPoint lasPoint = lasPointList.get(i);
+                LasPoint lasPoint = lasPoints.next();
 
 
                 double targetTime = lasPoint.t;
@@ -202,6 +220,10 @@ public class PointsToShotIterator implements IteratorWithException<fr.amap.lidar
                     //logger.error("Trajectory file is invalid, out of bounds exception.");
                     return null;
                 }
+                
+                if(trajectoryWindow != null){
+                    trajectoryWindow.release(index-1);
+                }
 
                 int indexMax = index;
                 int indexMin = index-1;
@@ -277,7 +299,7 @@ public class PointsToShotIterator implements IteratorWithException<fr.amap.lidar
                     isNewShot = false;
                     wasReturned = true;
 
-                    if(shot.getEchoesNumber() != 0){ //handle the case (file bug) when an echo has a nbEchos equals to 0
+                    if(shot != null && shot.getEchoesNumber() != 0){ //handle the case (file bug) when an echo has a nbEchos equals to 0
                         
                         return shot;
                     }
@@ -350,6 +372,19 @@ public class PointsToShotIterator implements IteratorWithException<fr.amap.lidar
         
         int low = start;
         int high = list.size()-1;
+        
+        if(trajectoryWindow != null){
+            
+            //exponential search first, to read the trajectory only up to the value
+            int step = 1;
+            
+            while(low + step <= high && list.get(low + step).t < value){
+                low += step;
+                step <<= 1;
+            }
+            
+            high = Math.min(high, low + step);
+        }
 
         while (low <= high) {
             int mid = (low + high) >>> 1;
@@ -415,11 +450,11 @@ public class PointsToShotIterator implements IteratorWithException<fr.amap.lidar
         return index;
     }
 
-    public int getNbPoints(){
-        return lasPointList.size();
+    public long getNbPoints(){
+        return nbPoints;
     }
     
-    public int getNbPointsProcessed(){
+    public long getNbPointsProcessed(){
         return currentLasPointIndex;
     }
 }
@@ -0,0 +1,439 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation.als;
+
+import fr.amap.commons.util.io.NumberParser;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ * Read the shots of a shot text file, the SHOTS_FILE input of {@link LasVoxelisation}.
+ *
+ * <p>The file has a header line, then a shot per line, the columns are separated by spaces:
+ * origin (x y z), direction (x y z), number of echoes n, the ranges of the echoes from the 8th column
+ * and their classifications from the 15th column.</p>
+ *
+ * <p>The file is split into chunks of a few megabytes, the chunks are read with positional reads and parsed in parallel
+ * directly from their bytes, without creating a string per line or per column (see {@link NumberParser}).
+ * A chunk owns the lines starting inside it, so the chunks are found without reading the file first.
+ * The shots are returned by {@link #next()} in the order of the file, the parser threads
+ * work at most a few chunks ahead of the reading thread.</p>
+ */
+public class ShotFileReader implements Closeable{
+
+    /**
+     * Default size of the chunks parsed by a thread
+     */
+    public final static int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+    //longest line, the last line of a chunk ends in the next chunk
+    private final static int MAX_LINE_LENGTH = 1 << 16;
+
+    private final static int RANGES_COLUMN = 7;
+    private final static int CLASSIFICATIONS_COLUMN = 14;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long size;
+    private final long dataStart;
+    private final int chunkSize;
+    private final VoxelisationMetrics metrics;
+
+    private final ExecutorService executor;
+    private final Queue<Future<ShotBlock>> pendingBlocks;
+    private final int maxPendingBlocks;
+    private final Queue<ShotBlock> freeBlocks;
+    private long nextChunkStart;
+
+    private ShotBlock currentBlock;
+    private int currentIndex;
+
+    /**
+     * Shots of a chunk, stored in arrays reused from a chunk to another.
+     */
+    private static class ShotBlock{
+
+        long chunkStart;
+        long chunkEnd;
+
+        byte[] bytes = new byte[0];
+
+        int nbShots;
+        //origin and direction of the shots
+        double[] vectors = new double[6 * 1024];
+        //index of the first range of the shots, the last element is the number of ranges
+        int[] echoesStart = new int[1025];
+        double[] ranges = new double[4096];
+
+        //start and end of the columns of the current line
+        int[] columnsStart = new int[32];
+        int[] columnsEnd = new int[32];
+    }
+
+    /**
+     *
+     * @param file shot text file
+     * @param nbThreads number of parser threads
+     * @param metrics metrics of the run, the parsing is timed as decoding and the shots are counted as read, can be null
+     * @throws IOException if the file cannot be read
+     */
+    public ShotFileReader(File file, int nbThreads, VoxelisationMetrics metrics) throws IOException {
+        this(file, nbThreads, DEFAULT_CHUNK_SIZE, metrics);
+    }
+
+    /**
+     *
+     * @param file shot text file
+     * @param nbThreads number of parser threads
+     * @param chunkSize size of the chunks parsed by a thread, in bytes
+     * @param metrics metrics of the run, the parsing is timed as decoding and the shots are counted as read, can be null
+     * @throws IOException if the file cannot be read
+     */
+    public ShotFileReader(File file, int nbThreads, int chunkSize, VoxelisationMetrics metrics) throws IOException {
+
+        this.file = file;
+        this.chunkSize = chunkSize;
+        this.metrics = metrics;
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        size = channel.size();
+
+        try{
+            dataStart = skipHeader();
+        }catch(IOException ex){
+            channel.close();
+            throw ex;
+        }
+
+        nextChunkStart = dataStart;
+
+        nbThreads = Math.max(1, nbThreads);
+        maxPendingBlocks = nbThreads * 2;
+        pendingBlocks = new ArrayDeque<>(maxPendingBlocks);
+        freeBlocks = new ConcurrentLinkedQueue<>();
+
+        AtomicInteger threadIndex = new AtomicInteger();
+
+        executor = Executors.newFixedThreadPool(nbThreads, (Runnable r) -> {
+            Thread thread = new Thread(r, "shot-file-parser-" + threadIndex.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private long skipHeader() throws IOException{
+
+        int length = (int) Math.min(size, MAX_LINE_LENGTH);
+        byte[] bytes = new byte[length];
+        read(bytes, length, 0);
+
+        for(int i = 0 ; i < length ; i++){
+            if(bytes[i] == '\n'){
+                return i + 1;
+            }
+        }
+
+        if(size > MAX_LINE_LENGTH){
+            throw new IOException("Invalid header in shot file " + file);
+        }
+
+        return size;
+    }
+
+    /**
+     * Read bytes of the file, the position of the channel is not changed so the parser threads share it.
+     * @param bytes destination of the bytes
+     * @param length number of bytes to read
+     * @param position position of the first byte in the file
+     * @throws IOException if the file ends before
+     */
+    private void read(byte[] bytes, int length, long position) throws IOException{
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer, position + buffer.position()) < 0){
+                throw new IOException("Unexpected end of shot file " + file);
+            }
+        }
+    }
+
+    /**
+     * Get the next shot of the file.
+     * @return the next shot, null at the end of the file
+     * @throws IOException if the file cannot be read, if a line is invalid or if the thread was interrupted
+     */
+    public Shot next() throws IOException{
+
+        while(currentBlock == null || currentIndex == currentBlock.nbShots){
+
+            if(currentBlock != null){
+                freeBlocks.add(currentBlock);
+                currentBlock = null;
+            }
+
+            //keep the parser threads busy
+            while(pendingBlocks.size() < maxPendingBlocks && nextChunkStart < size){
+
+                final long chunkStart = nextChunkStart;
+                final long chunkEnd = Math.min(size, chunkStart + chunkSize);
+
+                pendingBlocks.add(executor.submit(() -> parse(chunkStart, chunkEnd)));
+
+                nextChunkStart = chunkEnd;
+            }
+
+            if(pendingBlocks.isEmpty()){
+                return null;
+            }
+
+            currentBlock = waitFor(pendingBlocks.poll());
+            currentIndex = 0;
+        }
+
+        ShotBlock block = currentBlock;
+        int index = currentIndex++;
+        int vector = index * 6;
+
+        if(metrics != null){
+            metrics.shotRead();
+        }
+
+        return new Shot(new Point3d(block.vectors[vector], block.vectors[vector + 1], block.vectors[vector + 2]),
+                new Vector3d(block.vectors[vector + 3], block.vectors[vector + 4], block.vectors[vector + 5]),
+                Arrays.copyOfRange(block.ranges, block.echoesStart[index], block.echoesStart[index + 1]));
+    }
+
+    private ShotBlock waitFor(Future<ShotBlock> future) throws IOException{
+
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Shot file reading interrupted");
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException){
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Cannot parse shot file " + file, ex.getCause());
+        } catch (CancellationException ex){
+            throw new InterruptedIOException("Shot file reading cancelled");
+        }
+    }
+
+    private ShotBlock parse(long chunkStart, long chunkEnd) throws IOException{
+
+        long startTime = metrics != null ? System.nanoTime() : 0;
+
+        ShotBlock block = freeBlocks.poll();
+
+        if(block == null){
+            block = new ShotBlock();
+        }
+
+        block.chunkStart = chunkStart;
+        block.chunkEnd = chunkEnd;
+        block.nbShots = 0;
+        block.echoesStart[0] = 0;
+
+        //the byte before the chunk tells if the first line starts in this chunk
+        long mapStart = chunkStart == dataStart ? chunkStart : chunkStart - 1;
+        long mapEnd = Math.min(size, chunkEnd + MAX_LINE_LENGTH);
+        int length = (int) (mapEnd - mapStart);
+
+        if(block.bytes.length < length){
+            block.bytes = new byte[length];
+        }
+
+        byte[] bytes = block.bytes;
+
+        read(bytes, length, mapStart);
+
+        int i = 0;
+
+        if(mapStart < chunkStart){
+
+            //skip the end of the line started in the previous chunk
+            while(i < length && bytes[i] != '\n'){
+                i++;
+            }
+
+            i++;
+        }
+
+        int end = (int) (chunkEnd - mapStart);
+
+        while(i < end){
+
+            int lineEnd = i;
+
+            while(lineEnd < length && bytes[lineEnd] != '\n'){
+                lineEnd++;
+            }
+
+            if(lineEnd == length && mapEnd < size){
+                throw new IOException("Line too long at byte " + (mapStart + i) + " of shot file " + file);
+            }
+
+            parseLine(block, i, lineEnd, mapStart + i);
+
+            i = lineEnd + 1;
+        }
+
+        if(metrics != null){
+            metrics.addTime(VoxelisationMetrics.Stage.DECODE, System.nanoTime() - startTime);
+        }
+
+        return block;
+    }
+
+    private void parseLine(ShotBlock block, int start, int end, long position) throws IOException{
+
+        byte[] bytes = block.bytes;
+
+        //split the columns
+        int nbColumns = 0;
+        int i = start;
+
+        while(i < end){
+
+            while(i < end && (bytes[i] == ' ' || bytes[i] == '\t' || bytes[i] == '\r')){
+                i++;
+            }
+
+            if(i == end){
+                break;
+            }
+
+            int columnStart = i;
+
+            while(i < end && bytes[i] != ' ' && bytes[i] != '\t' && bytes[i] != '\r'){
+                i++;
+            }
+
+            if(nbColumns == block.columnsStart.length){
+                block.columnsStart = Arrays.copyOf(block.columnsStart, nbColumns * 2);
+                block.columnsEnd = Arrays.copyOf(block.columnsEnd, nbColumns * 2);
+            }
+
+            block.columnsStart[nbColumns] = columnStart;
+            block.columnsEnd[nbColumns] = i;
+            nbColumns++;
+        }
+
+        //blank line
+        if(nbColumns == 0){
+            return;
+        }
+
+        if(nbColumns < RANGES_COLUMN){
+            throw new IOException("Columns missing inside shot file " + file + " at byte " + position);
+        }
+
+        try{
+            int nbEchoes = NumberParser.parseInt(bytes, block.columnsStart[6], block.columnsEnd[6] - block.columnsStart[6]);
+
+            if(nbEchoes < 0 || (nbEchoes > 0 && nbColumns <= CLASSIFICATIONS_COLUMN + nbEchoes - 1)){
+                throw new IOException("Columns missing inside shot file " + file + " at byte " + position);
+            }
+
+            int shot = block.nbShots;
+
+            if((shot + 1) * 6 > block.vectors.length){
+                block.vectors = Arrays.copyOf(block.vectors, block.vectors.length * 2);
+                block.echoesStart = Arrays.copyOf(block.echoesStart, block.echoesStart.length * 2);
+            }
+
+            for(int c = 0 ; c < 6 ; c++){
+                block.vectors[shot * 6 + c] = parseDouble(block, c);
+            }
+
+            int echoesStart = block.echoesStart[shot];
+
+            if(echoesStart + nbEchoes > block.ranges.length){
+                block.ranges = Arrays.copyOf(block.ranges, Math.max(block.ranges.length * 2, echoesStart + nbEchoes));
+            }
+
+            for(int e = 0 ; e < nbEchoes ; e++){
+                block.ranges[echoesStart + e] = parseDouble(block, RANGES_COLUMN + e);
+            }
+
+            block.echoesStart[shot + 1] = echoesStart + nbEchoes;
+            block.nbShots++;
+
+        }catch(NumberFormatException ex){
+            throw new IOException("Invalid number inside shot file " + file + " at byte " + position, ex);
+        }
+    }
+
+    private static double parseDouble(ShotBlock block, int column){
+        return NumberParser.parseDouble(block.bytes, block.columnsStart[column], block.columnsEnd[column] - block.columnsStart[column]);
+    }
+
+    /**
+     *
+     * @return size of the file, in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     *
+     * @return approximate position in the file of the last shot returned, in bytes
+     */
+    public long getPosition() {
+
+        if(currentBlock == null){
+            return nextChunkStart == dataStart ? 0 : size;
+        }
+
+        if(currentBlock.nbShots == 0){
+            return currentBlock.chunkEnd;
+        }
+
+        return currentBlock.chunkStart + (currentBlock.chunkEnd - currentBlock.chunkStart) * currentIndex / currentBlock.nbShots;
+    }
+
+    /**
+     * Stop the parser threads and close the file.
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException{
+
+        executor.shutdownNow();
+        channel.close();
+    }
+}
@@ -0,0 +1,86 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation.als;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Trajectory read on demand, as a list of records sorted by time.
+ *
+ * <p>Records are read from the iterator when an index is first accessed and
+ * the ones before the index given to {@link #release(int)} are dropped, so
+ * only the records between the last released index and the last accessed
+ * index are in memory. Accessing a released record throws an
+ * {@link IndexOutOfBoundsException}.</p>
+ */
+public class TrajectoryWindow extends AbstractList<Trajectory> {
+
+    private final Iterator<Trajectory> records;
+    private final int size;
+
+    private final List<Trajectory> window;
+
+    //index of the first record of the window
+    private int first;
+
+    /**
+     *
+     * @param records records sorted by time
+     * @param size number of records
+     */
+    public TrajectoryWindow(Iterator<Trajectory> records, int size) {
+        this.records = records;
+        this.size = size;
+        this.window = new ArrayList<>();
+    }
+
+    @Override
+    public Trajectory get(int index) {
+
+        if(index < first || index >= size){
+            throw new IndexOutOfBoundsException("Index: " + index + ", window: [" + first + ", " + size + "[");
+        }
+
+        while (first + window.size() <= index) {
+            window.add(records.next());
+        }
+
+        return window.get(index - first);
+    }
+
+    /**
+     * Drop the records before an index.
+     *
+     * @param index first record still needed
+     */
+    public void release(int index) {
+
+        int count = Math.min(index - first, window.size());
+
+        //amortized, the window is only shifted when half of it is released
+        if(count > 0 && count >= window.size() / 2){
+            window.subList(0, count).clear();
+            first += count;
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+}
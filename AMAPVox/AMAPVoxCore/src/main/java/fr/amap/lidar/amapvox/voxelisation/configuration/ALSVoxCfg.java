@@ -37,6 +37,18 @@ public class ALSVoxCfg extends VoxelAnalysisCfg{
     private CSVFile trajectoryFile;
     private List<Integer> classifiedPointsToDiscard;
     
+    //memory for sorting the points in megabytes, 0 to sort in memory
+    private int pointsMemoryBudget;
+    private File temporaryDirectory;
+    
+    //tiled voxelisation, tile size in voxels, 0 to voxelise the whole voxel space at once
+    private int tileSize;
+    private int tileMargin;
+    private File tilingDirectory;
+    
+    //resolutions voxelised with the same shots, in addition to the resolution of the voxel space
+    private float[] multiResolutions;
+    
     
     @Override
     public void readConfiguration(File inputParametersFile) throws Exception {
@@ -82,11 +94,60 @@ public class ALSVoxCfg extends VoxelAnalysisCfg{
                     LOGGER.warn("Old trajectory file element detected, keep default old read parameters.");
                 }
             }
+            
+            Element pointsToShotsElement = processElement.getChild("points-to-shots");
+            
+            if(pointsToShotsElement != null){
+                
+                String memoryBudget = pointsToShotsElement.getAttributeValue("memory-budget");
+                
+                if(memoryBudget != null){
+                    pointsMemoryBudget = Integer.valueOf(memoryBudget);
+                }
+                
+                String temporaryDirectoryPath = pointsToShotsElement.getAttributeValue("temporary-directory");
+                
+                if(temporaryDirectoryPath != null){
+                    temporaryDirectory = new File(temporaryDirectoryPath);
+                }
+            }
         }
         
         
         processMode = ProcessMode.VOXELISATION_ALS;
         
+        Element tilingElement = processElement.getChild("tiling");
+        
+        if(tilingElement != null){
+            
+            tileSize = Integer.valueOf(tilingElement.getAttributeValue("size"));
+            
+            String margin = tilingElement.getAttributeValue("margin");
+            
+            if(margin != null){
+                tileMargin = Integer.valueOf(margin);
+            }
+            
+            String tilingDirectoryPath = tilingElement.getAttributeValue("directory");
+            
+            if(tilingDirectoryPath != null){
+                tilingDirectory = new File(tilingDirectoryPath);
+            }
+        }
+        
+        Element multiResolutionElement = processElement.getChild("multi-resolution");
+        
+        if(multiResolutionElement != null){
+            
+            String[] resolutions = multiResolutionElement.getAttributeValue("resolutions").trim().split(" +");
+            
+            multiResolutions = new float[resolutions.length];
+            
+            for(int i=0;i<resolutions.length;i++){
+                multiResolutions[i] = Float.valueOf(resolutions[i]);
+            }
+        }
+        
         Element groundEnergyElement = processElement.getChild("ground-energy");
         if(groundEnergyElement != null){
             
@@ -166,9 +227,46 @@ public class ALSVoxCfg extends VoxelAnalysisCfg{
             trajectoryFileElement.setAttribute(new Attribute("column-assignment", colAssignment));
 
             processElement.addContent(trajectoryFileElement);
+            
+            if(pointsMemoryBudget > 0){
+                
+                Element pointsToShotsElement = new Element("points-to-shots");
+                pointsToShotsElement.setAttribute("memory-budget", String.valueOf(pointsMemoryBudget));
+                
+                if(temporaryDirectory != null){
+                    pointsToShotsElement.setAttribute("temporary-directory", temporaryDirectory.getAbsolutePath());
+                }
+                
+                processElement.addContent(pointsToShotsElement);
+            }
 
         }
         
+        if(tileSize > 0){
+            
+            Element tilingElement = new Element("tiling");
+            tilingElement.setAttribute("size", String.valueOf(tileSize));
+            tilingElement.setAttribute("margin", String.valueOf(tileMargin));
+            
+            if(tilingDirectory != null){
+                tilingElement.setAttribute("directory", tilingDirectory.getAbsolutePath());
+            }
+            
+            processElement.addContent(tilingElement);
+        }
+        
+        if(multiResolutions != null && multiResolutions.length > 0){
+            
+            String resolutions = "";
+            for(float resolution : multiResolutions){
+                resolutions += resolution+" ";
+            }
+            
+            Element multiResolutionElement = new Element("multi-resolution");
+            multiResolutionElement.setAttribute("resolutions", resolutions.trim());
+            processElement.addContent(multiResolutionElement);
+        }
+        
         GroundEnergyParams groundEnergyParameters = voxelParameters.getGroundEnergyParams();
         
         if(groundEnergyParameters != null){
@@ -227,5 +325,74 @@ public class ALSVoxCfg extends VoxelAnalysisCfg{
         this.classifiedPointsToDiscard = classifiedPointsToDiscard;
     }
 
+    /**
+     * 
+     * @return memory in megabytes for sorting the points, 0 if they are sorted in memory
+     */
+    public int getPointsMemoryBudget() {
+        return pointsMemoryBudget;
+    }
+
+    public void setPointsMemoryBudget(int pointsMemoryBudget) {
+        this.pointsMemoryBudget = pointsMemoryBudget;
+    }
+
+    public File getTemporaryDirectory() {
+        return temporaryDirectory;
+    }
+
+    public void setTemporaryDirectory(File temporaryDirectory) {
+        this.temporaryDirectory = temporaryDirectory;
+    }
+
+    /**
+     * 
+     * @return number of voxels of a tile along x and y, 0 if the voxel space is not tiled
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public void setTileSize(int tileSize) {
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * 
+     * @return number of voxels added around a tile
+     */
+    public int getTileMargin() {
+        return tileMargin;
+    }
+
+    public void setTileMargin(int tileMargin) {
+        this.tileMargin = tileMargin;
+    }
+
+    /**
+     * 
+     * @return working directory of the tiled voxelisation, null to use a directory next to the output file
+     */
+    public File getTilingDirectory() {
+        return tilingDirectory;
+    }
+
+    public void setTilingDirectory(File tilingDirectory) {
+        this.tilingDirectory = tilingDirectory;
+    }
+
+    /**
+     * 
+     * @return resolutions voxelised in the same pass over the shots, in addition to
+     * the resolution of the voxel space, null if none
+     */
+    public float[] getMultiResolutions() {
+        return multiResolutions;
+    }
+
+    public void setMultiResolutions(float[] multiResolutions) {
+        this.multiResolutions = multiResolutions;
+    }
+
     
 }
@@ -34,6 +34,8 @@ public class TLSVoxCfg extends VoxelAnalysisCfg{
     
     private List<LidarScan> lidarScans;
     private boolean enableEmptyShotsFiltering;
+    private boolean mergingInMemory;
+    private int mergingMaxGrids = 1;
     
     @Override
     public void readConfiguration(File inputParametersFile) throws Exception {
@@ -83,6 +85,16 @@ public class TLSVoxCfg extends VoxelAnalysisCfg{
                 voxelParameters.setMergingAfter(Boolean.valueOf(mergingElement.getAttributeValue("enabled")));
                 if (voxelParameters.isMergingAfter()) {
                     voxelParameters.setMergedFile(new File(mergingElement.getAttributeValue("src")));
+                    
+                    String inMemory = mergingElement.getAttributeValue("in-memory");
+                    if(inMemory != null){
+                        mergingInMemory = Boolean.valueOf(inMemory);
+                    }
+                    
+                    String maxGrids = mergingElement.getAttributeValue("max-grids");
+                    if(maxGrids != null){
+                        mergingMaxGrids = Integer.valueOf(maxGrids);
+                    }
                 }
             }
         }
@@ -114,6 +126,8 @@ public class TLSVoxCfg extends VoxelAnalysisCfg{
             mergingElement.setAttribute("enabled", String.valueOf(voxelParameters.isMergingAfter()));
             if(voxelParameters.isMergingAfter()){
                 mergingElement.setAttribute("src", voxelParameters.getMergedFile().getAbsolutePath());
+                mergingElement.setAttribute("in-memory", String.valueOf(mergingInMemory));
+                mergingElement.setAttribute("max-grids", String.valueOf(mergingMaxGrids));
             }
 
             processElement.addContent(mergingElement);
@@ -164,4 +178,29 @@ public class TLSVoxCfg extends VoxelAnalysisCfg{
     public void setEnableEmptyShotsFiltering(boolean enableEmptyShotsFiltering) {
         this.enableEmptyShotsFiltering = enableEmptyShotsFiltering;
     }
+
+    public boolean isMergingInMemory() {
+        return mergingInMemory;
+    }
+
+    /**
+     * Merge the scans in memory instead of merging the scan voxel files,
+     * see {@link fr.amap.lidar.amapvox.voxelisation.tls.MergedTLSVoxelisation}.
+     * @param mergingInMemory true to merge the scans in memory
+     */
+    public void setMergingInMemory(boolean mergingInMemory) {
+        this.mergingInMemory = mergingInMemory;
+    }
+
+    public int getMergingMaxGrids() {
+        return mergingMaxGrids;
+    }
+
+    /**
+     * Set the maximum number of voxel grids allocated at the same time by the in-memory merging.
+     * @param mergingMaxGrids maximum number of grids
+     */
+    public void setMergingMaxGrids(int mergingMaxGrids) {
+        this.mergingMaxGrids = mergingMaxGrids;
+    }
 }
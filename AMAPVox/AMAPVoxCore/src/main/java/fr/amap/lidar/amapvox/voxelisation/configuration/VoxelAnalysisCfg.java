@@ -22,13 +22,17 @@ import fr.amap.lidar.amapvox.commons.LADParams;
 import fr.amap.lidar.amapvox.commons.LeafAngleDistribution.Type;
 import fr.amap.lidar.amapvox.voxelisation.PointcloudFilter;
 import fr.amap.lidar.amapvox.voxelisation.EchoFilter;
+import fr.amap.lidar.amapvox.voxelisation.ShotPipeline;
 import fr.amap.lidar.amapvox.voxelisation.LaserSpecification;
 import fr.amap.lidar.amapvox.voxelisation.ShotFilter;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics.SummaryFormat;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import javax.vecmath.Matrix4d;
 import javax.vecmath.Point3d;
@@ -49,7 +53,8 @@ public class VoxelAnalysisCfg extends Configuration{
         
         NONE(0),
         VOXEL(1),
-        RASTER(2);
+        RASTER(2),
+        BINARY(3);
         
         private int format;
         
@@ -68,6 +73,7 @@ public class VoxelAnalysisCfg extends Configuration{
     protected File inputFile;
     protected File outputFile;
     protected VoxelsFormat voxelsFormat = VoxelsFormat.VOXEL;
+    protected boolean compressVoxels;
     protected boolean usePopMatrix;
     protected boolean useSopMatrix;
     protected boolean useVopMatrix;
@@ -82,7 +88,20 @@ public class VoxelAnalysisCfg extends Configuration{
     protected EchoFilter echoFilter;
     
     protected boolean exportShotSegment;
+
+    //number of threads sharing the shots of a single voxelisation
+    protected int nbThreads = 1;
+    
+    //shots decoded and transformed by their own threads, see ShotPipeline
+    protected boolean pipelined;
+    
+    //directory of the binary shot caches, null to read the scans each time
+    protected File shotCacheDirectory;
     
+    //format of the metrics summary of the runs, null if the runs are not instrumented
+    protected SummaryFormat metricsFormat;
+    protected boolean metricsJmx;
+
     protected Element limitsElement;
     protected Element filtersElement;
     protected Element echoFilteringElement;
@@ -116,8 +135,11 @@ public class VoxelAnalysisCfg extends Configuration{
                     voxelsFormat = VoxelsFormat.VOXEL;
                 }else if(format == 2){
                     voxelsFormat = VoxelsFormat.RASTER;
+                }else if(format == 3){
+                    voxelsFormat = VoxelsFormat.BINARY;
                 }
             }
+            compressVoxels = Boolean.valueOf(outputFileElement.getAttributeValue("compressed"));
         }else{
             LOGGER.warn("Cannot find output_file element");
         }
@@ -207,6 +229,12 @@ public class VoxelAnalysisCfg extends Configuration{
                 }else{ //old configuration file
                     voxelParameters.getDtmFilteringParams().setUseVOPMatrix(true);
                 }
+                
+                String interpolationAttribute = dtmFilterElement.getAttributeValue("interpolation");
+                
+                if(interpolationAttribute != null){
+                    voxelParameters.getDtmFilteringParams().setBilinearInterpolation(interpolationAttribute.equals("bilinear"));
+                }
             }                        
         }
 
@@ -420,6 +448,33 @@ public class VoxelAnalysisCfg extends Configuration{
         if(exportShotSegmentElement != null){
             exportShotSegment = Boolean.valueOf(exportShotSegmentElement.getAttributeValue("enabled"));
         }
+
+        Element multiThreadingElement = processElement.getChild("multithreading");
+
+        if(multiThreadingElement != null){
+            nbThreads = Integer.valueOf(multiThreadingElement.getAttributeValue("threads"));
+        }
+        
+        Element pipelineElement = processElement.getChild("pipeline");
+        
+        if(pipelineElement != null){
+            pipelined = Boolean.valueOf(pipelineElement.getAttributeValue("enabled"));
+        }
+        
+        Element shotCacheElement = processElement.getChild("shot-cache");
+        
+        if(shotCacheElement != null && Boolean.valueOf(shotCacheElement.getAttributeValue("enabled"))){
+            shotCacheDirectory = new File(shotCacheElement.getAttributeValue("directory"));
+        }
+        
+        Element metricsElement = processElement.getChild("metrics");
+        
+        if(metricsElement != null && Boolean.valueOf(metricsElement.getAttributeValue("enabled"))){
+            
+            String format = metricsElement.getAttributeValue("format");
+            metricsFormat = format == null ? SummaryFormat.JSON : SummaryFormat.valueOf(format.toUpperCase(Locale.ROOT));
+            metricsJmx = Boolean.valueOf(metricsElement.getAttributeValue("jmx"));
+        }
           
     }
 
@@ -439,6 +494,9 @@ public class VoxelAnalysisCfg extends Configuration{
         Element outputFileElement = new Element("output_file");
         outputFileElement.setAttribute(new Attribute("src",outputFile.getAbsolutePath()));
         outputFileElement.setAttribute(new Attribute("format", String.valueOf(voxelsFormat.getFormat())));
+        if(voxelsFormat == VoxelsFormat.BINARY){
+            outputFileElement.setAttribute(new Attribute("compressed", String.valueOf(compressVoxels)));
+        }
         processElement.addContent(outputFileElement);
         
         if(voxelParameters != null && voxelParameters.infos.getMinCorner() !=null && voxelParameters.infos.getMaxCorner() != null){
@@ -499,6 +557,7 @@ public class VoxelAnalysisCfg extends Configuration{
 
             dtmFilterElement.setAttribute(new Attribute("height-min",String.valueOf(voxelParameters.getDtmFilteringParams().getMinDTMDistance())));
             dtmFilterElement.setAttribute(new Attribute("use-vop",String.valueOf(voxelParameters.getDtmFilteringParams().isUseVOPMatrix())));
+            dtmFilterElement.setAttribute(new Attribute("interpolation", voxelParameters.getDtmFilteringParams().isBilinearInterpolation() ? "bilinear" : "nearest"));
         }
 
         processElement.addContent(dtmFilterElement);
@@ -657,6 +716,29 @@ public class VoxelAnalysisCfg extends Configuration{
         Element exportShotSegmentElement = new Element("export-shot-segment");
         exportShotSegmentElement.setAttribute("enabled", String.valueOf(exportShotSegment));
         processElement.addContent(exportShotSegmentElement);
+
+        Element multiThreadingElement = new Element("multithreading");
+        multiThreadingElement.setAttribute("threads", String.valueOf(nbThreads));
+        processElement.addContent(multiThreadingElement);
+        
+        Element pipelineElement = new Element("pipeline");
+        pipelineElement.setAttribute("enabled", String.valueOf(pipelined));
+        processElement.addContent(pipelineElement);
+        
+        if(shotCacheDirectory != null){
+            Element shotCacheElement = new Element("shot-cache");
+            shotCacheElement.setAttribute("enabled", "true");
+            shotCacheElement.setAttribute("directory", shotCacheDirectory.getAbsolutePath());
+            processElement.addContent(shotCacheElement);
+        }
+        
+        if(metricsFormat != null){
+            Element metricsElement = new Element("metrics");
+            metricsElement.setAttribute("enabled", "true");
+            metricsElement.setAttribute("format", metricsFormat.getExtension());
+            metricsElement.setAttribute("jmx", String.valueOf(metricsJmx));
+            processElement.addContent(metricsElement);
+        }
     }
     
     public InputType getInputType() {
@@ -696,6 +778,18 @@ public class VoxelAnalysisCfg extends Configuration{
         this.voxelsFormat = voxelsFormat;
     }
 
+    /**
+     *
+     * @return true if the columns of a {@link VoxelsFormat#BINARY} file are deflated
+     */
+    public boolean isCompressVoxels() {
+        return compressVoxels;
+    }
+
+    public void setCompressVoxels(boolean compressVoxels) {
+        this.compressVoxels = compressVoxels;
+    }
+
     public VoxelParameters getVoxelParameters() {
         return voxelParameters;
     }
@@ -791,5 +885,90 @@ public class VoxelAnalysisCfg extends Configuration{
     public void setExportShotSegment(boolean exportShotSegment) {
         this.exportShotSegment = exportShotSegment;
     }
+
+    /**
+     *
+     * @return Number of threads propagating the shots of a single voxelisation
+     */
+    public int getNbThreads() {
+        return nbThreads;
+    }
+
+    /**
+     *
+     * @param nbThreads Number of threads propagating the shots of a single voxelisation,
+     * 1 for the serial voxelisation. With several threads the gridded scans (ptx, ptg) are
+     * also read concurrently by column bands, the pipeline setting is then ignored.
+     */
+    public void setNbThreads(int nbThreads) {
+        this.nbThreads = nbThreads;
+    }
+
+    /**
+     *
+     * @return true if the shots are decoded and transformed by their own threads
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * The shots are decoded by a reader thread and transformed by another thread,
+     * the propagation overlaps the reading of the scan, see {@link ShotPipeline}.
+     * @param pipelined true to decode and transform the shots by their own threads
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+    /**
+     *
+     * @return Directory of the binary shot caches, null if the shots are not cached
+     */
+    public File getShotCacheDirectory() {
+        return shotCacheDirectory;
+    }
+
+    /**
+     * The shots read and transformed during a voxelisation are written in a binary cache,
+     * replayed by the next voxelisations of the same scan with the same transformation.
+     * @param shotCacheDirectory Directory of the binary shot caches, null to disable the cache
+     */
+    public void setShotCacheDirectory(File shotCacheDirectory) {
+        this.shotCacheDirectory = shotCacheDirectory;
+    }
+
+    /**
+     *
+     * @return Format of the metrics summary written next to the voxel file, null if the runs are not instrumented
+     */
+    public SummaryFormat getMetricsFormat() {
+        return metricsFormat;
+    }
+
+    /**
+     * The shots read, kept and filtered, the voxels traversed and the time per stage of the runs are
+     * counted and written in a summary file, see {@link VoxelisationMetrics}.
+     * @param metricsFormat Format of the metrics summary, null to disable the instrumentation
+     */
+    public void setMetricsFormat(SummaryFormat metricsFormat) {
+        this.metricsFormat = metricsFormat;
+    }
+
+    /**
+     *
+     * @return true if the metrics of the runs are exposed through JMX
+     */
+    public boolean isMetricsJmx() {
+        return metricsJmx;
+    }
+
+    /**
+     *
+     * @param metricsJmx true to expose the metrics of the runs through JMX, during the runs
+     */
+    public void setMetricsJmx(boolean metricsJmx) {
+        this.metricsJmx = metricsJmx;
+    }
     
 }
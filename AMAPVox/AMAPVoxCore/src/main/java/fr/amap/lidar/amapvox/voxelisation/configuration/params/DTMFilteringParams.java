@@ -17,6 +17,7 @@ public class DTMFilteringParams {
     private File dtmFile;
     private float minDTMDistance = 1;
     private boolean useVOPMatrix;
+    private boolean bilinearInterpolation;
 
     public DTMFilteringParams() {
         this.activate = false;
@@ -63,5 +64,17 @@ public class DTMFilteringParams {
     public void setUseVOPMatrix(boolean useVOPMatrix) {
         this.useVOPMatrix = useVOPMatrix;
     }
+
+    /**
+     * @return true if the ground height is interpolated between the dtm cells,
+     * false if the height of the nearest cell is used (default)
+     */
+    public boolean isBilinearInterpolation() {
+        return bilinearInterpolation;
+    }
+
+    public void setBilinearInterpolation(boolean bilinearInterpolation) {
+        this.bilinearInterpolation = bilinearInterpolation;
+    }
     
 }
@@ -232,6 +232,58 @@ public class VoxelParameters {
         //this.TLS = TLS;
     }
 
+    /**
+     * Copy the parameters for a part of the voxel space, the voxel size should be the one of this voxel space.
+     * The parameters objects (weighting, DTM filtering...) are shared with the copy.
+     * @param bottomCorner bottom left corner of the part
+     * @param topCorner top right corner of the part
+     * @param split number of voxels for each axis
+     * @return the parameters of the part
+     */
+    public VoxelParameters subSpace(Point3d bottomCorner, Point3d topCorner, Point3i split){
+        
+        VoxelParameters parameters = new VoxelParameters(bottomCorner, topCorner, split);
+        
+        parameters.infos.setType(infos.getType());
+        parameters.infos.setResolution(infos.getResolution());
+        parameters.infos.setMaxPAD(infos.getMaxPAD());
+        parameters.infos.setLadType(infos.getLadType());
+        parameters.infos.setLadParams(infos.getLadParams());
+        
+        parameters.transmittanceMode = transmittanceMode;
+        parameters.pathLengthMode = pathLengthMode;
+        parameters.pointcloudFilters = pointcloudFilters;
+        parameters.usePointCloudFilter = usePointCloudFilter;
+        parameters.naNsCorrectionParams = naNsCorrectionParams;
+        parameters.dtmFilteringParams = dtmFilteringParams;
+        parameters.echoesWeightParams = echoesWeightParams;
+        parameters.groundEnergyParams = groundEnergyParams;
+        parameters.ladParams = ladParams;
+        parameters.laserSpecification = laserSpecification;
+        
+        return parameters;
+    }
+    
+    /**
+     * Copy the parameters for another resolution of the same bounding box, the number of voxels
+     * is computed as for a voxel space created with this resolution.
+     * The parameters objects (weighting, DTM filtering...) are shared with the copy.
+     * @param resolution voxel size
+     * @return the parameters of the voxel space at this resolution
+     */
+    public VoxelParameters resample(float resolution){
+        
+        Point3d bottomCorner = infos.getMinCorner();
+        Point3d topCorner = infos.getMaxCorner();
+        
+        VoxelSpaceInfos resampledInfos = new VoxelSpaceInfos(bottomCorner, topCorner, resolution);
+        
+        VoxelParameters parameters = subSpace(new Point3d(bottomCorner), new Point3d(topCorner), resampledInfos.getSplit());
+        parameters.infos.setResolution(resolution);
+        
+        return parameters;
+    }
+
     public boolean isMergingAfter() {
         return mergingAfter;
     }
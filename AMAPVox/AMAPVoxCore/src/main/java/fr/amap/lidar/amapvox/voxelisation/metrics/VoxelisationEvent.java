@@ -0,0 +1,101 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event of a voxelisation run, its duration is the one of the run.
+ * Only compiled by the jfr profile and loaded by name by {@link VoxelisationMetrics},
+ * the other classes do not refer to it.
+ */
+@Name("fr.amap.lidar.amapvox.Voxelisation")
+@Label("Voxelisation")
+@Category("AMAPVox")
+@Description("Voxelisation run, shots and voxels counters and time per stage")
+class VoxelisationEvent extends Event {
+
+    @Label("Name")
+    String name;
+
+    @Label("Shots Read")
+    long shotsRead;
+
+    @Label("Shots Kept")
+    long shotsKept;
+
+    @Label("Echoes")
+    long echoes;
+
+    @Label("Voxels Traversed")
+    long voxelsTraversed;
+
+    @Label("Decode Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long decodeTime;
+
+    @Label("Transform Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long transformTime;
+
+    @Label("Propagate Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long propagateTime;
+
+    @Label("Write Time")
+    @Timespan(Timespan.MILLISECONDS)
+    long writeTime;
+
+    @Label("Heap High Water Mark")
+    @DataAmount
+    long heapHighWaterMark;
+
+    static Object beginRun() {
+
+        VoxelisationEvent event = new VoxelisationEvent();
+        event.begin();
+
+        return event;
+    }
+
+    static void commitRun(Object runEvent, VoxelisationMetrics metrics) {
+
+        VoxelisationEvent event = (VoxelisationEvent) runEvent;
+
+        event.end();
+
+        if (event.shouldCommit()) {
+
+            event.name = metrics.getName();
+            event.shotsRead = metrics.getShotsRead();
+            event.shotsKept = metrics.getShotsKept();
+            event.echoes = metrics.getEchoes();
+            event.voxelsTraversed = metrics.getVoxelsTraversed();
+            event.decodeTime = metrics.getDecodeTime();
+            event.transformTime = metrics.getTransformTime();
+            event.propagateTime = metrics.getPropagateTime();
+            event.writeTime = metrics.getWriteTime();
+            event.heapHighWaterMark = metrics.getHeapHighWaterMark();
+
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,532 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation.metrics;
+
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Counters and timers of a voxelisation run.
+ *
+ * <p>The reader of the shots counts the shots read and times the decoding and the transformation,
+ * the voxel analysis counts the shots kept by the shot filter, their echoes and the voxels traversed,
+ * and times the propagation and the writing of the voxel file. The counters are thread-safe,
+ * the worker threads of a multi-threaded voxelisation share the metrics of the run.
+ * The time of a stage is summed over the threads.</p>
+ *
+ * <p>The metrics can be followed during the run through JMX ({@link #registerMBean()}),
+ * a JFR event is committed at the end of the run when the JVM supports it,
+ * and a summary is written next to the voxel file ({@link #writeSummary(File)}).
+ * The event class is only compiled when the build JDK provides JFR (jfr profile), it is loaded by name.</p>
+ */
+public class VoxelisationMetrics implements VoxelisationMetricsMXBean {
+
+    private final static Logger LOGGER = Logger.getLogger(VoxelisationMetrics.class);
+
+    private final static String EVENT_CLASS = "fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationEvent";
+
+    //static methods of the JFR event, null when the event is not compiled or the JVM does not provide JFR
+    private final static Method BEGIN_EVENT;
+    private final static Method COMMIT_EVENT;
+
+    static {
+
+        Method begin = null;
+        Method commit = null;
+
+        try {
+            Class<?> eventClass = Class.forName(EVENT_CLASS);
+            begin = eventClass.getDeclaredMethod("beginRun");
+            commit = eventClass.getDeclaredMethod("commitRun", Object.class, VoxelisationMetrics.class);
+        } catch (ClassNotFoundException | NoSuchMethodException | LinkageError ex) {
+            LOGGER.debug("Voxelisation JFR event not available");
+        }
+
+        BEGIN_EVENT = begin;
+        COMMIT_EVENT = commit;
+    }
+
+    /**
+     * Stages of the processing of the shots.
+     */
+    public enum Stage {
+
+        /**
+         * Reading and decoding of the shots from the input file
+         */
+        DECODE,
+
+        /**
+         * Transformation of the shots in the voxel space coordinates
+         */
+        TRANSFORM,
+
+        /**
+         * Propagation of the shots in the voxel space
+         */
+        PROPAGATE,
+
+        /**
+         * Writing of the voxel file
+         */
+        WRITE
+    }
+
+    /**
+     * Format of the summary file.
+     */
+    public enum SummaryFormat {
+        CSV, JSON;
+
+        public String getExtension() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final String name;
+
+    private final LongAdder shotsRead = new LongAdder();
+    private final LongAdder shotsKept = new LongAdder();
+    private final LongAdder echoes = new LongAdder();
+    private final LongAdder voxelsTraversed = new LongAdder();
+    private final LongAdder[] stageTimes;
+
+    //read by the JMX threads
+    private volatile long startTime;
+    private volatile long endTime;
+
+    //peak and current usage of the heap pools at the start of the run, by pool name
+    private volatile Map<String, long[]> heapBaseline;
+
+    private ObjectName objectName;
+
+    //JFR event of the run, typed Object to keep this class loadable without JFR
+    private Object event;
+
+    /**
+     *
+     * @param name name of the run, the voxel file name for instance
+     */
+    public VoxelisationMetrics(String name) {
+
+        this.name = name;
+
+        stageTimes = new LongAdder[Stage.values().length];
+
+        for (int i = 0; i < stageTimes.length; i++) {
+            stageTimes[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Create and start the metrics of a run, if the configuration instruments the runs.
+     * @param cfg configuration of the run
+     * @param outputFile voxel file of the run, gives the name of the run
+     * @return the started metrics, null if the run is not instrumented
+     */
+    public static VoxelisationMetrics create(VoxelAnalysisCfg cfg, File outputFile) {
+
+        if (cfg.getMetricsFormat() == null) {
+            return null;
+        }
+
+        VoxelisationMetrics metrics = new VoxelisationMetrics(outputFile.getName());
+
+        if (cfg.isMetricsJmx()) {
+            metrics.registerMBean();
+        }
+
+        metrics.start();
+
+        return metrics;
+    }
+
+    /**
+     * Stop the run, log its metrics, write the summary file and unregister the metrics from JMX.
+     * The run does not fail if the summary cannot be written.
+     * @param summaryFile summary file, see {@link #getSummaryFile(File, SummaryFormat)}
+     */
+    public void finish(File summaryFile) {
+
+        stop();
+
+        LOGGER.info(toString());
+
+        try {
+            writeSummary(summaryFile);
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot write the voxelisation metrics in " + summaryFile, ex);
+        }
+
+        unregisterMBean();
+    }
+
+    /**
+     * Start the run, the heap usage of the JVM is recorded as the baseline of the run.
+     */
+    public void start() {
+
+        Map<String, long[]> baseline = new HashMap<>();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+
+                MemoryUsage peak = pool.getPeakUsage();
+                MemoryUsage usage = pool.getUsage();
+
+                if (peak != null && usage != null) {
+                    baseline.put(pool.getName(), new long[]{peak.getUsed(), usage.getUsed()});
+                }
+            }
+        }
+
+        heapBaseline = baseline;
+
+        if (BEGIN_EVENT != null) {
+            try {
+                event = BEGIN_EVENT.invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                LOGGER.warn("Cannot begin the voxelisation JFR event", ex);
+            }
+        }
+
+        startTime = System.nanoTime();
+        endTime = 0;
+    }
+
+    /**
+     * Stop the run and commit its JFR event.
+     */
+    public void stop() {
+
+        endTime = System.nanoTime();
+
+        if (event != null) {
+
+            try {
+                COMMIT_EVENT.invoke(null, event, this);
+            } catch (ReflectiveOperationException ex) {
+                LOGGER.warn("Cannot commit the voxelisation JFR event", ex);
+            }
+
+            event = null;
+        }
+    }
+
+    /**
+     * Count a shot read from the input file.
+     */
+    public void shotRead() {
+        shotsRead.increment();
+    }
+
+    /**
+     * Count a shot kept by the shot filter.
+     * @param nbEchoes number of echoes of the shot
+     * @param nbVoxelsTraversed number of voxels traversed by the shot
+     */
+    public void shotKept(int nbEchoes, long nbVoxelsTraversed) {
+
+        shotsKept.increment();
+        echoes.add(nbEchoes);
+        voxelsTraversed.add(nbVoxelsTraversed);
+    }
+
+    /**
+     * Count voxels traversed by shots already counted.
+     * @param nbVoxelsTraversed number of voxels traversed
+     */
+    public void addVoxelsTraversed(long nbVoxelsTraversed) {
+        voxelsTraversed.add(nbVoxelsTraversed);
+    }
+
+    /**
+     * Add time spent in a stage.
+     * @param stage stage of the processing
+     * @param nanos duration in nanoseconds
+     */
+    public void addTime(Stage stage, long nanos) {
+        stageTimes[stage.ordinal()].add(nanos);
+    }
+
+    /**
+     *
+     * @param stage stage of the processing
+     * @return the time spent in the stage, in milliseconds
+     */
+    public long getTime(Stage stage) {
+        return TimeUnit.NANOSECONDS.toMillis(stageTimes[stage.ordinal()].sum());
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getElapsedTime() {
+
+        if (startTime == 0) {
+            return 0;
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis((endTime == 0 ? System.nanoTime() : endTime) - startTime);
+    }
+
+    @Override
+    public long getShotsRead() {
+        return shotsRead.sum();
+    }
+
+    @Override
+    public long getShotsKept() {
+        return shotsKept.sum();
+    }
+
+    /**
+     *
+     * @return the number of shots read and discarded by the shot filter
+     */
+    @Override
+    public long getShotsFiltered() {
+        return Math.max(0, getShotsRead() - getShotsKept());
+    }
+
+    @Override
+    public long getEchoes() {
+        return echoes.sum();
+    }
+
+    @Override
+    public long getVoxelsTraversed() {
+        return voxelsTraversed.sum();
+    }
+
+    @Override
+    public double getVoxelsTraversedPerShot() {
+
+        long nbShots = getShotsKept();
+
+        return nbShots == 0 ? 0 : getVoxelsTraversed() / (double) nbShots;
+    }
+
+    @Override
+    public double getShotsReadPerSecond() {
+
+        long elapsedTime = getElapsedTime();
+
+        return elapsedTime == 0 ? 0 : getShotsRead() * 1000.0 / elapsedTime;
+    }
+
+    @Override
+    public long getDecodeTime() {
+        return getTime(Stage.DECODE);
+    }
+
+    @Override
+    public long getTransformTime() {
+        return getTime(Stage.TRANSFORM);
+    }
+
+    @Override
+    public long getPropagateTime() {
+        return getTime(Stage.PROPAGATE);
+    }
+
+    @Override
+    public long getWriteTime() {
+        return getTime(Stage.WRITE);
+    }
+
+    /**
+     * The peaks of the heap memory pools are summed, this is an upper bound of the heap usage.
+     * The heap is shared by the runs of the JVM, the peaks are not reset: a pool whose peak
+     * was not exceeded since the start of the run counts its usage at the start or now, the larger.
+     * @return the peak heap usage since the start of the run, in bytes
+     */
+    @Override
+    public long getHeapHighWaterMark() {
+
+        Map<String, long[]> baseline = heapBaseline;
+
+        long peak = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+
+            if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+
+                long poolPeak = pool.getPeakUsage().getUsed();
+                long[] start = baseline == null ? null : baseline.get(pool.getName());
+
+                //peak reached before the run
+                if (start != null && poolPeak <= start[0]) {
+
+                    MemoryUsage usage = pool.getUsage();
+                    poolPeak = Math.max(start[1], usage == null ? 0 : usage.getUsed());
+                }
+
+                peak += poolPeak;
+            }
+        }
+
+        return peak;
+    }
+
+    /**
+     * Register the metrics in the platform MBean server, under
+     * fr.amap.lidar.amapvox:type=Voxelisation,name=<i>name of the run</i>.
+     * A failure is logged, the voxelisation goes on without JMX.
+     */
+    public void registerMBean() {
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName candidate = new ObjectName("fr.amap.lidar.amapvox:type=Voxelisation,name=" + ObjectName.quote(name));
+
+            //a previous run with the same name
+            if (server.isRegistered(candidate)) {
+                server.unregisterMBean(candidate);
+            }
+
+            server.registerMBean(this, candidate);
+            objectName = candidate;
+
+        } catch (JMException ex) {
+            LOGGER.warn("Cannot register the voxelisation metrics in JMX", ex);
+        }
+    }
+
+    /**
+     * Unregister the metrics from the platform MBean server, does nothing if they are not registered.
+     */
+    public void unregisterMBean() {
+
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException ex) {
+            LOGGER.warn("Cannot unregister the voxelisation metrics from JMX", ex);
+        }
+
+        objectName = null;
+    }
+
+    /**
+     * Write the summary of the run, in csv (a header line and a line of values)
+     * or in json according to the extension of the file.
+     * @param file summary file (.csv or .json)
+     * @throws IOException if the file cannot be written
+     */
+    public void writeSummary(File file) throws IOException {
+
+        String[] keys = new String[]{
+            "name", "elapsed_ms",
+            "shots_read", "shots_kept", "shots_filtered", "echoes",
+            "voxels_traversed", "voxels_traversed_per_shot", "shots_read_per_second",
+            "decode_ms", "transform_ms", "propagate_ms", "write_ms",
+            "heap_high_water_mark_bytes"};
+
+        Object[] values = new Object[]{
+            name, getElapsedTime(),
+            getShotsRead(), getShotsKept(), getShotsFiltered(), getEchoes(),
+            getVoxelsTraversed(), getVoxelsTraversedPerShot(), getShotsReadPerSecond(),
+            getDecodeTime(), getTransformTime(), getPropagateTime(), getWriteTime(),
+            getHeapHighWaterMark()};
+
+        boolean json = file.getName().toLowerCase(Locale.ROOT).endsWith(".json");
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+
+            if (json) {
+
+                writer.write("{\n");
+
+                for (int i = 0; i < keys.length; i++) {
+                    writer.write("  \"" + keys[i] + "\": " + format(values[i], true) + (i < keys.length - 1 ? ",\n" : "\n"));
+                }
+
+                writer.write("}\n");
+
+            } else {
+
+                for (int i = 0; i < keys.length; i++) {
+                    writer.write(keys[i] + (i < keys.length - 1 ? "," : "\n"));
+                }
+
+                for (int i = 0; i < values.length; i++) {
+                    writer.write(format(values[i], false) + (i < values.length - 1 ? "," : "\n"));
+                }
+            }
+        }
+    }
+
+    private static String format(Object value, boolean json) {
+
+        if (value instanceof Double) {
+            return String.format(Locale.ROOT, "%.3f", (Double) value);
+        }
+
+        if (value instanceof String) {
+
+            String text = ((String) value).replace("\\", "\\\\").replace("\"", "\\\"");
+
+            return (json || text.contains(",")) ? "\"" + text + "\"" : text;
+        }
+
+        return String.valueOf(value);
+    }
+
+    /**
+     * Get the summary file of a voxel file.
+     * @param outputFile voxel file
+     * @param format format of the summary
+     * @return the voxel file name followed by .metrics.csv or .metrics.json
+     */
+    public static File getSummaryFile(File outputFile, SummaryFormat format) {
+        return new File(outputFile.getAbsolutePath() + ".metrics." + format.getExtension());
+    }
+
+    @Override
+    public String toString() {
+
+        return String.format(Locale.ROOT, "%s: %d shots read (%.0f/s), %d kept, %d filtered, %.1f voxels per shot, "
+                + "decode %d ms, transform %d ms, propagate %d ms, write %d ms, heap peak %d MB",
+                name, getShotsRead(), getShotsReadPerSecond(), getShotsKept(), getShotsFiltered(), getVoxelsTraversedPerShot(),
+                getDecodeTime(), getTransformTime(), getPropagateTime(), getWriteTime(), getHeapHighWaterMark() / (1024 * 1024));
+    }
+}
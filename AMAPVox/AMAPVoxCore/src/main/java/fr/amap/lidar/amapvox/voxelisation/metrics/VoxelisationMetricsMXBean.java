@@ -0,0 +1,50 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation.metrics;
+
+/**
+ * JMX view of the metrics of a running voxelisation, see {@link VoxelisationMetrics}.
+ * The durations are in milliseconds.
+ */
+public interface VoxelisationMetricsMXBean {
+
+    String getName();
+
+    long getElapsedTime();
+
+    long getShotsRead();
+
+    long getShotsKept();
+
+    long getShotsFiltered();
+
+    long getEchoes();
+
+    long getVoxelsTraversed();
+
+    double getVoxelsTraversedPerShot();
+
+    double getShotsReadPerSecond();
+
+    long getDecodeTime();
+
+    long getTransformTime();
+
+    long getPropagateTime();
+
+    long getWriteTime();
+
+    long getHeapHighWaterMark();
+}
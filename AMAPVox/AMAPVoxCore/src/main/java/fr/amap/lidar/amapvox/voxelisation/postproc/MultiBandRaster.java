@@ -10,8 +10,8 @@ import fr.amap.commons.raster.multiband.BCommon;
 import fr.amap.commons.raster.multiband.BHeader;
 import fr.amap.commons.raster.multiband.BSQ;
 import fr.amap.commons.util.Statistic;
-import fr.amap.lidar.amapvox.commons.Voxel;
 import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
 import java.io.File;
 import java.io.IOException;
@@ -27,7 +27,7 @@ public class MultiBandRaster {
     
     private final static Logger LOGGER = Logger.getLogger(MultiBandRaster.class);
     
-    public static BSQ computeRaster(float startingHeight, float step, int bandNumber, int resolution, VoxelSpaceInfos infos, Voxel[][][] voxels, Raster dtm){
+    public static BSQ computeRaster(float startingHeight, float step, int bandNumber, int resolution, VoxelSpaceInfos infos, VoxelStore voxels, Raster dtm){
         
         float[] altitudes = new float[bandNumber];
         for (int i = 0; i < bandNumber; i++) {
@@ -59,11 +59,12 @@ public class MultiBandRaster {
                     for (int j = infos.getSplit().y - 1; j >= 0; j--) {
                         for (int k = 0; k < infos.getSplit().z; k++) {
 
-                            Voxel vox = voxels[i][j][k];
+                            int vox = voxels.index(i, j, k);
+                            float groundDistance = voxels.getGroundDistance(vox);
 
                             //on calcule l'indice de la couche auquel appartient le voxel
-                            if (vox != null && vox.ground_distance > altitudeMin) {
-                                int layer = (int) ((vox.ground_distance - altitudeMin) / step);
+                            if (voxels.isInitialized(vox) && groundDistance > altitudeMin) {
+                                int layer = (int) ((groundDistance - altitudeMin) / step);
 
                                 if (layer < altitudes.length) {
 
@@ -74,8 +75,10 @@ public class MultiBandRaster {
                                         padMean[indiceI][indiceJ][layer] = new Statistic();
                                     }
 
-                                    if (!Float.isNaN(vox.PadBVTotal)) {
-                                        padMean[indiceI][indiceJ][layer].addValue(vox.PadBVTotal);
+                                    float pad = voxels.getPadBVTotal(vox);
+
+                                    if (!Float.isNaN(pad)) {
+                                        padMean[indiceI][indiceJ][layer].addValue(pad);
                                     }
                                 }
                             }
@@ -1,218 +1,757 @@
-/*
- * To change this license header, choose License Headers in Project Properties.
- * To change this template file, choose Tools | Templates
- * and open the template in the editor.
- */
-package fr.amap.lidar.amapvox.voxelisation.postproc;
-
-import fr.amap.commons.util.Statistic;
-import fr.amap.lidar.amapvox.commons.Voxel;
-import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
-import java.util.ArrayList;
-import java.util.List;
-import org.apache.log4j.Logger;
-import fr.amap.commons.util.Cancellable;
-
-/**
- *
- * @author calcul
- */
-public class NaNsCorrection implements Cancellable{
-    
-    private final static Logger LOGGER = Logger.getLogger(NaNsCorrection.class);
-    
-    private boolean cancelled;
-    
-    public void correct(VoxelParameters parameters, Voxel voxels[][][]){
-        
-        /**A faire : corriger de manière parallèle**/
-        
-        int xSplit = parameters.infos.getSplit().x;
-        int ySplit = parameters.infos.getSplit().y;
-        int zSplit = parameters.infos.getSplit().z;
-        
-        int[][] canopeeArray = new int[xSplit][ySplit];
-        for (int x = 0; x < xSplit; x++) {
-            for (int y = 0; y < ySplit; y++) {
-                for (int z = zSplit-1; z >= 0; z--) {
-                    
-                    Voxel voxel = voxels[x][y][z];
-                    
-                    if (voxel.nbSampling > 0 && voxel.nbEchos > 0) {
-                        canopeeArray[x][y] = z;
-                        break;
-                    }
-                }
-            }
-        }
-        
-        int passLimit = Integer.max(Integer.max(xSplit, ySplit), zSplit);
-        
-        int passMax = 0;
-        
-        long startTime = System.currentTimeMillis();
-        
-        for (int x = 0; x < xSplit; x++) {
-            for (int y = 0; y < ySplit; y++) {
-                for (int z = zSplit-1; z >=0 ; z--) {
-                    
-                    if(cancelled){
-                        return;
-                    }
-                    
-                    Voxel voxel = voxels[x][y][z];
-                    
-                    if(voxel.ground_distance >= (parameters.infos.getResolution() / 2.0f)){
-                        
-                        float currentNbSampling = voxel.nbSampling;
-                        float currentTransmittance = voxel.transmittance;
-
-                        List<Voxel> neighbours = new ArrayList<>();
-                        int nbRemovedNeighbors = 0;
-
-                        int passID = 1;
-
-                        //testloop:
-                        while(currentNbSampling <= parameters.getNaNsCorrectionParams().getNbSamplingThreshold()/* || currentTransmittance == 0 */){
-                            
-                                  
-                            if(cancelled){
-                                return;
-                            }
-                            
-                            if(passID > passLimit){
-                                LOGGER.warn("Maximum neighborhood range reached");
-                                break;
-                            }
-                            
-                            int minX = Integer.max(x-passID, 0);
-                            int minY = Integer.max(y-passID, 0);
-                            int minZ = Integer.max(z-passID, 0);
-                            
-                            int maxX = Integer.min(x+passID, xSplit-1);
-                            int maxY = Integer.min(y+passID, ySplit-1);
-                            int maxZ = Integer.min(z+passID, zSplit-1);
-                            
-                            //get neighbors
-                            for(int i = minX ; i<= maxX ; i++){
-                                for(int j = minY ; j<= maxY ; j++){
-                                    for(int k = minZ ; k<= maxZ ; k++){
-                                        
-                                        if (cancelled) {
-                                            return;
-                                        }
-
-                                            //on n'ajoute pas les voxels de la passe précédente
-                                        if(passID != 1 && (i >= x-(passID-1) && i <= x+(passID-1))
-                                                && (j >= y-(passID-1) && j <= y+(passID-1))
-                                                && (k >= z-(passID-1) && k <= z+(passID-1))){
-
-                                        } else {
-
-                                            if (i == x && j == y && k == z) {
-
-                                            } else {
-                                                if (k <= canopeeArray[i][j]) {
-
-                                                    Voxel neighbour = voxels[i][j][k];
-
-                                                    if (neighbour.ground_distance >= -(parameters.infos.getResolution() / 2.0f)) {
-                                                        
-                                                        /*les voxels de transmittance nulle sont traités comme étant non échantillonné,
-                                                        tous les voisins sont considérés indépendamment de l'échantillonnage*/
-                                                        if(!Float.isNaN(neighbour.transmittance)){
-                                                            neighbours.add(neighbour);
-                                                        }
-                                                        
-                                                    }else{
-                                                        nbRemovedNeighbors++;
-                                                    }
-                                                }else{
-                                                    nbRemovedNeighbors++;
-                                                }
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                            
-                            Statistic nbSamplingStat = new Statistic();
-                            float meanTransmittance = 0;
-                            
-                            float sumBVEntering = 0;
-                            float sumBVIntercepted = 0;
-                            float sumLgTotal = 0;
-
-                            if(neighbours.size() > 0){
-                                
-                                for(Voxel neighbour : neighbours){
-                                
-                                    if (cancelled) {
-                                        return;
-                                    }
-
-                                    sumBVEntering += neighbour.bvEntering;
-                                    sumBVIntercepted += neighbour.bvIntercepted;
-                                    sumLgTotal += neighbour.lgTotal;
-                                    nbSamplingStat.addValue(neighbour.nbSampling);
-                                }
-                                
-                                meanTransmittance = (float) Math.pow((sumBVEntering-sumBVIntercepted)/sumBVEntering, nbSamplingStat.getSum()/sumLgTotal);
-                                                                
-                                currentNbSampling = (float) nbSamplingStat.getMean();
-                                currentTransmittance = meanTransmittance;
-
-                            
-                            }else{
-                                currentNbSampling = 0;
-                            }
-                            
-                            passID++;
-                            
-                        }
-
-                        if(passID > passMax){
-                            passMax = passID;
-                            LOGGER.info("Maximum neighborhood range : "+passMax);
-                        }
-
-                        if(neighbours.size() > 0){
-
-                            Statistic PADStatistic = new Statistic();
-                            
-                            for(Voxel neighbour : neighbours){
-                                
-                                if (cancelled) {
-                                    return;
-                                }
-                                
-                                PADStatistic.addValue(neighbour.PadBVTotal);
-                            }
-                            
-                            voxels[x][y][z]._neighboursNumber = neighbours.size();
-                            voxels[x][y][z]._passNumber = passID;
-                            voxels[x][y][z].PadBVTotal = (float)PADStatistic.getMean();
-                            //voxels[x][y][z].nbSampling = (int)currentNbSampling;
-                            voxels[x][y][z].transmittance = currentTransmittance;
-                        }
-                    }
-                    
-                }
-            }
-        }
-        
-        long endTime = System.currentTimeMillis();
-        long time = endTime - startTime;
-        LOGGER.info("Time : "+time+" ms");
-    }
-
-    @Override
-    public boolean isCancelled() {
-        return cancelled;
-    }
-
-    @Override
-    public void setCancelled(boolean cancelled) {
-        this.cancelled = cancelled;
-    }
-}
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package fr.amap.lidar.amapvox.voxelisation.postproc;
+
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import org.apache.log4j.Logger;
+import fr.amap.commons.util.Cancellable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Correction of the under-sampled voxels: the transmittance and the PAD of a voxel whose number of sampling
+ * is below the threshold are replaced by the ones of its neighbourhood, a cube which grows until the mean
+ * number of sampling of the neighbours exceeds the threshold.
+ *
+ * <p>The neighbours are the voxels under the canopy, above the ground and with a transmittance.
+ * Their attributes are cumulated into summed-volume tables, so the sums over a neighbourhood are
+ * read in constant time. The columns of voxels are corrected in parallel from the uncorrected voxels.</p>
+ *
+ * <p>The voxels are corrected in place in the i, j order and from the top of the columns, a corrected voxel
+ * becomes a neighbour of the next ones with its new values. The corrections are applied in this order, and
+ * the ones whose neighbourhood contains a voxel corrected before are computed again with the changes
+ * of the corrected voxels, so the result is the one of the voxel by voxel correction.</p>
+ *
+ * <p>The beam volumes and the path lengths are summed in double while the voxel by voxel correction
+ * summed them in float, in a different order. The results are the same up to the rounding of these sums,
+ * they are identical when the sums are exact, for instance with integer values.</p>
+ *
+ * @author calcul
+ */
+public class NaNsCorrection implements Cancellable{
+
+    private final static Logger LOGGER = Logger.getLogger(NaNsCorrection.class);
+
+    //number of slabs of columns processed by each thread
+    private final static int SLABS_PER_THREAD = 4;
+
+    private volatile boolean cancelled;
+    private int nbThreads = Runtime.getRuntime().availableProcessors();
+
+    public int getNbThreads() {
+        return nbThreads;
+    }
+
+    /**
+     * Set the number of threads correcting the columns of voxels.
+     * @param nbThreads number of threads
+     */
+    public void setNbThreads(int nbThreads) {
+        this.nbThreads = Math.max(1, nbThreads);
+    }
+
+    /**
+     * Sums of the attributes of the neighbours of a voxel.
+     */
+    private static class Neighbourhood{
+
+        int count;
+        long nbSampling;
+        double bvEntering;
+        double bvIntercepted;
+        double lgTotal;
+
+        //the PAD mean ignores the NaN and infinite values
+        int padCount;
+        double pad;
+
+        void clear(){
+            count = 0;
+            nbSampling = 0;
+            bvEntering = 0;
+            bvIntercepted = 0;
+            lgTotal = 0;
+            padCount = 0;
+            pad = 0;
+        }
+
+        /**
+         * Add (sign 1) or remove (sign -1) a neighbour.
+         */
+        void add(VoxelStore voxels, int voxel, float padBVTotal, int sign){
+
+            count += sign;
+            nbSampling += sign * voxels.getNbSampling(voxel);
+            bvEntering += sign * voxels.getBvEntering(voxel);
+            bvIntercepted += sign * voxels.getBvIntercepted(voxel);
+            lgTotal += sign * voxels.getLgTotal(voxel);
+
+            if(!Float.isNaN(padBVTotal) && !Float.isInfinite(padBVTotal)){
+                padCount += sign;
+                pad += sign * padBVTotal;
+            }
+        }
+
+        boolean isEmpty(){
+            return count == 0 && padCount == 0 && pad == 0;
+        }
+    }
+
+    /**
+     * Summed-volume tables of the attributes of the neighbours, the value of the cell (i, j, k) is
+     * the sum over the voxels (0, 0, 0) to (i-1, j-1, k-1).
+     */
+    private static class SummedVolumeTable{
+
+        private final int strideI;
+        private final int strideJ;
+
+        private final int[] count;
+        private final long[] nbSampling;
+        private final double[] bvEntering;
+        private final double[] bvIntercepted;
+        private final double[] lgTotal;
+        private final int[] padCount;
+        private final double[] pad;
+
+        SummedVolumeTable(int xSplit, int ySplit, int zSplit){
+
+            strideJ = zSplit + 1;
+            strideI = (ySplit + 1) * strideJ;
+
+            int size = (xSplit + 1) * strideI;
+
+            count = new int[size];
+            nbSampling = new long[size];
+            bvEntering = new double[size];
+            bvIntercepted = new double[size];
+            lgTotal = new double[size];
+            padCount = new int[size];
+            pad = new double[size];
+        }
+
+        private int index(int i, int j, int k){
+            return i * strideI + j * strideJ + k;
+        }
+
+        private void set(int cell, int previousCell, Neighbourhood neighbourhood){
+
+            count[cell] = count[previousCell] + neighbourhood.count;
+            nbSampling[cell] = nbSampling[previousCell] + neighbourhood.nbSampling;
+            bvEntering[cell] = bvEntering[previousCell] + neighbourhood.bvEntering;
+            bvIntercepted[cell] = bvIntercepted[previousCell] + neighbourhood.bvIntercepted;
+            lgTotal[cell] = lgTotal[previousCell] + neighbourhood.lgTotal;
+            padCount[cell] = padCount[previousCell] + neighbourhood.padCount;
+            pad[cell] = pad[previousCell] + neighbourhood.pad;
+        }
+
+        private void cumulate(int cell, int previousCell, int length){
+
+            for(int k = 0; k < length; k++){
+                count[cell + k] += count[previousCell + k];
+                nbSampling[cell + k] += nbSampling[previousCell + k];
+                bvEntering[cell + k] += bvEntering[previousCell + k];
+                bvIntercepted[cell + k] += bvIntercepted[previousCell + k];
+                lgTotal[cell + k] += lgTotal[previousCell + k];
+                padCount[cell + k] += padCount[previousCell + k];
+                pad[cell + k] += pad[previousCell + k];
+            }
+        }
+
+        /**
+         * Cumulate the neighbours along z, for the columns of the voxels i in [minX, maxX[.
+         */
+        void fillColumns(VoxelStore voxels, int[][] canopeeArray, float halfResolution, int minX, int maxX, int ySplit, int zSplit){
+
+            Neighbourhood neighbour = new Neighbourhood();
+
+            for(int i = minX; i < maxX; i++){
+                for(int j = 0; j < ySplit; j++){
+
+                    int cell = index(i + 1, j + 1, 0);
+
+                    for(int k = 0; k < zSplit; k++){
+
+                        int voxel = voxels.index(i, j, k);
+
+                        neighbour.clear();
+
+                        if(isNeighbour(voxels, voxel, k, canopeeArray[i][j], halfResolution, voxels.getTransmittance(voxel))){
+                            neighbour.add(voxels, voxel, voxels.getPadBVTotal(voxel), 1);
+                        }
+
+                        set(cell + k + 1, cell + k, neighbour);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Cumulate along y, for the voxels i in [minX, maxX[.
+         */
+        void cumulateAlongY(int minX, int maxX){
+
+            int nbRows = strideI / strideJ;
+
+            for(int i = minX + 1; i <= maxX; i++){
+                for(int j = 2; j < nbRows; j++){
+                    cumulate(index(i, j, 0), index(i, j - 1, 0), strideJ);
+                }
+            }
+        }
+
+        /**
+         * Cumulate along x, for the voxels j in [minY, maxY[.
+         */
+        void cumulateAlongX(int minY, int maxY){
+
+            int nbSlices = count.length / strideI;
+
+            for(int i = 2; i < nbSlices; i++){
+                for(int j = minY + 1; j <= maxY; j++){
+                    cumulate(index(i, j, 0), index(i - 1, j, 0), strideJ);
+                }
+            }
+        }
+
+        /**
+         * Sums over the voxels of the box [minX, maxX] x [minY, maxY] x [minZ, maxZ].
+         */
+        void sum(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Neighbourhood result){
+
+            int c111 = index(maxX + 1, maxY + 1, maxZ + 1);
+            int c011 = index(minX, maxY + 1, maxZ + 1);
+            int c101 = index(maxX + 1, minY, maxZ + 1);
+            int c110 = index(maxX + 1, maxY + 1, minZ);
+            int c001 = index(minX, minY, maxZ + 1);
+            int c010 = index(minX, maxY + 1, minZ);
+            int c100 = index(maxX + 1, minY, minZ);
+            int c000 = index(minX, minY, minZ);
+
+            result.count = count[c111] - count[c011] - count[c101] - count[c110] + count[c001] + count[c010] + count[c100] - count[c000];
+            result.nbSampling = nbSampling[c111] - nbSampling[c011] - nbSampling[c101] - nbSampling[c110] + nbSampling[c001] + nbSampling[c010] + nbSampling[c100] - nbSampling[c000];
+            result.bvEntering = bvEntering[c111] - bvEntering[c011] - bvEntering[c101] - bvEntering[c110] + bvEntering[c001] + bvEntering[c010] + bvEntering[c100] - bvEntering[c000];
+            result.bvIntercepted = bvIntercepted[c111] - bvIntercepted[c011] - bvIntercepted[c101] - bvIntercepted[c110] + bvIntercepted[c001] + bvIntercepted[c010] + bvIntercepted[c100] - bvIntercepted[c000];
+            result.lgTotal = lgTotal[c111] - lgTotal[c011] - lgTotal[c101] - lgTotal[c110] + lgTotal[c001] + lgTotal[c010] + lgTotal[c100] - lgTotal[c000];
+            result.padCount = padCount[c111] - padCount[c011] - padCount[c101] - padCount[c110] + padCount[c001] + padCount[c010] + padCount[c100] - padCount[c000];
+            result.pad = pad[c111] - pad[c011] - pad[c101] - pad[c110] + pad[c001] + pad[c010] + pad[c100] - pad[c000];
+        }
+    }
+
+    /**
+     * Changes of the neighbour sums brought by the corrected voxels of a column, in the correction order
+     * (from the top of the column). The changes are cumulated.
+     */
+    private static class ColumnChanges{
+
+        int size;
+        int[] z = new int[4];
+        int[] count = new int[5];
+        long[] nbSampling = new long[5];
+        double[] bvEntering = new double[5];
+        double[] bvIntercepted = new double[5];
+        double[] lgTotal = new double[5];
+        int[] padCount = new int[5];
+        double[] pad = new double[5];
+
+        void add(int k, Neighbourhood change){
+
+            if(size == z.length){
+                z = Arrays.copyOf(z, size * 2);
+                count = Arrays.copyOf(count, size * 2 + 1);
+                nbSampling = Arrays.copyOf(nbSampling, size * 2 + 1);
+                bvEntering = Arrays.copyOf(bvEntering, size * 2 + 1);
+                bvIntercepted = Arrays.copyOf(bvIntercepted, size * 2 + 1);
+                lgTotal = Arrays.copyOf(lgTotal, size * 2 + 1);
+                padCount = Arrays.copyOf(padCount, size * 2 + 1);
+                pad = Arrays.copyOf(pad, size * 2 + 1);
+            }
+
+            z[size] = k;
+            count[size + 1] = count[size] + change.count;
+            nbSampling[size + 1] = nbSampling[size] + change.nbSampling;
+            bvEntering[size + 1] = bvEntering[size] + change.bvEntering;
+            bvIntercepted[size + 1] = bvIntercepted[size] + change.bvIntercepted;
+            lgTotal[size + 1] = lgTotal[size] + change.lgTotal;
+            padCount[size + 1] = padCount[size] + change.padCount;
+            pad[size + 1] = pad[size] + change.pad;
+
+            size++;
+        }
+
+        /**
+         * Index of the first change whose z is lower or equal to k.
+         */
+        private int first(int k){
+
+            int low = 0;
+            int high = size;
+
+            while(low < high){
+
+                int middle = (low + high) >>> 1;
+
+                if(z[middle] > k){
+                    low = middle + 1;
+                }else{
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        boolean contains(int minZ, int maxZ){
+            return first(minZ - 1) > first(maxZ);
+        }
+
+        void sum(int minZ, int maxZ, Neighbourhood result){
+
+            int from = first(maxZ);
+            int to = first(minZ - 1);
+
+            result.count += count[to] - count[from];
+            result.nbSampling += nbSampling[to] - nbSampling[from];
+            result.bvEntering += bvEntering[to] - bvEntering[from];
+            result.bvIntercepted += bvIntercepted[to] - bvIntercepted[from];
+            result.lgTotal += lgTotal[to] - lgTotal[from];
+            result.padCount += padCount[to] - padCount[from];
+            result.pad += pad[to] - pad[from];
+        }
+    }
+
+    /**
+     * Corrections of the under-sampled voxels of a column, from the top of the column.
+     */
+    private static class ColumnCorrections{
+
+        int size;
+        int[] z = new int[4];
+
+        //last neighbourhood size
+        int[] passes = new int[4];
+        boolean[] limitReached = new boolean[4];
+        boolean[] corrected = new boolean[4];
+        float[] transmittance = new float[4];
+        float[] pad = new float[4];
+
+        void add(int k, Corrector corrector){
+
+            if(size == z.length){
+                z = Arrays.copyOf(z, size * 2);
+                passes = Arrays.copyOf(passes, size * 2);
+                limitReached = Arrays.copyOf(limitReached, size * 2);
+                corrected = Arrays.copyOf(corrected, size * 2);
+                transmittance = Arrays.copyOf(transmittance, size * 2);
+                pad = Arrays.copyOf(pad, size * 2);
+            }
+
+            z[size] = k;
+            passes[size] = corrector.passes;
+            limitReached[size] = corrector.limitReached;
+            corrected[size] = corrector.corrected;
+            transmittance[size] = corrector.transmittance;
+            pad[size] = corrector.pad;
+
+            size++;
+        }
+    }
+
+    private static boolean isNeighbour(VoxelStore voxels, int voxel, int k, int canopee, float halfResolution, float transmittance){
+
+        /*les voxels de transmittance nulle sont traités comme étant non échantillonné,
+        tous les voisins sont considérés indépendamment de l'échantillonnage*/
+        return k <= canopee && voxels.getGroundDistance(voxel) >= -halfResolution && !Float.isNaN(transmittance);
+    }
+
+    /**
+     * Correction of a voxel, the neighbourhood grows until the mean number of sampling exceeds the threshold.
+     */
+    private static class Corrector{
+
+        private final VoxelStore voxels;
+        private final int[][] canopeeArray;
+        private final SummedVolumeTable table;
+
+        //changes of the corrected voxels, null to correct from the uncorrected voxels
+        private final ColumnChanges[][] changes;
+
+        private final int xSplit;
+        private final int ySplit;
+        private final int zSplit;
+        private final float halfResolution;
+        private final float nbSamplingThreshold;
+        private final int passLimit;
+
+        private final Neighbourhood neighbourhood = new Neighbourhood();
+
+        //result of the last correction
+        int passes;
+        boolean limitReached;
+        boolean corrected;
+        float transmittance;
+        float pad;
+
+        Corrector(VoxelStore voxels, int[][] canopeeArray, SummedVolumeTable table, ColumnChanges[][] changes,
+                int xSplit, int ySplit, int zSplit, float halfResolution, float nbSamplingThreshold) {
+
+            this.voxels = voxels;
+            this.canopeeArray = canopeeArray;
+            this.table = table;
+            this.changes = changes;
+            this.xSplit = xSplit;
+            this.ySplit = ySplit;
+            this.zSplit = zSplit;
+            this.halfResolution = halfResolution;
+            this.nbSamplingThreshold = nbSamplingThreshold;
+            this.passLimit = Integer.max(Integer.max(xSplit, ySplit), zSplit);
+        }
+
+        boolean isUnderSampled(int voxel){
+            return voxels.getGroundDistance(voxel) >= halfResolution && voxels.getNbSampling(voxel) <= nbSamplingThreshold;
+        }
+
+        /**
+         * Is a voxel corrected before in the neighbourhood of size passID of the voxel (x, y, z)?
+         */
+        boolean hasChanges(int x, int y, int z, int passID){
+
+            int minZ = Integer.max(z - passID, 0);
+            int maxZ = Integer.min(z + passID, zSplit - 1);
+
+            for(int i = Integer.max(x - passID, 0); i <= Integer.min(x + passID, xSplit - 1); i++){
+                for(int j = Integer.max(y - passID, 0); j <= Integer.min(y + passID, ySplit - 1); j++){
+
+                    if(changes[i][j] != null && changes[i][j].contains(minZ, maxZ)){
+                        return true;
+                    }
+                }
+            }
+
+            return false;
+        }
+
+        private void sumNeighbours(int x, int y, int z, int passID){
+
+            int minX = Integer.max(x - passID, 0);
+            int minY = Integer.max(y - passID, 0);
+            int minZ = Integer.max(z - passID, 0);
+
+            int maxX = Integer.min(x + passID, xSplit - 1);
+            int maxY = Integer.min(y + passID, ySplit - 1);
+            int maxZ = Integer.min(z + passID, zSplit - 1);
+
+            table.sum(minX, minY, minZ, maxX, maxY, maxZ, neighbourhood);
+
+            if(changes != null){
+
+                for(int i = minX; i <= maxX; i++){
+                    for(int j = minY; j <= maxY; j++){
+
+                        if(changes[i][j] != null){
+                            changes[i][j].sum(minZ, maxZ, neighbourhood);
+                        }
+                    }
+                }
+            }
+        }
+
+        void correct(int x, int y, int z){
+
+            int voxel = voxels.index(x, y, z);
+
+            float currentNbSampling = voxels.getNbSampling(voxel);
+            float currentTransmittance = voxels.getTransmittance(voxel);
+
+            //the voxel is not its own neighbour
+            boolean isNeighbour = isNeighbour(voxels, voxel, z, canopeeArray[x][y], halfResolution, currentTransmittance);
+
+            neighbourhood.clear();
+            limitReached = false;
+
+            //size from which the neighbourhood contains the whole grid
+            int fullRange = Integer.max(Integer.max(Integer.max(x, xSplit - 1 - x), Integer.max(y, ySplit - 1 - y)), Integer.max(z, zSplit - 1 - z));
+
+            int passID = 1;
+
+            while(currentNbSampling <= nbSamplingThreshold){
+
+                //the next neighbourhoods are the same, the limit is reached
+                if(passID > fullRange){
+                    passID = passLimit + 1;
+                }
+
+                if(passID > passLimit){
+                    limitReached = true;
+                    break;
+                }
+
+                sumNeighbours(x, y, z, passID);
+
+                if(isNeighbour){
+                    neighbourhood.add(voxels, voxel, voxels.getPadBVTotal(voxel), -1);
+                }
+
+                if(neighbourhood.count > 0){
+
+                    currentTransmittance = (float) Math.pow((neighbourhood.bvEntering - neighbourhood.bvIntercepted) / neighbourhood.bvEntering,
+                            neighbourhood.nbSampling / neighbourhood.lgTotal);
+
+                    currentNbSampling = (float) ((double) neighbourhood.nbSampling / neighbourhood.count);
+
+                }else{
+                    currentNbSampling = 0;
+                }
+
+                passID++;
+            }
+
+            passes = passID - 1;
+            corrected = neighbourhood.count > 0;
+
+            if(corrected){
+                transmittance = currentTransmittance;
+                pad = (float) (neighbourhood.pad / neighbourhood.padCount);
+            }
+        }
+
+        /**
+         * Correct the under-sampled voxels of a column from the uncorrected voxels.
+         */
+        ColumnCorrections correctColumn(int x, int y){
+
+            ColumnCorrections corrections = null;
+
+            for(int z = zSplit - 1; z >= 0; z--){
+
+                if(isUnderSampled(voxels.index(x, y, z))){
+
+                    correct(x, y, z);
+
+                    if(corrections == null){
+                        corrections = new ColumnCorrections();
+                    }
+
+                    corrections.add(z, this);
+                }
+            }
+
+            return corrections;
+        }
+    }
+
+    private interface SlabTask{
+        void process(int start, int end);
+    }
+
+    /**
+     * Run a task on slabs [start, end[ of [0, size[, in parallel.
+     */
+    private void forEachSlab(ExecutorService executor, int size, SlabTask task) throws InterruptedException{
+
+        int nbSlabs = Integer.min(size, nbThreads * SLABS_PER_THREAD);
+
+        List<Callable<Object>> tasks = new ArrayList<>(nbSlabs);
+
+        for(int s = 0; s < nbSlabs; s++){
+
+            final int start = (int) ((long) size * s / nbSlabs);
+            final int end = (int) ((long) size * (s + 1) / nbSlabs);
+
+            tasks.add(() -> {
+                if(!cancelled){
+                    task.process(start, end);
+                }
+                return null;
+            });
+        }
+
+        try {
+            for(Future<Object> future : executor.invokeAll(tasks)){
+                future.get();
+            }
+        } catch (ExecutionException ex) {
+            throw new RuntimeException("NA correction failed", ex.getCause());
+        }
+    }
+
+    public void correct(VoxelParameters parameters, VoxelStore voxels){
+
+        final int xSplit = parameters.infos.getSplit().x;
+        final int ySplit = parameters.infos.getSplit().y;
+        final int zSplit = parameters.infos.getSplit().z;
+
+        final float halfResolution = parameters.infos.getResolution() / 2.0f;
+        final float nbSamplingThreshold = parameters.getNaNsCorrectionParams().getNbSamplingThreshold();
+
+        long startTime = System.currentTimeMillis();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads, (Runnable r) -> {
+            Thread thread = new Thread(r, "nans-correction");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try{
+
+            final int[][] canopeeArray = new int[xSplit][ySplit];
+
+            forEachSlab(executor, xSplit, (minX, maxX) -> {
+
+                for (int x = minX; x < maxX; x++) {
+                    for (int y = 0; y < ySplit; y++) {
+                        for (int z = zSplit-1; z >= 0; z--) {
+
+                            int voxel = voxels.index(x, y, z);
+
+                            if (voxels.getNbSampling(voxel) > 0 && voxels.getNbEchos(voxel) > 0) {
+                                canopeeArray[x][y] = z;
+                                break;
+                            }
+                        }
+                    }
+                }
+            });
+
+            final SummedVolumeTable table = new SummedVolumeTable(xSplit, ySplit, zSplit);
+
+            forEachSlab(executor, xSplit, (minX, maxX) -> table.fillColumns(voxels, canopeeArray, halfResolution, minX, maxX, ySplit, zSplit));
+            forEachSlab(executor, xSplit, (minX, maxX) -> table.cumulateAlongY(minX, maxX));
+            forEachSlab(executor, ySplit, (minY, maxY) -> table.cumulateAlongX(minY, maxY));
+
+            //the columns are corrected independently, from the uncorrected voxels
+            final ColumnCorrections[][] corrections = new ColumnCorrections[xSplit][ySplit];
+
+            forEachSlab(executor, xSplit, (minX, maxX) -> {
+
+                Corrector corrector = new Corrector(voxels, canopeeArray, table, null, xSplit, ySplit, zSplit, halfResolution, nbSamplingThreshold);
+
+                for (int x = minX; x < maxX && !cancelled; x++) {
+                    for (int y = 0; y < ySplit; y++) {
+                        corrections[x][y] = corrector.correctColumn(x, y);
+                    }
+                }
+            });
+
+            if(cancelled){
+                return;
+            }
+
+            //the corrections are applied in the voxel order, a corrected voxel is a neighbour of the next ones with its new values
+            ColumnChanges[][] changes = new ColumnChanges[xSplit][ySplit];
+            Corrector corrector = new Corrector(voxels, canopeeArray, table, changes, xSplit, ySplit, zSplit, halfResolution, nbSamplingThreshold);
+            Neighbourhood change = new Neighbourhood();
+
+            int passMax = 0;
+            int nbLimitReached = 0;
+            int nbCorrectedAgain = 0;
+
+            for (int x = 0; x < xSplit; x++) {
+                for (int y = 0; y < ySplit; y++) {
+
+                    ColumnCorrections column = corrections[x][y];
+
+                    if(column == null){
+                        continue;
+                    }
+
+                    for(int c = 0; c < column.size; c++){
+
+                        if(cancelled){
+                            return;
+                        }
+
+                        int z = column.z[c];
+
+                        if(corrector.hasChanges(x, y, z, column.passes[c])){
+
+                            corrector.correct(x, y, z);
+
+                            column.passes[c] = corrector.passes;
+                            column.limitReached[c] = corrector.limitReached;
+                            column.corrected[c] = corrector.corrected;
+                            column.transmittance[c] = corrector.transmittance;
+                            column.pad[c] = corrector.pad;
+
+                            nbCorrectedAgain++;
+                        }
+
+                        if(column.limitReached[c]){
+                            nbLimitReached++;
+                        }
+
+                        if(column.passes[c] + 1 > passMax){
+                            passMax = column.passes[c] + 1;
+                            LOGGER.info("Maximum neighborhood range : "+passMax);
+                        }
+
+                        if(column.corrected[c]){
+
+                            int voxel = voxels.index(x, y, z);
+
+                            change.clear();
+
+                            if(isNeighbour(voxels, voxel, z, canopeeArray[x][y], halfResolution, voxels.getTransmittance(voxel))){
+                                change.add(voxels, voxel, voxels.getPadBVTotal(voxel), -1);
+                            }
+
+                            if(isNeighbour(voxels, voxel, z, canopeeArray[x][y], halfResolution, column.transmittance[c])){
+                                change.add(voxels, voxel, column.pad[c], 1);
+                            }
+
+                            if(!change.isEmpty()){
+
+                                if(changes[x][y] == null){
+                                    changes[x][y] = new ColumnChanges();
+                                }
+
+                                changes[x][y].add(z, change);
+                            }
+
+                            voxels.setPadBVTotal(voxel, column.pad[c]);
+                            //voxels[x][y][z].nbSampling = (int)currentNbSampling;
+                            voxels.setTransmittance(voxel, column.transmittance[c]);
+                        }
+                    }
+                }
+            }
+
+            if(nbLimitReached > 0){
+                LOGGER.warn("Maximum neighborhood range reached for "+nbLimitReached+" voxels");
+            }
+
+            LOGGER.info("Voxels corrected again with the corrected neighbours : "+nbCorrectedAgain);
+
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            LOGGER.info("NA correction interrupted");
+            return;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long endTime = System.currentTimeMillis();
+        long time = endTime - startTime;
+        LOGGER.info("Time : "+time+" ms");
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+}
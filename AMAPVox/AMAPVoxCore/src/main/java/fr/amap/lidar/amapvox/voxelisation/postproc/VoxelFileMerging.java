@@ -5,9 +5,8 @@
  */
 package fr.amap.lidar.amapvox.voxelisation.postproc;
 
-import fr.amap.commons.util.io.file.FileManager;
+import fr.amap.commons.util.io.NumberParser;
 import fr.amap.commons.util.DataSet.Mode;
-import static fr.amap.commons.util.DataSet.Mode.SUM;
 import fr.amap.commons.util.TimeCounter;
 import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
 import fr.amap.commons.util.Process;
@@ -15,33 +14,73 @@ import fr.amap.lidar.amapvox.commons.GTheta;
 import fr.amap.lidar.amapvox.commons.LADParams;
 import fr.amap.lidar.amapvox.commons.LeafAngleDistribution;
 import fr.amap.lidar.amapvox.voxelisation.configuration.VoxMergingCfg;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
 import org.apache.log4j.Logger;
 import fr.amap.commons.util.Cancellable;
 import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxreader.BinaryVoxelFileReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
+ * Merge voxel files of the same voxel space.
+ *
+ * <p>The files are read in lockstep, {@link #getChunkSize()} voxels at a time, so the
+ * memory depends on the chunk size and on the number of files, not on the size of the voxel space.
+ * For each chunk, the files are read in parallel, then the values are merged and formatted in
+ * parallel on sub-ranges of the chunk, and the chunk is appended to the output file.
+ * Values are merged column by column in flat arrays:</p>
+ * <ul>
+ * <li>nbSampling, nbEchos, lgTotal, bvEntering, bvIntercepted, sumSurfMulLength,
+ * sumSurfMulLengthMulEnt and transmittance_tmp are summed, NaN values are ignored,</li>
+ * <li>angleMean is the mean of the files weighted by nbSampling,</li>
+ * <li>lMeanTotal, transmittance and PadBVTotal are computed from the merged values,</li>
+ * <li>other columns take the value of the last file.</li>
+ * </ul>
+ * <p>Files are merged in the order of the configuration for every voxel, the output is thus the
+ * same whatever the chunk size and the number of threads. Compressed binary files are inflated
+ * chunk after chunk. If a file cannot be read, the exception is thrown and the partial output is
+ * deleted.</p>
  *
  * @author Julien Heurtebize (julienhtbe@gmail.com)
  */
 
 
 public class VoxelFileMerging extends Process implements Cancellable{
-    
+
     private final static Logger LOGGER = Logger.getLogger(VoxelFileMerging.class);
-    
+
+    /**
+     * Default number of voxels merged at once.
+     */
+    public final static int DEFAULT_CHUNK_SIZE = 16384;
+
+    //number of voxels merged and formatted by a task
+    private final static int SLICE_SIZE = 2048;
+
     private long startTime;
-    private boolean cancelled;
+    private volatile boolean cancelled;
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private int nbThreads = Runtime.getRuntime().availableProcessors();
 
     public VoxelFileMerging() {
         cancelled = false;
     }
-    
+
     @Override
     public void setCancelled(boolean cancelled) {
         this.cancelled = cancelled;
@@ -51,63 +90,411 @@ public class VoxelFileMerging extends Process implements Cancellable{
     public boolean isCancelled() {
         return cancelled;
     }
-    
-    
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Set the number of voxels read at once from each file.
+     * @param chunkSize number of voxels
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    public int getNbThreads() {
+        return nbThreads;
+    }
+
+    /**
+     * Set the number of threads reading and merging the chunks.
+     * @param nbThreads number of threads
+     */
+    public void setNbThreads(int nbThreads) {
+        this.nbThreads = Math.max(1, nbThreads);
+    }
+
+    /**
+     * Source of voxel values, read sequentially chunk after chunk.
+     */
+    private interface VoxelSource extends Closeable{
+
+        /**
+         * Read the next voxels.
+         * @param start index of the first voxel
+         * @param count number of voxels to read
+         * @param values values of the voxels by column, filled from index 0
+         * @throws IOException if the file cannot be read or does not match the first file
+         */
+        void read(int start, int count, float[][] values) throws IOException;
+    }
+
+    /**
+     * Binary file read column by column with cursors, compressed columns are
+     * inflated chunk after chunk instead of being loaded in memory.
+     */
+    private static class BinaryVoxelSource implements VoxelSource{
+
+        private final BinaryVoxelFileReader reader;
+        private final BinaryVoxelFileReader.ColumnCursor[] cursors;
+
+        public BinaryVoxelSource(BinaryVoxelFileReader reader) throws IOException {
+
+            this.reader = reader;
+            this.cursors = new BinaryVoxelFileReader.ColumnCursor[reader.getColumnNames().length];
+
+            try {
+                for(int j=0;j<cursors.length;j++){
+                    cursors[j] = reader.getColumnCursor(j);
+                }
+            } catch (IOException ex) {
+                close();
+                throw ex;
+            }
+        }
+
+        @Override
+        public void read(int start, int count, float[][] values) throws IOException {
+
+            for(int j=0;j<cursors.length;j++){
+
+                if(cursors[j].getIndex() != start){
+                    throw new IOException("Chunks of file " + reader.getFile().getAbsolutePath() + " are not read in order");
+                }
+
+                cursors[j].read(values[j], 0, count);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            for(BinaryVoxelFileReader.ColumnCursor cursor : cursors){
+                if(cursor != null){
+                    cursor.close();
+                }
+            }
+
+            reader.close();
+        }
+    }
+
+    private static class TextVoxelSource implements VoxelSource{
+
+        private final File file;
+        private final Reader reader;
+        private final int columnNumber;
+
+        private final char[] buffer = new char[65536];
+        private int position;
+        private int limit;
+
+        //current line, grown if needed
+        private char[] line = new char[256];
+
+        public TextVoxelSource(File file, int columnNumber) throws IOException {
+
+            this.file = file;
+            this.columnNumber = columnNumber;
+            this.reader = new InputStreamReader(new FileInputStream(file), Charset.defaultCharset());
+
+            //header lines
+            for(int i=0;i<6;i++){
+                readLine();
+            }
+        }
+
+        /**
+         * Read the next line in {@link #line}, without line terminator.
+         * @return the length of the line, -1 at the end of the file
+         */
+        private int readLine() throws IOException{
+
+            int length = 0;
+
+            while(true){
+
+                if(position == limit){
+
+                    limit = reader.read(buffer, 0, buffer.length);
+                    position = 0;
+
+                    if(limit <= 0){
+                        limit = 0;
+                        return length == 0 ? -1 : length;
+                    }
+                }
+
+                char c = buffer[position++];
+
+                if(c == '\n'){
+                    break;
+                }
+
+                if(length == line.length){
+                    char[] newLine = new char[line.length * 2];
+                    System.arraycopy(line, 0, newLine, 0, length);
+                    line = newLine;
+                }
+
+                line[length++] = c;
+            }
+
+            if(length > 0 && line[length - 1] == '\r'){
+                length--;
+            }
+
+            return length;
+        }
+
+        @Override
+        public void read(int start, int count, float[][] values) throws IOException {
+
+            for(int v=0;v<count;v++){
+
+                int length = readLine();
+
+                if(length < 0){
+                    throw new IOException("Voxels number doesn't match in file " + file.getAbsolutePath());
+                }
+
+                int column = 0;
+                int tokenStart = 0;
+
+                //values are separated by a single space
+                for(int i=0;i<=length;i++){
+
+                    if(i == length || line[i] == ' '){
+
+                        if(column == columnNumber){
+                            throw new IOException("Columns number doesn't match in file " + file.getAbsolutePath());
+                        }
+
+                        values[column++][v] = NumberParser.parseFloat(line, tokenStart, i - tokenStart);
+                        tokenStart = i + 1;
+                    }
+                }
+
+                if(column != columnNumber){
+                    throw new IOException("Columns number doesn't match in file " + file.getAbsolutePath());
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * Indices of the columns, -1 when a column is missing.
+     */
+    private static class Columns {
+
+        int padBVTotal = -1;
+        int angleMean = -1;
+        int bvEntering = -1;
+        int bvIntercepted = -1;
+        int sumSurfMulLength = -1;
+        int sumSurfMulLengthMulEnt = -1;
+        int transmittance_tmp = -1;
+        int lMeanTotal = -1;
+        int lgTotal = -1;
+        int nbEchos = -1;
+        int nbSampling = -1;
+        int transmittance = -1;
+    }
+
+    /**
+     * Merge a range of voxels of a chunk, in file order.
+     *
+     * @param values values of each file by column
+     * @param result merged values by column
+     * @param from first voxel of the range
+     * @param to last voxel of the range, exclusive
+     * @param toMerge merge mode of each column
+     * @param columns column indices
+     */
+    private static void mergeVoxels(float[][][] values, float[][] result, int from, int to, Mode[] toMerge, Columns columns){
+
+        for(int j=0;j<toMerge.length;j++){
+
+            float[] merged = result[j];
+
+            System.arraycopy(values[0][j], from, merged, from, to - from);
+
+            for(int f=1;f<values.length;f++){
+
+                float[] current = values[f][j];
+
+                if(toMerge[j] == Mode.SUM){
+
+                    for(int v=from;v<to;v++){
+                        if(Float.isNaN(merged[v])){
+                            merged[v] = current[v];
+                        }else if(!Float.isNaN(current[v])){
+                            merged[v] += current[v];
+                        }
+                    }
+                }else{
+                    System.arraycopy(current, from, merged, from, to - from);
+                }
+            }
+        }
+
+        if(columns.nbSampling != -1 && columns.angleMean != -1){
+
+            float[] angleMean = result[columns.angleMean];
+            float[] nbSampling = result[columns.nbSampling];
+
+            for(int v=from;v<to;v++){
+
+                float sum = 0;
+
+                for(int f=0;f<values.length;f++){
+
+                    float nbSamplingMultiplyAngleMean = values[f][columns.nbSampling][v] * values[f][columns.angleMean][v];
+
+                    if(!Float.isNaN(nbSamplingMultiplyAngleMean)){
+                        sum += nbSamplingMultiplyAngleMean;
+                    }
+                }
+
+                angleMean[v] = sum / nbSampling[v];
+            }
+        }
+    }
+
+    /**
+     * Compute lMeanTotal, transmittance and PAD of a range of merged voxels.
+     */
+    private static void computePADs(float[][] result, int from, int to, Columns columns, int transMode, float maxPAD, GTheta direcTransmittance){
+
+        float[] nbSampling = result[columns.nbSampling];
+        float[] lMeanTotal = result[columns.lMeanTotal];
+        float[] transmittance = result[columns.transmittance];
+
+        for(int v=from;v<to;v++){
+
+            lMeanTotal[v] = result[columns.lgTotal][v] / nbSampling[v];
+
+            switch (transMode) {
+
+                case 2:
+                    transmittance[v] = VoxelAnalysis.computeNormTransmittanceMode2(result[columns.transmittance_tmp][v], result[columns.sumSurfMulLength][v], lMeanTotal[v]);
+                    break;
+                case 3:
+                    transmittance[v] = VoxelAnalysis.computeNormTransmittanceMode3(result[columns.transmittance_tmp][v], result[columns.sumSurfMulLengthMulEnt][v]);
+                    break;
+                case 1:
+                default:
+                    transmittance[v] = VoxelAnalysis.computeTransmittance(result[columns.bvEntering][v], result[columns.bvIntercepted][v]);
+                    transmittance[v] = VoxelAnalysis.computeNormTransmittance(transmittance[v], lMeanTotal[v]);
+                    break;
+            }
+
+            float angleMean = columns.angleMean == -1 ? 0 : result[columns.angleMean][v];
+
+            result[columns.padBVTotal][v] = VoxelAnalysis.computePADFromNormTransmittance(transmittance[v], angleMean, maxPAD, direcTransmittance);
+        }
+    }
+
+    private static void format(float[][] result, int from, int to, StringBuilder lines){
+
+        for(int v=from;v<to;v++){
+
+            for (int j = 0;j<result.length;j++){
+
+                if (j < 3) {
+                    lines.append((int)result[j][v]);
+                }else{
+                    lines.append(result[j][v]);
+                }
+
+                if(j < result.length-1){
+                    lines.append(' ');
+                }
+            }
+
+            lines.append('\n');
+        }
+    }
+
+    private static VoxelSource open(File file, int columnNumber, int size) throws Exception{
+
+        if(BinaryVoxelFileReader.isBinaryVoxelFile(file)){
+
+            BinaryVoxelFileReader reader = new BinaryVoxelFileReader(file);
+
+            if(reader.getColumnNames().length != columnNumber || reader.getNbVoxels() != size){
+                reader.close();
+                throw new IOException("Columns number doesn't match in file " + file.getAbsolutePath());
+            }
+
+            return new BinaryVoxelSource(reader);
+        }
+
+        return new TextVoxelSource(file, columnNumber);
+    }
+
+    private static <T> void invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws IOException{
+
+        try {
+            for(Future<T> future : executor.invokeAll(tasks)){
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Merging interrupted");
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException){
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Merging failed", ex.getCause());
+        }
+    }
+
     public void mergeVoxelFiles(VoxMergingCfg cfg) throws Exception {
-                
+
         cancelled = false;
-        
+
         startTime = System.currentTimeMillis();
         Mode[] toMerge;
         int size;
         VoxelSpaceInfos infos = new VoxelSpaceInfos();
 
-        float[][] nbSamplingMultiplyAngleMean;
-        float[][] resultingFile;
         int columnNumber;
-        
-        int padBVTotalColumnIndex = -1;
-        int angleMeanColumnIndex = -1;
-        int bvEnteringColumnIndex = -1;
-        int bvInterceptedColumnIndex = -1;
-        int sumSurfMulLengthColumnIndex = -1;
-        int sumSurfMulLengthMulEntColumnIndex = -1;
-        int transmittance_tmpColumnIndex = -1;
-        int lMeanTotalColumnIndex = -1;
-        int lgTotalColumnIndex = -1;
-        int nbEchosColumnIndex = -1;
-        int nbSamplingColumnIndex = -1;
-        int transmittanceColumnIndex = -1;
-        
-        
+        Columns columns = new Columns();
+
         if(cfg.getFiles().size() > 0){
-            
+
             try {
                 infos.readFromVoxelFile(cfg.getFiles().get(0));
                 LADParams ladParams = new LADParams();
                 ladParams.setLadType(infos.getLadType());
-                
+
                 if(infos.getLadParams() != null){
                     ladParams.setLadBetaFunctionAlphaParameter((float)infos.getLadParams()[0]);
                     ladParams.setLadBetaFunctionBetaParameter((float)infos.getLadParams()[1]);
                 }
-                
+
                 cfg.getVoxelParameters().setLadParams(ladParams);
                 cfg.getVoxelParameters().setTransmittanceMode(infos.getTransmittanceMode());
                 cfg.getVoxelParameters().setPathLengthMode(infos.getPathLengthMode());
-                
+
             } catch (Exception ex) {
                 throw ex;
             }
             size = infos.getSplit().x * infos.getSplit().y * infos.getSplit().z;
             columnNumber = infos.getColumnNamesList().size();
-            resultingFile = new float[size][columnNumber];
             toMerge = new Mode[columnNumber];
-            
+
             for(int i=0;i<toMerge.length;i++){
-                
+
                 String columnName = infos.getColumnNamesList().get(i);
-                                
+
                 switch(columnName){
                     case "i":
                     case "j":
@@ -119,52 +506,52 @@ public class VoxelFileMerging extends Process implements Cancellable{
                         break;
                     //discard but recalculate after
                     case "PadBVTotal":
-                        padBVTotalColumnIndex = i;
+                        columns.padBVTotal = i;
                         toMerge[i] = Mode.DISCARD;
                         break;
                     case "angleMean":
-                        angleMeanColumnIndex = i;
+                        columns.angleMean = i;
                         toMerge[i] = Mode.DISCARD;
                         break;
                     case "lMeanTotal":
-                        lMeanTotalColumnIndex = i;
+                        columns.lMeanTotal = i;
                         toMerge[i] = Mode.DISCARD;
                         break;
                     case "transmittance":
-                        transmittanceColumnIndex = i;
+                        columns.transmittance = i;
                         toMerge[i] = Mode.DISCARD;
                         break;
 
                     case "nbSampling":
-                        nbSamplingColumnIndex = i;
+                        columns.nbSampling = i;
                         toMerge[i] = Mode.SUM;
                         break;
                     case "nbEchos":
-                        nbEchosColumnIndex = i;
+                        columns.nbEchos = i;
                         toMerge[i] = Mode.SUM;
                         break;
                     case "lgTotal":
-                        lgTotalColumnIndex = i;
+                        columns.lgTotal = i;
                         toMerge[i] = Mode.SUM;
                         break;
                     case "bvEntering":
-                        bvEnteringColumnIndex = i;
+                        columns.bvEntering = i;
                         toMerge[i] = Mode.SUM;
                         break;
                     case "bvIntercepted":
-                        bvInterceptedColumnIndex = i;
+                        columns.bvIntercepted = i;
                         toMerge[i] = Mode.SUM;
                         break;
                     case "sumSurfMulLength":
-                        sumSurfMulLengthColumnIndex = i;
+                        columns.sumSurfMulLength = i;
                         toMerge[i] = Mode.SUM;
                         break;
                     case "sumSurfMulLengthMulEnt":
-                        sumSurfMulLengthMulEntColumnIndex = i;
+                        columns.sumSurfMulLengthMulEnt = i;
                         toMerge[i] = Mode.SUM;
                         break;
                     case "transmittance_tmp":
-                        transmittance_tmpColumnIndex = i;
+                        columns.transmittance_tmp = i;
                         toMerge[i] = Mode.SUM;
                         break;
 
@@ -172,162 +559,58 @@ public class VoxelFileMerging extends Process implements Cancellable{
                         toMerge[i] = Mode.DISCARD;
                 }
             }
-            
-            nbSamplingMultiplyAngleMean = new float[cfg.getFiles().size()][size];
-            
-            
-            
+
         }else{
             LOGGER.info("No file to merge");
             return;
         }
 
-        for (int i = 0; i < cfg.getFiles().size(); i++) {
-
-            if (cancelled) {
-                return;
-            }
-
-            String msg = "Merging in progress, file " + (i + 1) + " : " + cfg.getFiles().size();
-            LOGGER.info(msg);
-            fireProgress(msg, (i+1), cfg.getFiles().size());
-            
-            try (BufferedReader reader = new BufferedReader(new FileReader(cfg.getFiles().get(i)))){
-                
-                
-                int count = 0;
-                FileManager.skipLines(reader, 6);
-                
-                String currentFileLine;
-                while((currentFileLine = reader.readLine()) != null){
-                    
-                    String[] lineSplittedFile = currentFileLine.split(" ");
-                    
-                    if(lineSplittedFile.length != columnNumber){
-                        LOGGER.error("Columns number doesn't match!");
-                        return;
-                    }
-                    
-                    float[] voxelLine = new float[columnNumber];
-                    float nbSampling = 0;
-                    float angleMean = 0;
-                    
-                    for(int j=0;j<lineSplittedFile.length;j++){
-                        
-                        float currentValue = Float.valueOf(lineSplittedFile[j]);
-                        float resultValue;
-                        
-                        if(i == 0){
-                            resultValue = currentValue;
-                        }else{
-                            resultValue = resultingFile[count][j];
-                            switch(toMerge[j]){
-                                case SUM:
-                                    if(Float.isNaN(resultValue)){
-                                        resultValue = Float.valueOf(lineSplittedFile[j]);
-                                    }else if(!Float.isNaN(currentValue)){
-                                        resultValue += currentValue;
-                                    }
-                                    break;
-                                default:
-                                    resultValue = currentValue;
-                            }
-                        } 
-                        
-                        if(j == nbSamplingColumnIndex){
-                            nbSampling =  Float.valueOf(lineSplittedFile[j]);
-                        }else if(j == angleMeanColumnIndex){
-                            angleMean =  Float.valueOf(lineSplittedFile[j]);
-                        }
-                        
-                        voxelLine[j] = resultValue;
-                    }
-                    
-                    resultingFile[count] = voxelLine;
-                    nbSamplingMultiplyAngleMean[i][count] = nbSampling * angleMean;
-                    
-                    count++;
-                }
-                
-            } catch (FileNotFoundException ex) {
-                LOGGER.error(ex);
-            } catch (IOException ex) {
-                LOGGER.error(ex);
-            }
-        }
-
-        LOGGER.info("Compute angleMean");
-        if(nbSamplingColumnIndex != -1 && angleMeanColumnIndex !=-1){
-            
-            for (int i = 0; i < size; i++) {
-                
-                float sum = 0;
-                
-                for (int j = 0; j < cfg.getFiles().size(); j++) {
-                    if (!Float.isNaN(nbSamplingMultiplyAngleMean[j][i])) {
-                        sum += nbSamplingMultiplyAngleMean[j][i];
-                    } 
-                }
-
-                resultingFile[i][angleMeanColumnIndex] = sum/(resultingFile[i][nbSamplingColumnIndex]);
-            }
-
-                
-            
-        }else{
+        if(columns.nbSampling == -1 || columns.angleMean == -1){
             LOGGER.error("nbSampling or angleMean columns are missing, cannot re-compute angleMean");
         }
-        
-        LOGGER.info("Compute lMeanTotal");
-        for (int i = 0; i < size; i++) {
-            
-            resultingFile[i][lMeanTotalColumnIndex] = resultingFile[i][lgTotalColumnIndex] / resultingFile[i][nbSamplingColumnIndex];
-        }
-        
-        LOGGER.info("Compute transmittance and PAD");
-        
+
         //LeafAngleDistribution distribution = new LeafAngleDistribution(LeafAngleDistribution.Type.PLANOPHILE);
         LADParams ladParameters = cfg.getVoxelParameters().getLadParams();
         if(ladParameters == null){
             ladParameters = new LADParams();
         }
-        LeafAngleDistribution distribution = new LeafAngleDistribution(ladParameters.getLadType(), 
+        LeafAngleDistribution distribution = new LeafAngleDistribution(ladParameters.getLadType(),
                 ladParameters.getLadBetaFunctionAlphaParameter(),
                 ladParameters.getLadBetaFunctionBetaParameter());
-        
-        GTheta direcTransmittance = new GTheta(distribution);
-        
+
+        final GTheta direcTransmittance = new GTheta(distribution);
+
         LOGGER.info("Building transmittance functions table");
         direcTransmittance.buildTable(GTheta.DEFAULT_STEP_NUMBER);
         LOGGER.info("Transmittance functions table is built");
-        
-        int transMode = cfg.getVoxelParameters().getTransmittanceMode();
-        
-        for (int i = 0; i < size; i++) {
-            
-            switch (transMode) {
-                
-                case 2:
-                    resultingFile[i][transmittanceColumnIndex] =  VoxelAnalysis.computeNormTransmittanceMode2(resultingFile[i][transmittance_tmpColumnIndex], resultingFile[i][sumSurfMulLengthColumnIndex], resultingFile[i][lMeanTotalColumnIndex]);
-                    break;
-                case 3:
-                    resultingFile[i][transmittanceColumnIndex] =  VoxelAnalysis.computeNormTransmittanceMode3(resultingFile[i][transmittance_tmpColumnIndex], resultingFile[i][sumSurfMulLengthMulEntColumnIndex]);
-                    break;
-                case 1:
-                default:
-                    resultingFile[i][transmittanceColumnIndex] = VoxelAnalysis.computeTransmittance(resultingFile[i][bvEnteringColumnIndex], resultingFile[i][bvInterceptedColumnIndex]);
-                    resultingFile[i][transmittanceColumnIndex] =  VoxelAnalysis.computeNormTransmittance(resultingFile[i][transmittanceColumnIndex], resultingFile[i][lMeanTotalColumnIndex]);
-                    break;
-            }
-            
-            resultingFile[i][padBVTotalColumnIndex] = VoxelAnalysis.computePADFromNormTransmittance(resultingFile[i][transmittanceColumnIndex], resultingFile[i][angleMeanColumnIndex], cfg.getVoxelParameters().infos.getMaxPAD(), direcTransmittance);
-        }
-        
+
+        final int transMode = cfg.getVoxelParameters().getTransmittanceMode();
+        final float maxPAD = cfg.getVoxelParameters().infos.getMaxPAD();
+        final int nbFiles = cfg.getFiles().size();
+        final int currentChunkSize = Math.min(chunkSize, Math.max(1, size));
+
+        //values of the current chunk, by file and column
+        final float[][][] values = new float[nbFiles][columnNumber][currentChunkSize];
+        final float[][] result = new float[columnNumber][currentChunkSize];
+
+        final List<VoxelSource> sources = new ArrayList<>(nbFiles);
+
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads, (Runnable r) -> {
+            Thread thread = new Thread(r, "voxel-merging");
+            thread.setDaemon(true);
+            return thread;
+        });
+
         LOGGER.info("writing output file: " + cfg.getOutputFile().getAbsolutePath());
-        long start_time = System.currentTimeMillis();
+
+        boolean completed = false;
 
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(cfg.getOutputFile()))) {
 
+            for(File file : cfg.getFiles()){
+                sources.add(open(file, columnNumber, size));
+            }
+
             writer.write("VOXEL SPACE" + "\n");
             writer.write("#min_corner: " + (float) infos.getMinCorner().x + " " + (float) infos.getMinCorner().y + " " + (float) infos.getMinCorner().z + "\n");
             writer.write("#max_corner: " + (float) infos.getMaxCorner().x + " " + (float) infos.getMaxCorner().y + " " + (float) infos.getMaxCorner().z + "\n");
@@ -336,41 +619,106 @@ public class VoxelFileMerging extends Process implements Cancellable{
             writer.write("#type: TLS" + " #res: "+infos.getResolution()+" "+"#MAX_PAD: "+cfg.getVoxelParameters().infos.getMaxPAD()+"\n");
 
             String header = "";
-            
+
             for (String columnName : infos.getColumnNamesList()) {
                 header += columnName + " ";
             }
             header = header.trim();
             writer.write(header + "\n");
 
-            for (int i = 0; i < size; i++) {
-                
-                StringBuilder voxel = new StringBuilder();
-                
-                for (int j = 0;j<columnNumber;j++){
-                    
-                    if (j < 3) {
-                        voxel.append((int)resultingFile[i][j]);
-                    }else{
-                        voxel.append(resultingFile[i][j]);
-                    }
-                    
-                    if(j < columnNumber-1){
-                        voxel.append(" ");
-                    }
+            final int nbSlices = (currentChunkSize + SLICE_SIZE - 1) / SLICE_SIZE;
+            final StringBuilder[] lines = new StringBuilder[nbSlices];
+
+            for(int s=0;s<nbSlices;s++){
+                lines[s] = new StringBuilder();
+            }
+
+            final boolean computePAD = columns.nbSampling != -1 && columns.lgTotal != -1 && columns.lMeanTotal != -1
+                    && columns.transmittance != -1 && columns.padBVTotal != -1;
+
+            if(!computePAD){
+                LOGGER.error("nbSampling, lgTotal, lMeanTotal, transmittance or PadBVTotal columns are missing, cannot re-compute PAD");
+            }
+
+            for (int start = 0; start < size; start += currentChunkSize) {
+
+                if (cancelled) {
+                    LOGGER.info("Merging cancelled");
+                    return;
+                }
+
+                final int chunkStart = start;
+                final int count = Math.min(currentChunkSize, size - start);
+
+                //read the chunk of every file
+                List<Callable<Object>> readTasks = new ArrayList<>(nbFiles);
+
+                for(int f=0;f<nbFiles;f++){
+
+                    final VoxelSource source = sources.get(f);
+                    final float[][] fileValues = values[f];
+
+                    readTasks.add(() -> {
+                        source.read(chunkStart, count, fileValues);
+                        return null;
+                    });
                 }
 
-                writer.write(voxel.toString() + "\n");
+                invokeAll(executor, readTasks);
+
+                //merge and format sub-ranges of the chunk
+                List<Callable<Object>> mergeTasks = new ArrayList<>(nbSlices);
+
+                for(int from=0;from<count;from+=SLICE_SIZE){
+
+                    final int sliceFrom = from;
+                    final int sliceTo = Math.min(count, from + SLICE_SIZE);
+                    final StringBuilder sliceLines = lines[from / SLICE_SIZE];
+
+                    mergeTasks.add(() -> {
+
+                        mergeVoxels(values, result, sliceFrom, sliceTo, toMerge, columns);
 
+                        if(computePAD){
+                            computePADs(result, sliceFrom, sliceTo, columns, transMode, maxPAD, direcTransmittance);
+                        }
+
+                        sliceLines.setLength(0);
+                        format(result, sliceFrom, sliceTo, sliceLines);
+                        return null;
+                    });
+                }
+
+                invokeAll(executor, mergeTasks);
+
+                for(int s=0;s<mergeTasks.size();s++){
+                    writer.append(lines[s]);
+                }
+
+                fireProgress("Merging in progress", start + count, size);
             }
-            
-            LOGGER.info("file written ( " + TimeCounter.getElapsedStringTimeInSeconds(start_time) + " )");
 
-        } catch (IOException ex) {
-            LOGGER.error(ex);
+            completed = true;
+
+            LOGGER.info("file written ( " + TimeCounter.getElapsedStringTimeInSeconds(startTime) + " )");
+
+        } finally {
+
+            executor.shutdownNow();
+
+            for(VoxelSource source : sources){
+                try {
+                    source.close();
+                } catch (IOException ex) {
+                    LOGGER.error(ex);
+                }
+            }
+
+            if(!completed){
+                //do not leave a partial file
+                cfg.getOutputFile().delete();
+            }
         }
-        
-        
 
         fireFinished(TimeCounter.getElapsedTimeInSeconds(startTime));
     }
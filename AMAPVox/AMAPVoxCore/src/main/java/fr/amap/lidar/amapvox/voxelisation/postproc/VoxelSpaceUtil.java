@@ -214,7 +214,7 @@ public class VoxelSpaceUtil {
         infos.setSplit(new Point3i(iSplit, jSplit, kSplit));
         
         VoxelSpace vs = new VoxelSpace(infos);
-        vs.voxels = new ArrayList();
+        vs.voxels = new ArrayList<>();
         
         for(int i=0;i<voxelSpace.voxels.size();i++){
             
@@ -0,0 +1,307 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxelisation.tls;
+
+import fr.amap.commons.raster.asc.Raster;
+import fr.amap.commons.util.Cancellable;
+import fr.amap.commons.util.Process;
+import fr.amap.lidar.amapvox.voxelisation.PointcloudFilter;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.postproc.VoxelFileMerging;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.log4j.Logger;
+
+/**
+ * Voxelisation of the scans of a TLS project into a single voxel space, without
+ * writing one voxel file per scan.
+ *
+ * <p>The scans are voxelised concurrently. A scan takes a grid from a pool of at most
+ * {@link #getMaxGrids()} grids when it starts and gives it back when it ends, so that
+ * a grid accumulates the shots of several scans. When all the scans are done,
+ * the grids are summed and the PAD is computed once.</p>
+ *
+ * <p>The reduction follows the rules of {@link VoxelFileMerging}: nbSampling, nbEchos, lgTotal,
+ * bvEntering, bvIntercepted, transmittance_tmp, sumSurfMulLength and sumSurfMulLengthMulEnt
+ * are summed, angleMean is the mean weighted by nbSampling, lMeanTotal, the transmittance and
+ * the PAD are computed from the sums. Since the raw accumulators are summed instead of
+ * the values of the voxel files, the result only differs from the merging of the
+ * scan files by the summation order and the rounding of the written values.</p>
+ *
+ * <p>Memory: the peak memory is the one of {@link #getMaxGrids()} voxelisations, whatever
+ * the number of scans and threads. A thread waits for a free grid when the pool is exhausted,
+ * so using more threads than grids only makes sense when the reading of the scans is slow.</p>
+ */
+public class MergedTLSVoxelisation extends Process implements Cancellable{
+
+    private final static Logger LOGGER = Logger.getLogger(MergedTLSVoxelisation.class);
+
+    private final Raster terrain;
+    private final List<PointcloudFilter> pointcloudFilters;
+    private final VoxelAnalysisCfg cfg;
+    private final int maxGrids;
+
+    private final List<VoxelAnalysis> grids;
+    private final BlockingQueue<VoxelAnalysis> freeGrids;
+    private VoxelAnalysis result;
+
+    private volatile boolean cancelled;
+
+    /**
+     *
+     * @param terrain digital terrain model, can be null
+     * @param pointcloudFilters point cloud filters, can be null
+     * @param cfg voxelisation configuration, shared by the scans
+     * @param maxGrids maximum number of voxel grids allocated at the same time
+     */
+    public MergedTLSVoxelisation(Raster terrain, List<PointcloudFilter> pointcloudFilters, VoxelAnalysisCfg cfg, int maxGrids) {
+
+        this.terrain = terrain;
+        this.pointcloudFilters = pointcloudFilters;
+        this.cfg = cfg;
+        this.maxGrids = Math.max(1, maxGrids);
+        this.grids = new ArrayList<>();
+        this.freeGrids = new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * Get a grid from the pool, a new grid is allocated if the pool is empty and
+     * the maximum number of grids is not reached, otherwise wait for a grid to be released.
+     * @return a voxel grid, possibly holding the shots of previous scans
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    VoxelAnalysis acquireGrid() throws InterruptedException {
+
+        VoxelAnalysis grid = freeGrids.poll();
+
+        if(grid != null){
+            return grid;
+        }
+
+        synchronized(grids){
+
+            if(grids.size() < maxGrids){
+
+                grid = new VoxelAnalysis(terrain, pointcloudFilters, cfg);
+                grid.createVoxelSpace();
+                grids.add(grid);
+
+                LOGGER.info("Voxel grid " + grids.size() + " / " + maxGrids + " allocated");
+
+                return grid;
+            }
+        }
+
+        return freeGrids.take();
+    }
+
+    /**
+     * Give back a grid acquired with {@link #acquireGrid()}.
+     * @param grid voxel grid
+     */
+    void releaseGrid(VoxelAnalysis grid){
+        freeGrids.add(grid);
+    }
+
+    /**
+     * Voxelise the scans with a pool of threads, one scan at a time per thread.
+     * @param scans scans to voxelise, their output files are ignored
+     * @param nbThreads number of threads
+     * @throws Exception if the voxelisation of a scan failed
+     */
+    public void voxelise(List<? extends TLSVoxelisation> scans, int nbThreads) throws Exception {
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nbThreads, scans.size())), (Runnable r) -> {
+            Thread thread = new Thread(r, "scan-voxelisation");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<Object>> futures = new ArrayList<>(scans.size());
+
+            for(final TLSVoxelisation scan : scans){
+
+                scan.setMergedVoxelisation(this);
+
+                futures.add(executor.submit(() -> {
+                    try {
+                        return scan.call();
+                    } finally {
+                        //the grid is still held if the scan failed or was aborted
+                        scan.releaseGrid();
+                    }
+                }));
+            }
+
+            executor.shutdown();
+
+            int nbScansProcessed = 0;
+
+            for(Future<Object> future : futures){
+
+                while(!waitFor(future)){
+                    if(cancelled){
+                        LOGGER.info("Voxelisation cancelled");
+                        return;
+                    }
+                }
+
+                nbScansProcessed++;
+                fireProgress("Voxelisation, scan " + nbScansProcessed + " : " + scans.size(), nbScansProcessed, scans.size());
+            }
+
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean waitFor(Future<Object> future) throws IOException{
+
+        try {
+            future.get(100, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (TimeoutException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Voxelisation interrupted");
+        } catch (ExecutionException ex) {
+            if(ex.getCause() instanceof IOException){
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Scan voxelisation failed", ex.getCause());
+        } catch (CancellationException ex){
+            throw new InterruptedIOException("Voxelisation cancelled");
+        }
+    }
+
+    /**
+     * Sum the grids into the first one and compute the PAD, the other grids are released.
+     * The PAD is computed in place, so the scans cannot be voxelised afterwards.
+     * @return the reduced voxelisation, null if no scan was voxelised
+     */
+    private VoxelAnalysis reduce(){
+
+        synchronized(grids){
+
+            if(result != null || grids.isEmpty()){
+                return result;
+            }
+
+            LOGGER.info("Reducing voxel accumulators of " + grids.size() + " grids");
+
+            result = grids.get(0);
+            VoxelStore voxels = result.getVoxels();
+
+            for(int i = 1 ; i < grids.size() ; i++){
+                voxels.merge(grids.get(i).getVoxels());
+            }
+
+            grids.clear();
+            grids.add(result);
+            freeGrids.clear();
+
+            result.computePADs();
+
+            return result;
+        }
+    }
+
+    /**
+     * Compute the PAD of the merged voxel space and write it.
+     * @param outputFile merged voxel file
+     * @throws Exception if the file cannot be written
+     */
+    public void write(File outputFile) throws Exception {
+
+        VoxelAnalysis result = reduce();
+
+        if(result == null){
+            LOGGER.info("No scan to merge");
+            return;
+        }
+
+        result.write(cfg.getVoxelsFormat(), outputFile);
+    }
+
+    /**
+     * Get the voxels of the merged voxel space, the PAD is computed.
+     * @return the voxels, null if no scan was voxelised
+     */
+    public VoxelStore getVoxels(){
+
+        VoxelAnalysis result = reduce();
+
+        return result == null ? null : result.getVoxels();
+    }
+
+    /**
+     * Get the number of shots processed by all the grids.
+     * @return the number of shots
+     */
+    public int getNbShotsProcessed(){
+
+        synchronized(grids){
+
+            int nbShotsProcessed = 0;
+
+            for(VoxelAnalysis grid : grids){
+                nbShotsProcessed += grid.getNbShotsProcessed();
+            }
+
+            return nbShotsProcessed;
+        }
+    }
+
+    /**
+     * Get the number of grids allocated so far.
+     * @return the number of grids, never greater than {@link #getMaxGrids()}
+     */
+    public int getNbGrids(){
+
+        synchronized(grids){
+            return grids.size();
+        }
+    }
+
+    public int getMaxGrids() {
+        return maxGrids;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+}
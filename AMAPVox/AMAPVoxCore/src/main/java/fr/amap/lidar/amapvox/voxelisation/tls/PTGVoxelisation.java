@@ -15,7 +15,9 @@ import fr.amap.commons.math.matrix.Mat4D;
 import fr.amap.commons.math.vector.Vec3D;
 import fr.amap.commons.math.vector.Vec4D;
 import fr.amap.lidar.amapvox.voxelisation.PointcloudFilter;
+import fr.amap.lidar.amapvox.voxelisation.ShotPipeline;
 import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
 import java.io.File;
 import java.util.Iterator;
@@ -44,32 +46,71 @@ public class PTGVoxelisation extends TLSVoxelisation{
             
             long startTime = System.currentTimeMillis();
         
-            voxelAnalysis.createVoxelSpace();
+            createVoxelSpace();
             
             PTGScan pTGScan = new PTGScan();
             pTGScan.openScanFile(inputFile);
             
-            LPointShotExtractor pTGShots = new LPointShotExtractor(pTGScan);
+            int nbReadingThreads = getNbReadingThreads();
             
-            Iterator<LShot> iterator = pTGShots.iterator();
+            LPointShotExtractor pTGShots = new LPointShotExtractor(pTGScan, nbReadingThreads);
 
-            LShot shot;
-            while(iterator.hasNext()){
+            if(nbReadingThreads > 1){
                 
-                if (Thread.currentThread().isInterrupted()){
-                    logger.info("Task cancelled");
+                if(!processColumnBands(pTGScan, pTGShots, this::transformShot)){
                     return null;
                 }
+                
+            }else if(cfg.isPipelined()){
+                
+                try(ShotPipeline<LShot> pipeline = new ShotPipeline<>(pTGShots.iterator(), this::transformShot, metrics)){
+                    
+                    fr.amap.lidar.amapvox.shot.Shot shot;
+                    while((shot = pipeline.next()) != null){
+                        
+                        if (Thread.currentThread().isInterrupted()){
+                            logger.info("Task cancelled");
+                            return null;
+                        }
+                        
+                        voxelAnalysis.processOneShot(shot);
+                    }
+                }
+                
+            }else{
+                
+                Iterator<LShot> iterator = pTGShots.iterator();
+                
+                LShot shot;
+                while(iterator.hasNext()){
 
-                shot = iterator.next();
-                if(shot != null){
-                    Vec4D locVector = Mat4D.multiply(transfMatrix, new Vec4D(shot.origin.x, shot.origin.y, shot.origin.z, 1.0d));
+                    if (Thread.currentThread().isInterrupted()){
+                        logger.info("Task cancelled");
+                        return null;
+                    }
 
-                    Vec3D uVector = Mat3D.multiply(rotation, new Vec3D(shot.direction.x, shot.direction.y, shot.direction.z));
+                    long shotTime = metrics != null ? System.nanoTime() : 0;
 
-                    voxelAnalysis.processOneShot(new fr.amap.lidar.amapvox.shot.Shot(new Point3d(locVector.x, locVector.y, locVector.z), new Vector3d(uVector.x, uVector.y, uVector.z), shot.ranges));
-                }
+                    shot = iterator.next();
 
+                    if(metrics != null){
+                        long decodedTime = System.nanoTime();
+                        metrics.addTime(VoxelisationMetrics.Stage.DECODE, decodedTime - shotTime);
+                        shotTime = decodedTime;
+                    }
+
+                    if(shot != null){
+
+                        fr.amap.lidar.amapvox.shot.Shot transformedShot = transformShot(shot);
+
+                        if(metrics != null){
+                            metrics.addTime(VoxelisationMetrics.Stage.TRANSFORM, System.nanoTime() - shotTime);
+                            metrics.shotRead();
+                        }
+
+                        voxelAnalysis.processOneShot(transformedShot);
+                    }
+                }
             }
             
             logger.info("Shots processed: "+voxelAnalysis.getNbShotsProcessed());   
@@ -121,10 +162,20 @@ public class PTGVoxelisation extends TLSVoxelisation{
         }catch(Exception ex){
             logger.error("Unknow exception in thread : "+Thread.currentThread().getName()+", retrying",ex);
             throw ex;
+        }finally{
+            finishMetrics();
         }
         
         return null;
     }
     
     
+    private fr.amap.lidar.amapvox.shot.Shot transformShot(LShot shot){
+        
+        Vec4D locVector = Mat4D.multiply(transfMatrix, new Vec4D(shot.origin.x, shot.origin.y, shot.origin.z, 1.0d));
+
+        Vec3D uVector = Mat3D.multiply(rotation, new Vec3D(shot.direction.x, shot.direction.y, shot.direction.z));
+        
+        return new fr.amap.lidar.amapvox.shot.Shot(new Point3d(locVector.x, locVector.y, locVector.z), new Vector3d(uVector.x, uVector.y, uVector.z), shot.ranges);
+    }
 }
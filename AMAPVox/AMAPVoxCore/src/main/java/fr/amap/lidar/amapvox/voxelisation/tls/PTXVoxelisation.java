@@ -14,7 +14,9 @@ import fr.amap.commons.math.matrix.Mat4D;
 import fr.amap.commons.math.vector.Vec3D;
 import fr.amap.commons.math.vector.Vec4D;
 import fr.amap.lidar.amapvox.voxelisation.PointcloudFilter;
+import fr.amap.lidar.amapvox.voxelisation.ShotPipeline;
 import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
 import java.io.File;
 import java.util.Iterator;
 import java.util.List;
@@ -45,29 +47,68 @@ public class PTXVoxelisation extends TLSVoxelisation{
             
             long startTime = System.currentTimeMillis();
         
-            voxelAnalysis.createVoxelSpace();
+            createVoxelSpace();
             
-            LPointShotExtractor pTXShots = new LPointShotExtractor(scan);
+            int nbReadingThreads = getNbReadingThreads();
             
-            Iterator<LShot> iterator = pTXShots.iterator();
+            LPointShotExtractor pTXShots = new LPointShotExtractor(scan, nbReadingThreads);
 
-            LShot shot;
-            while(iterator.hasNext()){
+            if(nbReadingThreads > 1){
                 
-                if (Thread.currentThread().isInterrupted()){
-                    logger.info("Task cancelled");
+                if(!processColumnBands(scan, pTXShots, this::transformShot)){
                     return null;
                 }
+                
+            }else if(cfg.isPipelined()){
+                
+                try(ShotPipeline<LShot> pipeline = new ShotPipeline<>(pTXShots.iterator(), this::transformShot, metrics)){
+                    
+                    fr.amap.lidar.amapvox.shot.Shot shot;
+                    while((shot = pipeline.next()) != null){
+                        
+                        if (Thread.currentThread().isInterrupted()){
+                            logger.info("Task cancelled");
+                            return null;
+                        }
+                        
+                        voxelAnalysis.processOneShot(shot);
+                    }
+                }
+                
+            }else{
+                
+                Iterator<LShot> iterator = pTXShots.iterator();
+                
+                LShot shot;
+                while(iterator.hasNext()){
 
-                shot = iterator.next();
-                if(shot != null){
-                    Vec4D locVector = Mat4D.multiply(transfMatrix, new Vec4D(shot.origin.x, shot.origin.y, shot.origin.z, 1.0d));
+                    if (Thread.currentThread().isInterrupted()){
+                        logger.info("Task cancelled");
+                        return null;
+                    }
 
-                    Vec3D uVector = Mat3D.multiply(rotation, new Vec3D(shot.direction.x, shot.direction.y, shot.direction.z));
-                                        
-                    voxelAnalysis.processOneShot(new fr.amap.lidar.amapvox.shot.Shot(new Point3d(locVector.x, locVector.y, locVector.z), new Vector3d(uVector.x, uVector.y, uVector.z), shot.ranges));
-                }
+                    long shotTime = metrics != null ? System.nanoTime() : 0;
+
+                    shot = iterator.next();
 
+                    if(metrics != null){
+                        long decodedTime = System.nanoTime();
+                        metrics.addTime(VoxelisationMetrics.Stage.DECODE, decodedTime - shotTime);
+                        shotTime = decodedTime;
+                    }
+
+                    if(shot != null){
+
+                        fr.amap.lidar.amapvox.shot.Shot transformedShot = transformShot(shot);
+
+                        if(metrics != null){
+                            metrics.addTime(VoxelisationMetrics.Stage.TRANSFORM, System.nanoTime() - shotTime);
+                            metrics.shotRead();
+                        }
+
+                        voxelAnalysis.processOneShot(transformedShot);
+                    }
+                }
             }
             
             logger.info("Shots processed: "+voxelAnalysis.getNbShotsProcessed());
@@ -119,9 +160,19 @@ public class PTXVoxelisation extends TLSVoxelisation{
         }catch(Exception ex){
             logger.error("Unknow exception in thread : "+Thread.currentThread().getName()+", retrying",ex);
             throw ex;
+        }finally{
+            finishMetrics();
         }
         
         return null;
     }
     
+    private fr.amap.lidar.amapvox.shot.Shot transformShot(LShot shot){
+        
+        Vec4D locVector = Mat4D.multiply(transfMatrix, new Vec4D(shot.origin.x, shot.origin.y, shot.origin.z, 1.0d));
+
+        Vec3D uVector = Mat3D.multiply(rotation, new Vec3D(shot.direction.x, shot.direction.y, shot.direction.z));
+        
+        return new fr.amap.lidar.amapvox.shot.Shot(new Point3d(locVector.x, locVector.y, locVector.z), new Vector3d(uVector.x, uVector.y, uVector.z), shot.ranges);
+    }
 }
@@ -11,12 +11,17 @@ import fr.amap.commons.math.vector.Vec3D;
 import fr.amap.commons.math.vector.Vec4D;
 import fr.amap.amapvox.io.tls.rxp.RxpExtraction;
 import fr.amap.amapvox.io.tls.rxp.Shot;
+import fr.amap.lidar.amapvox.shot.cache.ShotCache;
+import fr.amap.lidar.amapvox.shot.cache.ShotCacheWriter;
 import fr.amap.lidar.amapvox.shot.filters.ShotFilter;
 import fr.amap.commons.raster.asc.Raster;
 import fr.amap.lidar.amapvox.voxelisation.PointcloudFilter;
+import fr.amap.lidar.amapvox.voxelisation.ShotPipeline;
 import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
 import java.io.File;
+import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import javax.vecmath.Point3d;
@@ -45,9 +50,30 @@ public class RxpVoxelisation extends TLSVoxelisation{
         System.out.println(Thread.currentThread().getName());
         
         try {
+            File cacheFile = null;
+            long cacheKey = 0;
+            
+            if(cfg.getShotCacheDirectory() != null){
+                
+                cacheKey = ShotCache.computeKey(transfMatrix, "rxp empty-shot-filtering=" + enableEmptyShotFiltering, inputFile);
+                cacheFile = ShotCache.getCacheFile(cfg.getShotCacheDirectory(), inputFile, cacheKey);
+                
+                if(ShotCache.isValid(cacheFile, cacheKey)){
+                    
+                    createVoxelSpace();
+                    
+                    if(replayShotCache(cacheFile)){
+                        LOGGER.info("Shots processed: "+voxelAnalysis.getNbShotsProcessed());
+                        super.postProcess();
+                    }
+                    
+                    return null;
+                }
+            }
+            
             LOGGER.info("rxp extraction is started");
         
-            voxelAnalysis.createVoxelSpace();
+            createVoxelSpace();
             RxpExtraction rxpExtraction = new RxpExtraction();
             int result = rxpExtraction.openRxpFile(inputFile, RxpExtraction.REFLECTANCE, RxpExtraction.DEVIATION);
             
@@ -58,50 +84,20 @@ public class RxpVoxelisation extends TLSVoxelisation{
             
             Iterator<Shot> iterator = rxpExtraction.iterator();
             
-            if(enableEmptyShotFiltering){
-                
-                ShotFilter shotFilter = new ShotFilter(iterator);
-                
-                Iterator<Shot> filterIterator = shotFilter.iterator();
-                
-                
-                Shot shot;
-                while(filterIterator.hasNext()){
-
-                    if (Thread.currentThread().isInterrupted()){
-                        LOGGER.info("Task cancelled");
-                        return null;
-                    }
-
-                    shot = filterIterator.next();
-                    if(shot != null){
-                        Vec4D locVector = Mat4D.multiply(transfMatrix, new Vec4D(shot.origin.x, shot.origin.y, shot.origin.z, 1.0d));
-
-                        Vec3D uVector = Mat3D.multiply(rotation, new Vec3D(shot.direction.x, shot.direction.y, shot.direction.z));
-                        voxelAnalysis.processOneShot(new fr.amap.lidar.amapvox.shot.Shot(new Point3d(locVector.x, locVector.y, locVector.z), new Vector3d(uVector.x, uVector.y, uVector.z), shot.ranges));
-                    }
+            ShotCacheWriter cacheWriter = cacheFile == null ? null : new ShotCacheWriter(cacheFile, cacheKey);
+            
+            try{
+                if(!processShots(iterator, cacheWriter)){
+                    return null;
                 }
                 
-                LOGGER.info("Number of shots removed : "+shotFilter.getNbThrownShots());
-                
-            }else{
-                Shot shot;
-                while(iterator.hasNext()){
-
-                    if (Thread.currentThread().isInterrupted()){
-                        LOGGER.info("Task cancelled");
-                        return null;
-                    }
-
-                    shot = iterator.next();
-                    if(shot != null){
-                        Vec4D locVector = Mat4D.multiply(transfMatrix, new Vec4D(shot.origin.x, shot.origin.y, shot.origin.z, 1.0d));
-
-                        Vec3D uVector = Mat3D.multiply(rotation, new Vec3D(shot.direction.x, shot.direction.y, shot.direction.z));
-
-                        voxelAnalysis.processOneShot(new fr.amap.lidar.amapvox.shot.Shot(new Point3d(locVector.x, locVector.y, locVector.z), new Vector3d(uVector.x, uVector.y, uVector.z), shot.ranges));
-                    }
-
+                if(cacheWriter != null){
+                    cacheWriter.commit();
+                    LOGGER.info("Shots cached in "+cacheFile);
+                }
+            }finally{
+                if(cacheWriter != null){
+                    cacheWriter.close();
                 }
             }
             
@@ -158,10 +154,100 @@ public class RxpVoxelisation extends TLSVoxelisation{
         }catch(OutOfMemoryError | Exception ex){
             throw ex;
             //logger.error("Unsufficient memory, you need to allocate more to the JVM, change the Xmx value!",ex);
+        }finally{
+            finishMetrics();
         }
         //logger.error("Unknow exception in RXPVoxelisation.class in thread : "+Thread.currentThread().getName()+", retrying",ex);
         //this.call();
         
         return null;
     }
+    
+    /**
+     * Transform and voxelise the shots of the scan, in a {@link ShotPipeline} if the configuration is pipelined.
+     * @param iterator shots of the scan
+     * @param cacheWriter writer of the shot cache, null if the shots are not cached
+     * @return false if the task was cancelled
+     * @throws IOException if a shot cannot be read or written in the cache
+     */
+    private boolean processShots(Iterator<Shot> iterator, ShotCacheWriter cacheWriter) throws IOException{
+        
+        ShotFilter shotFilter = null;
+        
+        if(enableEmptyShotFiltering){
+            shotFilter = new ShotFilter(iterator);
+            iterator = shotFilter.iterator();
+        }
+        
+        if(cfg.isPipelined()){
+            
+            try(ShotPipeline<Shot> pipeline = new ShotPipeline<>(iterator, (Shot shot) -> transformShot(shot, cacheWriter), metrics)){
+                
+                fr.amap.lidar.amapvox.shot.Shot shot;
+                while((shot = pipeline.next()) != null){
+                    
+                    if (Thread.currentThread().isInterrupted()){
+                        LOGGER.info("Task cancelled");
+                        return false;
+                    }
+                    
+                    voxelAnalysis.processOneShot(shot);
+                }
+            }
+            
+        }else{
+            
+            Shot shot;
+            while(iterator.hasNext()){
+
+                if (Thread.currentThread().isInterrupted()){
+                    LOGGER.info("Task cancelled");
+                    return false;
+                }
+
+                long startTime = metrics != null ? System.nanoTime() : 0;
+
+                shot = iterator.next();
+
+                if(metrics != null){
+                    long decodedTime = System.nanoTime();
+                    metrics.addTime(VoxelisationMetrics.Stage.DECODE, decodedTime - startTime);
+                    startTime = decodedTime;
+                }
+
+                if(shot != null){
+                    
+                    fr.amap.lidar.amapvox.shot.Shot transformedShot = transformShot(shot, cacheWriter);
+                    
+                    if(metrics != null){
+                        metrics.addTime(VoxelisationMetrics.Stage.TRANSFORM, System.nanoTime() - startTime);
+                        metrics.shotRead();
+                    }
+                    
+                    voxelAnalysis.processOneShot(transformedShot);
+                }
+            }
+        }
+        
+        if(shotFilter != null){
+            LOGGER.info("Number of shots removed : "+shotFilter.getNbThrownShots());
+        }
+        
+        return true;
+    }
+    
+    private fr.amap.lidar.amapvox.shot.Shot transformShot(Shot shot, ShotCacheWriter cacheWriter) throws IOException{
+        
+        Vec4D locVector = Mat4D.multiply(transfMatrix, new Vec4D(shot.origin.x, shot.origin.y, shot.origin.z, 1.0d));
+
+        Vec3D uVector = Mat3D.multiply(rotation, new Vec3D(shot.direction.x, shot.direction.y, shot.direction.z));
+
+        fr.amap.lidar.amapvox.shot.Shot transformedShot = new fr.amap.lidar.amapvox.shot.Shot(new Point3d(locVector.x, locVector.y, locVector.z), new Vector3d(uVector.x, uVector.y, uVector.z), shot.ranges);
+
+        if(cacheWriter != null){
+            cacheWriter.write(transformedShot, null);
+        }
+
+        return transformedShot;
+    }
 }
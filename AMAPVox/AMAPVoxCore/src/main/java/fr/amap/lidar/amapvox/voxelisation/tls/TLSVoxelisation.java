@@ -9,14 +9,26 @@ import fr.amap.commons.raster.asc.Raster;
 import fr.amap.commons.math.matrix.Mat3D;
 import fr.amap.commons.math.matrix.Mat4D;
 import fr.amap.commons.util.CallableTask;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.shot.cache.ShotCacheReader;
+import fr.amap.lidar.amapvox.voxelisation.ParallelVoxelAnalysis;
 import fr.amap.lidar.amapvox.voxelisation.PointcloudFilter;
+import fr.amap.lidar.amapvox.voxelisation.ShotPipeline;
 import fr.amap.lidar.amapvox.voxelisation.SimpleShotFilter;
 import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
 import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import fr.amap.lidar.format.jleica.GriddedPointScan;
+import fr.amap.lidar.format.jleica.LPointShotExtractor;
+import fr.amap.lidar.format.jleica.LShot;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import org.apache.log4j.Logger;
 
 /**
  *
@@ -24,6 +36,14 @@ import java.util.List;
  */
 public abstract class TLSVoxelisation extends CallableTask{
 
+    private final static Logger LOGGER = Logger.getLogger(TLSVoxelisation.class);
+    
+    /**
+     * Number of column bands per thread when a gridded scan is read by column bands,
+     * the bands of a thread are spread over the scan to balance the empty columns (sky) between the threads.
+     */
+    protected final static int COLUMN_BANDS_PER_THREAD = 4;
+    
     protected int nbVoxelisationFinished;
     protected final File inputFile;
     protected VoxelAnalysis voxelAnalysis;
@@ -32,6 +52,11 @@ public abstract class TLSVoxelisation extends CallableTask{
     protected final VoxelParameters parameters;
     protected final File outputFile;
     protected final VoxelAnalysisCfg cfg;
+    private MergedTLSVoxelisation mergedVoxelisation;
+    private boolean gridAcquired;
+    
+    //counters and timers of the scan voxelisation, null if the runs are not instrumented
+    protected VoxelisationMetrics metrics;
     
     public TLSVoxelisation(File inputFile, File outputFile, Mat4D vopMatrix, Mat4D popMatrix, Mat4D sopMatrix, Raster terrain, List<PointcloudFilter> pointcloud, VoxelAnalysisCfg cfg){
         nbVoxelisationFinished = 0;
@@ -64,8 +89,12 @@ public abstract class TLSVoxelisation extends CallableTask{
             cfg.setShotFilter(new SimpleShotFilter(cfg.getShotFilters()));
         }
         
-        voxelAnalysis = new VoxelAnalysis(terrain, pointcloud, cfg);
-        
+        if(cfg.getNbThreads() > 1){
+            voxelAnalysis = new ParallelVoxelAnalysis(terrain, pointcloud, cfg, cfg.getNbThreads());
+        }else{
+            voxelAnalysis = new VoxelAnalysis(terrain, pointcloud, cfg);
+        }
+
         this.cfg = cfg;
     }
     
@@ -77,12 +106,186 @@ public abstract class TLSVoxelisation extends CallableTask{
         this.nbVoxelisationFinished = nbVoxelisationFinished;
     }
     
+    /**
+     * Set the merged voxelisation of the project, the shots are then accumulated in
+     * a grid of its pool and the scan voxel file is not written.
+     * @param mergedVoxelisation merged voxelisation, null to write the scan voxel file
+     */
+    void setMergedVoxelisation(MergedTLSVoxelisation mergedVoxelisation) {
+        this.mergedVoxelisation = mergedVoxelisation;
+    }
+    
+    /**
+     * Create the voxel space of the scan, or take a grid of the merged voxelisation if any.
+     * The metrics of the scan voxelisation are started if the configuration instruments the runs.
+     * @throws InterruptedException if the thread was interrupted while waiting for a grid
+     */
+    protected void createVoxelSpace() throws InterruptedException{
+        
+        if(mergedVoxelisation != null){
+            voxelAnalysis = mergedVoxelisation.acquireGrid();
+            gridAcquired = true;
+        }else{
+            voxelAnalysis.createVoxelSpace();
+        }
+        
+        metrics = VoxelisationMetrics.create(cfg, outputFile);
+        voxelAnalysis.setMetrics(metrics);
+    }
+    
+    /**
+     * Stop the metrics of the scan voxelisation and write their summary, does nothing if they are already stopped.
+     */
+    protected void finishMetrics(){
+        
+        if(metrics != null){
+            metrics.finish(VoxelisationMetrics.getSummaryFile(outputFile, cfg.getMetricsFormat()));
+            metrics = null;
+        }
+    }
+    
+    /**
+     * Give back the grid to the merged voxelisation, does nothing if the grid was already released.
+     */
+    void releaseGrid(){
+        
+        if(gridAcquired){
+            voxelAnalysis.setMetrics(null);
+            mergedVoxelisation.releaseGrid(voxelAnalysis);
+            gridAcquired = false;
+            voxelAnalysis = null;
+        }
+    }
+    
+    /**
+     * Voxelise the shots of a cache file instead of reading the scan, the voxel space must be created.
+     * @param cacheFile a valid cache file of the scan, see {@link fr.amap.lidar.amapvox.shot.cache.ShotCache}
+     * @return false if the task was cancelled
+     * @throws IOException if the cache file cannot be read
+     */
+    protected boolean replayShotCache(File cacheFile) throws IOException{
+        
+        LOGGER.info("Replaying shot cache "+cacheFile);
+        
+        try(ShotCacheReader reader = new ShotCacheReader(cacheFile)){
+            
+            for(long i=0;i<reader.getNbShots();i++){
+                
+                if (Thread.currentThread().isInterrupted()){
+                    LOGGER.info("Task cancelled");
+                    return false;
+                }
+                
+                long startTime = metrics != null ? System.nanoTime() : 0;
+                
+                Shot shot = reader.getShot(i);
+                
+                if(metrics != null){
+                    metrics.addTime(VoxelisationMetrics.Stage.DECODE, System.nanoTime() - startTime);
+                    metrics.shotRead();
+                }
+                
+                voxelAnalysis.processOneShot(shot);
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Get the number of threads reading a gridded scan, the voxel space must be created.
+     * @return the number of worker threads of the voxelisation, 1 if the shots are propagated by the calling thread
+     */
+    protected int getNbReadingThreads(){
+        
+        if(voxelAnalysis instanceof ParallelVoxelAnalysis){
+            return ((ParallelVoxelAnalysis) voxelAnalysis).getNbThreads();
+        }
+        
+        return 1;
+    }
+    
+    /**
+     * Voxelise a gridded scan by column bands, the bands are read, transformed and propagated
+     * concurrently (see {@link ParallelVoxelAnalysis#processShots(List)}).
+     * Requires a multi-threaded voxelisation, see {@link #getNbReadingThreads()}.
+     * @param scan the gridded scan
+     * @param extractor the shot extractor of the scan
+     * @param transform transformation of the scan shots into voxelisation shots, must be thread-safe
+     * @return false if the task was cancelled
+     * @throws Exception if the scan cannot be read
+     */
+    protected boolean processColumnBands(GriddedPointScan scan, LPointShotExtractor extractor, ShotPipeline.Transform<LShot> transform) throws Exception{
+        
+        ParallelVoxelAnalysis parallelAnalysis = (ParallelVoxelAnalysis) voxelAnalysis;
+        
+        int[][] bands = scan.splitColumns(parallelAnalysis.getNbThreads() * COLUMN_BANDS_PER_THREAD);
+        
+        LOGGER.info("Reading "+bands.length+" column bands with "+parallelAnalysis.getNbThreads()+" threads");
+        
+        List<ShotPipeline.Source<Shot>> sources = new ArrayList<>(bands.length);
+        
+        for(int[] band : bands){
+            
+            Iterator<LShot> iterator = extractor.iterator(band[0], band[1]);
+            
+            sources.add(() -> {
+                
+                while(iterator.hasNext()){
+                    
+                    long shotTime = metrics != null ? System.nanoTime() : 0;
+                    
+                    LShot lShot = iterator.next();
+                    
+                    if(metrics != null){
+                        long decodedTime = System.nanoTime();
+                        metrics.addTime(VoxelisationMetrics.Stage.DECODE, decodedTime - shotTime);
+                        shotTime = decodedTime;
+                    }
+                    
+                    if(lShot != null){
+                        
+                        Shot shot = transform.transform(lShot);
+                        
+                        if(metrics != null){
+                            metrics.addTime(VoxelisationMetrics.Stage.TRANSFORM, System.nanoTime() - shotTime);
+                            metrics.shotRead();
+                        }
+                        
+                        if(shot != null){
+                            return shot;
+                        }
+                    }
+                }
+                
+                return null;
+            });
+        }
+        
+        try{
+            parallelAnalysis.processShots(sources);
+        }catch(InterruptedIOException ex){
+            LOGGER.info("Task cancelled");
+            return false;
+        }
+        
+        return true;
+    }
+    
     public void postProcess() throws IOException, Exception{
         
+        if(mergedVoxelisation != null){
+            finishMetrics();
+            releaseGrid();
+            fireSucceeded();
+            return;
+        }
             
         voxelAnalysis.computePADs();
 
         voxelAnalysis.write(cfg.getVoxelsFormat(), outputFile);
+        
+        finishMetrics();
 
         //VoxelAnalysisData resultData = voxelAnalysis.getResultData();
 
@@ -8,14 +8,19 @@ package fr.amap.lidar.amapvox.voxreader;
 import fr.amap.lidar.amapvox.commons.VoxelSpace;
 import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import org.apache.log4j.Logger;
 
 /**
  *
  * @author calcul
  */
-public abstract class AbstractReader{
+public abstract class AbstractReader implements Closeable{
+    
+    private final static Logger LOGGER = Logger.getLogger(AbstractReader.class);
 
     public VoxelSpace voxelSpace = null;
     public File voxelFile = null;
@@ -25,6 +30,11 @@ public abstract class AbstractReader{
     public int currentVoxelIndex = 0;
     public boolean wasRead = false;
     
+    /**
+     * Columns of a binary voxel file, null for a text voxel file.
+     */
+    public BinaryVoxelFileReader binaryReader = null;
+    
     public AbstractReader(File voxelFile, boolean keepInMemory) throws Exception{
         
         this.voxelFile = voxelFile;
@@ -35,6 +45,10 @@ public abstract class AbstractReader{
         
         voxelSpaceInfos.readFromVoxelFile(voxelFile);
         
+        if(BinaryVoxelFileReader.isBinaryVoxelFile(voxelFile)){
+            binaryReader = new BinaryVoxelFileReader(voxelFile);
+        }
+        
         if(keepInMemory){
             voxelSpace.voxels = new ArrayList<>();
         }
@@ -50,6 +64,10 @@ public abstract class AbstractReader{
         
         voxelSpaceInfos.readFromVoxelFile(voxelFile);
         
+        if(BinaryVoxelFileReader.isBinaryVoxelFile(voxelFile)){
+            binaryReader = new BinaryVoxelFileReader(voxelFile);
+        }
+        
         voxelSpace.voxels = new ArrayList<>();
     }
     
@@ -60,5 +78,59 @@ public abstract class AbstractReader{
     public VoxelSpaceInfos getVoxelSpaceInfos() {
         return voxelSpace.getVoxelSpaceInfos();
     }
+    
+    /**
+     * Reopen the binary voxel file released by a previous iteration.
+     */
+    protected void openBinaryReader(){
+        
+        if(binaryReader.isClosed() && !(wasRead && keepInMemory)){
+            try {
+                binaryReader = new BinaryVoxelFileReader(voxelFile);
+            } catch (Exception ex) {
+                LOGGER.error("Cannot open file "+voxelFile.getAbsolutePath(), ex);
+            }
+        }
+    }
+    
+    /**
+     * Test if the next voxel of a binary voxel file can be read.
+     * 
+     * @return false at the end of the file or when the voxels kept in memory are exhausted
+     */
+    protected boolean hasNextBinaryVoxel(){
+        
+        if(wasRead && keepInMemory){
+            return voxelSpace.voxels != null && currentVoxelIndex+1 < voxelSpace.voxels.size();
+        }
+        
+        boolean isNextExist = currentVoxelIndex+1 < binaryReader.getNbVoxels();
+
+        if(!isNextExist){
+            binaryReader.close();
+            wasRead = true;
+        }
+
+        return isNextExist;
+    }
+
+    /**
+     * Release the voxel file, an iteration which was not completed cannot be continued.
+     */
+    @Override
+    public void close(){
+        
+        if(binaryReader != null){
+            binaryReader.close();
+        }
+        
+        if(reader != null){
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                LOGGER.warn("Cannot close file "+voxelFile.getAbsolutePath(), ex);
+            }
+        }
+    }
  
 }
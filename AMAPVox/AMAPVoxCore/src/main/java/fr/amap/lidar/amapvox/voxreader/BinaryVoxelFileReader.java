@@ -0,0 +1,668 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxreader;
+
+import fr.amap.lidar.amapvox.commons.Voxel;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import org.apache.log4j.Logger;
+
+/**
+ * Reader of the binary columnar voxel file format.
+ *
+ * <p>The file starts with the same six text lines as a .vox file (the identifier
+ * is {@value #IDENTIFIER}, then the lines of {@link VoxelSpaceInfos#headerToString()}
+ * and the column names), so {@link VoxelSpaceInfos#readFromVoxelFile(File)} reads it.
+ * Then, from the next multiple of 8 bytes, everything is little-endian:</p>
+ *
+ * <pre>
+ * int  number of columns (same order as the column names line)
+ * long number of voxels (i, j, k order, k varies fastest)
+ * for each column:
+ *     int  compression ({@link #COMPRESSION_NONE} or {@link #COMPRESSION_DEFLATE})
+ *     long offset of the column data from the start of the file
+ *     long length of the column data in bytes
+ * column data: one float per voxel, raw or deflated
+ * </pre>
+ *
+ * <p>Uncompressed columns are memory mapped and returned without copy, compressed
+ * columns are inflated once in a direct buffer. Values are stored as float, the
+ * precision the text readers parse them with. To read the columns in order without
+ * loading them, use {@link #getColumnCursor(int)}.</p>
+ */
+public class BinaryVoxelFileReader implements Closeable {
+
+    private final static Logger LOGGER = Logger.getLogger(BinaryVoxelFileReader.class);
+
+    public final static String IDENTIFIER = "VOXEL SPACE BINARY";
+
+    public final static int COMPRESSION_NONE = 0;
+    public final static int COMPRESSION_DEFLATE = 1;
+
+    /**
+     * Number of text lines before the binary part.
+     */
+    public final static int HEADER_LINES = 6;
+
+    private final File file;
+    private final VoxelSpaceInfos infos;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    private final String[] columnNames;
+    private final int nbVoxels;
+    private final int[] compression;
+    private final long[] offset;
+    private final long[] length;
+
+    //mapped or inflated columns
+    private final FloatBuffer[] columns;
+
+    //read-only views of all the columns, for the voxel by voxel access
+    private volatile FloatBuffer[] views;
+
+    /**
+     * Open a binary voxel file and read its header, the columns are loaded on demand.
+     *
+     * @param file binary voxel file
+     * @throws Exception if the file cannot be read or is not a binary voxel file
+     */
+    public BinaryVoxelFileReader(File file) throws Exception {
+
+        this.file = file;
+
+        if(!isBinaryVoxelFile(file)){
+            throw new IOException("File " + file.getAbsolutePath() + " is not a binary voxel file");
+        }
+
+        infos = new VoxelSpaceInfos();
+        infos.readFromVoxelFile(file);
+        columnNames = infos.getColumnNames();
+
+        randomAccessFile = new RandomAccessFile(file, "r");
+        channel = randomAccessFile.getChannel();
+
+        try {
+            long tableOffset = align(getHeaderLength(channel));
+
+            ByteBuffer buffer = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, tableOffset);
+
+            int nbColumns = buffer.getInt();
+            long nbVoxelsInFile = buffer.getLong();
+
+            if(nbColumns != columnNames.length){
+                throw new IOException("Columns number doesn't match the header (" + nbColumns + " != " + columnNames.length + ")");
+            }
+
+            long expectedNbVoxels = (long) infos.getSplit().x * infos.getSplit().y * infos.getSplit().z;
+
+            if(nbVoxelsInFile != expectedNbVoxels){
+                throw new IOException("Voxels number doesn't match the split (" + nbVoxelsInFile + " != " + expectedNbVoxels + ")");
+            }
+
+            if(nbVoxelsInFile * Float.BYTES > Integer.MAX_VALUE){
+                throw new IOException("Too many voxels (" + nbVoxelsInFile + ") to map a column");
+            }
+
+            nbVoxels = (int) nbVoxelsInFile;
+
+            compression = new int[nbColumns];
+            offset = new long[nbColumns];
+            length = new long[nbColumns];
+            columns = new FloatBuffer[nbColumns];
+
+            buffer = ByteBuffer.allocate(nbColumns * 20).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, buffer, tableOffset + 12);
+
+            for (int i = 0; i < nbColumns; i++) {
+                compression[i] = buffer.getInt();
+                offset[i] = buffer.getLong();
+                length[i] = buffer.getLong();
+
+                if(offset[i] + length[i] > channel.size()){
+                    throw new IOException("Column " + columnNames[i] + " is truncated");
+                }
+            }
+
+        } catch (IOException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Check the identifier of a file.
+     *
+     * @param file file to test
+     * @return true if the file starts with {@value #IDENTIFIER}
+     */
+    public static boolean isBinaryVoxelFile(File file) {
+
+        byte[] expected = (IDENTIFIER + "\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] identifier = new byte[expected.length];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+
+            raf.readFully(identifier);
+
+            for (int i = 0; i < expected.length; i++) {
+                if(identifier[i] != expected[i]){
+                    return false;
+                }
+            }
+
+            return true;
+
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Offset of the binary part, from the end of the text header.
+     *
+     * @param headerLength length in bytes of the text header
+     * @return next multiple of 8
+     */
+    static long align(long headerLength) {
+        return (headerLength + 7) & ~7L;
+    }
+
+    private static long getHeaderLength(FileChannel channel) throws IOException {
+
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        long position = 0;
+        int nbLines = 0;
+
+        while (true) {
+
+            buffer.clear();
+
+            int read = channel.read(buffer, position);
+
+            if(read <= 0){
+                throw new IOException("Header is invalid");
+            }
+
+            for (int i = 0; i < read; i++) {
+                if(buffer.get(i) == '\n' && ++nbLines == HEADER_LINES){
+                    return position + i + 1;
+                }
+            }
+
+            position += read;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+
+            int read = channel.read(buffer, position);
+
+            if(read < 0){
+                throw new IOException("Unexpected end of file");
+            }
+
+            position += read;
+        }
+
+        buffer.flip();
+    }
+
+    /**
+     * Get a column, uncompressed columns are memory mapped (no copy).
+     *
+     * <p>The returned buffer is a view of the column with its own position,
+     * use absolute {@link FloatBuffer#get(int)} with {@link #index(int, int, int)}.</p>
+     *
+     * @param columnName name of the column, as in the header
+     * @return a read-only view of the column
+     * @throws IOException if the column does not exist or cannot be read
+     */
+    public FloatBuffer getColumn(String columnName) throws IOException {
+
+        int column = getColumnIndex(columnName);
+
+        if(column == -1){
+            throw new IOException("Column " + columnName + " does not exist in file " + file.getAbsolutePath());
+        }
+
+        return getColumn(column);
+    }
+
+    /**
+     * Get a column by index.
+     *
+     * @param column index of the column in {@link #getColumnNames()}
+     * @return a read-only view of the column
+     * @throws IOException if the column cannot be read
+     * @see #getColumn(String)
+     */
+    public synchronized FloatBuffer getColumn(int column) throws IOException {
+
+        if(columns[column] == null){
+
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, offset[column], length[column]);
+
+            switch (compression[column]) {
+
+                case COMPRESSION_NONE:
+
+                    if(length[column] != (long) nbVoxels * Float.BYTES){
+                        throw new IOException("Column " + columnNames[column] + " has an invalid length");
+                    }
+
+                    columns[column] = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                    break;
+
+                case COMPRESSION_DEFLATE:
+                    columns[column] = inflate(mapped, columnNames[column]);
+                    break;
+
+                default:
+                    throw new IOException("Unknown compression " + compression[column] + " for column " + columnNames[column]);
+            }
+        }
+
+        return columns[column].asReadOnlyBuffer();
+    }
+
+    /**
+     * Get a sequential reader of a column, compressed columns are inflated as they are read.
+     *
+     * @param column index of the column in {@link #getColumnNames()}
+     * @return a cursor on the first voxel, to close after use
+     * @throws IOException if the column cannot be read
+     */
+    public ColumnCursor getColumnCursor(int column) throws IOException {
+
+        switch (compression[column]) {
+
+            case COMPRESSION_NONE:
+
+                if(length[column] != (long) nbVoxels * Float.BYTES){
+                    throw new IOException("Column " + columnNames[column] + " has an invalid length");
+                }
+
+                return new ColumnCursor(column, null);
+
+            case COMPRESSION_DEFLATE:
+                return new ColumnCursor(column, new Inflater());
+
+            default:
+                throw new IOException("Unknown compression " + compression[column] + " for column " + columnNames[column]);
+        }
+    }
+
+    private FloatBuffer inflate(ByteBuffer compressed, String columnName) throws IOException {
+
+        ByteBuffer inflated = ByteBuffer.allocateDirect(nbVoxels * Float.BYTES);
+
+        Inflater inflater = new Inflater();
+
+        byte[] input = new byte[65536];
+        byte[] output = new byte[65536];
+
+        try {
+            while (!inflater.finished()) {
+
+                if(inflater.needsInput()){
+
+                    if(!compressed.hasRemaining()){
+                        throw new IOException("Column " + columnName + " is truncated");
+                    }
+
+                    int n = Math.min(input.length, compressed.remaining());
+                    compressed.get(input, 0, n);
+                    inflater.setInput(input, 0, n);
+                }
+
+                int n = inflater.inflate(output);
+
+                if(n > inflated.remaining()){
+                    throw new IOException("Column " + columnName + " has an invalid length");
+                }
+
+                inflated.put(output, 0, n);
+            }
+
+        } catch (DataFormatException ex) {
+            throw new IOException("Column " + columnName + " is corrupted", ex);
+        } finally {
+            inflater.end();
+        }
+
+        if(inflated.hasRemaining()){
+            throw new IOException("Column " + columnName + " has an invalid length");
+        }
+
+        inflated.flip();
+
+        return inflated.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+    }
+
+    /**
+     *
+     * @param columnName name of the column
+     * @return index of the column, -1 if it does not exist
+     */
+    public int getColumnIndex(String columnName) {
+
+        for (int i = 0; i < columnNames.length; i++) {
+            if(columnNames[i].equals(columnName)){
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Get all the columns, loaded once and shared by the voxel by voxel access.
+     *
+     * @return read-only views of the columns, in the {@link #getColumnNames()} order
+     * @throws IOException if a column cannot be read
+     */
+    public FloatBuffer[] getColumns() throws IOException {
+
+        FloatBuffer[] result = views;
+
+        if(result == null){
+
+            result = new FloatBuffer[columnNames.length];
+
+            for (int i = 0; i < columnNames.length; i++) {
+                result[i] = getColumn(i);
+            }
+
+            views = result;
+        }
+
+        return result;
+    }
+
+    /**
+     * Build a voxel from the columns, for the code working on {@link Voxel} instances.
+     *
+     * @param index voxel index
+     * @param voxel voxel to fill
+     * @return the filled voxel
+     * @throws IOException if a column cannot be read
+     */
+    public Voxel getVoxel(int index, Voxel voxel) throws IOException {
+
+        int splitZ = infos.getSplit().z;
+        int splitYZ = infos.getSplit().y * splitZ;
+
+        voxel.$i = index / splitYZ;
+        voxel.$j = (index % splitYZ) / splitZ;
+        voxel.$k = index % splitZ;
+
+        FloatBuffer[] buffers = getColumns();
+
+        for (int i = 0; i < columnNames.length; i++) {
+            setField(voxel, columnNames[i], buffers[i].get(index));
+        }
+
+        return voxel;
+    }
+
+    /**
+     * Set a numeric field of a voxel, like {@link Voxel#setFieldValue(Class, String, Object, Object)}
+     * without reflection. Columns unknown by this version of the voxel class are ignored.
+     */
+    private static void setField(Voxel voxel, String fieldName, float value) {
+
+        switch (fieldName) {
+            case "nbSampling":
+                voxel.nbSampling = (int) value;
+                break;
+            case "nbEchos":
+                voxel.nbEchos = (int) value;
+                break;
+            case "lgTotal":
+                voxel.lgTotal = value;
+                break;
+            case "ground_distance":
+                voxel.ground_distance = value;
+                break;
+            case "_sum_li":
+                voxel._sum_li = value;
+                break;
+            case "lMeanTotal":
+                voxel.lMeanTotal = value;
+                break;
+            case "transmittance":
+                voxel.transmittance = value;
+                break;
+            case "transmittance_tmp":
+                voxel.transmittance_tmp = value;
+                break;
+            case "angleMean":
+                voxel.angleMean = value;
+                break;
+            case "bvEntering":
+                voxel.bvEntering = value;
+                break;
+            case "bvIntercepted":
+                voxel.bvIntercepted = value;
+                break;
+            case "PadBVTotal":
+                voxel.PadBVTotal = value;
+                break;
+            case "sumSurfMulLength":
+                voxel.sumSurfMulLength = value;
+                break;
+            case "sumSurfMulLengthMulEnt":
+                voxel.sumSurfMulLengthMulEnt = value;
+                break;
+            case "_passNumber":
+                voxel._passNumber = value;
+                break;
+            case "_neighboursNumber":
+                voxel._neighboursNumber = value;
+                break;
+            default:
+                //i, j, k are set from the index
+        }
+    }
+
+    /**
+     * Get all the values of a voxel.
+     *
+     * @param index voxel index
+     * @param values array of length {@link #getColumnNames()}.length to fill
+     * @return the filled array
+     * @throws IOException if a column cannot be read
+     */
+    public float[] getValues(int index, float[] values) throws IOException {
+
+        FloatBuffer[] buffers = getColumns();
+
+        for (int i = 0; i < columnNames.length; i++) {
+            values[i] = buffers[i].get(index);
+        }
+
+        return values;
+    }
+
+    /**
+     *
+     * @param i index along x
+     * @param j index along y
+     * @param k index along z
+     * @return index of the voxel in the columns
+     */
+    public int index(int i, int j, int k) {
+        return (i * infos.getSplit().y + j) * infos.getSplit().z + k;
+    }
+
+    public VoxelSpaceInfos getVoxelSpaceInfos() {
+        return infos;
+    }
+
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    public int getNbVoxels() {
+        return nbVoxels;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     *
+     * @return true if the file was released, the columns not loaded yet cannot be read anymore
+     */
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    /**
+     * Sequential reader of a column, with positional reads of the file channel.
+     * The memory is the size of the last read, not of the column.
+     */
+    public class ColumnCursor implements Closeable {
+
+        private final int column;
+        private final long end;
+
+        //null for an uncompressed column
+        private final Inflater inflater;
+        private final byte[] input;
+
+        private long position;
+        private int index;
+        private byte[] bytes = new byte[0];
+
+        private ColumnCursor(int column, Inflater inflater) {
+
+            this.column = column;
+            this.inflater = inflater;
+            this.input = inflater == null ? null : new byte[65536];
+            this.position = offset[column];
+            this.end = offset[column] + length[column];
+        }
+
+        /**
+         * Read the next values of the column.
+         *
+         * @param values array to fill
+         * @param from first index to fill in the array
+         * @param count number of values to read
+         * @throws IOException if the column is truncated or corrupted
+         */
+        public void read(float[] values, int from, int count) throws IOException {
+
+            if(count > nbVoxels - index){
+                throw new IOException("Column " + columnNames[column] + " has only " + nbVoxels + " voxels");
+            }
+
+            int nbBytes = count * Float.BYTES;
+
+            if(bytes.length < nbBytes){
+                bytes = new byte[nbBytes];
+            }
+
+            if(inflater == null){
+                readFully(channel, ByteBuffer.wrap(bytes, 0, nbBytes), position);
+                position += nbBytes;
+            }else{
+                inflate(nbBytes);
+            }
+
+            ByteBuffer.wrap(bytes, 0, nbBytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(values, from, count);
+
+            index += count;
+        }
+
+        private void inflate(int nbBytes) throws IOException {
+
+            int filled = 0;
+
+            try {
+                while (filled < nbBytes) {
+
+                    if(inflater.finished()){
+                        throw new IOException("Column " + columnNames[column] + " has an invalid length");
+                    }
+
+                    if(inflater.needsInput()){
+
+                        if(position == end){
+                            throw new IOException("Column " + columnNames[column] + " is truncated");
+                        }
+
+                        int n = (int) Math.min(input.length, end - position);
+                        readFully(channel, ByteBuffer.wrap(input, 0, n), position);
+                        position += n;
+                        inflater.setInput(input, 0, n);
+                    }
+
+                    filled += inflater.inflate(bytes, filled, nbBytes - filled);
+                }
+
+            } catch (DataFormatException ex) {
+                throw new IOException("Column " + columnNames[column] + " is corrupted", ex);
+            }
+        }
+
+        /**
+         *
+         * @return index of the next voxel
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        @Override
+        public void close() {
+
+            if(inflater != null){
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Release the file, the mapped columns stay valid until garbage collected.
+     */
+    @Override
+    public void close() {
+
+        try {
+            randomAccessFile.close();
+        } catch (IOException ex) {
+            LOGGER.warn("Cannot close file " + file.getAbsolutePath(), ex);
+        }
+    }
+}
@@ -11,6 +11,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Iterator;
 import javax.vecmath.Point3i;
 import org.apache.log4j.Logger;
@@ -32,6 +33,11 @@ public class VoxelFileRawReader extends AbstractReader implements Iterable<RawVo
         
         currentVoxelIndex = -1;
         
+        if(binaryReader != null){
+            openBinaryReader();
+            return binaryIterator();
+        }
+        
         if((!wasRead && keepInMemory) || !keepInMemory){
             
             try {
@@ -58,6 +64,7 @@ public class VoxelFileRawReader extends AbstractReader implements Iterable<RawVo
                         boolean isNextExist = ((currentLine = reader.readLine()) != null);
 
                         if(!isNextExist){
+                            reader.close();
                             wasRead = true;
                         }
 
@@ -105,6 +112,48 @@ public class VoxelFileRawReader extends AbstractReader implements Iterable<RawVo
         return it;
     }
 
+    private Iterator<RawVoxel> binaryIterator(){
+        
+        return new Iterator<RawVoxel>() {
+
+            private final float[] values = new float[binaryReader.getColumnNames().length];
+            
+            @Override
+            public boolean hasNext() {
+                return hasNextBinaryVoxel();
+            }
+
+            @Override
+            public RawVoxel next() {
+                
+                currentVoxelIndex++;
+                
+                if(wasRead && keepInMemory){
+                    return (RawVoxel) voxelSpace.voxels.get(currentVoxelIndex);
+                }
+                
+                RawVoxel voxel;
+                
+                try {
+                    binaryReader.getValues(currentVoxelIndex, values);
+                    
+                    voxel = new RawVoxel((int) values[0], (int) values[1], (int) values[2]);
+                    voxel.attributs = Arrays.copyOfRange(values, 3, values.length);
+                    
+                } catch (IOException ex) {
+                    logger.error("Error reading voxel: "+currentVoxelIndex, ex);
+                    return null;
+                }
+                
+                if(keepInMemory){
+                    voxelSpace.voxels.add(voxel);
+                }
+                
+                return voxel;
+            }
+        };
+    }
+
     private RawVoxel parseVoxelFileLine(String line){
         
         try{
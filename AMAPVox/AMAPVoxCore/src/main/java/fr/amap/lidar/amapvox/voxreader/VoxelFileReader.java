@@ -39,7 +39,7 @@ public class VoxelFileReader extends AbstractReader implements Iterable<Voxel>{
             
             String identifier = reader.readLine();
             
-            if(!identifier.equals("VOXEL SPACE")){
+            if(!identifier.equals("VOXEL SPACE") && !identifier.equals(BinaryVoxelFileReader.IDENTIFIER)){
                 reader.close();
                 return false;
             }
@@ -60,6 +60,11 @@ public class VoxelFileReader extends AbstractReader implements Iterable<Voxel>{
         
         currentVoxelIndex = -1;
         
+        if(binaryReader != null){
+            openBinaryReader();
+            return binaryIterator();
+        }
+        
         if((!wasRead && keepInMemory) || !keepInMemory){
             
             try {
@@ -138,6 +143,42 @@ public class VoxelFileReader extends AbstractReader implements Iterable<Voxel>{
         return it;
     }
     
+    private Iterator<Voxel> binaryIterator(){
+        
+        return new Iterator<Voxel>() {
+
+            @Override
+            public boolean hasNext() {
+                return hasNextBinaryVoxel();
+            }
+
+            @Override
+            public Voxel next() {
+                
+                currentVoxelIndex++;
+                
+                if(wasRead && keepInMemory){
+                    return (Voxel) voxelSpace.voxels.get(currentVoxelIndex);
+                }
+                
+                Voxel voxel;
+                
+                try {
+                    voxel = binaryReader.getVoxel(currentVoxelIndex, new Voxel(0, 0, 0, Voxel.class));
+                } catch (IOException ex) {
+                    logger.error("Error reading voxel: "+currentVoxelIndex, ex);
+                    return null;
+                }
+                
+                if(keepInMemory){
+                    voxelSpace.voxels.add(voxel);
+                }
+                
+                return voxel;
+            }
+        };
+    }
+    
     public Voxel parseVoxelFileLine(String line){
         
         try{
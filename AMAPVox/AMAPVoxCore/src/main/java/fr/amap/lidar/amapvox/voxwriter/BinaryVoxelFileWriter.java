@@ -0,0 +1,281 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.lidar.amapvox.voxwriter;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.voxreader.BinaryVoxelFileReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writer of the binary columnar voxel file format, see {@link BinaryVoxelFileReader}
+ * for the layout.
+ *
+ * <p>Voxels are written one at a time in the order of the text files (i, j, k, k varies
+ * fastest) and dispatched in one buffer per column, so a single pass is needed.
+ * Uncompressed columns are written at their final place as soon as their buffer is
+ * full, compressed columns are deflated in one temporary file per column, next to the
+ * output file, and appended on {@link #close()}. The memory used does not depend on the
+ * size of the voxel space.</p>
+ */
+public class BinaryVoxelFileWriter implements Closeable {
+
+    //number of values buffered per column
+    private final static int BUFFER_SIZE = 16384;
+
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    private final int nbColumns;
+    private final long nbVoxels;
+    private final boolean compressed;
+    private final long tableOffset;
+
+    private final ByteBuffer[] buffers;
+    private final long[] offset;
+    private final long[] length;
+    private final File[] deflatedFiles;
+    private final FileOutputStream[] deflatedOutputs;
+    private final Deflater[] deflaters;
+    private final DeflaterOutputStream[] streams;
+
+    private long count;
+
+    /**
+     *
+     * @param outputFile file to write
+     * @param infos voxel space header
+     * @param columnNames names of the columns, in the order of the values given to {@link #write(float[])}
+     * @param compressed true to deflate the columns
+     * @throws IOException if the file cannot be created
+     */
+    public BinaryVoxelFileWriter(File outputFile, VoxelSpaceInfos infos, String[] columnNames, boolean compressed) throws IOException {
+
+        this.nbColumns = columnNames.length;
+        this.nbVoxels = (long) infos.getSplit().x * infos.getSplit().y * infos.getSplit().z;
+        this.compressed = compressed;
+
+        //text header, same lines as a voxel file
+        StringBuilder header = new StringBuilder(BinaryVoxelFileReader.IDENTIFIER);
+        header.append(infos.headerToString().substring("VOXEL SPACE".length())).append("\n");
+
+        for (int i = 0; i < columnNames.length; i++) {
+            if(i != 0){
+                header.append(" ");
+            }
+            header.append(columnNames[i]);
+        }
+        header.append("\n");
+
+        byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+
+        tableOffset = align(headerBytes.length);
+
+        buffers = new ByteBuffer[nbColumns];
+        offset = new long[nbColumns];
+        length = new long[nbColumns];
+        deflatedFiles = new File[nbColumns];
+        deflatedOutputs = new FileOutputStream[nbColumns];
+        deflaters = new Deflater[nbColumns];
+        streams = new DeflaterOutputStream[nbColumns];
+
+        long dataOffset = align(tableOffset + 12 + nbColumns * 20);
+
+        randomAccessFile = new RandomAccessFile(outputFile, "rw");
+
+        try {
+            for (int i = 0; i < nbColumns; i++) {
+
+                buffers[i] = ByteBuffer.allocate(BUFFER_SIZE * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+                if(compressed){
+                    deflatedFiles[i] = File.createTempFile(outputFile.getName() + "_" + i + "_", ".tmp", outputFile.getAbsoluteFile().getParentFile());
+                    deflatedOutputs[i] = new FileOutputStream(deflatedFiles[i]);
+                    deflaters[i] = new Deflater(Deflater.BEST_SPEED);
+                    streams[i] = new DeflaterOutputStream(deflatedOutputs[i], deflaters[i], 65536);
+                }else{
+                    offset[i] = dataOffset;
+                    length[i] = nbVoxels * Float.BYTES;
+                    dataOffset = align(dataOffset + length[i]);
+                }
+            }
+
+            randomAccessFile.setLength(0);
+            channel = randomAccessFile.getChannel();
+
+            writeFully(ByteBuffer.wrap(headerBytes), 0);
+
+        } catch (IOException ex) {
+            release();
+            throw ex;
+        }
+    }
+
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Write the next voxel.
+     *
+     * @param values one value per column
+     * @throws IOException if the file cannot be written
+     */
+    public void write(float[] values) throws IOException {
+
+        if(values.length != nbColumns){
+            throw new IllegalArgumentException("Columns number doesn't match (" + values.length + " != " + nbColumns + ")");
+        }
+
+        if(count == nbVoxels){
+            throw new IOException("All the voxels (" + nbVoxels + ") have already been written");
+        }
+
+        for (int i = 0; i < nbColumns; i++) {
+            buffers[i].putFloat(values[i]);
+        }
+
+        count++;
+
+        if(!buffers[0].hasRemaining()){
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+
+        //number of values already flushed
+        long flushed = ((count - 1) / BUFFER_SIZE) * BUFFER_SIZE;
+
+        for (int i = 0; i < nbColumns; i++) {
+
+            ByteBuffer buffer = buffers[i];
+            buffer.flip();
+
+            if(compressed){
+                streams[i].write(buffer.array(), 0, buffer.limit());
+            }else{
+                writeFully(buffer, offset[i] + flushed * Float.BYTES);
+            }
+
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Write the remaining values and the columns table.
+     *
+     * <p>If some voxels are missing (writing cancelled), the table is not written
+     * and the file is rejected by the reader.</p>
+     *
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+
+        try {
+            if(count != nbVoxels){
+                return;
+            }
+
+            if(buffers[0].position() > 0){
+                flush();
+            }
+
+            if(compressed){
+
+                long dataOffset = align(tableOffset + 12 + nbColumns * 20);
+
+                for (int i = 0; i < nbColumns; i++) {
+
+                    streams[i].close();
+
+                    offset[i] = dataOffset;
+                    length[i] = deflatedFiles[i].length();
+
+                    //nothing is transferred beyond the end of the file
+                    randomAccessFile.setLength(offset[i]);
+
+                    try (FileChannel deflatedChannel = new FileInputStream(deflatedFiles[i]).getChannel()) {
+
+                        long transferred = 0;
+
+                        while (transferred < length[i]) {
+                            transferred += channel.transferFrom(deflatedChannel, offset[i] + transferred, length[i] - transferred);
+                        }
+                    }
+
+                    dataOffset = align(dataOffset + length[i]);
+                }
+            }
+
+            ByteBuffer table = ByteBuffer.allocate(12 + nbColumns * 20).order(ByteOrder.LITTLE_ENDIAN);
+            table.putInt(nbColumns);
+            table.putLong(nbVoxels);
+
+            for (int i = 0; i < nbColumns; i++) {
+                table.putInt(compressed ? BinaryVoxelFileReader.COMPRESSION_DEFLATE : BinaryVoxelFileReader.COMPRESSION_NONE);
+                table.putLong(offset[i]);
+                table.putLong(length[i]);
+            }
+
+            table.flip();
+            writeFully(table, tableOffset);
+
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Close the files, end the deflaters and delete the temporary files.
+     */
+    private void release() throws IOException {
+
+        for (int i = 0; i < nbColumns; i++) {
+
+            if(deflatedOutputs[i] != null){
+                deflatedOutputs[i].close();
+            }
+
+            if(deflaters[i] != null){
+                deflaters[i].end();
+            }
+
+            if(deflatedFiles[i] != null){
+                deflatedFiles[i].delete();
+            }
+        }
+
+        randomAccessFile.close();
+    }
+}
@@ -0,0 +1,136 @@
+package fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel;
+
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import java.io.File;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare {@link DirectionalTransmittance} with the ray marcher sorting the voxel walls,
+ * and its batch methods with one call per ray.
+ */
+public class DirectionalTransmittanceMarcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void assertSameAsLegacy(VoxelsFormat format, boolean toricity) throws Exception {
+
+        File file = folder.newFile();
+        TestVoxelFiles.write(file, format, 10, 0.5f, 20000, 11);
+
+        DirectionalTransmittance transmittance = new DirectionalTransmittance(file);
+        transmittance.setToricity(toricity);
+
+        LegacyDirectionalTransmittance legacy = new LegacyDirectionalTransmittance(file);
+        legacy.setToricity(toricity);
+
+        Random random = new Random(5);
+
+        int nbDefined = 0;
+
+        for (int i = 0; i < 20000; i++) {
+
+            Point3d origin = new Point3d(random.nextDouble() * 10 - 5, random.nextDouble() * 10 - 5, random.nextDouble() * 10 - 5);
+
+            //upper hemisphere, some directions along the axis
+            Vector3d direction;
+
+            switch (i % 50) {
+                case 0:
+                    direction = new Vector3d(0, 0, 1);
+                    break;
+                case 1:
+                    direction = new Vector3d(1, 0, 1);
+                    break;
+                case 2:
+                    direction = new Vector3d(0, -1, 0.1);
+                    break;
+                default:
+                    direction = new Vector3d(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() + 0.01);
+            }
+
+            direction.normalize();
+
+            double expected = legacy.directionalTransmittance(origin, direction);
+            assertEquals(expected, transmittance.directionalTransmittance(origin, direction), 0);
+
+            if(!Double.isNaN(expected) && expected != 0 && expected != 1){
+                nbDefined++;
+            }
+        }
+
+        assertTrue(nbDefined > 1000);
+    }
+
+    @Test
+    public void testText() throws Exception {
+        assertSameAsLegacy(VoxelsFormat.VOXEL, false);
+    }
+
+    @Test
+    public void testToricity() throws Exception {
+        assertSameAsLegacy(VoxelsFormat.VOXEL, true);
+    }
+
+    @Test
+    public void testBinary() throws Exception {
+        assertSameAsLegacy(VoxelsFormat.BINARY, true);
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+
+        File file = folder.newFile();
+        TestVoxelFiles.write(file, VoxelsFormat.BINARY, 10, 0.5f, 20000, 11);
+
+        DirectionalTransmittance transmittance = new DirectionalTransmittance(file);
+        transmittance.setToricity(true);
+
+        Random random = new Random(9);
+
+        int nbRays = DirectionalTransmittance.BATCH_CHUNK_SIZE * 7 + 3;
+
+        Point3d[] origins = new Point3d[nbRays];
+        Vector3d[] directions = new Vector3d[nbRays];
+
+        for (int i = 0; i < nbRays; i++) {
+            origins[i] = new Point3d(random.nextDouble() * 10 - 5, random.nextDouble() * 10 - 5, random.nextDouble() * 10 - 5);
+            directions[i] = new Vector3d(random.nextDouble() * 2 - 1, random.nextDouble() * 2 - 1, random.nextDouble() + 0.01);
+            directions[i].normalize();
+        }
+
+        double[] transmittances = transmittance.directionalTransmittance(origins, directions);
+        double[] fromFirstOrigin = transmittance.directionalTransmittance(origins[0], directions);
+
+        //a range computed in the calling thread
+        double[] range = new double[nbRays];
+        transmittance.directionalTransmittance(origins[0], directions, 5, nbRays - 5, range);
+
+        for (int i = 0; i < nbRays; i++) {
+            assertEquals(i < 5 || i >= nbRays - 5 ? 0 : fromFirstOrigin[i], range[i], 0);
+        }
+
+        assertEquals(nbRays, transmittances.length);
+        assertEquals(nbRays, fromFirstOrigin.length);
+
+        for (int i = 0; i < nbRays; i++) {
+            assertEquals(transmittance.directionalTransmittance(origins[i], directions[i]), transmittances[i], 0);
+            assertEquals(transmittance.directionalTransmittance(origins[0], directions[i]), fromFirstOrigin[i], 0);
+        }
+
+        assertEquals(0, transmittance.directionalTransmittance(origins[0], new Vector3d[0]).length);
+
+        try {
+            transmittance.directionalTransmittance(new Point3d[2], new Vector3d[3]);
+            fail("The number of origins and directions differ");
+        } catch (IllegalArgumentException ex) {
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.LaserSpecification;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.EchoesWeightParams;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import java.io.File;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+
+/**
+ *
+ * Write voxel files of a synthetic canopy, voxelised from vertical ALS shots. The voxel space
+ * is a cube of the given size centered on the origin. The echoes are in its upper half,
+ * the lower voxels are not sampled by all the shots and some of them have no plant area density.
+ */
+public class TestVoxelFiles {
+
+    public static void write(File file, VoxelsFormat format, double size, float resolution, int nbShots, long seed) throws Exception {
+        write(file, format, false, size, resolution, nbShots, seed);
+    }
+
+    public static void write(File file, VoxelsFormat format, boolean compressed, double size, float resolution, int nbShots, long seed) throws Exception {
+
+        VoxelAnalysisCfg cfg = new VoxelAnalysisCfg();
+        cfg.setCompressVoxels(compressed);
+
+        double half = size / 2;
+
+        EchoesWeightParams echoesWeightParams = new EchoesWeightParams();
+        echoesWeightParams.setWeightingData(EchoesWeightParams.DEFAULT_ALS_WEIGHTING);
+        echoesWeightParams.setWeightingMode(EchoesWeightParams.WEIGHTING_ECHOS_NUMBER);
+        VoxelParameters params = new VoxelParameters.Builder(new Point3d(-half, -half, -half), new Point3d(half, half, half), resolution, VoxelSpaceInfos.Type.ALS).echoesWeightParams(echoesWeightParams).laserSpecification(LaserSpecification.LMS_Q560).padMAX(10.0f).build();
+        cfg.setVoxelParameters(params);
+
+        VoxelAnalysis voxelAnalysis = new VoxelAnalysis(null, null, cfg);
+        voxelAnalysis.createVoxelSpace();
+
+        Random random = new Random(seed);
+
+        for (int i = 0; i < nbShots; i++) {
+
+            Point3d origin = new Point3d((random.nextDouble() - 0.5) * size, (random.nextDouble() - 0.5) * size, size * 2);
+            Vector3d direction = new Vector3d(random.nextDouble() * 0.4 - 0.2, random.nextDouble() * 0.4 - 0.2, -1);
+            direction.normalize();
+
+            double[] ranges = new double[random.nextInt(4)];
+            double range = size * 1.5;
+            for (int e = 0; e < ranges.length; e++) {
+                range += random.nextDouble() * half / 2;
+                ranges[e] = range;
+            }
+
+            voxelAnalysis.processOneShot(new Shot(origin, direction, ranges));
+        }
+
+        voxelAnalysis.computePADs();
+        voxelAnalysis.write(format, file);
+    }
+}
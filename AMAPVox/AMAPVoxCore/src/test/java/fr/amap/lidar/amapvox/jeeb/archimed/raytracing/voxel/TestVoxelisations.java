@@ -0,0 +1,199 @@
+package fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel;
+
+import fr.amap.lidar.amapvox.commons.Voxel;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.LaserSpecification;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.EchoesWeightParams;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * Configurations, synthetic shots and voxel comparisons shared by the tests of the voxelisations.
+ * The shots only depend on the seed, a new list is created for each voxelisation since the
+ * voxelisation normalizes the directions in place.
+ */
+public class TestVoxelisations {
+
+    /**
+     * Configuration with the echoes weighting of the type, transmittance mode 2 and path length mode B.
+     */
+    public static VoxelAnalysisCfg createConfiguration(VoxelSpaceInfos.Type type, Point3d minCorner, Point3d maxCorner, float resolution) {
+
+        VoxelAnalysisCfg cfg = new VoxelAnalysisCfg();
+
+        EchoesWeightParams echoesWeightParams = new EchoesWeightParams();
+        echoesWeightParams.setWeightingData(type == VoxelSpaceInfos.Type.ALS ? EchoesWeightParams.DEFAULT_ALS_WEIGHTING : EchoesWeightParams.DEFAULT_TLS_WEIGHTING);
+        echoesWeightParams.setWeightingMode(EchoesWeightParams.WEIGHTING_ECHOS_NUMBER);
+        VoxelParameters params = new VoxelParameters.Builder(minCorner, maxCorner, resolution, type).echoesWeightParams(echoesWeightParams).laserSpecification(LaserSpecification.LMS_Q560).padMAX(10.0f).build();
+
+        params.setTransmittanceMode(2);
+        params.setPathLengthMode("B");
+        cfg.setVoxelParameters(params);
+
+        return cfg;
+    }
+
+    /**
+     * Shots from above the box, tilted up to 0.4 rad, with 0 to 4 echoes between the top of the box
+     * and its bottom. The origins overflow the box by a quarter of its size, so some shots cross its sides.
+     *
+     * @param withMasks mask some echoes of a quarter of the shots
+     */
+    public static List<Shot> createALSShots(Point3d minCorner, Point3d maxCorner, int nbShots, boolean withMasks, long seed) {
+
+        Random random = new Random(seed);
+        List<Shot> shots = new ArrayList<>(nbShots);
+
+        double sizeX = maxCorner.x - minCorner.x;
+        double sizeY = maxCorner.y - minCorner.y;
+        double height = maxCorner.z - minCorner.z;
+
+        for (int i = 0; i < nbShots; i++) {
+
+            Point3d origin = new Point3d(minCorner.x + (random.nextDouble() * 1.5 - 0.25) * sizeX,
+                    minCorner.y + (random.nextDouble() * 1.5 - 0.25) * sizeY, maxCorner.z + height * 3);
+
+            Vector3d direction = new Vector3d(random.nextDouble() * 0.8 - 0.4, random.nextDouble() * 0.8 - 0.4, -1);
+            direction.normalize();
+
+            int nbEchoes = random.nextInt(5);
+            double[] ranges = new double[nbEchoes];
+            double range = height * 3;
+            for (int e = 0; e < nbEchoes; e++) {
+                range += random.nextDouble() * height / 4;
+                ranges[e] = range;
+            }
+
+            Shot shot = new Shot(origin, direction, ranges);
+
+            if(withMasks && nbEchoes > 0 && random.nextInt(4) == 0){
+                boolean[] mask = new boolean[nbEchoes];
+                for (int e = 0; e < nbEchoes; e++) {
+                    mask[e] = random.nextBoolean();
+                }
+                shot.setMask(mask);
+            }
+
+            shots.add(shot);
+        }
+
+        return shots;
+    }
+
+    /**
+     * Shots of a scanner in the upper hemisphere, with 0 to 2 echoes up to 9 m.
+     */
+    public static List<Shot> createTLSShots(Point3d position, int nbShots, long seed) {
+
+        Random random = new Random(seed);
+        List<Shot> shots = new ArrayList<>(nbShots);
+
+        for (int i = 0; i < nbShots; i++) {
+
+            Vector3d direction = new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5, random.nextDouble() * 0.8 + 0.2);
+            direction.normalize();
+
+            int nbEchoes = random.nextInt(3);
+            double[] ranges = new double[nbEchoes];
+            double range = 1;
+            for (int e = 0; e < nbEchoes; e++) {
+                range += random.nextDouble() * 4;
+                ranges[e] = range;
+            }
+
+            shots.add(new Shot(new Point3d(position), direction, ranges));
+        }
+
+        return shots;
+    }
+
+    /**
+     * Create the voxel space, propagate the shots and compute the PADs.
+     * @return the voxel analysis
+     */
+    public static <T extends VoxelAnalysis> T voxelise(T voxelAnalysis, List<Shot> shots) throws Exception {
+
+        voxelAnalysis.createVoxelSpace();
+
+        for (Shot shot : shots) {
+            voxelAnalysis.processOneShot(shot);
+        }
+
+        voxelAnalysis.computePADs();
+
+        return voxelAnalysis;
+    }
+
+    /**
+     * Compare two voxel spaces voxel by voxel.
+     *
+     * @param tolerance relative tolerance of the double accumulators, 0 when the same shots are propagated
+     * in the same order; otherwise the path lengths are compared at 1e-4 at least, the angles at 1e-3 and the PADs at 1e-4
+     * @param minSampledVoxels the expected voxel space has more sampled voxels
+     */
+    public static void assertSameVoxels(VoxelStore expected, VoxelStore actual, double tolerance, int minSampledVoxels) {
+
+        Point3i split = expected.getSplit();
+        assertEquals(split, actual.getSplit());
+
+        boolean identical = tolerance == 0;
+        double lgTotalTolerance = identical ? 0 : Math.max(tolerance, 1e-4);
+
+        Voxel expectedVoxel = new Voxel();
+        Voxel actualVoxel = new Voxel();
+
+        int nbSampledVoxels = 0;
+
+        for (int i = 0; i < split.x; i++) {
+            for (int j = 0; j < split.y; j++) {
+                for (int k = 0; k < split.z; k++) {
+
+                    expected.getVoxel(i, j, k, expectedVoxel);
+                    actual.getVoxel(i, j, k, actualVoxel);
+
+                    if (expectedVoxel.nbSampling > 0) {
+                        nbSampledVoxels++;
+                    }
+
+                    String message = i + " " + j + " " + k;
+
+                    assertEquals(message, expectedVoxel.$i, actualVoxel.$i);
+                    assertEquals(message, expectedVoxel.$j, actualVoxel.$j);
+                    assertEquals(message, expectedVoxel.$k, actualVoxel.$k);
+                    assertEquals(message, expectedVoxel.nbSampling, actualVoxel.nbSampling);
+                    assertEquals(message, expectedVoxel.nbEchos, actualVoxel.nbEchos);
+                    assertEquals(message, expectedVoxel._lastEcho, actualVoxel._lastEcho);
+                    assertEquals(message, expectedVoxel._valid, actualVoxel._valid);
+                    assertEquals(message, expectedVoxel.ground_distance, actualVoxel.ground_distance, identical ? 0 : 1e-5);
+                    assertEquals(message, expectedVoxel.lgTotal, actualVoxel.lgTotal, lgTotalTolerance * Math.max(1, expectedVoxel.lgTotal));
+                    assertEquals(message, expectedVoxel.bvEntering, actualVoxel.bvEntering, tolerance * Math.max(1, expectedVoxel.bvEntering));
+                    assertEquals(message, expectedVoxel.bvIntercepted, actualVoxel.bvIntercepted, tolerance * Math.max(1, expectedVoxel.bvIntercepted));
+                    assertEquals(message, expectedVoxel.transmittance_tmp, actualVoxel.transmittance_tmp, tolerance * Math.max(1, expectedVoxel.transmittance_tmp));
+
+                    if (identical) {
+                        assertEquals(message, expectedVoxel.angleMean, actualVoxel.angleMean, 0);
+                        assertEquals(message, expectedVoxel.PadBVTotal, actualVoxel.PadBVTotal, 0);
+                    } else if (Float.isNaN(expectedVoxel.PadBVTotal)) {
+                        assertTrue(message, Float.isNaN(actualVoxel.PadBVTotal));
+                    } else {
+                        assertEquals(message, expectedVoxel.angleMean, actualVoxel.angleMean, 1e-3);
+                        assertEquals(message, expectedVoxel.PadBVTotal, actualVoxel.PadBVTotal, 1e-4);
+                    }
+                }
+            }
+        }
+
+        assertTrue(nbSampledVoxels > minSampledVoxels);
+    }
+}
@@ -0,0 +1,77 @@
+package fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel;
+
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.geometry.LineSegment;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.util.BoundingBox3d;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.VoxelManager.VoxelCrossingContext;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * Compare the traversal cursor with getFirstVoxelV2/CrossVoxel.
+ */
+public class VoxelTraversalTest {
+
+    private static void assertSameTraversal(VoxelManager voxelManager, VoxelTraversal traversal, LineSegment line) {
+
+        VoxelCrossingContext context = voxelManager.getFirstVoxelV2(line);
+
+        boolean crossing = traversal.start(line);
+
+        assertEquals(context != null && context.indices != null, crossing);
+
+        while ((context != null) && (context.indices != null)) {
+
+            double d1 = context.length;
+            Point3i indices = context.indices;
+
+            context = voxelManager.CrossVoxel(line, indices);
+
+            assertTrue(traversal.next());
+            assertEquals(indices.x, traversal.getI());
+            assertEquals(indices.y, traversal.getJ());
+            assertEquals(indices.z, traversal.getK());
+            assertEquals(d1, traversal.getEntry(), 0);
+            assertEquals(context.length, traversal.getExit(), 0);
+        }
+
+        assertFalse(traversal.next());
+    }
+
+    @Test
+    public void testSameAsCrossVoxel() {
+
+        VoxelManager voxelManager = new VoxelManager(new Scene(new BoundingBox3d(new Point3d(-10, -10, 0), new Point3d(10, 10, 5))),
+                new VoxelManagerSettings(new Point3i(40, 40, 10), VoxelManagerSettings.NON_TORIC_FINITE_BOX_TOPOLOGY));
+
+        VoxelTraversal traversal = voxelManager.createTraversal();
+
+        Random random = new Random(3);
+
+        for (int n = 0; n < 5000; n++) {
+
+            //origin inside and outside of the voxel space
+            Point3d origin = new Point3d(random.nextDouble() * 30 - 15, random.nextDouble() * 30 - 15, random.nextDouble() * 10 - 2);
+            Point3d end = new Point3d(random.nextDouble() * 30 - 15, random.nextDouble() * 30 - 15, random.nextDouble() * 10 - 2);
+
+            //axis aligned lines
+            switch (n % 5) {
+                case 1:
+                    end.x = origin.x;
+                    break;
+                case 2:
+                    end.x = origin.x;
+                    end.y = origin.y;
+                    break;
+                case 3:
+                    end.z = origin.z;
+                    break;
+            }
+
+            assertSameTraversal(voxelManager, traversal, new LineSegment(origin, end));
+        }
+    }
+}
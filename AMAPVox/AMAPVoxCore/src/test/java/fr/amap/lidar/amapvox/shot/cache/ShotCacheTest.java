@@ -0,0 +1,142 @@
+package fr.amap.lidar.amapvox.shot.cache;
+
+import fr.amap.commons.math.matrix.Mat4D;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelisations;
+import fr.amap.lidar.amapvox.shot.Shot;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+import javax.vecmath.Point3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Write shots in a cache file and read them back.
+ */
+public class ShotCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<Shot> createShots(int nbShots, boolean withMask) {
+        return TestVoxelisations.createALSShots(new Point3d(-1000, -1000, 0), new Point3d(1000, 1000, 100), nbShots, withMask, 11);
+    }
+
+    private static int[] getClassifications(Shot shot, int index) {
+
+        int[] classifications = new int[shot.getEchoesNumber()];
+
+        for (int i = 0; i < classifications.length; i++) {
+            classifications[i] = (index + i * 37) % 256;
+        }
+
+        return classifications;
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+
+        File source = folder.newFile("scan.rxp");
+        long key = ShotCache.computeKey(Mat4D.identity(), "test", source);
+        File cacheFile = ShotCache.getCacheFile(folder.getRoot(), source, key);
+
+        List<Shot> shots = createShots(5000, true);
+
+        try (ShotCacheWriter writer = new ShotCacheWriter(cacheFile, key)) {
+
+            for (int i = 0; i < shots.size(); i++) {
+                writer.write(shots.get(i), i % 2 == 0 ? getClassifications(shots.get(i), i) : null);
+            }
+
+            writer.commit();
+        }
+
+        assertTrue(ShotCache.isValid(cacheFile, key));
+        assertFalse(ShotCache.isValid(cacheFile, key + 1));
+
+        //only the cache file is left in the directory
+        assertEquals(2, folder.getRoot().list().length);
+
+        try (ShotCacheReader reader = new ShotCacheReader(cacheFile)) {
+
+            assertEquals(key, reader.getKey());
+            assertEquals(shots.size(), reader.getNbShots());
+
+            for (int i = 0; i < shots.size(); i++) {
+
+                Shot expected = shots.get(i);
+                Shot actual = reader.getShot(i);
+
+                assertEquals(expected.origin, actual.origin);
+                assertEquals(expected.direction, actual.direction);
+                assertArrayEquals(expected.ranges, actual.ranges, 0);
+                assertArrayEquals(expected.getMask(), actual.getMask());
+
+                if(i % 2 == 0){
+                    assertArrayEquals(getClassifications(expected, i), reader.getClassifications(i));
+                }else{
+                    assertNull(reader.getClassifications(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+
+        File source = folder.newFile("points.las");
+        Mat4D transformation = Mat4D.identity();
+
+        long key = ShotCache.computeKey(transformation, "las", source);
+
+        assertEquals(key, ShotCache.computeKey(transformation, "las", source));
+        assertNotEquals(key, ShotCache.computeKey(transformation, "shots-file", source));
+
+        Mat4D translation = Mat4D.identity();
+        translation.mat[3] = 10;
+        assertNotEquals(key, ShotCache.computeKey(translation, "las", source));
+
+        File cacheFile = ShotCache.getCacheFile(folder.getRoot(), source, key);
+
+        try (ShotCacheWriter writer = new ShotCacheWriter(cacheFile, key)) {
+            for (Shot shot : createShots(10, false)) {
+                writer.write(shot, null);
+            }
+            writer.commit();
+        }
+
+        assertTrue(ShotCache.isValid(cacheFile, key));
+
+        //the source file changed
+        try (RandomAccessFile file = new RandomAccessFile(source, "rw")) {
+            file.write(1);
+        }
+
+        assertNotEquals(key, ShotCache.computeKey(transformation, "las", source));
+
+        //truncated cache
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+            file.setLength(file.length() - 1);
+        }
+
+        assertFalse(ShotCache.isValid(cacheFile, key));
+    }
+
+    @Test
+    public void testNotCommitted() throws Exception {
+
+        File cacheFile = new File(folder.getRoot(), "cache/scan.shots");
+
+        try (ShotCacheWriter writer = new ShotCacheWriter(cacheFile, 1)) {
+            for (Shot shot : createShots(100, false)) {
+                writer.write(shot, null);
+            }
+        }
+
+        assertFalse(cacheFile.exists());
+        assertEquals(0, cacheFile.getParentFile().list().length);
+    }
+}
@@ -0,0 +1,93 @@
+package fr.amap.lidar.amapvox.simulation.transmittance;
+
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelFiles;
+import fr.amap.lidar.amapvox.simulation.transmittance.util.Period;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import javax.vecmath.Point3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the multi-threaded transmittance simulation with the single-threaded one.
+ */
+public class TransmittanceSimTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File voxelise() throws Exception {
+
+        File voxelFile = folder.newFile("voxels.vox");
+        TestVoxelFiles.write(voxelFile, VoxelsFormat.VOXEL, 10, 1.0f, 20000, 3);
+
+        return voxelFile;
+    }
+
+    private static SimulationPeriod period(int month, int startHour, int endHour, float clearness) {
+
+        Period period = new Period();
+
+        period.startDate = Calendar.getInstance();
+        period.startDate.clear();
+        period.startDate.set(2016, month, 15, startHour, 0);
+
+        period.endDate = Calendar.getInstance();
+        period.endDate.clear();
+        period.endDate.set(2016, month, 15, endHour, 0);
+
+        return new SimulationPeriod(period, clearness);
+    }
+
+    private byte[] simulate(File voxelFile, List<Point3d> positions, int nbThreads) throws Exception {
+
+        TransmittanceParameters parameters = new TransmittanceParameters();
+        parameters.setInputFile(voxelFile);
+        parameters.setDirectionsNumber(46);
+        parameters.setDirectionsRotation(10);
+        parameters.setToricity(true);
+        parameters.setPositions(positions);
+        parameters.setLatitudeInDegrees(5);
+
+        List<SimulationPeriod> periods = new ArrayList<>();
+        periods.add(period(Calendar.MARCH, 6, 18, 0.5f));
+        periods.add(period(Calendar.SEPTEMBER, 9, 15, 0.8f));
+        parameters.setSimulationPeriods(periods);
+
+        File textFile = new File(folder.getRoot(), "transmittance_" + nbThreads + ".txt");
+        parameters.setGenerateTextFile(true);
+        parameters.setTextFile(textFile);
+        parameters.setNbThreads(nbThreads);
+
+        TransmittanceSim sim = new TransmittanceSim();
+        sim.simulationProcess(new TransmittanceCfg(parameters));
+
+        return Files.readAllBytes(textFile.toPath());
+    }
+
+    @Test
+    public void testParallelSameAsSerial() throws Exception {
+
+        File voxelFile = voxelise();
+
+        List<Point3d> positions = new ArrayList<>();
+
+        for (double x = -4.75; x < 5; x += 0.5) {
+            for (double y = -4.75; y < 5; y += 0.5) {
+                positions.add(new Point3d(x, y, -4.5));
+            }
+        }
+
+        byte[] expected = simulate(voxelFile, positions, 1);
+
+        assertArrayEquals(expected, simulate(voxelFile, positions, 4));
+        assertArrayEquals(expected, simulate(voxelFile, positions, 3));
+    }
+}
@@ -0,0 +1,233 @@
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.commons.raster.asc.Raster;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelisations;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.DTMFilteringParams;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.GroundEnergyParams;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import javax.vecmath.Vector3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the multi-resolution voxelisation with a voxelisation per resolution.
+ */
+public class MultiResolutionVoxelAnalysisTest {
+
+    private final static int NB_SHOTS = 5000;
+
+    private final static float[] RESOLUTIONS = new float[]{2.0f, 3.0f};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static VoxelAnalysisCfg createConfiguration(float resolution) {
+
+        VoxelAnalysisCfg cfg = TestVoxelisations.createConfiguration(VoxelSpaceInfos.Type.ALS, new Point3d(0, 0, 0), new Point3d(20, 16, 10), resolution);
+
+        //shots going up are discarded
+        cfg.setShotFilter((Shot shot) -> shot.direction.z < 0);
+
+        return cfg;
+    }
+
+    /**
+     * Keep the echoes of the half of the voxel space with the lowest x and count the echoes filtered.
+     */
+    private static class CountingFilter extends PointcloudFilter {
+
+        private int nbEchoes;
+
+        CountingFilter() {
+            super(null, 0, true);
+        }
+
+        @Override
+        public boolean doFiltering(Point3d point) {
+            nbEchoes++;
+            return point.x < 10;
+        }
+    }
+
+    private static VoxelAnalysisCfg createFilteringConfiguration(float resolution) {
+
+        VoxelAnalysisCfg cfg = createConfiguration(resolution);
+        cfg.getVoxelParameters().setDtmFilteringParams(new DTMFilteringParams(null, 1));
+
+        return cfg;
+    }
+
+    //terrain rising from 0 to 4.5 m along x
+    private static Raster createTerrain() {
+
+        float[][] heights = new float[30][26];
+
+        for (int i = 0; i < heights.length; i++) {
+            for (int j = 0; j < heights[i].length; j++) {
+                heights[i][j] = i * 0.15f;
+            }
+        }
+
+        return new Raster(null, heights, -5, -5, 1, heights.length, heights[0].length);
+    }
+
+    private static List<Shot> createShots() {
+
+        List<Shot> shots = TestVoxelisations.createALSShots(new Point3d(0, 0, 0), new Point3d(20, 16, 10), NB_SHOTS, true, 7);
+
+        //directions not normalized, some of them discarded by the shot filter
+        for (int i = 0; i < shots.size(); i++) {
+
+            Vector3d direction = shots.get(i).direction;
+            direction.scale(2);
+
+            if (i % 20 == 0) {
+                direction.z = -direction.z;
+            }
+        }
+
+        return shots;
+    }
+
+    private static VoxelAnalysis voxelise(VoxelAnalysis voxelAnalysis) throws Exception {
+        return TestVoxelisations.voxelise(voxelAnalysis, createShots());
+    }
+
+    //same shots propagated in the same order, the grids are identical
+    private static void assertSameVoxels(VoxelStore expected, VoxelStore actual) {
+        TestVoxelisations.assertSameVoxels(expected, actual, 0, 100);
+    }
+
+    @Test
+    public void testSameAsVoxelisationPerResolution() throws Exception {
+
+        MultiResolutionVoxelAnalysis multiRes = new MultiResolutionVoxelAnalysis(null, null, createConfiguration(1.0f), RESOLUTIONS);
+        voxelise(multiRes);
+
+        VoxelAnalysis expected = voxelise(new VoxelAnalysis(null, null, createConfiguration(1.0f)));
+
+        assertEquals(expected.getNbShotsProcessed(), multiRes.getNbShotsProcessed());
+        assertTrue(multiRes.getNbShotsProcessed() < NB_SHOTS);
+        assertSameVoxels(expected.getVoxels(), multiRes.getVoxels());
+
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+
+            expected = voxelise(new VoxelAnalysis(null, null, createConfiguration(RESOLUTIONS[i])));
+
+            assertEquals(expected.getNbShotsProcessed(), multiRes.getGrid(i).getNbShotsProcessed());
+            assertSameVoxels(expected.getVoxels(), multiRes.getGrid(i).getVoxels());
+        }
+    }
+
+    @Test
+    public void testEchoesFilteredOnce() throws Exception {
+
+        Raster terrain = createTerrain();
+
+        CountingFilter filter = new CountingFilter();
+
+        MultiResolutionVoxelAnalysis multiRes = new MultiResolutionVoxelAnalysis(terrain, Collections.singletonList(filter), createFilteringConfiguration(1.0f), RESOLUTIONS);
+        voxelise(multiRes);
+
+        //each echo of a kept shot is filtered once for all the grids, the end of the ray for a shot without echoes
+        int nbEchoes = 0;
+
+        for (Shot shot : createShots()) {
+            if (shot.direction.z < 0) {
+                nbEchoes += Math.max(1, shot.getEchoesNumber());
+            }
+        }
+
+        assertEquals(nbEchoes, filter.nbEchoes);
+
+        VoxelAnalysis expected = voxelise(new VoxelAnalysis(terrain, Collections.singletonList(new CountingFilter()), createFilteringConfiguration(1.0f)));
+        assertSameVoxels(expected.getVoxels(), multiRes.getVoxels());
+
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+
+            expected = voxelise(new VoxelAnalysis(terrain, Collections.singletonList(new CountingFilter()), createFilteringConfiguration(RESOLUTIONS[i])));
+            assertSameVoxels(expected.getVoxels(), multiRes.getGrid(i).getVoxels());
+        }
+    }
+
+    @Test
+    public void testWrite() throws Exception {
+
+        MultiResolutionVoxelAnalysis multiRes = new MultiResolutionVoxelAnalysis(null, null, createConfiguration(1.0f), RESOLUTIONS);
+        voxelise(multiRes);
+
+        File outputFile = new File(folder.getRoot(), "voxels.vox");
+        multiRes.write(VoxelsFormat.VOXEL, outputFile);
+
+        assertTrue(outputFile.exists());
+
+        File resolutionFile = MultiResolutionVoxelAnalysis.getResolutionFile(outputFile, 3.0f);
+        assertEquals(new File(folder.getRoot(), "voxels_3.0m.vox"), resolutionFile);
+
+        VoxelSpaceInfos infos = new VoxelSpaceInfos();
+        infos.readFromVoxelFile(resolutionFile);
+
+        assertEquals(new Point3i(7, 6, 4), infos.getSplit());
+        assertEquals(3.0f, infos.getResolution(), 0);
+
+        //header lines and one line per voxel
+        assertEquals(6 + 7 * 6 * 4, Files.readAllLines(resolutionFile.toPath()).size());
+    }
+
+    @Test
+    public void testCompressedWrite() throws Exception {
+
+        VoxelAnalysisCfg cfg = createConfiguration(1.0f);
+        cfg.setCompressVoxels(true);
+
+        MultiResolutionVoxelAnalysis multiRes = new MultiResolutionVoxelAnalysis(null, null, cfg, RESOLUTIONS);
+        voxelise(multiRes);
+
+        File outputFile = new File(folder.getRoot(), "voxels.vox");
+        multiRes.write(VoxelsFormat.BINARY, outputFile);
+
+        //same file as the compressed voxelisation at this resolution
+        VoxelAnalysisCfg expectedCfg = createConfiguration(3.0f);
+        expectedCfg.setCompressVoxels(true);
+
+        File expectedFile = new File(folder.getRoot(), "expected.vox");
+        voxelise(new VoxelAnalysis(null, null, expectedCfg)).write(VoxelsFormat.BINARY, expectedFile);
+
+        assertArrayEquals(Files.readAllBytes(expectedFile.toPath()),
+                Files.readAllBytes(MultiResolutionVoxelAnalysis.getResolutionFile(outputFile, 3.0f).toPath()));
+    }
+
+    @Test
+    public void testGroundEnergyOfConfigurationOnly() throws Exception {
+
+        VoxelAnalysisCfg cfg = createConfiguration(1.0f);
+
+        GroundEnergyParams groundEnergyParams = new GroundEnergyParams();
+        groundEnergyParams.setCalculateGroundEnergy(true);
+        cfg.getVoxelParameters().setGroundEnergyParams(groundEnergyParams);
+
+        MultiResolutionVoxelAnalysis multiRes = new MultiResolutionVoxelAnalysis(null, null, cfg, RESOLUTIONS);
+        multiRes.createVoxelSpace();
+
+        assertNotNull(multiRes.getGroundEnergy());
+
+        for (int i = 0; i < RESOLUTIONS.length; i++) {
+            assertFalse(multiRes.getGridParameters(i).getGroundEnergyParams().isCalculateGroundEnergy());
+            assertNull(multiRes.getGrid(i).getGroundEnergy());
+        }
+
+        assertTrue(cfg.getVoxelParameters().getGroundEnergyParams().isCalculateGroundEnergy());
+    }
+}
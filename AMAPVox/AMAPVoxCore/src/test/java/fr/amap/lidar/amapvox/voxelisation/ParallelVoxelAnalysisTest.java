@@ -0,0 +1,60 @@
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.commons.Voxel;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelisations;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import java.util.List;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * Compare the multi-threaded voxelisation with the serial one.
+ */
+public class ParallelVoxelAnalysisTest {
+
+    private static VoxelAnalysisCfg createConfiguration() {
+        return TestVoxelisations.createConfiguration(VoxelSpaceInfos.Type.ALS, new Point3d(-5, -5, -5), new Point3d(5, 5, 5), 1.0f);
+    }
+
+    private static VoxelStore voxelise(VoxelAnalysis voxelAnalysis, int nbShots) throws Exception {
+
+        //shots are modified by the voxelisation (direction normalization), do not share them between runs
+        List<Shot> shots = TestVoxelisations.createALSShots(new Point3d(-5, -5, -5), new Point3d(5, 5, 5), nbShots, false, 42);
+
+        return TestVoxelisations.voxelise(voxelAnalysis, shots).getVoxels();
+    }
+
+    @Test
+    public void testSameAsSerial() throws Exception {
+
+        VoxelStore serial = voxelise(new VoxelAnalysis(null, null, createConfiguration()), 20000);
+
+        ParallelVoxelAnalysis parallelAnalysis = new ParallelVoxelAnalysis(null, null, createConfiguration(), 4);
+        VoxelStore parallel = voxelise(parallelAnalysis, 20000);
+
+        assertEquals(20000, parallelAnalysis.getNbShotsProcessed());
+        TestVoxelisations.assertSameVoxels(serial, parallel, 1e-9, 0);
+    }
+
+    @Test
+    public void testDeterministic() throws Exception {
+
+        VoxelStore first = voxelise(new ParallelVoxelAnalysis(null, null, createConfiguration(), 3), 20000);
+        VoxelStore second = voxelise(new ParallelVoxelAnalysis(null, null, createConfiguration(), 3), 20000);
+
+        Point3i split = first.getSplit();
+
+        for (int i = 0; i < split.x; i++) {
+            for (int j = 0; j < split.y; j++) {
+                for (int k = 0; k < split.z; k++) {
+                    assertEquals(first.getVoxel(i, j, k, new Voxel()).toString(), second.getVoxel(i, j, k, new Voxel()).toString());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.metrics.VoxelisationMetrics;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.stream.IntStream;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * Check that the shot pipeline keeps the order of the shots, drops the filtered ones and reports the failures of its stages.
+ */
+public class ShotPipelineTest {
+
+    private final static int NB_SHOTS = ShotPipeline.BATCH_SIZE * (ShotPipeline.QUEUE_CAPACITY * 3) + 17;
+
+    private static Shot toShot(Integer id) {
+        return new Shot(new Point3d(id, 0, 0), new Vector3d(0, 0, 1), new double[]{1});
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+
+        Iterator<Integer> ids = IntStream.range(0, NB_SHOTS).boxed().iterator();
+
+        VoxelisationMetrics metrics = new VoxelisationMetrics("test");
+
+        try (ShotPipeline<Integer> pipeline = new ShotPipeline<>(ids, (Integer id) -> id % 3 == 0 ? null : toShot(id), metrics)) {
+
+            int expected = 0;
+            int count = 0;
+            Shot shot;
+
+            while ((shot = pipeline.next()) != null) {
+
+                if (expected % 3 == 0) {
+                    expected++;
+                }
+
+                assertEquals(expected, (int) shot.origin.x);
+                expected++;
+                count++;
+            }
+
+            assertEquals(NB_SHOTS - (NB_SHOTS + 2) / 3, count);
+            assertNull(pipeline.next());
+        }
+
+        assertEquals(NB_SHOTS, metrics.getShotsRead());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+
+        try (ShotPipeline<Integer> pipeline = new ShotPipeline<>(() -> null, ShotPipelineTest::toShot, null)) {
+            assertNull(pipeline.next());
+        }
+    }
+
+    @Test
+    public void testSourceFailure() throws Exception {
+
+        int[] count = new int[1];
+
+        ShotPipeline.Source<Integer> source = () -> {
+            if (count[0] == 5000) {
+                throw new IOException("corrupted scan");
+            }
+            return count[0]++;
+        };
+
+        try (ShotPipeline<Integer> pipeline = new ShotPipeline<>(source, ShotPipelineTest::toShot, null)) {
+
+            while (pipeline.next() != null) {
+            }
+
+            fail("The failure of the reader stage was not reported");
+
+        } catch (IOException ex) {
+            assertEquals("corrupted scan", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testTransformFailure() throws Exception {
+
+        Iterator<Integer> ids = IntStream.range(0, NB_SHOTS).boxed().iterator();
+
+        ShotPipeline.Transform<Integer> transform = (Integer id) -> {
+            if (id == 3000) {
+                throw new IllegalStateException("invalid shot");
+            }
+            return toShot(id);
+        };
+
+        try (ShotPipeline<Integer> pipeline = new ShotPipeline<>(ids, transform, null)) {
+
+            while (pipeline.next() != null) {
+            }
+
+            fail("The failure of the transform stage was not reported");
+
+        } catch (IOException ex) {
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+
+        //endless source, the stages are blocked by the back-pressure until the pipeline is closed
+        ShotPipeline<Integer> pipeline = new ShotPipeline<>(() -> 0, ShotPipelineTest::toShot, null);
+
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(pipeline.next());
+        }
+
+        pipeline.close();
+    }
+}
@@ -0,0 +1,138 @@
+package fr.amap.lidar.amapvox.voxelisation;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelisations;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import javax.vecmath.Point3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the tiled voxelisation with the voxelisation of the whole voxel space.
+ */
+public class TiledVoxelAnalysisTest {
+
+    private final static int NB_SHOTS = 8000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static VoxelAnalysisCfg createConfiguration(int nbThreads) {
+
+        VoxelAnalysisCfg cfg = TestVoxelisations.createConfiguration(VoxelSpaceInfos.Type.ALS, new Point3d(0, 0, 0), new Point3d(20, 16, 10), 1.0f);
+        cfg.setNbThreads(nbThreads);
+
+        return cfg;
+    }
+
+    //oblique shots, some of them cross several tiles
+    private static List<Shot> createShots() {
+        return TestVoxelisations.createALSShots(new Point3d(0, 0, 0), new Point3d(20, 16, 10), NB_SHOTS, true, 3);
+    }
+
+    private static VoxelAnalysis voxelise(VoxelAnalysis voxelAnalysis) throws Exception {
+        return TestVoxelisations.voxelise(voxelAnalysis, createShots());
+    }
+
+    private static void assertSameVoxels(VoxelStore expected, VoxelStore actual) {
+        TestVoxelisations.assertSameVoxels(expected, actual, 1e-6, 1000);
+    }
+
+    @Test
+    public void testSameAsSingleVoxelisation() throws Exception {
+
+        VoxelAnalysis expected = voxelise(new VoxelAnalysis(null, null, createConfiguration(1)));
+
+        TiledVoxelAnalysis tiled = new TiledVoxelAnalysis(null, null, createConfiguration(2), 6, 2, folder.newFolder("tiles"));
+        voxelise(tiled);
+
+        assertEquals(12, tiled.getTiling().getNbTiles());
+        assertEquals(expected.getNbShotsProcessed(), tiled.getNbShotsProcessed());
+        assertSameVoxels(expected.getVoxels(), tiled.getVoxels());
+
+        File expectedFile = folder.newFile();
+        File actualFile = folder.newFile();
+        expected.write(VoxelsFormat.VOXEL, expectedFile);
+        tiled.write(VoxelsFormat.VOXEL, actualFile);
+
+        List<String> expectedLines = Files.readAllLines(expectedFile.toPath());
+        List<String> actualLines = Files.readAllLines(actualFile.toPath());
+
+        assertEquals(expectedLines.size(), actualLines.size());
+        assertEquals(expectedLines.subList(0, 6), actualLines.subList(0, 6));
+    }
+
+    @Test
+    public void testSingleTile() throws Exception {
+
+        VoxelAnalysis expected = voxelise(new VoxelAnalysis(null, null, createConfiguration(1)));
+
+        TiledVoxelAnalysis tiled = new TiledVoxelAnalysis(null, null, createConfiguration(1), 100, 0, folder.newFolder("tiles"));
+        voxelise(tiled);
+
+        assertEquals(1, tiled.getTiling().getNbTiles());
+        assertSameVoxels(expected.getVoxels(), tiled.getVoxels());
+    }
+
+    @Test
+    public void testTilesVoxelisedByAnotherProcess() throws Exception {
+
+        VoxelAnalysis expected = voxelise(new VoxelAnalysis(null, null, createConfiguration(1)));
+
+        File workingDirectory = folder.newFolder("tiles");
+
+        TiledVoxelAnalysis tiled = new TiledVoxelAnalysis(null, null, createConfiguration(1), 5, 1, workingDirectory);
+        tiled.createVoxelSpace();
+
+        for (Shot shot : createShots()) {
+            tiled.processOneShot(shot);
+        }
+
+        tiled.finishRouting();
+
+        //another process with the same configuration voxelises all the tiles
+        TiledVoxelAnalysis worker = new TiledVoxelAnalysis(null, null, createConfiguration(3), 5, 1, workingDirectory);
+        worker.voxeliseTiles();
+
+        tiled.computePADs();
+
+        assertSameVoxels(expected.getVoxels(), tiled.getVoxels());
+
+        tiled.deleteWorkingDirectory();
+        assertFalse(workingDirectory.exists());
+    }
+
+    @Test
+    public void testAbandonedLocks() throws Exception {
+
+        VoxelAnalysis expected = voxelise(new VoxelAnalysis(null, null, createConfiguration(1)));
+
+        File workingDirectory = folder.newFolder("tiles");
+
+        TiledVoxelAnalysis tiled = new TiledVoxelAnalysis(null, null, createConfiguration(2), 5, 1, workingDirectory);
+        tiled.setLockTimeout(1000);
+        tiled.createVoxelSpace();
+
+        for (Shot shot : createShots()) {
+            tiled.processOneShot(shot);
+        }
+
+        //processes killed after claiming tiles, long ago and just now
+        File oldLock = new File(workingDirectory, "tile_0.lock");
+        assertTrue(oldLock.createNewFile());
+        assertTrue(oldLock.setLastModified(System.currentTimeMillis() - 600000));
+        assertTrue(new File(workingDirectory, "tile_3.lock").createNewFile());
+
+        tiled.computePADs();
+
+        assertSameVoxels(expected.getVoxels(), tiled.getVoxels());
+    }
+}
@@ -0,0 +1,200 @@
+package fr.amap.lidar.amapvox.voxelisation.als;
+
+import fr.amap.amapvox.als.LasPoint;
+import fr.amap.commons.math.matrix.Mat4D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the external sort of the points with the in memory sort.
+ */
+public class LasPointSorterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<LasPoint> createPoints(int nbPoints) {
+
+        Random random = new Random(3);
+
+        List<LasPoint> points = new ArrayList<>(nbPoints);
+
+        for (int i = 0; i < nbPoints; i++) {
+
+            //few distinct times, to check that the order of equal times is kept
+            double time = random.nextInt(nbPoints / 4) * 0.01;
+            int n = random.nextInt(4) + 1;
+
+            points.add(new LasPoint(random.nextDouble() * 100, random.nextDouble() * 100, random.nextDouble() * 30,
+                    random.nextInt(n) + 1, n, random.nextInt(255), (short) random.nextInt(6), time));
+        }
+
+        return points;
+    }
+
+    private static List<LasPoint> createShots(int nbShots) {
+
+        Random random = new Random(5);
+
+        List<LasPoint> points = new ArrayList<>();
+
+        for (int i = 0; i < nbShots; i++) {
+
+            double time = i * 0.0091;
+            int n = random.nextInt(4) + 1;
+
+            for (int r = 1; r <= n; r++) {
+                points.add(new LasPoint(random.nextDouble() * 100, random.nextDouble() * 100, random.nextDouble() * 30,
+                        r, n, random.nextInt(255), (short) random.nextInt(6), time));
+            }
+        }
+
+        //shots in acquisition order, echoes of a shot are kept in the same order by the sort
+        Collections.shuffle(points, random);
+
+        return points;
+    }
+
+    private static void assertSamePoint(LasPoint expected, LasPoint actual) {
+
+        assertEquals(expected.x, actual.x, 0);
+        assertEquals(expected.y, actual.y, 0);
+        assertEquals(expected.z, actual.z, 0);
+        assertEquals(expected.t, actual.t, 0);
+        assertEquals(expected.r, actual.r);
+        assertEquals(expected.n, actual.n);
+        assertEquals(expected.i, actual.i);
+        assertEquals(expected.classification, actual.classification);
+    }
+
+    @Test
+    public void testExternalSort() throws Exception {
+
+        List<LasPoint> points = createPoints(10000);
+
+        List<LasPoint> expected = new ArrayList<>(points);
+        Collections.sort(expected);
+
+        try (LasPointSorter sorter = new LasPointSorter(777, folder.getRoot())) {
+
+            for (LasPoint point : points) {
+                sorter.add(point);
+            }
+
+            sorter.sort();
+
+            assertEquals(13, sorter.getNbRuns());
+            assertEquals(points.size(), sorter.size());
+            assertEquals(expected.get(0).t, sorter.getMinTime(), 0);
+            assertEquals(expected.get(expected.size() - 1).t, sorter.getMaxTime(), 0);
+
+            //iterated twice, as in a voxelisation update
+            for (int pass = 0; pass < 2; pass++) {
+
+                Iterator<LasPoint> iterator = sorter.iterator();
+
+                for (LasPoint point : expected) {
+                    assertTrue(iterator.hasNext());
+                    assertSamePoint(point, iterator.next());
+                }
+
+                assertFalse(iterator.hasNext());
+            }
+        }
+
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testMultiPassMerge() throws Exception {
+
+        List<LasPoint> points = createPoints(20000);
+
+        List<LasPoint> expected = new ArrayList<>(points);
+        Collections.sort(expected);
+
+        try (LasPointSorter sorter = new LasPointSorter(150, folder.getRoot())) {
+
+            for (LasPoint point : points) {
+                sorter.add(point);
+            }
+
+            sorter.sort();
+
+            //134 runs merged 2 by 2, no more run files than merged at once
+            assertEquals(134, sorter.getNbRuns());
+            assertEquals(2, sorter.getMaxFanIn());
+            assertTrue(folder.getRoot().list().length <= sorter.getMaxFanIn());
+
+            Iterator<LasPoint> iterator = sorter.iterator();
+
+            for (LasPoint point : expected) {
+                assertTrue(iterator.hasNext());
+                assertSamePoint(point, iterator.next());
+            }
+
+            assertFalse(iterator.hasNext());
+        }
+
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testShotsWithTrajectoryWindow() throws Exception {
+
+        List<LasPoint> points = createShots(1000);
+
+        List<Trajectory> trajectory = new ArrayList<>();
+        for (int i = -10; i < 1100; i++) {
+            trajectory.add(new Trajectory(i * 0.5, 10 + Math.sin(i * 0.01), 500 + i * 0.001, i * 0.0093));
+        }
+
+        List<LasPoint> sortedPoints = new ArrayList<>(points);
+        Collections.sort(sortedPoints);
+
+        PointsToShotIterator expected = new PointsToShotIterator(trajectory, sortedPoints, Mat4D.identity());
+
+        try (LasPointSorter sorter = new LasPointSorter(500, folder.getRoot())) {
+
+            for (LasPoint point : points) {
+                sorter.add(point);
+            }
+
+            sorter.sort();
+
+            PointsToShotIterator actual = new PointsToShotIterator(new TrajectoryWindow(trajectory.iterator(), trajectory.size()),
+                    sorter.iterator(), sorter.size(), Mat4D.identity());
+
+            int nbShots = 0;
+            AlsShot expectedShot;
+
+            while ((expectedShot = expected.next()) != null) {
+
+                AlsShot actualShot = actual.next();
+
+                assertNotNull(actualShot);
+                assertEquals(expectedShot.time, actualShot.time, 0);
+                assertEquals(expectedShot.origin.x, actualShot.origin.x, 0);
+                assertEquals(expectedShot.origin.y, actualShot.origin.y, 0);
+                assertEquals(expectedShot.origin.z, actualShot.origin.z, 0);
+                assertEquals(expectedShot.direction.x, actualShot.direction.x, 0);
+                assertEquals(expectedShot.direction.y, actualShot.direction.y, 0);
+                assertEquals(expectedShot.direction.z, actualShot.direction.z, 0);
+                assertArrayEquals(expectedShot.ranges, actualShot.ranges, 0);
+
+                nbShots++;
+            }
+
+            assertNull(actual.next());
+            assertTrue(nbShots > 0);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package fr.amap.lidar.amapvox.voxelisation.als;
+
+import fr.amap.commons.util.io.NumberParser;
+import fr.amap.lidar.amapvox.shot.Shot;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the chunked parsing of a shot text file with the parsing of its lines one by one.
+ */
+public class ShotFileReaderTest {
+
+    private final static int NB_SHOTS = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeShotFile(long seed) throws IOException {
+
+        File file = folder.newFile("shots.txt");
+        Random random = new Random(seed);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+
+            writer.write("xOrigin yOrigin zOrigin xDirection yDirection zDirection nbEchoes r1 r2 r3 r4 r5 r6 r7 c1 c2 c3 c4 c5 c6 c7\n");
+
+            for (int i = 0; i < NB_SHOTS; i++) {
+
+                StringBuilder line = new StringBuilder();
+
+                line.append(random.nextDouble() * 1000).append(' ')
+                        .append(String.format(Locale.ROOT, "%.3f", random.nextDouble() * 1000)).append(' ')
+                        .append(random.nextInt(500)).append(' ')
+                        .append(random.nextGaussian()).append(' ')
+                        .append(String.format(Locale.ROOT, "%.6f", random.nextGaussian())).append(' ')
+                        .append(-random.nextDouble()).append(' ');
+
+                int nbEchoes = random.nextInt(8);
+                line.append(nbEchoes);
+
+                for (int e = 0; e < 7; e++) {
+                    line.append(' ').append(e < nbEchoes ? String.format(Locale.ROOT, "%.2f", random.nextDouble() * 300) : "0");
+                }
+
+                for (int e = 0; e < 7; e++) {
+                    line.append(' ').append(random.nextInt(10));
+                }
+
+                writer.write(line.toString());
+                writer.write(i % 7 == 0 ? "\r\n" : "\n");
+            }
+        }
+
+        return file;
+    }
+
+    private static List<Shot> readLines(File file) throws IOException {
+
+        List<Shot> shots = new ArrayList<>();
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+
+        for (String line : lines.subList(1, lines.size())) {
+
+            String[] split = line.trim().split(" ");
+
+            double[] ranges = new double[Integer.valueOf(split[6])];
+
+            for (int i = 0; i < ranges.length; i++) {
+                ranges[i] = Double.valueOf(split[7 + i]);
+            }
+
+            shots.add(new Shot(new javax.vecmath.Point3d(Double.valueOf(split[0]), Double.valueOf(split[1]), Double.valueOf(split[2])),
+                    new javax.vecmath.Vector3d(Double.valueOf(split[3]), Double.valueOf(split[4]), Double.valueOf(split[5])), ranges));
+        }
+
+        return shots;
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+
+        File file = writeShotFile(0);
+        List<Shot> expected = readLines(file);
+
+        //chunks much smaller than the file, the lines cross the chunk boundaries
+        for (int chunkSize : new int[]{4096, 65536, ShotFileReader.DEFAULT_CHUNK_SIZE}) {
+
+            try (ShotFileReader reader = new ShotFileReader(file, 3, chunkSize, null)) {
+
+                int count = 0;
+                Shot shot;
+
+                while ((shot = reader.next()) != null) {
+
+                    Shot expectedShot = expected.get(count);
+
+                    assertEquals(expectedShot.origin, shot.origin);
+                    assertEquals(expectedShot.direction, shot.direction);
+                    assertArrayEquals(expectedShot.ranges, shot.ranges, 0);
+
+                    count++;
+                }
+
+                assertEquals(NB_SHOTS, count);
+                assertEquals(reader.getSize(), reader.getPosition());
+            }
+        }
+    }
+
+    @Test
+    public void testMissingColumns() throws Exception {
+
+        File file = folder.newFile("invalid.txt");
+        Files.write(file.toPath(), "header\n1 2 3 0 0 -1 0\n1 2 3 0 0 -1 2 10 20\n".getBytes(StandardCharsets.US_ASCII));
+
+        try (ShotFileReader reader = new ShotFileReader(file, 2, null)) {
+
+            while (reader.next() != null) {
+            }
+
+            fail("The missing classifications were not reported");
+
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("Columns missing"));
+        }
+    }
+
+    @Test
+    public void testParseDouble() {
+
+        Random random = new Random(1);
+
+        for (int i = 0; i < 20000; i++) {
+
+            double value = Double.longBitsToDouble(random.nextLong());
+
+            String[] texts = {
+                String.valueOf(value),
+                String.valueOf(random.nextDouble() * 1000),
+                String.format(Locale.ROOT, "%.4f", random.nextGaussian() * 100),
+                String.valueOf(random.nextInt())};
+
+            for (String text : texts) {
+
+                byte[] bytes = (" " + text + " ").getBytes(StandardCharsets.US_ASCII);
+
+                assertEquals(text, Double.doubleToRawLongBits(Double.parseDouble(text)),
+                        Double.doubleToRawLongBits(NumberParser.parseDouble(bytes, 1, text.length())));
+                assertEquals(text, Double.doubleToRawLongBits(Double.parseDouble(text)),
+                        Double.doubleToRawLongBits(NumberParser.parseDouble(text.toCharArray(), 0, text.length())));
+            }
+        }
+
+        byte[] bytes = "-2147483648".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(Integer.MIN_VALUE, NumberParser.parseInt(bytes, 0, bytes.length));
+    }
+}
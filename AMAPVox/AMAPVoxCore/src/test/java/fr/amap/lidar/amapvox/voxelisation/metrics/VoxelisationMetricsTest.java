@@ -0,0 +1,147 @@
+package fr.amap.lidar.amapvox.voxelisation.metrics;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelisations;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.vecmath.Point3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Check the counters of an instrumented voxelisation and its summary files.
+ */
+public class VoxelisationMetricsTest {
+
+    private final static int NB_SHOTS = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static VoxelAnalysis voxelise(VoxelisationMetrics metrics) throws Exception {
+
+        VoxelAnalysisCfg cfg = TestVoxelisations.createConfiguration(VoxelSpaceInfos.Type.TLS, new Point3d(-5, -5, -5), new Point3d(5, 5, 5), 1.0f);
+        cfg.setMetricsFormat(VoxelisationMetrics.SummaryFormat.JSON);
+
+        VoxelAnalysis voxelAnalysis = new VoxelAnalysis(null, null, cfg);
+        voxelAnalysis.createVoxelSpace();
+        voxelAnalysis.setMetrics(metrics);
+
+        for (Shot shot : TestVoxelisations.createTLSShots(new Point3d(0, 0, -4), NB_SHOTS, 0)) {
+            metrics.shotRead();
+            voxelAnalysis.processOneShot(shot);
+        }
+
+        voxelAnalysis.computePADs();
+
+        return voxelAnalysis;
+    }
+
+    @Test
+    public void testCounters() throws Exception {
+
+        VoxelisationMetrics metrics = new VoxelisationMetrics("test");
+        metrics.start();
+
+        VoxelAnalysis voxelAnalysis = voxelise(metrics);
+        voxelAnalysis.write(VoxelAnalysisCfg.VoxelsFormat.VOXEL, folder.newFile("test.vox"));
+
+        metrics.stop();
+
+        assertEquals(NB_SHOTS, metrics.getShotsRead());
+        assertEquals(voxelAnalysis.getNbShotsProcessed(), metrics.getShotsKept());
+        assertEquals(metrics.getShotsRead() - metrics.getShotsKept(), metrics.getShotsFiltered());
+        assertEquals(voxelAnalysis.getNbVoxelsTraversed(), metrics.getVoxelsTraversed());
+        assertTrue(metrics.getVoxelsTraversed() > 0);
+        assertTrue(metrics.getPropagateTime() >= 0);
+        assertTrue(metrics.getTime(VoxelisationMetrics.Stage.PROPAGATE) > 0);
+        assertTrue(metrics.getTime(VoxelisationMetrics.Stage.WRITE) > 0);
+        assertTrue(metrics.getHeapHighWaterMark() > 0);
+    }
+
+    @Test
+    public void testHeapPeaksNotReset() throws Exception {
+
+        Map<String, Long> peaks = new HashMap<>();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid() && pool.getPeakUsage() != null) {
+                peaks.put(pool.getName(), pool.getPeakUsage().getUsed());
+            }
+        }
+
+        VoxelisationMetrics metrics = new VoxelisationMetrics("test");
+        metrics.start();
+
+        //the peaks of the JVM are shared by the other runs and monitoring tools
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (peaks.containsKey(pool.getName()) && pool.isValid()) {
+                assertTrue(pool.getName(), pool.getPeakUsage().getUsed() >= peaks.get(pool.getName()));
+            }
+        }
+
+        voxelise(metrics);
+        metrics.stop();
+
+        assertTrue(metrics.getHeapHighWaterMark() > 0);
+    }
+
+    @Test
+    public void testSummary() throws Exception {
+
+        VoxelisationMetrics metrics = new VoxelisationMetrics("test");
+        metrics.start();
+        voxelise(metrics);
+        metrics.stop();
+
+        File jsonFile = VoxelisationMetrics.getSummaryFile(folder.newFile("test.vox"), VoxelisationMetrics.SummaryFormat.JSON);
+        metrics.writeSummary(jsonFile);
+
+        String json = new String(Files.readAllBytes(jsonFile.toPath()), StandardCharsets.UTF_8);
+        assertTrue(json.trim().startsWith("{"));
+        assertTrue(json.contains("\"name\""));
+        assertTrue(json.contains("\"shots_read\": " + NB_SHOTS));
+
+        File csvFile = VoxelisationMetrics.getSummaryFile(folder.newFile("test2.vox"), VoxelisationMetrics.SummaryFormat.CSV);
+        metrics.writeSummary(csvFile);
+
+        List<String> lines = Files.readAllLines(csvFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals(lines.get(0).split(",").length, lines.get(1).split(",").length);
+        assertTrue(lines.get(0).contains("shots_read"));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+
+        VoxelisationMetrics metrics = new VoxelisationMetrics("test");
+        metrics.registerMBean();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("fr.amap.lidar.amapvox:type=Voxelisation,name=" + ObjectName.quote("test"));
+
+        try {
+            metrics.shotRead();
+            assertEquals(1L, server.getAttribute(name, "ShotsRead"));
+        } finally {
+            metrics.unregisterMBean();
+        }
+
+        assertFalse(server.isRegistered(name));
+    }
+}
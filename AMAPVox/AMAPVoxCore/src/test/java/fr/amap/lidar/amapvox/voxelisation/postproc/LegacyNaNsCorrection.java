@@ -0,0 +1,215 @@
+package fr.amap.lidar.amapvox.voxelisation.postproc;
+
+import fr.amap.commons.util.Statistic;
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import org.apache.log4j.Logger;
+import fr.amap.commons.util.Cancellable;
+import java.util.Arrays;
+
+/**
+ *
+ * Copy of the voxel by voxel NA correction before the summed-volume tables, used as the reference.
+ */
+class LegacyNaNsCorrection implements Cancellable{
+    
+    private final static Logger LOGGER = Logger.getLogger(LegacyNaNsCorrection.class);
+    
+    private boolean cancelled;
+    
+    public void correct(VoxelParameters parameters, VoxelStore voxels){
+        
+        int xSplit = parameters.infos.getSplit().x;
+        int ySplit = parameters.infos.getSplit().y;
+        int zSplit = parameters.infos.getSplit().z;
+        
+        int[][] canopeeArray = new int[xSplit][ySplit];
+        for (int x = 0; x < xSplit; x++) {
+            for (int y = 0; y < ySplit; y++) {
+                for (int z = zSplit-1; z >= 0; z--) {
+                    
+                    int voxel = voxels.index(x, y, z);
+                    
+                    if (voxels.getNbSampling(voxel) > 0 && voxels.getNbEchos(voxel) > 0) {
+                        canopeeArray[x][y] = z;
+                        break;
+                    }
+                }
+            }
+        }
+        
+        int passLimit = Integer.max(Integer.max(xSplit, ySplit), zSplit);
+        
+        int passMax = 0;
+        
+        long startTime = System.currentTimeMillis();
+        
+        for (int x = 0; x < xSplit; x++) {
+            for (int y = 0; y < ySplit; y++) {
+                for (int z = zSplit-1; z >=0 ; z--) {
+                    
+                    if(cancelled){
+                        return;
+                    }
+                    
+                    int voxel = voxels.index(x, y, z);
+                    
+                    if(voxels.getGroundDistance(voxel) >= (parameters.infos.getResolution() / 2.0f)){
+                        
+                        float currentNbSampling = voxels.getNbSampling(voxel);
+                        float currentTransmittance = voxels.getTransmittance(voxel);
+
+                        //linear indices of the neighbours
+                        int[] neighbours = new int[26];
+                        int nbNeighbours = 0;
+                        int nbRemovedNeighbors = 0;
+
+                        int passID = 1;
+
+                        //testloop:
+                        while(currentNbSampling <= parameters.getNaNsCorrectionParams().getNbSamplingThreshold()/* || currentTransmittance == 0 */){
+                            
+                                  
+                            if(cancelled){
+                                return;
+                            }
+                            
+                            if(passID > passLimit){
+                                LOGGER.warn("Maximum neighborhood range reached");
+                                break;
+                            }
+                            
+                            int minX = Integer.max(x-passID, 0);
+                            int minY = Integer.max(y-passID, 0);
+                            int minZ = Integer.max(z-passID, 0);
+                            
+                            int maxX = Integer.min(x+passID, xSplit-1);
+                            int maxY = Integer.min(y+passID, ySplit-1);
+                            int maxZ = Integer.min(z+passID, zSplit-1);
+                            
+                            //get neighbors
+                            for(int i = minX ; i<= maxX ; i++){
+                                for(int j = minY ; j<= maxY ; j++){
+                                    for(int k = minZ ; k<= maxZ ; k++){
+                                        
+                                        if (cancelled) {
+                                            return;
+                                        }
+
+                                            //on n'ajoute pas les voxels de la passe précédente
+                                        if(passID != 1 && (i >= x-(passID-1) && i <= x+(passID-1))
+                                                && (j >= y-(passID-1) && j <= y+(passID-1))
+                                                && (k >= z-(passID-1) && k <= z+(passID-1))){
+
+                                        } else {
+
+                                            if (i == x && j == y && k == z) {
+
+                                            } else {
+                                                if (k <= canopeeArray[i][j]) {
+
+                                                    int neighbour = voxels.index(i, j, k);
+
+                                                    if (voxels.getGroundDistance(neighbour) >= -(parameters.infos.getResolution() / 2.0f)) {
+                                                        
+                                                        /*les voxels de transmittance nulle sont traités comme étant non échantillonné,
+                                                        tous les voisins sont considérés indépendamment de l'échantillonnage*/
+                                                        if(!Float.isNaN(voxels.getTransmittance(neighbour))){
+                                                            if(nbNeighbours == neighbours.length){
+                                                                neighbours = Arrays.copyOf(neighbours, neighbours.length * 2);
+                                                            }
+                                                            neighbours[nbNeighbours++] = neighbour;
+                                                        }
+                                                        
+                                                    }else{
+                                                        nbRemovedNeighbors++;
+                                                    }
+                                                }else{
+                                                    nbRemovedNeighbors++;
+                                                }
+                                            }
+                                        }
+                                    }
+                                }
+                            }
+                            
+                            Statistic nbSamplingStat = new Statistic();
+                            float meanTransmittance = 0;
+                            
+                            float sumBVEntering = 0;
+                            float sumBVIntercepted = 0;
+                            float sumLgTotal = 0;
+
+                            if(nbNeighbours > 0){
+                                
+                                for(int n = 0 ; n < nbNeighbours ; n++){
+                                
+                                    if (cancelled) {
+                                        return;
+                                    }
+
+                                    int neighbour = neighbours[n];
+
+                                    sumBVEntering += voxels.getBvEntering(neighbour);
+                                    sumBVIntercepted += voxels.getBvIntercepted(neighbour);
+                                    sumLgTotal += voxels.getLgTotal(neighbour);
+                                    nbSamplingStat.addValue(voxels.getNbSampling(neighbour));
+                                }
+                                
+                                meanTransmittance = (float) Math.pow((sumBVEntering-sumBVIntercepted)/sumBVEntering, nbSamplingStat.getSum()/sumLgTotal);
+                                                                
+                                currentNbSampling = (float) nbSamplingStat.getMean();
+                                currentTransmittance = meanTransmittance;
+
+                            
+                            }else{
+                                currentNbSampling = 0;
+                            }
+                            
+                            passID++;
+                            
+                        }
+
+                        if(passID > passMax){
+                            passMax = passID;
+                            LOGGER.info("Maximum neighborhood range : "+passMax);
+                        }
+
+                        if(nbNeighbours > 0){
+
+                            Statistic PADStatistic = new Statistic();
+                            
+                            for(int n = 0 ; n < nbNeighbours ; n++){
+                                
+                                if (cancelled) {
+                                    return;
+                                }
+                                
+                                PADStatistic.addValue(voxels.getPadBVTotal(neighbours[n]));
+                            }
+                            
+                            voxels.setPadBVTotal(voxel, (float)PADStatistic.getMean());
+                            //voxels[x][y][z].nbSampling = (int)currentNbSampling;
+                            voxels.setTransmittance(voxel, currentTransmittance);
+                        }
+                    }
+                    
+                }
+            }
+        }
+        
+        long endTime = System.currentTimeMillis();
+        long time = endTime - startTime;
+        LOGGER.info("Time : "+time+" ms");
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+}
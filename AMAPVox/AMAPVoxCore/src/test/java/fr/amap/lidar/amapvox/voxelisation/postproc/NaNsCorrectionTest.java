@@ -0,0 +1,153 @@
+package fr.amap.lidar.amapvox.voxelisation.postproc;
+
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.voxelisation.ArrayVoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.NaNsCorrectionParams;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import javax.vecmath.Point3i;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * Compare the NA correction with the summed-volume tables with the voxel by voxel correction.
+ */
+public class NaNsCorrectionTest {
+
+    private static VoxelParameters createParameters(float nbSamplingThreshold) {
+
+        VoxelParameters parameters = new VoxelParameters.Builder(new Point3d(0, 0, 0), new Point3d(18, 14, 16), 1.0f, VoxelSpaceInfos.Type.TLS).padMAX(10.0f).build();
+        parameters.setNaNsCorrectionParams(new NaNsCorrectionParams(nbSamplingThreshold));
+
+        return parameters;
+    }
+
+    /**
+     * Random voxels over an uneven ground, the upper voxels are rarely sampled and
+     * some columns are empty, like the gaps of the canopy.
+     *
+     * @param exact integer attributes and half of the entering beam volume intercepted, the sums over
+     * the neighbourhoods and the ratio of the transmittance are exact in float and double
+     */
+    private static VoxelStore createVoxels(VoxelParameters parameters, long seed, boolean exact) {
+
+        Point3i split = parameters.infos.getSplit();
+        VoxelStore voxels = new ArrayVoxelStore(split);
+        Random random = new Random(seed);
+
+        for (int i = 0; i < split.x; i++) {
+            for (int j = 0; j < split.y; j++) {
+
+                float groundHeight = random.nextFloat() * 3;
+                boolean gap = random.nextDouble() < 0.1;
+
+                for (int k = 0; k < split.z; k++) {
+
+                    int voxel = voxels.index(i, j, k);
+
+                    voxels.initialize(voxel, k + 0.5f - groundHeight);
+
+                    double samplingRate = gap ? 0 : 1 - (double) k / split.z;
+                    int nbSampling = random.nextDouble() < samplingRate ? random.nextInt(12) : 0;
+
+                    for (int n = 0; n < nbSampling; n++) {
+
+                        voxels.incrementNbSampling(voxel);
+
+                        if (random.nextDouble() < 0.4) {
+                            voxels.incrementNbEchos(voxel);
+                        }
+
+                        if (exact) {
+
+                            int bvEntering = 2 * (1 + random.nextInt(3));
+
+                            voxels.addBvEntering(voxel, bvEntering);
+                            voxels.addBvIntercepted(voxel, bvEntering / 2);
+                            voxels.addLgTotal(voxel, 1 + random.nextInt(2));
+
+                        } else {
+
+                            double bvEntering = 0.5 + random.nextDouble();
+
+                            voxels.addBvEntering(voxel, bvEntering);
+                            voxels.addBvIntercepted(voxel, bvEntering * random.nextDouble() * 0.6);
+                            voxels.addLgTotal(voxel, 0.5 + random.nextDouble() * 0.5);
+                        }
+                    }
+
+                    if (nbSampling == 0) {
+                        voxels.setTransmittance(voxel, Float.NaN);
+                        voxels.setPadBVTotal(voxel, Float.NaN);
+                    } else {
+                        double bvEntering = voxels.getBvEntering(voxel);
+                        voxels.setTransmittance(voxel, (float) Math.pow((bvEntering - voxels.getBvIntercepted(voxel)) / bvEntering, nbSampling / voxels.getLgTotal(voxel)));
+
+                        double pad = random.nextDouble();
+                        voxels.setPadBVTotal(voxel, pad < 0.05 ? Float.NaN : pad < 0.1 ? Float.POSITIVE_INFINITY : exact ? (int) (pad * 10) : (float) (pad * 10));
+                    }
+                }
+            }
+        }
+
+        return voxels;
+    }
+
+    private static void assertFloatEquals(float expected, float actual) {
+
+        if (Float.isNaN(expected)) {
+            assertTrue(Float.isNaN(actual));
+        } else {
+            assertEquals(expected, actual, Math.max(1e-5f, Math.abs(expected) * 1e-4f));
+        }
+    }
+
+    private static void checkCorrection(float nbSamplingThreshold, long seed, boolean exact) {
+
+        VoxelParameters parameters = createParameters(nbSamplingThreshold);
+
+        VoxelStore expected = createVoxels(parameters, seed, exact);
+        new LegacyNaNsCorrection().correct(parameters, expected);
+
+        for (int nbThreads : new int[]{1, 3}) {
+
+            VoxelStore voxels = createVoxels(parameters, seed, exact);
+
+            NaNsCorrection correction = new NaNsCorrection();
+            correction.setNbThreads(nbThreads);
+            correction.correct(parameters, voxels);
+
+            for (int voxel = 0; voxel < voxels.size(); voxel++) {
+                if (exact) {
+                    assertEquals(expected.getTransmittance(voxel), voxels.getTransmittance(voxel), 0);
+                    assertEquals(expected.getPadBVTotal(voxel), voxels.getPadBVTotal(voxel), 0);
+                } else {
+                    assertFloatEquals(expected.getTransmittance(voxel), voxels.getTransmittance(voxel));
+                    assertFloatEquals(expected.getPadBVTotal(voxel), voxels.getPadBVTotal(voxel));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCorrection() {
+        checkCorrection(0, 1, false);
+        checkCorrection(2, 2, false);
+    }
+
+    @Test
+    public void testLargeNeighbourhoods() {
+        checkCorrection(6, 3, false);
+        checkCorrection(9, 4, false);
+    }
+
+    //no summation rounding, the corrections are the same as the voxel by voxel correction
+    @Test
+    public void testExactSums() {
+        checkCorrection(2, 5, true);
+        checkCorrection(9, 6, true);
+    }
+}
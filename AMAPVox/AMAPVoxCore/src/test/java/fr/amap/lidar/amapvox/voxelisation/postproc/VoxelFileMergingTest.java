@@ -0,0 +1,150 @@
+package fr.amap.lidar.amapvox.voxelisation.postproc;
+
+import fr.amap.commons.util.io.NumberParser;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelFiles;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxMergingCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the streaming merging of voxel files with the previous implementation.
+ */
+public class VoxelFileMergingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<File> writeFiles(VoxelsFormat[] formats) throws Exception {
+        return writeFiles(formats, false);
+    }
+
+    private List<File> writeFiles(VoxelsFormat[] formats, boolean compressed) throws Exception {
+
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < formats.length; i++) {
+            File file = folder.newFile("scan_" + i + ".vox");
+            TestVoxelFiles.write(file, formats[i], compressed, 10, 0.5f, 3000, 100 + i);
+            files.add(file);
+        }
+
+        return files;
+    }
+
+    private static VoxelParameters createParameters() {
+        return new VoxelParameters.Builder(new Point3d(-5, -5, -5), new Point3d(5, 5, 5), 0.5f, VoxelSpaceInfos.Type.TLS).padMAX(10.0f).build();
+    }
+
+    private byte[] mergeLegacy(List<File> files) throws Exception {
+
+        File output = folder.newFile();
+        new LegacyVoxelFileMerging().mergeVoxelFiles(new VoxMergingCfg(output, createParameters(), files));
+
+        return Files.readAllBytes(output.toPath());
+    }
+
+    private byte[] merge(List<File> files, int chunkSize, int nbThreads) throws Exception {
+
+        File output = folder.newFile();
+
+        VoxelFileMerging merging = new VoxelFileMerging();
+        merging.setChunkSize(chunkSize);
+        merging.setNbThreads(nbThreads);
+        merging.mergeVoxelFiles(new VoxMergingCfg(output, createParameters(), files));
+
+        return Files.readAllBytes(output.toPath());
+    }
+
+    @Test
+    public void testTextFiles() throws Exception {
+
+        List<File> files = writeFiles(new VoxelsFormat[]{VoxelsFormat.VOXEL, VoxelsFormat.VOXEL, VoxelsFormat.VOXEL});
+
+        byte[] expected = mergeLegacy(files);
+
+        assertArrayEquals(expected, merge(files, VoxelFileMerging.DEFAULT_CHUNK_SIZE, 1));
+        assertArrayEquals(expected, merge(files, 1000, 3));
+        assertArrayEquals(expected, merge(files, 1, 2));
+    }
+
+    @Test
+    public void testBinaryAndTextFiles() throws Exception {
+
+        List<File> files = writeFiles(new VoxelsFormat[]{VoxelsFormat.BINARY, VoxelsFormat.VOXEL, VoxelsFormat.BINARY});
+
+        byte[] expected = mergeLegacy(files);
+
+        assertArrayEquals(expected, merge(files, VoxelFileMerging.DEFAULT_CHUNK_SIZE, 2));
+        assertArrayEquals(expected, merge(files, 777, 4));
+    }
+
+    @Test
+    public void testCompressedFiles() throws Exception {
+
+        List<File> files = writeFiles(new VoxelsFormat[]{VoxelsFormat.BINARY, VoxelsFormat.BINARY, VoxelsFormat.VOXEL}, true);
+
+        byte[] expected = mergeLegacy(files);
+
+        assertArrayEquals(expected, merge(files, VoxelFileMerging.DEFAULT_CHUNK_SIZE, 1));
+        assertArrayEquals(expected, merge(files, 333, 3));
+    }
+
+    @Test
+    public void testColumnsMismatch() throws Exception {
+
+        List<File> files = writeFiles(new VoxelsFormat[]{VoxelsFormat.VOXEL, VoxelsFormat.VOXEL});
+
+        //remove the last column of a voxel line
+        List<String> lines = Files.readAllLines(files.get(1).toPath());
+        String line = lines.get(100);
+        lines.set(100, line.substring(0, line.lastIndexOf(' ')));
+        Files.write(files.get(1).toPath(), lines);
+
+        File output = folder.newFile();
+
+        try {
+            new VoxelFileMerging().mergeVoxelFiles(new VoxMergingCfg(output, createParameters(), files));
+            fail("The columns of the second file do not match");
+        } catch (IOException ex) {
+        }
+
+        //no partial file
+        assertFalse(output.exists());
+    }
+
+    @Test
+    public void testNumberParser() throws Exception {
+
+        Random random = new Random(7);
+
+        List<String> values = new ArrayList<>(Arrays.asList("0", "-0.0", "1.0E-5", "3.4028235E38", "1.4E-45", "NaN", "-Infinity", "16777217", "0.1", "123456.79"));
+
+        for (int i = 0; i < 100000; i++) {
+            values.add(Float.toString(Float.intBitsToFloat(random.nextInt())));
+            values.add(Float.toString(random.nextFloat() * (float) Math.pow(10, random.nextInt(20) - 10)));
+            values.add(Integer.toString(random.nextInt(1000000)));
+        }
+
+        for (String value : values) {
+
+            char[] chars = (" " + value + " ").toCharArray();
+            float parsed = NumberParser.parseFloat(chars, 1, value.length());
+
+            assertEquals(value, Float.floatToRawIntBits(Float.parseFloat(value)), Float.floatToRawIntBits(parsed));
+        }
+    }
+}
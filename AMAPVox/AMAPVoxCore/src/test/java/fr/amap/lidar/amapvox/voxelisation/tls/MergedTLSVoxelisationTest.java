@@ -0,0 +1,117 @@
+package fr.amap.lidar.amapvox.voxelisation.tls;
+
+import fr.amap.commons.math.matrix.Mat4D;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelisations;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import java.util.ArrayList;
+import java.util.List;
+import javax.vecmath.Point3d;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * Compare the in-memory merging of scans with the voxelisation of all the shots in a single grid.
+ */
+public class MergedTLSVoxelisationTest {
+
+    private final static int NB_SCANS = 5;
+    private final static int NB_SHOTS = 4000;
+
+    /**
+     * Scan whose shots are generated from a seed, the position of the scanner depends on the seed.
+     */
+    private static class SyntheticScanVoxelisation extends TLSVoxelisation {
+
+        private final long seed;
+
+        SyntheticScanVoxelisation(VoxelAnalysisCfg cfg, long seed) {
+            super(null, null, null, null, Mat4D.identity(), null, null, cfg);
+            this.seed = seed;
+        }
+
+        @Override
+        public Object call() throws Exception {
+
+            createVoxelSpace();
+
+            for (Shot shot : createShots(seed)) {
+                voxelAnalysis.processOneShot(shot);
+            }
+
+            postProcess();
+
+            return null;
+        }
+    }
+
+    private static VoxelAnalysisCfg createConfiguration() {
+        return TestVoxelisations.createConfiguration(VoxelSpaceInfos.Type.TLS, new Point3d(-5, -5, -5), new Point3d(5, 5, 5), 1.0f);
+    }
+
+    private static List<Shot> createShots(long seed) {
+        return TestVoxelisations.createTLSShots(new Point3d(seed % 3 - 1, seed % 2, -4), NB_SHOTS, seed);
+    }
+
+    private static VoxelStore voxeliseSerial() throws Exception {
+
+        VoxelAnalysis voxelAnalysis = new VoxelAnalysis(null, null, createConfiguration());
+        voxelAnalysis.createVoxelSpace();
+
+        for (int s = 0; s < NB_SCANS; s++) {
+            for (Shot shot : createShots(s)) {
+                voxelAnalysis.processOneShot(shot);
+            }
+        }
+
+        voxelAnalysis.computePADs();
+
+        return voxelAnalysis.getVoxels();
+    }
+
+    private static MergedTLSVoxelisation voxeliseMerged(int nbThreads, int maxGrids) throws Exception {
+
+        VoxelAnalysisCfg cfg = createConfiguration();
+
+        List<TLSVoxelisation> scans = new ArrayList<>();
+        for (int s = 0; s < NB_SCANS; s++) {
+            scans.add(new SyntheticScanVoxelisation(cfg, s));
+        }
+
+        MergedTLSVoxelisation merged = new MergedTLSVoxelisation(null, null, cfg, maxGrids);
+        merged.voxelise(scans, nbThreads);
+
+        return merged;
+    }
+
+    @Test
+    public void testSameAsSingleGrid() throws Exception {
+
+        VoxelStore expected = voxeliseSerial();
+
+        MergedTLSVoxelisation merged = voxeliseMerged(3, 2);
+
+        assertEquals(NB_SCANS * NB_SHOTS, merged.getNbShotsProcessed());
+        TestVoxelisations.assertSameVoxels(expected, merged.getVoxels(), 1e-9, 100);
+    }
+
+    @Test
+    public void testBoundedGrids() throws Exception {
+
+        VoxelStore expected = voxeliseSerial();
+
+        //more threads than grids, the threads wait for a free grid
+        MergedTLSVoxelisation merged = voxeliseMerged(4, 1);
+
+        assertEquals(1, merged.getNbGrids());
+        assertEquals(NB_SCANS * NB_SHOTS, merged.getNbShotsProcessed());
+        TestVoxelisations.assertSameVoxels(expected, merged.getVoxels(), 1e-9, 100);
+
+        merged = voxeliseMerged(4, 3);
+        assertTrue(merged.getNbGrids() <= 3);
+    }
+}
@@ -0,0 +1,125 @@
+package fr.amap.lidar.amapvox.voxelisation.tls;
+
+import fr.amap.commons.math.matrix.Mat4D;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.jeeb.archimed.raytracing.voxel.TestVoxelisations;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.VoxelStore;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.format.jleica.ptx.PTXHeader;
+import fr.amap.lidar.format.jleica.ptx.PTXScan;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the voxelisation of a gridded scan read by column bands with its serial voxelisation.
+ */
+public class PTXVoxelisationTest {
+
+    private final static int NB_COLUMNS = 90;
+    private final static int NB_ROWS = 50;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PTXScan writeScan() throws IOException {
+
+        File file = folder.newFile("scan.ptx");
+        Random random = new Random(0);
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.US_ASCII)) {
+
+            writer.write(NB_COLUMNS + "\n" + NB_ROWS + "\n0 0 0\n1 0 0\n0 1 0\n0 0 1\n1 0 0 0\n0 1 0 0\n0 0 1 0\n0 0 0 1\n");
+
+            //column by column, one point per line, missing returns are written as 0 0 0
+            for (int column = 0; column < NB_COLUMNS; column++) {
+
+                double azimuth = Math.PI * 2 * column / NB_COLUMNS;
+
+                for (int row = 0; row < NB_ROWS; row++) {
+
+                    double zenith = 0.3 + 2.5 * row / NB_ROWS;
+
+                    if (random.nextDouble() < 0.2) {
+                        writer.write("0 0 0 0.5\n");
+                    } else {
+                        double range = 1 + random.nextDouble() * 3.5;
+                        writer.write(String.format(Locale.ROOT, "%.6f %.6f %.6f %.3f\n",
+                                range * Math.sin(zenith) * Math.cos(azimuth),
+                                range * Math.sin(zenith) * Math.sin(azimuth),
+                                range * Math.cos(zenith), random.nextDouble()));
+                    }
+                }
+            }
+        }
+
+        PTXHeader header = new PTXHeader();
+        header.setNumCols(NB_COLUMNS);
+        header.setNumRows(NB_ROWS);
+        header.setPointContainsIntensity(true);
+        header.setPointContainsRGB(false);
+        header.setPointInDoubleFormat(true);
+
+        return new PTXScan(file, header, 10);
+    }
+
+    private static VoxelAnalysisCfg createConfiguration(int nbThreads) {
+
+        VoxelAnalysisCfg cfg = TestVoxelisations.createConfiguration(VoxelSpaceInfos.Type.TLS, new Point3d(-5, -5, -5), new Point3d(5, 5, 5), 1.0f);
+        cfg.setNbThreads(nbThreads);
+
+        return cfg;
+    }
+
+    private VoxelStore voxelise(PTXScan scan, int nbThreads, int[] nbShots) throws Exception {
+
+        VoxelAnalysis[] analysis = new VoxelAnalysis[1];
+
+        PTXVoxelisation voxelisation = new PTXVoxelisation(scan, folder.newFile(), null, null, Mat4D.identity(), null, null, createConfiguration(nbThreads)) {
+
+            //the voxel analysis is released once the voxel file is written
+            @Override
+            protected void createVoxelSpace() throws InterruptedException {
+                super.createVoxelSpace();
+                analysis[0] = voxelAnalysis;
+            }
+        };
+
+        voxelisation.call();
+
+        nbShots[0] = analysis[0].getNbShotsProcessed();
+
+        return analysis[0].getVoxels();
+    }
+
+    @Test
+    public void testColumnBands() throws Exception {
+
+        PTXScan scan = writeScan();
+
+        int[] nbShots = new int[1];
+        VoxelStore expected = voxelise(scan, 1, nbShots);
+        assertEquals(NB_COLUMNS * NB_ROWS, nbShots[0]);
+
+        VoxelStore actual = voxelise(copyScan(scan), 3, nbShots);
+        assertEquals(NB_COLUMNS * NB_ROWS, nbShots[0]);
+
+        TestVoxelisations.assertSameVoxels(expected, actual, 1e-9, 100);
+    }
+
+    //the extremum angles are computed by the first voxelisation, the second one starts from a fresh scan
+    private static PTXScan copyScan(PTXScan scan) {
+        return new PTXScan(scan.getFile(), scan.getHeader(), scan.offset);
+    }
+}
@@ -0,0 +1,163 @@
+package fr.amap.lidar.amapvox.voxreader;
+
+import fr.amap.lidar.amapvox.commons.RawVoxel;
+import fr.amap.lidar.amapvox.commons.Voxel;
+import fr.amap.lidar.amapvox.commons.VoxelSpaceInfos;
+import fr.amap.lidar.amapvox.shot.Shot;
+import fr.amap.lidar.amapvox.voxelisation.LaserSpecification;
+import fr.amap.lidar.amapvox.voxelisation.VoxelAnalysis;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg;
+import fr.amap.lidar.amapvox.voxelisation.configuration.VoxelAnalysisCfg.VoxelsFormat;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.EchoesWeightParams;
+import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import java.io.File;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+import java.util.Random;
+import javax.vecmath.Point3d;
+import javax.vecmath.Vector3d;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the binary voxel files with the text ones.
+ */
+public class BinaryVoxelFileReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static VoxelAnalysis voxelise(boolean compressed) throws Exception {
+
+        VoxelAnalysisCfg cfg = new VoxelAnalysisCfg();
+
+        EchoesWeightParams echoesWeightParams = new EchoesWeightParams();
+        echoesWeightParams.setWeightingData(EchoesWeightParams.DEFAULT_ALS_WEIGHTING);
+        echoesWeightParams.setWeightingMode(EchoesWeightParams.WEIGHTING_ECHOS_NUMBER);
+        VoxelParameters params = new VoxelParameters.Builder(new Point3d(-5, -5, -5), new Point3d(5, 5, 5), 0.5f, VoxelSpaceInfos.Type.ALS).echoesWeightParams(echoesWeightParams).laserSpecification(LaserSpecification.LMS_Q560).padMAX(10.0f).build();
+        cfg.setVoxelParameters(params);
+        cfg.setCompressVoxels(compressed);
+
+        VoxelAnalysis voxelAnalysis = new VoxelAnalysis(null, null, cfg);
+        voxelAnalysis.createVoxelSpace();
+
+        Random random = new Random(7);
+
+        for (int i = 0; i < 5000; i++) {
+
+            Point3d origin = new Point3d(random.nextDouble() * 10 - 5, random.nextDouble() * 10 - 5, 20);
+            Vector3d direction = new Vector3d(random.nextDouble() * 0.4 - 0.2, random.nextDouble() * 0.4 - 0.2, -1);
+
+            double[] ranges = new double[random.nextInt(4)];
+            double range = 15;
+            for (int e = 0; e < ranges.length; e++) {
+                range += random.nextDouble() * 3;
+                ranges[e] = range;
+            }
+
+            voxelAnalysis.processOneShot(new Shot(origin, direction, ranges));
+        }
+
+        voxelAnalysis.computePADs();
+
+        return voxelAnalysis;
+    }
+
+    private void assertSameAsText(boolean compressed) throws Exception {
+
+        VoxelAnalysis voxelAnalysis = voxelise(compressed);
+
+        File textFile = folder.newFile("voxels.vox");
+        File binaryFile = folder.newFile("voxels.voxb");
+
+        voxelAnalysis.write(VoxelsFormat.VOXEL, textFile);
+        voxelAnalysis.write(VoxelsFormat.BINARY, binaryFile);
+
+        assertTrue(BinaryVoxelFileReader.isBinaryVoxelFile(binaryFile));
+        assertFalse(BinaryVoxelFileReader.isBinaryVoxelFile(textFile));
+        assertTrue(VoxelFileReader.isFileAVoxelFile(binaryFile));
+
+        try (BinaryVoxelFileReader binaryReader = new BinaryVoxelFileReader(binaryFile)) {
+
+            VoxelSpaceInfos infos = binaryReader.getVoxelSpaceInfos();
+            assertEquals(voxelAnalysis.getVoxels().getSplit(), infos.getSplit());
+
+            String[] columnNames = binaryReader.getColumnNames();
+            FloatBuffer[] columns = new FloatBuffer[columnNames.length];
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = binaryReader.getColumn(columnNames[c]);
+            }
+
+            VoxelFileRawReader textReader = new VoxelFileRawReader(textFile, false);
+            assertArrayEquals(textReader.getVoxelSpaceInfos().getColumnNames(), columnNames);
+
+            int index = 0;
+
+            for (RawVoxel voxel : textReader) {
+
+                assertEquals(binaryReader.index(voxel.$i, voxel.$j, voxel.$k), index);
+                assertEquals(voxel.$i, (int) columns[0].get(index));
+                assertEquals(voxel.$j, (int) columns[1].get(index));
+                assertEquals(voxel.$k, (int) columns[2].get(index));
+
+                for (int c = 3; c < columnNames.length; c++) {
+                    float expected = voxel.attributs[c - 3];
+                    assertEquals(columnNames[c], expected, columns[c].get(index), Math.ulp(expected));
+                }
+
+                index++;
+            }
+
+            assertEquals(binaryReader.getNbVoxels(), index);
+        }
+
+        //the voxels read through the generic reader
+        Iterator<Voxel> textIterator = new VoxelFileReader(textFile, false).iterator();
+        VoxelFileReader binaryVoxelReader = new VoxelFileReader(binaryFile, false);
+        Iterator<Voxel> binaryIterator = binaryVoxelReader.iterator();
+
+        while (textIterator.hasNext()) {
+
+            assertTrue(binaryIterator.hasNext());
+
+            Voxel expected = textIterator.next();
+            Voxel actual = binaryIterator.next();
+
+            assertEquals(expected.$i, actual.$i);
+            assertEquals(expected.$j, actual.$j);
+            assertEquals(expected.$k, actual.$k);
+            assertEquals(expected.nbSampling, actual.nbSampling);
+            assertEquals(expected.PadBVTotal, actual.PadBVTotal, Math.ulp(expected.PadBVTotal));
+            assertEquals(expected.bvEntering, actual.bvEntering, Math.ulp((float) expected.bvEntering));
+        }
+
+        assertFalse(binaryIterator.hasNext());
+
+        //the file is released at the end of the iteration, and reopened by the next one
+        assertTrue(binaryVoxelReader.binaryReader.isClosed());
+
+        int nbVoxels = 0;
+        for (Voxel voxel : binaryVoxelReader) {
+            nbVoxels++;
+        }
+
+        assertEquals(voxelAnalysis.getVoxels().size(), nbVoxels);
+        binaryVoxelReader.close();
+
+        //no temporary column file left
+        assertEquals(2, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void testUncompressed() throws Exception {
+        assertSameAsText(false);
+    }
+
+    @Test
+    public void testCompressed() throws Exception {
+        assertSameAsText(true);
+    }
+}
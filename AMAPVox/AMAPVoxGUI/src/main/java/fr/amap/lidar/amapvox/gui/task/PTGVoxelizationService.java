@@ -96,7 +96,7 @@ public class PTGVoxelizationService extends Service<List<File>>{
                         updateMessage("Loading point cloud filters...");
                         
                         for(fr.amap.lidar.amapvox.voxelisation.PointcloudFilter filter : pointcloudFilters){
-                            filter.setOctree(Util.loadOctree(filter.getPointcloudFile(), vop));
+                            filter.setKdTree(Util.loadKdTree(filter.getPointcloudFile(), vop));
                         }
                     }
                 }
@@ -99,7 +99,7 @@ public class PTXVoxelizationService extends Service<List<File>>{
                         updateMessage("Loading point cloud filters...");
                         
                         for(fr.amap.lidar.amapvox.voxelisation.PointcloudFilter filter : pointcloudFilters){
-                            filter.setOctree(Util.loadOctree(filter.getPointcloudFile(), vop));
+                            filter.setKdTree(Util.loadKdTree(filter.getPointcloudFile(), vop));
                         }
                     }
                 }
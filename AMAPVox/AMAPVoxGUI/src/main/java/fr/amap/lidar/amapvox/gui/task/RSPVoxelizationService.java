@@ -19,6 +19,7 @@ import fr.amap.lidar.amapvox.voxelisation.postproc.VoxelFileMerging;
 import fr.amap.lidar.amapvox.voxelisation.configuration.TLSVoxCfg;
 import fr.amap.lidar.amapvox.voxelisation.configuration.VoxMergingCfg;
 import fr.amap.lidar.amapvox.voxelisation.configuration.params.VoxelParameters;
+import fr.amap.lidar.amapvox.voxelisation.tls.MergedTLSVoxelisation;
 import fr.amap.lidar.amapvox.voxelisation.tls.RxpEchoFilter;
 import fr.amap.lidar.amapvox.voxelisation.tls.RxpVoxelisation;
 import java.io.File;
@@ -45,6 +46,7 @@ public class RSPVoxelizationService extends Service<List<File>>{
     private ExecutorService exec;
     private final SimpleIntegerProperty nbFileProcessed;
     private VoxelFileMerging tool;
+    private MergedTLSVoxelisation mergedVoxelisation;
     
     public RSPVoxelizationService(File file, int coreNumber){
         this.file = file;
@@ -99,7 +101,7 @@ public class RSPVoxelizationService extends Service<List<File>>{
                         updateMessage("Loading point cloud filters...");
                         
                         for(fr.amap.lidar.amapvox.voxelisation.PointcloudFilter filter : pointcloudFilters){
-                            filter.setOctree(Util.loadOctree(filter.getPointcloudFile(), vop));
+                            filter.setKdTree(Util.loadKdTree(filter.getPointcloudFile(), vop));
                         }
                     }
                 }
@@ -109,10 +111,13 @@ public class RSPVoxelizationService extends Service<List<File>>{
                 
                 nbFileProcessed.set(0);
                 
-                final int nbFilesToWrite = cfg.getVoxelParameters().isMergingAfter() ? lidarScans.size()+1 : lidarScans.size();
+                final boolean mergingInMemory = cfg.getVoxelParameters().isMergingAfter() && cfg.isMergingInMemory();
+                
+                final int nbFilesToWrite = cfg.getVoxelParameters().isMergingAfter() && !mergingInMemory ? lidarScans.size()+1 : lidarScans.size();
 
                 try {
                     final LinkedBlockingQueue<Callable<RxpVoxelisation>>  tasks = new LinkedBlockingQueue<>();
+                    final List<RxpVoxelisation> scans = new ArrayList<>();
 
                     for (LidarScan file : lidarScans) {
 
@@ -131,12 +136,37 @@ public class RSPVoxelizationService extends Service<List<File>>{
                         
                         
                         tasks.put(rxpVoxelisation);
-                        files.add(outputFile);
+                        scans.add(rxpVoxelisation);
+                        
+                        if(!mergingInMemory){
+                            files.add(outputFile);
+                        }
                     }
 
                     
                     updateMessage("Voxelization...");
                     
+                    if (mergingInMemory) {
+                        
+                        //scans are summed in memory, no scan voxel file is written
+                        exec.shutdown();
+                        
+                        mergedVoxelisation = new MergedTLSVoxelisation(dtm, pointcloudFilters, cfg, cfg.getMergingMaxGrids());
+                        mergedVoxelisation.voxelise(scans, coreNumber);
+                        
+                        if(mergedVoxelisation.isCancelled()){
+                            return files;
+                        }
+                        
+                        updateMessage("Writing merged file...");
+                        
+                        mergedVoxelisation.write(cfg.getVoxelParameters().getMergedFile());
+                        
+                        files.add(cfg.getVoxelParameters().getMergedFile());
+                        
+                        return files;
+                    }
+                    
                     exec.invokeAll(tasks);
 
                     //wait for all Callable to finish
@@ -179,6 +209,10 @@ public class RSPVoxelizationService extends Service<List<File>>{
                     tool.setCancelled(true);
                 }
                 
+                if(mergedVoxelisation != null){
+                    mergedVoxelisation.setCancelled(true);
+                }
+                
             }
         };
         
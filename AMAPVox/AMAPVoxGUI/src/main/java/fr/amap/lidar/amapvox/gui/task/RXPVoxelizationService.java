@@ -71,7 +71,7 @@ public class RXPVoxelizationService extends Service<Void>{
                         for(PointcloudFilter filter : pointcloudFilters){
                             
                             updateMessage("Loading point cloud filters...");
-                            filter.setOctree(Util.loadOctree(filter.getPointcloudFile(), vop));
+                            filter.setKdTree(Util.loadKdTree(filter.getPointcloudFile(), vop));
                         }
                     }
                 }
@@ -49,6 +49,9 @@ public class Raster {
     private Mat4D transformationMatrix;
     private Mat4D inverseTransfMat;
     
+    private RasterQuery query;
+    private boolean queryUpToDate;
+    
     private boolean built;
     
     /**
@@ -154,19 +157,35 @@ public class Raster {
     }
     
     /**
-     * Not implemented
-     * @param posX
-     * @param posY
-     * @return
+     * Get corresponding height from a x,y couple of points<br>
+     * The height is a bilinear interpolation of the four closest cells.<br>
+     * @param posX position x
+     * @param posY position y
+     * @return interpolated height from x,y position
+     * @see RasterQuery#getBilinearHeight(double, double)
      */
     public float getInterpolatedHeight(float posX, float posY){
         
-        Vec4D multiply = Mat4D.multiply(inverseTransfMat, new Vec4D(posX, posY, 1, 1));
-        posX = (float) multiply.x;
-        posY = (float) multiply.y;
+        return getQuery().getBilinearHeight(posX, posY);
+    }
+    
+    /**
+     * Get the query used for fast height lookups, it is created on first call.<br>
+     * It must be first called before the mesh is built, the heights are then kept
+     * when the transformation matrix changes.
+     * @return the raster query for the current transformation matrix
+     */
+    public synchronized RasterQuery getQuery(){
+        
+        if(query == null){
+            query = new RasterQuery(this);
+        }else if(!queryUpToDate){
+            query = new RasterQuery(query, transformationMatrix);
+        }
         
+        queryUpToDate = true;
         
-        return 0; // not implemented
+        return query;
     }
     
     private BoundingBox2F getLargestBoundingBox(BoundingBox2F boundingBox2F){
@@ -449,9 +468,10 @@ public class Raster {
      *
      * @param transformationMatrix
      */
-    public void setTransformationMatrix(Mat4D transformationMatrix) {
+    public synchronized void setTransformationMatrix(Mat4D transformationMatrix) {
         this.transformationMatrix = transformationMatrix;
         this.inverseTransfMat = Mat4D.inverse(transformationMatrix);
+        this.queryUpToDate = false;
     }
 
     /**
@@ -0,0 +1,260 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.commons.raster.asc;
+
+import fr.amap.commons.math.matrix.Mat4D;
+
+/**
+ * Height lookups in a raster, without any allocation.
+ *
+ * <p>The inverse of the raster transformation is kept as primitive coefficients
+ * and the heights are copied into a flat row-major array, the first row being the
+ * northern one as in the ascii grid file.</p>
+ *
+ * <p>The raster cells are squares of the cell size, the lower left corner of the grid
+ * being the lower left corner of the lower left cell. The nearest lookup returns the
+ * height of the cell holding the position, the bilinear lookup interpolates the heights
+ * of the four closest cell centers.</p>
+ *
+ * <p>A query is immutable, it can be shared between threads.</p>
+ *
+ * @see Raster#getQuery()
+ */
+public class RasterQuery {
+
+    //inverse transformation, only the coefficients used for x and y
+    private final double m00, m01, m02, m03;
+    private final double m10, m11, m12, m13;
+
+    private final float xLeftLowerCorner;
+    private final float yLeftLowerCorner;
+    private final float cellSize;
+    private final int rowNumber;
+
+    private final int nbCols;
+    private final int nbRows;
+    private final float[] heights;
+
+    /**
+     * Create a query from a raster, the raster heights and transformation are copied.
+     * @param raster the raster, its mesh must not have been built
+     */
+    public RasterQuery(Raster raster) {
+
+        float[][] zArray = raster.getzArray();
+
+        if(zArray == null){
+            throw new IllegalStateException("The raster heights are not available anymore (mesh built)");
+        }
+
+        double[] mat = getInverse(raster.getTransformationMatrix());
+
+        m00 = mat[0];
+        m01 = mat[1];
+        m02 = mat[2];
+        m03 = mat[3];
+        m10 = mat[4];
+        m11 = mat[5];
+        m12 = mat[6];
+        m13 = mat[7];
+
+        xLeftLowerCorner = raster.getxLeftLowerCorner();
+        yLeftLowerCorner = raster.getyLeftLowerCorner();
+        cellSize = raster.getCellSize();
+        rowNumber = raster.getRowNumber();
+
+        nbCols = zArray.length;
+        nbRows = nbCols > 0 ? zArray[0].length : 0;
+        heights = new float[nbCols * nbRows];
+
+        for (int i = 0; i < nbCols; i++) {
+            for (int j = 0; j < nbRows; j++) {
+                heights[j * nbCols + i] = zArray[i][j];
+            }
+        }
+    }
+
+    /**
+     * Create a query sharing the heights of another query, with a new transformation.
+     * @param query the query of the raster
+     * @param transformation the new transformation of the raster
+     */
+    RasterQuery(RasterQuery query, Mat4D transformation) {
+
+        double[] mat = getInverse(transformation);
+
+        m00 = mat[0];
+        m01 = mat[1];
+        m02 = mat[2];
+        m03 = mat[3];
+        m10 = mat[4];
+        m11 = mat[5];
+        m12 = mat[6];
+        m13 = mat[7];
+
+        xLeftLowerCorner = query.xLeftLowerCorner;
+        yLeftLowerCorner = query.yLeftLowerCorner;
+        cellSize = query.cellSize;
+        rowNumber = query.rowNumber;
+
+        nbCols = query.nbCols;
+        nbRows = query.nbRows;
+        heights = query.heights;
+    }
+
+    private static double[] getInverse(Mat4D transformation) {
+        return transformation == null ? Mat4D.identity().mat : Mat4D.inverse(transformation).mat;
+    }
+
+    /*
+     * The position is transformed as Mat4D.multiply does with a (x, y, 1, 1) vector,
+     * same terms in the same order, so that the nearest lookup gives exactly
+     * the heights of Raster.getSimpleHeight.
+     */
+    private double toRasterX(double x, double y) {
+        return m00 * x + m01 * y + m02 + m03;
+    }
+
+    private double toRasterY(double x, double y) {
+        return m10 * x + m11 * y + m12 + m13;
+    }
+
+    /**
+     * Get the height of the cell holding a position, no interpolation.
+     * @param x position x
+     * @param y position y
+     * @return the height, NaN outside of the raster
+     */
+    public float getNearestHeight(double x, double y) {
+
+        float posX = (float) toRasterX(x, y);
+        float posY = (float) toRasterY(x, y);
+
+        int indiceX = (int) ((posX - xLeftLowerCorner) / cellSize);
+        int indiceY = (int) (rowNumber - (posY - yLeftLowerCorner) / cellSize);
+
+        if(indiceX < 0 || indiceY < 0 || indiceY >= rowNumber || indiceX >= nbCols || indiceY >= nbRows){
+            return Float.NaN;
+        }
+
+        return heights[indiceY * nbCols + indiceX];
+    }
+
+    /**
+     * Get the height at a position, bilinear interpolation of the four closest cell centers.
+     * On the border of the raster (half a cell), the height is interpolated along the border only.
+     * If one of the four cells has no data, the height of the cell holding the position is returned.
+     * @param x position x
+     * @param y position y
+     * @return the interpolated height, NaN outside of the raster
+     */
+    public float getBilinearHeight(double x, double y) {
+
+        double u = (toRasterX(x, y) - xLeftLowerCorner) / cellSize;
+        double v = rowNumber - (toRasterY(x, y) - yLeftLowerCorner) / cellSize;
+
+        //negated test so that NaN positions are rejected too
+        if(!(u >= 0 && v >= 0 && u < nbCols && v < nbRows && v < rowNumber)){
+            return Float.NaN;
+        }
+
+        //cell centers coordinates
+        u -= 0.5;
+        v -= 0.5;
+
+        int i0 = (int) Math.floor(u);
+        int j0 = (int) Math.floor(v);
+        double tu = u - i0;
+        double tv = v - j0;
+
+        int i1, j1;
+
+        if(i0 < 0){
+            i0 = i1 = 0;
+        }else if(i0 >= nbCols - 1){
+            i0 = i1 = nbCols - 1;
+        }else{
+            i1 = i0 + 1;
+        }
+
+        if(j0 < 0){
+            j0 = j1 = 0;
+        }else if(j0 >= nbRows - 1){
+            j0 = j1 = nbRows - 1;
+        }else{
+            j1 = j0 + 1;
+        }
+
+        float z00 = heights[j0 * nbCols + i0];
+        float z10 = heights[j0 * nbCols + i1];
+        float z01 = heights[j1 * nbCols + i0];
+        float z11 = heights[j1 * nbCols + i1];
+
+        if(Float.isNaN(z00) || Float.isNaN(z10) || Float.isNaN(z01) || Float.isNaN(z11)){
+            int i = tu < 0.5 ? i0 : i1;
+            int j = tv < 0.5 ? j0 : j1;
+            return heights[j * nbCols + i];
+        }
+
+        double z0 = z00 + (z10 - z00) * tu;
+        double z1 = z01 + (z11 - z01) * tu;
+
+        return (float) (z0 + (z1 - z0) * tv);
+    }
+
+    /**
+     * Get the heights of several positions.
+     * @param x positions x
+     * @param y positions y
+     * @param z the heights, filled with the first length values
+     * @param length number of positions
+     * @param bilinear true to interpolate the heights, false to get the heights of the nearest cells
+     */
+    public void getHeights(double[] x, double[] y, float[] z, int length, boolean bilinear) {
+
+        if(bilinear){
+            for (int i = 0; i < length; i++) {
+                z[i] = getBilinearHeight(x[i], y[i]);
+            }
+        }else{
+            for (int i = 0; i < length; i++) {
+                z[i] = getNearestHeight(x[i], y[i]);
+            }
+        }
+    }
+
+    /**
+     * Get the heights of several positions.
+     * @param x positions x
+     * @param y positions y
+     * @param bilinear true to interpolate the heights, false to get the heights of the nearest cells
+     * @return the heights
+     */
+    public float[] getHeights(double[] x, double[] y, boolean bilinear) {
+
+        float[] z = new float[x.length];
+        getHeights(x, y, z, x.length, bilinear);
+
+        return z;
+    }
+
+    public int getNbCols() {
+        return nbCols;
+    }
+
+    public int getNbRows() {
+        return nbRows;
+    }
+}
@@ -0,0 +1,193 @@
+package fr.amap.commons.raster.asc;
+
+import fr.amap.commons.math.matrix.Mat4D;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * Compare the raster query lookups with the raster ones.
+ */
+public class RasterQueryTest {
+
+    private final static int NB_COLS = 40;
+    private final static int NB_ROWS = 30;
+    private final static float CELL_SIZE = 0.5f;
+    private final static float X_CORNER = 100;
+    private final static float Y_CORNER = 200;
+
+    //plane height z = a + b * x + c * y, in raster coordinates
+    private final static double A = 3, B = 0.1, C = -0.25;
+
+    private static double getPlaneHeight(double x, double y) {
+        return A + B * x + C * y;
+    }
+
+    private static Raster createRaster() {
+
+        float[][] zArray = new float[NB_COLS][NB_ROWS];
+
+        for (int i = 0; i < NB_COLS; i++) {
+            for (int j = 0; j < NB_ROWS; j++) {
+                //cell center, first row is the northern one
+                double x = X_CORNER + (i + 0.5) * CELL_SIZE;
+                double y = Y_CORNER + (NB_ROWS - j - 0.5) * CELL_SIZE;
+                zArray[i][j] = (float) getPlaneHeight(x, y);
+            }
+        }
+
+        return new Raster(null, zArray, X_CORNER, Y_CORNER, CELL_SIZE, NB_COLS, NB_ROWS);
+    }
+
+    private static Mat4D createTransformation() {
+
+        double angle = Math.toRadians(30);
+
+        Mat4D transformation = new Mat4D();
+        transformation.mat = new double[]{
+            Math.cos(angle), -Math.sin(angle), 0.01, -50.3,
+            Math.sin(angle), Math.cos(angle), -0.02, 12.7,
+            0, 0, 1, 4.2,
+            0, 0, 0, 1};
+
+        return transformation;
+    }
+
+    @Test
+    public void testNearestHeight() {
+
+        Raster raster = createRaster();
+        raster.setTransformationMatrix(createTransformation());
+
+        RasterQuery query = raster.getQuery();
+
+        Random random = new Random(11);
+        int nbInside = 0;
+
+        //around the transformed raster
+        for (int n = 0; n < 100000; n++) {
+
+            float x = (float) (random.nextDouble() * 40 - 80);
+            float y = (float) (random.nextDouble() * 45 + 225);
+
+            float expected = raster.getSimpleHeight(x, y);
+
+            if(!Float.isNaN(expected)){
+                nbInside++;
+            }
+
+            assertEquals(x + " " + y, Float.floatToIntBits(expected), Float.floatToIntBits(query.getNearestHeight(x, y)));
+        }
+
+        assertTrue(nbInside > 10000);
+    }
+
+    @Test
+    public void testBilinearHeight() {
+
+        Raster raster = createRaster();
+        RasterQuery query = raster.getQuery();
+
+        Random random = new Random(5);
+
+        //a plane is interpolated exactly between the cell centers
+        for (int n = 0; n < 10000; n++) {
+
+            double x = X_CORNER + CELL_SIZE * (0.5 + random.nextDouble() * (NB_COLS - 1));
+            double y = Y_CORNER + CELL_SIZE * (0.5 + random.nextDouble() * (NB_ROWS - 1));
+
+            assertEquals(getPlaneHeight(x, y), query.getBilinearHeight(x, y), 1e-4);
+            assertEquals(query.getBilinearHeight(x, y), raster.getInterpolatedHeight((float) x, (float) y), 1e-3);
+        }
+
+        //cell center
+        assertEquals(raster.getzArray()[3][7], query.getBilinearHeight(X_CORNER + 3.5 * CELL_SIZE, Y_CORNER + (NB_ROWS - 7.5) * CELL_SIZE), 0);
+
+        //border, interpolated along the border only
+        double y = Y_CORNER + 10.25 * CELL_SIZE;
+        assertEquals(getPlaneHeight(X_CORNER + 0.5 * CELL_SIZE, y), query.getBilinearHeight(X_CORNER + 0.1 * CELL_SIZE, y), 1e-4);
+
+        //outside
+        assertTrue(Float.isNaN(query.getBilinearHeight(X_CORNER - 0.1, y)));
+        assertTrue(Float.isNaN(query.getBilinearHeight(X_CORNER + NB_COLS * CELL_SIZE + 0.1, y)));
+        assertTrue(Float.isNaN(query.getBilinearHeight(X_CORNER + 1, Y_CORNER - 0.1)));
+        assertTrue(Float.isNaN(query.getBilinearHeight(Double.NaN, y)));
+    }
+
+    @Test
+    public void testNoData() {
+
+        Raster raster = createRaster();
+        raster.getzArray()[10][10] = Float.NaN;
+
+        RasterQuery query = raster.getQuery();
+
+        //between the centers of the cells (10, 10) and (11, 10), closer to (11, 10)
+        double x = X_CORNER + 11.3 * CELL_SIZE;
+        double y = Y_CORNER + (NB_ROWS - 10.5) * CELL_SIZE;
+
+        assertEquals(raster.getzArray()[11][10], query.getBilinearHeight(x, y), 0);
+
+        //inside the no data cell
+        assertTrue(Float.isNaN(query.getBilinearHeight(x - CELL_SIZE, y)));
+        assertTrue(Float.isNaN(query.getNearestHeight(x - CELL_SIZE, y)));
+    }
+
+    @Test
+    public void testBatch() {
+
+        Raster raster = createRaster();
+        raster.setTransformationMatrix(createTransformation());
+
+        RasterQuery query = raster.getQuery();
+
+        Random random = new Random(2);
+
+        double[] x = new double[1000];
+        double[] y = new double[1000];
+
+        for (int i = 0; i < x.length; i++) {
+            x[i] = random.nextDouble() * 40 - 80;
+            y[i] = random.nextDouble() * 45 + 225;
+        }
+
+        float[] nearest = query.getHeights(x, y, false);
+        float[] bilinear = query.getHeights(x, y, true);
+
+        for (int i = 0; i < x.length; i++) {
+            assertEquals(Float.floatToIntBits(query.getNearestHeight(x[i], y[i])), Float.floatToIntBits(nearest[i]));
+            assertEquals(Float.floatToIntBits(query.getBilinearHeight(x[i], y[i])), Float.floatToIntBits(bilinear[i]));
+        }
+    }
+
+    @Test
+    public void testTransformationChange() {
+
+        Raster raster = createRaster();
+
+        RasterQuery query = raster.getQuery();
+        assertSame(query, raster.getQuery());
+
+        //horizontal transformation, the height of the queried position does not matter
+        Mat4D transformation = createTransformation();
+        transformation.mat[2] = 0;
+        transformation.mat[6] = 0;
+
+        //the heights are kept once the mesh is built
+        raster.buildMesh();
+        raster.setTransformationMatrix(transformation);
+
+        RasterQuery transformedQuery = raster.getQuery();
+        assertNotSame(query, transformedQuery);
+
+        double x = X_CORNER + 5.5 * CELL_SIZE;
+        double y = Y_CORNER + 8.5 * CELL_SIZE;
+
+        //raster position to world position
+        double worldX = transformation.mat[0] * x + transformation.mat[1] * y + transformation.mat[2] + transformation.mat[3];
+        double worldY = transformation.mat[4] * x + transformation.mat[5] * y + transformation.mat[6] + transformation.mat[7];
+
+        assertEquals(query.getBilinearHeight(x, y), transformedQuery.getBilinearHeight(worldX, worldY), 1e-4);
+    }
+}
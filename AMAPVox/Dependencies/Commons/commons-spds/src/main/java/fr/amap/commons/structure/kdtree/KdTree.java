@@ -0,0 +1,430 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.commons.structure.kdtree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Balanced kd-tree over 3d points, stored in flat arrays.
+ *
+ * <p>The tree is implicit: the points are reordered so that the node of a range of points
+ * is the median point of the range, the points before it are on the lower side of the
+ * splitting plane and the points after it on the upper side. The splitting axis of a node
+ * is the axis of largest extent of its range.</p>
+ *
+ * <p>The queries do not allocate anything and the tree is not modified once built,
+ * it can be queried by several threads at the same time.</p>
+ */
+public class KdTree {
+
+    //ranges smaller than this are built by the current thread
+    private final static int PARALLEL_THRESHOLD = 1 << 15;
+
+    private final double[] x;
+    private final double[] y;
+    private final double[] z;
+
+    //indices of the points in the arrays given to the constructor
+    private final int[] indices;
+
+    //splitting axis of each node (0, 1, 2 for x, y, z)
+    private final byte[] axes;
+
+    /**
+     * Build a kd-tree, points with a NaN coordinate are ignored.
+     * @param x points x, the array is not modified
+     * @param y points y, the array is not modified
+     * @param z points z, the array is not modified
+     * @param nbThreads number of threads used to build the tree
+     */
+    public KdTree(double[] x, double[] y, double[] z, int nbThreads) {
+        this(x, y, z, x.length, nbThreads);
+    }
+
+    /**
+     * Build a kd-tree, points with a NaN coordinate are ignored.
+     * @param x points x, the array is not modified
+     * @param y points y, the array is not modified
+     * @param z points z, the array is not modified
+     * @param nbPoints number of points, the first values of the arrays
+     * @param nbThreads number of threads used to build the tree
+     */
+    public KdTree(double[] x, double[] y, double[] z, int nbPoints, int nbThreads) {
+
+        if(y.length < nbPoints || z.length < nbPoints || x.length < nbPoints){
+            throw new IllegalArgumentException("Coordinates arrays are smaller than the number of points");
+        }
+
+        int size = 0;
+
+        for (int i = 0; i < nbPoints; i++) {
+            if(!Double.isNaN(x[i]) && !Double.isNaN(y[i]) && !Double.isNaN(z[i])){
+                size++;
+            }
+        }
+
+        this.x = new double[size];
+        this.y = new double[size];
+        this.z = new double[size];
+        this.indices = new int[size];
+        this.axes = new byte[size];
+
+        for (int i = 0, j = 0; i < nbPoints; i++) {
+            if(!Double.isNaN(x[i]) && !Double.isNaN(y[i]) && !Double.isNaN(z[i])){
+                this.x[j] = x[i];
+                this.y[j] = y[i];
+                this.z[j] = z[i];
+                this.indices[j] = i;
+                j++;
+            }
+        }
+
+        if(nbThreads > 1 && size > PARALLEL_THRESHOLD){
+
+            ForkJoinPool pool = new ForkJoinPool(nbThreads);
+
+            try{
+                pool.invoke(new BuildTask(0, size));
+            }finally{
+                pool.shutdown();
+            }
+
+        }else{
+            build(0, size);
+        }
+    }
+
+    private class BuildTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int lo;
+        private final int hi;
+
+        BuildTask(int lo, int hi) {
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+
+            if(hi - lo <= PARALLEL_THRESHOLD){
+                build(lo, hi);
+            }else{
+                int mid = split(lo, hi);
+                invokeAll(new BuildTask(lo, mid), new BuildTask(mid + 1, hi));
+            }
+        }
+    }
+
+    private void build(int lo, int hi) {
+
+        if(hi - lo > 1){
+            int mid = split(lo, hi);
+            build(lo, mid);
+            build(mid + 1, hi);
+        }
+    }
+
+    /**
+     * Choose the splitting axis of a range and move its median point in the middle of the range.
+     * @return the middle of the range
+     */
+    private int split(int lo, int hi) {
+
+        double minX = x[lo], maxX = x[lo];
+        double minY = y[lo], maxY = y[lo];
+        double minZ = z[lo], maxZ = z[lo];
+
+        for (int i = lo + 1; i < hi; i++) {
+            minX = Math.min(minX, x[i]);
+            maxX = Math.max(maxX, x[i]);
+            minY = Math.min(minY, y[i]);
+            maxY = Math.max(maxY, y[i]);
+            minZ = Math.min(minZ, z[i]);
+            maxZ = Math.max(maxZ, z[i]);
+        }
+
+        double extentX = maxX - minX;
+        double extentY = maxY - minY;
+        double extentZ = maxZ - minZ;
+
+        byte axis;
+        double[] key;
+
+        if(extentX >= extentY && extentX >= extentZ){
+            axis = 0;
+            key = x;
+        }else if(extentY >= extentZ){
+            axis = 1;
+            key = y;
+        }else{
+            axis = 2;
+            key = z;
+        }
+
+        int mid = (lo + hi) >>> 1;
+
+        select(key, lo, hi - 1, mid);
+        axes[mid] = axis;
+
+        return mid;
+    }
+
+    /**
+     * Partial sort of a range: key[left..k[ &lt;= key[k] &lt;= key]k..right].
+     */
+    private void select(double[] key, int left, int right, int k) {
+
+        while(right > left){
+
+            //median of three pivot
+            int m = (left + right) >>> 1;
+
+            if(key[m] < key[left]){
+                swap(m, left);
+            }
+            if(key[right] < key[left]){
+                swap(right, left);
+            }
+            if(key[right] < key[m]){
+                swap(right, m);
+            }
+
+            double pivot = key[m];
+            int i = left, j = right;
+
+            while(i <= j){
+
+                while(key[i] < pivot){
+                    i++;
+                }
+                while(key[j] > pivot){
+                    j--;
+                }
+
+                if(i <= j){
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+
+            if(k <= j){
+                right = j;
+            }else if(k >= i){
+                left = i;
+            }else{
+                return;
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+
+        double tmp = x[i];
+        x[i] = x[j];
+        x[j] = tmp;
+
+        tmp = y[i];
+        y[i] = y[j];
+        y[j] = tmp;
+
+        tmp = z[i];
+        z[i] = z[j];
+        z[j] = tmp;
+
+        int index = indices[i];
+        indices[i] = indices[j];
+        indices[j] = index;
+    }
+
+    private double getSplitDistance(int node, double px, double py, double pz) {
+
+        switch(axes[node]){
+            case 0:
+                return px - x[node];
+            case 1:
+                return py - y[node];
+            default:
+                return pz - z[node];
+        }
+    }
+
+    private double getSquaredDistance(int node, double px, double py, double pz) {
+
+        double dx = x[node] - px;
+        double dy = y[node] - py;
+        double dz = z[node] - pz;
+
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Get the nearest point of a position.
+     * @param px position x
+     * @param py position y
+     * @param pz position z
+     * @param maxDistance only the points closer than this distance are considered,
+     * use {@link Double#POSITIVE_INFINITY} for no limit
+     * @return the index of the nearest point in the arrays given to the constructor,
+     * -1 if there is no point closer than the maximum distance
+     */
+    public int getNearestPoint(double px, double py, double pz, double maxDistance) {
+
+        int nearest = getNearestPoint(0, x.length, px, py, pz, -1, maxDistance * maxDistance);
+
+        return nearest == -1 ? -1 : indices[nearest];
+    }
+
+    private int getNearestPoint(int lo, int hi, double px, double py, double pz, int best, double bestDistance) {
+
+        if(lo >= hi){
+            return best;
+        }
+
+        int node = (lo + hi) >>> 1;
+
+        double distance = getSquaredDistance(node, px, py, pz);
+
+        if(distance < bestDistance){
+            best = node;
+            bestDistance = distance;
+        }
+
+        double splitDistance = getSplitDistance(node, px, py, pz);
+
+        int nearest;
+
+        if(splitDistance < 0){
+            nearest = getNearestPoint(lo, node, px, py, pz, best, bestDistance);
+        }else{
+            nearest = getNearestPoint(node + 1, hi, px, py, pz, best, bestDistance);
+        }
+
+        if(nearest != best){
+            best = nearest;
+            bestDistance = getSquaredDistance(best, px, py, pz);
+        }
+
+        if(splitDistance * splitDistance < bestDistance){
+
+            if(splitDistance < 0){
+                best = getNearestPoint(node + 1, hi, px, py, pz, best, bestDistance);
+            }else{
+                best = getNearestPoint(lo, node, px, py, pz, best, bestDistance);
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Test if a point is closer than a distance to a position.
+     * The distance is computed as {@code Math.sqrt(dx*dx + dy*dy + dz*dz)}.
+     * @param px position x
+     * @param py position y
+     * @param pz position z
+     * @param radius the distance
+     * @return true if a point is strictly closer than the distance
+     */
+    public boolean hasPointWithin(double px, double py, double pz, double radius) {
+        return hasPointWithin(0, x.length, px, py, pz, radius);
+    }
+
+    private boolean hasPointWithin(int lo, int hi, double px, double py, double pz, double radius) {
+
+        while(lo < hi){
+
+            int node = (lo + hi) >>> 1;
+
+            if(Math.sqrt(getSquaredDistance(node, px, py, pz)) < radius){
+                return true;
+            }
+
+            double splitDistance = getSplitDistance(node, px, py, pz);
+
+            //the far side is searched recursively, the near side in the loop
+            if(splitDistance < 0){
+                if(-splitDistance < radius && hasPointWithin(node + 1, hi, px, py, pz, radius)){
+                    return true;
+                }
+                hi = node;
+            }else{
+                if(splitDistance < radius && hasPointWithin(lo, node, px, py, pz, radius)){
+                    return true;
+                }
+                lo = node + 1;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the points closer than a distance to a position.
+     * The distance is computed as {@code Math.sqrt(dx*dx + dy*dy + dz*dz)}.
+     * @param px position x
+     * @param py position y
+     * @param pz position z
+     * @param radius the distance
+     * @param result indices of the points in the arrays given to the constructor,
+     * in no particular order, filled up to its length
+     * @return the number of points strictly closer than the distance, may be greater than the result length
+     */
+    public int getPointsWithin(double px, double py, double pz, double radius, int[] result) {
+        return getPointsWithin(0, x.length, px, py, pz, radius, result, 0);
+    }
+
+    private int getPointsWithin(int lo, int hi, double px, double py, double pz, double radius, int[] result, int count) {
+
+        while(lo < hi){
+
+            int node = (lo + hi) >>> 1;
+
+            if(Math.sqrt(getSquaredDistance(node, px, py, pz)) < radius){
+                if(count < result.length){
+                    result[count] = indices[node];
+                }
+                count++;
+            }
+
+            double splitDistance = getSplitDistance(node, px, py, pz);
+
+            if(splitDistance < 0){
+                if(-splitDistance < radius){
+                    count = getPointsWithin(node + 1, hi, px, py, pz, radius, result, count);
+                }
+                hi = node;
+            }else{
+                if(splitDistance < radius){
+                    count = getPointsWithin(lo, node, px, py, pz, radius, result, count);
+                }
+                lo = node + 1;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of points of the tree
+     */
+    public int size() {
+        return x.length;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.commons.structure.kdtree;
+
+import fr.amap.commons.math.matrix.Mat4D;
+import fr.amap.commons.util.io.file.CSVFile;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Build kd-trees from point files.
+ */
+public class KdTreeFactory {
+
+    /**
+     * Read a point file and build its kd-tree.
+     * The points are read and transformed as {@link fr.amap.commons.structure.octree.OctreeFactory} does.
+     * @param file the point file
+     * @param transfMatrix transformation applied to the points
+     * @param nbThreads number of threads used to build the tree
+     * @return the kd-tree of the transformed points
+     * @throws IOException if the file cannot be read
+     */
+    public static KdTree createKdTreeFromPointFile(CSVFile file, Mat4D transfMatrix, int nbThreads) throws IOException {
+
+        double[] mat = transfMatrix.mat;
+
+        int nbPoints = 0;
+        double[] x = new double[1024];
+        double[] y = new double[1024];
+        double[] z = new double[1024];
+
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+
+            String line;
+
+            if(file.containsHeader()){
+                reader.readLine();
+            }
+
+            for(int i=0;i<file.getNbOfLinesToSkip();i++){
+                reader.readLine();
+            }
+
+            Map<String, Integer> columnAssignment = file.getColumnAssignment();
+            int columnX = columnAssignment.get("X");
+            int columnY = columnAssignment.get("Y");
+            int columnZ = columnAssignment.get("Z");
+
+            while((line = reader.readLine()) != null){
+
+                String[] split = line.split(file.getColumnSeparator());
+
+                double px = Float.valueOf(split[columnX]);
+                double py = Float.valueOf(split[columnY]);
+                double pz = Float.valueOf(split[columnZ]);
+
+                if(nbPoints == x.length){
+                    x = Arrays.copyOf(x, nbPoints * 2);
+                    y = Arrays.copyOf(y, nbPoints * 2);
+                    z = Arrays.copyOf(z, nbPoints * 2);
+                }
+
+                //same operations as Mat4D.multiply, points stored as floats
+                x[nbPoints] = (float) (mat[0] * px + mat[1] * py + mat[2] * pz + mat[3]);
+                y[nbPoints] = (float) (mat[4] * px + mat[5] * py + mat[6] * pz + mat[7]);
+                z[nbPoints] = (float) (mat[8] * px + mat[9] * py + mat[10] * pz + mat[11]);
+                nbPoints++;
+            }
+        }
+
+        return new KdTree(x, y, z, nbPoints, nbThreads);
+    }
+}
@@ -0,0 +1,166 @@
+package fr.amap.commons.structure.kdtree;
+
+import fr.amap.commons.math.point.Point3D;
+import fr.amap.commons.structure.octree.Octree;
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+/**
+ *
+ * Compare the kd-tree queries with a brute force search and with the octree.
+ */
+public class KdTreeTest {
+
+    private final static int NB_POINTS = 100000;
+
+    private final double[] x = new double[NB_POINTS];
+    private final double[] y = new double[NB_POINTS];
+    private final double[] z = new double[NB_POINTS];
+
+    public KdTreeTest() {
+
+        Random random = new Random(17);
+
+        for (int i = 0; i < NB_POINTS; i++) {
+
+            //clustered points with duplicated coordinates, like a tls point cloud
+            if(i > 0 && random.nextInt(10) == 0){
+                int j = random.nextInt(i);
+                x[i] = x[j];
+                y[i] = random.nextInt(3) == 0 ? y[j] : (float) (random.nextGaussian() * 5);
+                z[i] = z[j];
+            }else{
+                x[i] = (float) (random.nextGaussian() * 10);
+                y[i] = (float) (random.nextGaussian() * 5);
+                z[i] = (float) (Math.abs(random.nextGaussian()) * 3);
+            }
+        }
+
+        x[10] = Double.NaN;
+    }
+
+    private double getDistance(int i, double px, double py, double pz) {
+        return Math.sqrt((x[i] - px) * (x[i] - px) + (y[i] - py) * (y[i] - py) + (z[i] - pz) * (z[i] - pz));
+    }
+
+    @Test
+    public void testQueries() {
+
+        KdTree singleThreadTree = new KdTree(x, y, z, 1);
+        KdTree tree = new KdTree(x, y, z, 4);
+
+        assertEquals(NB_POINTS - 1, tree.size());
+
+        Random random = new Random(3);
+        int[] result = new int[NB_POINTS];
+        int[] singleThreadResult = new int[NB_POINTS];
+
+        for (int n = 0; n < 300; n++) {
+
+            double px = random.nextGaussian() * 12;
+            double py = random.nextGaussian() * 6;
+            double pz = random.nextGaussian() * 4;
+            double radius = random.nextDouble() * 2;
+
+            int nearest = -1;
+            double nearestDistance = Double.POSITIVE_INFINITY;
+            int count = 0;
+
+            for (int i = 0; i < NB_POINTS; i++) {
+
+                if(Double.isNaN(x[i])){
+                    continue;
+                }
+
+                double distance = getDistance(i, px, py, pz);
+
+                if(distance < nearestDistance){
+                    nearestDistance = distance;
+                    nearest = i;
+                }
+
+                if(distance < radius){
+                    count++;
+                }
+            }
+
+            int treeNearest = tree.getNearestPoint(px, py, pz, Double.POSITIVE_INFINITY);
+            assertEquals(nearestDistance, getDistance(treeNearest, px, py, pz), 0);
+            assertEquals(singleThreadTree.getNearestPoint(px, py, pz, Double.POSITIVE_INFINITY), treeNearest);
+
+            int limitedNearest = tree.getNearestPoint(px, py, pz, radius);
+            assertEquals(nearestDistance < radius, limitedNearest != -1);
+
+            assertEquals(count > 0, tree.hasPointWithin(px, py, pz, radius));
+
+            assertEquals(count, tree.getPointsWithin(px, py, pz, radius, result));
+            assertEquals(count, singleThreadTree.getPointsWithin(px, py, pz, radius, singleThreadResult));
+
+            Arrays.sort(result, 0, count);
+            Arrays.sort(singleThreadResult, 0, count);
+
+            for (int i = 0; i < count; i++) {
+                assertTrue(getDistance(result[i], px, py, pz) < radius);
+                assertEquals(singleThreadResult[i], result[i]);
+                if(i > 0){
+                    assertTrue(result[i] != result[i - 1]);
+                }
+            }
+        }
+
+        //result array smaller than the number of points
+        assertEquals(tree.getPointsWithin(0, 0, 1, 1, result), tree.getPointsWithin(0, 0, 1, 1, new int[2]));
+    }
+
+    @Test
+    public void testSameAsOctree() throws Exception {
+
+        Point3D[] points = new Point3D[NB_POINTS - 1];
+
+        for (int i = 0, j = 0; i < NB_POINTS; i++) {
+            if(!Double.isNaN(x[i])){
+                points[j++] = new Point3D(x[i], y[i], z[i]);
+            }
+        }
+
+        Octree octree = new Octree(50);
+        octree.setPoints(points);
+        octree.build();
+
+        KdTree tree = new KdTree(x, y, z, 2);
+
+        Random random = new Random(8);
+        int nbInside = 0;
+
+        for (int n = 0; n < 20000; n++) {
+
+            double px = random.nextGaussian() * 10;
+            double py = random.nextGaussian() * 5;
+            double pz = random.nextDouble() * 6;
+            float margin = random.nextFloat() * 0.3f;
+
+            boolean expected = octree.isPointBelongsToPointcloud(new Point3D(px, py, pz), margin, Octree.INCREMENTAL_SEARCH);
+
+            if(expected){
+                nbInside++;
+            }
+
+            assertEquals(expected, tree.hasPointWithin(px, py, pz, margin));
+        }
+
+        assertTrue(nbInside > 1000);
+    }
+
+    @Test
+    public void testEmpty() {
+
+        KdTree tree = new KdTree(new double[0], new double[0], new double[0], 2);
+
+        assertEquals(0, tree.size());
+        assertEquals(-1, tree.getNearestPoint(0, 0, 0, Double.POSITIVE_INFINITY));
+        assertFalse(tree.hasPointWithin(0, 0, 0, 10));
+        assertEquals(0, tree.getPointsWithin(0, 0, 0, 10, new int[4]));
+    }
+}
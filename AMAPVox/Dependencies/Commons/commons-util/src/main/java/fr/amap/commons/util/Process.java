@@ -13,16 +13,57 @@ import javax.swing.event.EventListenerList;
  */
 public abstract class Process{
     
+    /**
+     * Default minimal interval between two progress events of a same step, in milliseconds.
+     */
+    public final static long DEFAULT_PROGRESS_INTERVAL = 100;
+    
     private final EventListenerList listeners= new EventListenerList();
     
+    private long progressInterval = DEFAULT_PROGRESS_INTERVAL * 1000000;
+    private volatile long lastProgressTime;
+    private volatile String lastProgressMsg;
+    
+    /**
+     * Notify the listeners of the progress of the process.
+     * The events are rate-limited: an event with the same message as the previous one
+     * is dropped if it comes less than the progress interval after it,
+     * unless it is the first (progress is 0) or the last (progress reaches max) event of the step.
+     * @param progressMsg step of the process
+     * @param progress progress of the step
+     * @param max progress at the end of the step
+     */
     public void fireProgress(String progressMsg, long progress, long max){
         
+        if(listeners.getListenerCount() == 0){
+            return;
+        }
+        
+        long time = System.nanoTime();
+        
+        if(progress > 0 && progress < max
+                && time - lastProgressTime < progressInterval
+                && progressMsg != null && progressMsg.equals(lastProgressMsg)){
+            return;
+        }
+        
+        lastProgressTime = time;
+        lastProgressMsg = progressMsg;
+        
         for(ProcessingListener listener :listeners.getListeners(ProcessingListener.class)){
 
             listener.processingStepProgress(progressMsg, progress, max);
         }
     }
     
+    /**
+     * Set the minimal interval between two progress events of a same step.
+     * @param millis interval in milliseconds, 0 to forward every event
+     */
+    public void setProgressInterval(long millis){
+        progressInterval = millis * 1000000;
+    }
+    
     public void fireFinished(float duration){
         
         for(ProcessingListener listener :listeners.getListeners(ProcessingListener.class)){
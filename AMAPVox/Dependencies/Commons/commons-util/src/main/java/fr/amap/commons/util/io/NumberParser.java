@@ -0,0 +1,563 @@
+/*
+This software is distributed WITHOUT ANY WARRANTY and without even the
+implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+This program is open-source LGPL 3 (see copying.txt).
+Authors:
+    Gregoire Vincent    gregoire.vincent@ird.fr
+    Julien Heurtebize   julienhtbe@gmail.com
+    Jean Dauzat         jean.dauzat@cirad.fr
+    Rémi Cresson        cresson.r@gmail.com
+
+For further information, please contact Gregoire Vincent.
+ */
+
+package fr.amap.commons.util.io;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parse numbers from a character or an ASCII byte array without creating strings.
+ *
+ * <p>The result is always the one of {@link Float#parseFloat(String)}, {@link Double#parseDouble(String)},
+ * {@link Integer#parseInt(String)} or {@link Long#parseLong(String)}. Decimal numbers with at
+ * most 7 (float) or 15 (double) significant digits and a small exponent, which is the case of most of the values
+ * written by {@link Float#toString(float)} or with a fixed number of decimals, are converted with a single correctly rounded
+ * operation. Other numbers (more digits, NaN, Infinity, hexadecimal...) fall back to
+ * the parsing methods of the JDK.</p>
+ */
+public class NumberParser {
+
+    //largest mantissa exactly represented by a float
+    private final static long MAX_FLOAT_MANTISSA = 1L << 24;
+
+    //powers of ten exactly represented by a float
+    private final static float[] FLOAT_POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    //largest mantissa exactly represented by a double
+    private final static long MAX_DOUBLE_MANTISSA = 1L << 53;
+
+    //powers of ten exactly represented by a double
+    private final static double[] DOUBLE_POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    /**
+     * Parse a float.
+     *
+     * @param chars characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not a number
+     */
+    public static float parseFloat(char[] chars, int offset, int length) {
+
+        int end = offset + length;
+        int i = offset;
+
+        boolean negative = false;
+
+        if(i < end && (chars[i] == '-' || chars[i] == '+')){
+            negative = chars[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean afterPoint = false;
+        boolean exact = true;
+
+        for(; i < end; i++){
+
+            char c = chars[i];
+
+            if(c >= '0' && c <= '9'){
+
+                hasDigits = true;
+
+                if(mantissa < MAX_FLOAT_MANTISSA){
+                    mantissa = mantissa * 10 + (c - '0');
+                    if(afterPoint){
+                        exponent--;
+                    }
+                }else if(c != '0'){
+                    exact = false;
+                }else if(!afterPoint){
+                    exponent++;
+                }
+
+            }else if(c == '.' && !afterPoint){
+                afterPoint = true;
+            }else{
+                break;
+            }
+        }
+
+        if(i < end && hasDigits && (chars[i] == 'E' || chars[i] == 'e')){
+
+            i++;
+
+            boolean negativeExponent = false;
+
+            if(i < end && (chars[i] == '-' || chars[i] == '+')){
+                negativeExponent = chars[i] == '-';
+                i++;
+            }
+
+            int exponentValue = 0;
+            boolean hasExponentDigits = false;
+
+            for(; i < end && chars[i] >= '0' && chars[i] <= '9'; i++){
+                hasExponentDigits = true;
+                if(exponentValue < 1000){
+                    exponentValue = exponentValue * 10 + (chars[i] - '0');
+                }
+            }
+
+            if(!hasExponentDigits){
+                exact = false;
+            }
+
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        if(i != end || !hasDigits || !exact || mantissa > MAX_FLOAT_MANTISSA
+                || exponent < -(FLOAT_POW10.length - 1) || exponent > FLOAT_POW10.length - 1){
+            return Float.parseFloat(new String(chars, offset, length));
+        }
+
+        float value = mantissa;
+
+        //a single operation on exact operands, the result is correctly rounded
+        if(exponent < 0){
+            value /= FLOAT_POW10[-exponent];
+        }else if(exponent > 0){
+            value *= FLOAT_POW10[exponent];
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a float written in ASCII.
+     *
+     * @param bytes ASCII characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not a number
+     */
+    public static float parseFloat(byte[] bytes, int offset, int length) {
+
+        int end = offset + length;
+        int i = offset;
+
+        boolean negative = false;
+
+        if(i < end && (bytes[i] == '-' || bytes[i] == '+')){
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean afterPoint = false;
+        boolean exact = true;
+
+        for(; i < end; i++){
+
+            byte c = bytes[i];
+
+            if(c >= '0' && c <= '9'){
+
+                hasDigits = true;
+
+                if(mantissa < MAX_FLOAT_MANTISSA){
+                    mantissa = mantissa * 10 + (c - '0');
+                    if(afterPoint){
+                        exponent--;
+                    }
+                }else if(c != '0'){
+                    exact = false;
+                }else if(!afterPoint){
+                    exponent++;
+                }
+
+            }else if(c == '.' && !afterPoint){
+                afterPoint = true;
+            }else{
+                break;
+            }
+        }
+
+        if(i < end && hasDigits && (bytes[i] == 'E' || bytes[i] == 'e')){
+
+            i++;
+
+            boolean negativeExponent = false;
+
+            if(i < end && (bytes[i] == '-' || bytes[i] == '+')){
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+
+            int exponentValue = 0;
+            boolean hasExponentDigits = false;
+
+            for(; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++){
+                hasExponentDigits = true;
+                if(exponentValue < 1000){
+                    exponentValue = exponentValue * 10 + (bytes[i] - '0');
+                }
+            }
+
+            if(!hasExponentDigits){
+                exact = false;
+            }
+
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        if(i != end || !hasDigits || !exact || mantissa > MAX_FLOAT_MANTISSA
+                || exponent < -(FLOAT_POW10.length - 1) || exponent > FLOAT_POW10.length - 1){
+            return Float.parseFloat(new String(bytes, offset, length, StandardCharsets.US_ASCII));
+        }
+
+        float value = mantissa;
+
+        //a single operation on exact operands, the result is correctly rounded
+        if(exponent < 0){
+            value /= FLOAT_POW10[-exponent];
+        }else if(exponent > 0){
+            value *= FLOAT_POW10[exponent];
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a double.
+     *
+     * @param chars characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not a number
+     */
+    public static double parseDouble(char[] chars, int offset, int length) {
+
+        int end = offset + length;
+        int i = offset;
+
+        boolean negative = false;
+
+        if(i < end && (chars[i] == '-' || chars[i] == '+')){
+            negative = chars[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean afterPoint = false;
+        boolean exact = true;
+
+        for(; i < end; i++){
+
+            char c = chars[i];
+
+            if(c >= '0' && c <= '9'){
+
+                hasDigits = true;
+
+                if(mantissa < MAX_DOUBLE_MANTISSA / 10){
+                    mantissa = mantissa * 10 + (c - '0');
+                    if(afterPoint){
+                        exponent--;
+                    }
+                }else if(c != '0'){
+                    exact = false;
+                }else if(!afterPoint){
+                    exponent++;
+                }
+
+            }else if(c == '.' && !afterPoint){
+                afterPoint = true;
+            }else{
+                break;
+            }
+        }
+
+        if(i < end && hasDigits && (chars[i] == 'E' || chars[i] == 'e')){
+
+            i++;
+
+            boolean negativeExponent = false;
+
+            if(i < end && (chars[i] == '-' || chars[i] == '+')){
+                negativeExponent = chars[i] == '-';
+                i++;
+            }
+
+            int exponentValue = 0;
+            boolean hasExponentDigits = false;
+
+            for(; i < end && chars[i] >= '0' && chars[i] <= '9'; i++){
+                hasExponentDigits = true;
+                if(exponentValue < 1000){
+                    exponentValue = exponentValue * 10 + (chars[i] - '0');
+                }
+            }
+
+            if(!hasExponentDigits){
+                exact = false;
+            }
+
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        if(i != end || !hasDigits || !exact){
+            return Double.parseDouble(new String(chars, offset, length));
+        }
+
+        return toDouble(negative, mantissa, exponent, chars, offset, length);
+    }
+
+    /**
+     * Parse a double written in ASCII.
+     *
+     * @param bytes ASCII characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not a number
+     */
+    public static double parseDouble(byte[] bytes, int offset, int length) {
+
+        int end = offset + length;
+        int i = offset;
+
+        boolean negative = false;
+
+        if(i < end && (bytes[i] == '-' || bytes[i] == '+')){
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        boolean afterPoint = false;
+        boolean exact = true;
+
+        for(; i < end; i++){
+
+            byte c = bytes[i];
+
+            if(c >= '0' && c <= '9'){
+
+                hasDigits = true;
+
+                if(mantissa < MAX_DOUBLE_MANTISSA / 10){
+                    mantissa = mantissa * 10 + (c - '0');
+                    if(afterPoint){
+                        exponent--;
+                    }
+                }else if(c != '0'){
+                    exact = false;
+                }else if(!afterPoint){
+                    exponent++;
+                }
+
+            }else if(c == '.' && !afterPoint){
+                afterPoint = true;
+            }else{
+                break;
+            }
+        }
+
+        if(i < end && hasDigits && (bytes[i] == 'E' || bytes[i] == 'e')){
+
+            i++;
+
+            boolean negativeExponent = false;
+
+            if(i < end && (bytes[i] == '-' || bytes[i] == '+')){
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+
+            int exponentValue = 0;
+            boolean hasExponentDigits = false;
+
+            for(; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++){
+                hasExponentDigits = true;
+                if(exponentValue < 1000){
+                    exponentValue = exponentValue * 10 + (bytes[i] - '0');
+                }
+            }
+
+            if(!hasExponentDigits){
+                exact = false;
+            }
+
+            exponent += negativeExponent ? -exponentValue : exponentValue;
+        }
+
+        if(i != end || !hasDigits || !exact){
+            return Double.parseDouble(new String(bytes, offset, length, StandardCharsets.US_ASCII));
+        }
+
+        return toDouble(negative, mantissa, exponent, bytes, offset, length);
+    }
+
+    private static double toDouble(boolean negative, long mantissa, int exponent, Object source, int offset, int length) {
+
+        if(exponent < -(DOUBLE_POW10.length - 1) || exponent > DOUBLE_POW10.length - 1){
+
+            String text = source instanceof char[]
+                    ? new String((char[]) source, offset, length)
+                    : new String((byte[]) source, offset, length, StandardCharsets.US_ASCII);
+
+            return Double.parseDouble(text);
+        }
+
+        double value = mantissa;
+
+        //a single operation on exact operands, the result is correctly rounded
+        if(exponent < 0){
+            value /= DOUBLE_POW10[-exponent];
+        }else if(exponent > 0){
+            value *= DOUBLE_POW10[exponent];
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse an int.
+     *
+     * @param chars characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not an int
+     */
+    public static int parseInt(char[] chars, int offset, int length) {
+
+        long value = parseLong(chars, offset, length);
+
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE){
+            throw new NumberFormatException("For input string: \"" + new String(chars, offset, length) + "\"");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Parse an int written in ASCII.
+     *
+     * @param bytes ASCII characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not an int
+     */
+    public static int parseInt(byte[] bytes, int offset, int length) {
+
+        long value = parseLong(bytes, offset, length);
+
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE){
+            throw new NumberFormatException("For input string: \"" + new String(bytes, offset, length, StandardCharsets.US_ASCII) + "\"");
+        }
+
+        return (int) value;
+    }
+
+    /**
+     * Parse a long.
+     *
+     * @param chars characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not a long
+     */
+    public static long parseLong(char[] chars, int offset, int length) {
+
+        int end = offset + length;
+        int i = offset;
+
+        boolean negative = false;
+
+        if(i < end && (chars[i] == '-' || chars[i] == '+')){
+            negative = chars[i] == '-';
+            i++;
+        }
+
+        //18 digits cannot overflow
+        if(i == end || end - i > 18){
+            return Long.parseLong(new String(chars, offset, length));
+        }
+
+        long value = 0;
+
+        for(; i < end; i++){
+
+            char c = chars[i];
+
+            if(c < '0' || c > '9'){
+                throw new NumberFormatException("For input string: \"" + new String(chars, offset, length) + "\"");
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parse a long written in ASCII.
+     *
+     * @param bytes ASCII characters
+     * @param offset index of the first character of the number
+     * @param length number of characters of the number
+     * @return the parsed value
+     * @throws NumberFormatException if the characters are not a long
+     */
+    public static long parseLong(byte[] bytes, int offset, int length) {
+
+        int end = offset + length;
+        int i = offset;
+
+        boolean negative = false;
+
+        if(i < end && (bytes[i] == '-' || bytes[i] == '+')){
+            negative = bytes[i] == '-';
+            i++;
+        }
+
+        //18 digits cannot overflow
+        if(i == end || end - i > 18){
+            return Long.parseLong(new String(bytes, offset, length, StandardCharsets.US_ASCII));
+        }
+
+        long value = 0;
+
+        for(; i < end; i++){
+
+            byte c = bytes[i];
+
+            if(c < '0' || c > '9'){
+                throw new NumberFormatException("For input string: \"" + new String(bytes, offset, length, StandardCharsets.US_ASCII) + "\"");
+            }
+
+            value = value * 10 + (c - '0');
+        }
+
+        return negative ? -value : value;
+    }
+}
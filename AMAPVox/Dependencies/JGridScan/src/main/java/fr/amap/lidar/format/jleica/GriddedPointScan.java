@@ -406,7 +406,39 @@ public abstract class GriddedPointScan implements Iterable<LPoint>{
         this.startRowIndex = startRowIndex;
         this.endRowIndex = endRowIndex;
     }
-    
+
+    /**
+     * Split the columns of the scan into contiguous bands of nearly equal width.
+     * @param nbBands The number of bands, the columns number if greater
+     * @return The bands as {start column index, end column index} pairs, end index included
+     */
+    public int[][] splitColumns(int nbBands){
+
+        int nbCols = header.getNumCols();
+        nbBands = Math.max(1, Math.min(nbBands, nbCols));
+
+        int[][] bands = new int[nbBands][2];
+
+        for(int i=0;i<nbBands;i++){
+            bands[i][0] = (int) ((long) nbCols * i / nbBands);
+            bands[i][1] = (int) ((long) nbCols * (i+1) / nbBands) - 1;
+        }
+
+        return bands;
+    }
+
+    /**
+     * Create a new reader of the same scan.
+     * <p>The reader does not share any reading state with this one, so several column
+     * ranges of the scan can be read concurrently, one reader per thread.
+     * The header is shared and must not be modified.</p>
+     * @return A reader of the scan, with the default row and column limits
+     * @throws Exception if the reader cannot be created
+     */
+    public GriddedPointScan duplicate() throws Exception{
+        throw new UnsupportedOperationException("Concurrent reading is not supported by "+getClass().getSimpleName());
+    }
+
     /**
      * Are invalid points returned ? 
      * <p>An invalid point is a point without a position because the laser shot didn't get a return.</p>
@@ -18,7 +18,13 @@
  */
 package fr.amap.lidar.format.jleica;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
 import org.apache.commons.math3.geometry.euclidean.threed.SphericalCoordinates;
@@ -57,6 +63,19 @@ public class LPointShotExtractor implements Iterable<LShot>{
     }
     
     public LPointShotExtractor(GriddedPointScan scan) throws Exception{
+        this(scan, 1);
+    }
+    
+    /**
+     * Extract the shots of a gridded scan.
+     * <p>The scan is read once to get the angles of the empty points, with several threads
+     * the columns are split into bands read concurrently by duplicates of the scan
+     * (see {@link GriddedPointScan#duplicate()}).</p>
+     * @param scan The gridded scan
+     * @param nbThreads The number of threads reading the scan
+     * @throws Exception if the scan cannot be read
+     */
+    public LPointShotExtractor(GriddedPointScan scan, int nbThreads) throws Exception{
         
         this.scan = scan;
         
@@ -75,38 +94,10 @@ public class LPointShotExtractor implements Iterable<LShot>{
         //azimuts = new SimpleRegression[this.scan.getHeader().getNumCols()];
         //zenithals = new SimpleRegression[this.scan.getHeader().getNumRows()];
         
-        Iterator<LPoint> iterator = scan.iterator();
-        
-        while(iterator.hasNext()){
-            
-            LPoint point = iterator.next();
-            
-            if(point.valid){
-
-                double x, y, z;
-                
-                if(scan.getHeader().isPointInDoubleFormat()){
-                    x = ((LDoublePoint)point).x;
-                    y = ((LDoublePoint)point).y;
-                    z = ((LDoublePoint)point).z;
-                }else{
-                    x = ((LFloatPoint)point).x;
-                    y = ((LFloatPoint)point).y;
-                    z = ((LFloatPoint)point).z;
-                }
-
-                Vector3d dir = new Vector3d(x, y, z);
-                dir.normalize();
-                
-                SphericalCoordinates sc = new SphericalCoordinates(new Vector3D(dir.x, dir.y, dir.z));
-                
-                angles[point.rowIndex][point.columnIndex] = new SimpleSpherCoords();
-                angles[point.rowIndex][point.columnIndex].azimut = sc.getTheta();
-                angles[point.rowIndex][point.columnIndex].zenith = sc.getPhi();
-                
-                azimuts[point.columnIndex] = true;
-                zenithals[point.rowIndex] = true;
-            }
+        if(nbThreads > 1){
+            readAngles(nbThreads);
+        }else{
+            readAngles(scan.iterator());
         }
         
         int lastValidRowIndex = -1;
@@ -197,6 +188,88 @@ public class LPointShotExtractor implements Iterable<LShot>{
         }
         
     }
+    
+    private void readAngles(Iterator<LPoint> iterator){
+        
+        while(iterator.hasNext()){
+            
+            LPoint point = iterator.next();
+            
+            if(point.valid){
+
+                double x, y, z;
+                
+                if(scan.getHeader().isPointInDoubleFormat()){
+                    x = ((LDoublePoint)point).x;
+                    y = ((LDoublePoint)point).y;
+                    z = ((LDoublePoint)point).z;
+                }else{
+                    x = ((LFloatPoint)point).x;
+                    y = ((LFloatPoint)point).y;
+                    z = ((LFloatPoint)point).z;
+                }
+
+                Vector3d dir = new Vector3d(x, y, z);
+                dir.normalize();
+                
+                SphericalCoordinates sc = new SphericalCoordinates(new Vector3D(dir.x, dir.y, dir.z));
+                
+                angles[point.rowIndex][point.columnIndex] = new SimpleSpherCoords();
+                angles[point.rowIndex][point.columnIndex].azimut = sc.getTheta();
+                angles[point.rowIndex][point.columnIndex].zenith = sc.getPhi();
+                
+                azimuts[point.columnIndex] = true;
+                zenithals[point.rowIndex] = true;
+            }
+        }
+    }
+    
+    /*each band writes the angles of its own columns only, the flags of the rows
+    are only set to true, the bands can thus fill the arrays concurrently*/
+    private void readAngles(int nbThreads) throws Exception{
+        
+        int[][] bands = scan.splitColumns(nbThreads);
+        
+        List<Iterator<LPoint>> iterators = new ArrayList<>(bands.length);
+        
+        for(int[] band : bands){
+            
+            GriddedPointScan bandScan = scan.duplicate();
+            bandScan.setUpColumnsToRead(band[0], band[1]);
+            
+            iterators.add(bandScan.iterator());
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(bands.length, (Runnable r) -> {
+            Thread thread = new Thread(r, "gridded-scan-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        
+        try{
+            List<Future<Object>> futures = new ArrayList<>(bands.length);
+
+            for(Iterator<LPoint> iterator : iterators){
+                futures.add(executor.submit(() -> {
+                    readAngles(iterator);
+                    return null;
+                }));
+            }
+
+            for(Future<Object> future : futures){
+                try{
+                    future.get();
+                }catch(ExecutionException ex){
+                    if(ex.getCause() instanceof Exception){
+                        throw (Exception) ex.getCause();
+                    }
+                    throw ex;
+                }
+            }
+        }finally{
+            executor.shutdownNow();
+        }
+    }
 
     @Override
     public Iterator<LShot> iterator() {
@@ -204,11 +277,33 @@ public class LPointShotExtractor implements Iterable<LShot>{
         //scan.computeExtremumsAngles();
         //scan.setUpRowToRead(0);
         
-        scan.setReturnInvalidPoint(true);
+        return iterator(scan);
+    }
+    
+    /**
+     * Get the shots of a range of columns, the columns are read by a new reader of the scan
+     * (see {@link GriddedPointScan#duplicate()}).
+     * <p>The iterators of distinct column ranges can be consumed concurrently.</p>
+     * @param startColumnIndex The first column index of the range
+     * @param endColumnIndex The last column index of the range, included
+     * @return An iterator over the shots of the columns, column by column
+     * @throws Exception if the reader cannot be created
+     */
+    public Iterator<LShot> iterator(int startColumnIndex, int endColumnIndex) throws Exception{
+        
+        GriddedPointScan bandScan = scan.duplicate();
+        bandScan.setUpColumnsToRead(startColumnIndex, endColumnIndex);
+        
+        return iterator(bandScan);
+    }
+    
+    private Iterator<LShot> iterator(GriddedPointScan pointScan) {
+        
+        pointScan.setReturnInvalidPoint(true);
         
         
         
-        final Iterator<LPoint> pointIterator = scan.iterator();
+        final Iterator<LPoint> pointIterator = pointScan.iterator();
         
         Iterator<LShot> it = new Iterator<LShot>() {
 
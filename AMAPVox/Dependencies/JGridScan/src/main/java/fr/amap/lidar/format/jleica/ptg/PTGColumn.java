@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2016 UMR AMAP (botAnique et Modélisation de l'Architecture des Plantes et des végétations.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package fr.amap.lidar.format.jleica.ptg;
+
+/**
+ * <p>A decoded column of a ptg scan: the validity of each row and the attributes of the valid points,
+ * stored in primitive arrays.</p>
+ * <p>A column can be reused to decode the next one, see {@link PTGScan#readColumn(int, PTGColumn)},
+ * the arrays are only reallocated when they are too small. Only the first
+ * {@link #getNbPoints()} values of the point arrays are meaningful.</p>
+ */
+public class PTGColumn {
+
+    private int columnIndex = -1;
+    private int nbRows;
+    private int nbPoints;
+
+    private long[] validity = new long[0];
+    private int[] rows = new int[0];
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private double[] z = new double[0];
+    private float[] intensity = new float[0];
+    private int[] red = new int[0];
+    private int[] green = new int[0];
+    private int[] blue = new int[0];
+
+    void resize(int columnIndex, int nbRows){
+
+        this.columnIndex = columnIndex;
+        this.nbRows = nbRows;
+
+        int nbWords = (nbRows + 63) / 64;
+
+        if(validity.length < nbWords){
+            validity = new long[nbWords];
+        }
+    }
+
+    void setNbPoints(int nbPoints, boolean hasIntensity, boolean hasRGB){
+
+        this.nbPoints = nbPoints;
+
+        if(rows.length < nbPoints){
+            rows = new int[nbPoints];
+            x = new double[nbPoints];
+            y = new double[nbPoints];
+            z = new double[nbPoints];
+        }
+
+        if(hasIntensity && intensity.length < nbPoints){
+            intensity = new float[nbPoints];
+        }
+
+        if(hasRGB && red.length < nbPoints){
+            red = new int[nbPoints];
+            green = new int[nbPoints];
+            blue = new int[nbPoints];
+        }
+    }
+
+    long[] getValidityWords(){
+        return validity;
+    }
+
+    /**
+     * Is the point of a row valid (is the lidar shot got an answer) ?
+     * @param rowIndex The row index
+     * @return true if the row contains a point
+     */
+    public boolean isValid(int rowIndex){
+        return (validity[rowIndex >>> 6] & (0x8000000000000000L >>> (rowIndex & 63))) != 0;
+    }
+
+    /**
+     * Get the index of the column in the scan.
+     * @return The column index, -1 if no column was read
+     */
+    public int getColumnIndex() {
+        return columnIndex;
+    }
+
+    /**
+     * Get the number of rows of the column, valid or not.
+     * @return The number of rows
+     */
+    public int getNbRows() {
+        return nbRows;
+    }
+
+    /**
+     * Get the number of valid points of the column.
+     * @return The number of points
+     */
+    public int getNbPoints() {
+        return nbPoints;
+    }
+
+    /**
+     * Get the row indices of the valid points, in increasing order.
+     * @return The row indices
+     */
+    public int[] getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the x coordinates of the valid points, float coordinates are widened.
+     * @return The x coordinates
+     */
+    public double[] getX() {
+        return x;
+    }
+
+    /**
+     * Get the y coordinates of the valid points, float coordinates are widened.
+     * @return The y coordinates
+     */
+    public double[] getY() {
+        return y;
+    }
+
+    /**
+     * Get the z coordinates of the valid points, float coordinates are widened.
+     * @return The z coordinates
+     */
+    public double[] getZ() {
+        return z;
+    }
+
+    /**
+     * Get the intensities of the valid points, filled if the points contain intensity.
+     * @return The intensities
+     */
+    public float[] getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * Get the red values of the valid points, filled if the points contain rgb.
+     * @return The red values
+     */
+    public int[] getRed() {
+        return red;
+    }
+
+    /**
+     * Get the green values of the valid points, filled if the points contain rgb.
+     * @return The green values
+     */
+    public int[] getGreen() {
+        return green;
+    }
+
+    /**
+     * Get the blue values of the valid points, filled if the points contain rgb.
+     * @return The blue values
+     */
+    public int[] getBlue() {
+        return blue;
+    }
+}
@@ -26,16 +26,25 @@ import fr.amap.lidar.format.jleica.LFloatPoint;
 import fr.amap.lidar.format.jleica.LPoint;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import javax.vecmath.Matrix4d;
 
 /**<p>This class is dedicated to handle PTG binary scan file, a Leica gridded point format 
  * (see <a href= "http://www.xdesy.de/freeware/PTG-DLL/PTG-1.0.pdf"> specification</a>)</p>
- * <p>It provides a simple iterator to get points from the file.</p>
+ * <p>It provides a simple iterator to get points from the file, and a column by column access with
+ * {@link #readColumn(int, PTGColumn) readColumn(int columnIndex, PTGColumn column)}.
+ * The points are read from a memory-mapped window of the file.</p>
  * As the ptg scan file is a gridded point format, you can select the row, columns you want to read
  * with the following methods :
  * <ul>
@@ -52,6 +61,14 @@ public class PTGScan extends GriddedPointScan{
     private long headerByteLength;
     private long[] offsets = null;
     private long offsetSize;
+    
+    //size of the mapped windows of the file, a window always holds whole columns
+    private final static long MAPPING_WINDOW_SIZE = 64 << 20;
+    
+    private ByteBuffer littleEndianBuffer;
+    private ByteBuffer bigEndianBuffer;
+    private long windowStart = -1;
+    private long windowEnd = -1;
 
     public PTGScan() {
         header = new PTGHeader();
@@ -250,23 +267,6 @@ public class PTGScan extends GriddedPointScan{
         return result;
     }
     
-    private long getNextLong(DataInputStream dis) throws IOException{
-        
-        long result = LittleEndianUtility.tolong(new byte[]{dis.readByte(),
-                dis.readByte(), 
-                dis.readByte(), 
-                dis.readByte(),
-                dis.readByte(), 
-                dis.readByte(), 
-                dis.readByte(), 
-                dis.readByte()});
-        
-        
-        nbByteRead += 8;
-        
-        return result;
-    }
-    
     private double getNextDouble(DataInputStream dis) throws IOException{
         
         double result = LittleEndianUtility.toDouble(dis.readByte(),
@@ -283,56 +283,210 @@ public class PTGScan extends GriddedPointScan{
         return result;
     }
     
-    private float getNextFloat(DataInputStream dis) throws IOException{
-        
-        float result = LittleEndianUtility.toFloat(dis.readByte(),
-                                                    dis.readByte(),
-                                                    dis.readByte(),
-                                                    dis.readByte());
-        
-        nbByteRead += 4;
-        
-        return result;
-    }
-    
-    private void readColumnsOffsets() throws FileNotFoundException, IOException, Exception{
+    private void readColumnsOffsets() throws IOException{
         
-        offsetSize = 0;
-        
-        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
             
-            dis.mark(Integer.MAX_VALUE);
-            dis.skipBytes((int) headerByteLength);
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, headerByteLength, header.getNumCols() * 8L).order(ByteOrder.LITTLE_ENDIAN);
             
             offsets = new long[header.getNumCols()];
             
             //get columns offsets list
-            for (int i = 0; i < header.getNumCols(); i++) {
-                
-                offsets[i] = getNextLong(dis);
-                offsetSize += 8;
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = buffer.getLong(i * 8);
             }
+            
+            offsetSize = offsets.length * 8L;
         }
     }
     
-    private void skipHeader(DataInputStream dis) throws IOException{
-        dis.skipBytes((int) headerByteLength);
-        nbByteRead = headerByteLength;
-    }
-    
-    private void skipOffsets(DataInputStream dis) throws IOException{
-        dis.skipBytes((int) offsetSize);
-        nbByteRead = (int) (headerByteLength + offsetSize);
+    /**
+     * Map a window of the file, the window starts at the given position and holds at least minSize bytes
+     * (less at the end of the file).
+     */
+    private void map(long position, long minSize) throws IOException{
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            
+            long size = Math.min(Math.max(MAPPING_WINDOW_SIZE, minSize), channel.size() - position);
+            
+            if(size < 0){
+                throw new EOFException("Column offset "+position+" beyond the end of the file "+file.getName());
+            }
+            
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            
+            //points are little endian, the validity bitmap is read as big endian words so that the first row is the highest bit
+            littleEndianBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            bigEndianBuffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+            
+            windowStart = position;
+            windowEnd = position + size;
+        }
     }
     
-    private void skipMetadata(DataInputStream dis) throws IOException{
-        skipHeader(dis);
-        skipOffsets(dis);
+    /**
+     * Decode a whole column of the scan: the validity bitmap and the attributes of all its valid points.
+     * <p>The file is memory-mapped by windows of several megabytes, the column is read straight from its
+     * offset so the columns can be read in any order. The row limits are ignored.</p>
+     * @param columnIndex The column index
+     * @param column The column to fill, can be the column read previously, or null to allocate a new one
+     * @return The decoded column
+     * @throws IOException if the column cannot be read or is truncated
+     */
+    public PTGColumn readColumn(int columnIndex, PTGColumn column) throws IOException{
+        
+        if(offsets == null){
+            readColumnsOffsets();
+        }
+        
+        if(column == null){
+            column = new PTGColumn();
+        }
+        
+        int nbRows = header.getNumRows();
+        int nbValidityBytes = (nbRows + 7) / 8;
+        int pointSize = header.getPointSize();
+        long columnOffset = offsets[columnIndex];
+        long maxColumnSize = nbValidityBytes + (long) nbRows * pointSize;
+        
+        if(columnOffset < windowStart || columnOffset + maxColumnSize > windowEnd){
+            map(columnOffset, maxColumnSize);
+        }
+        
+        int position = (int) (columnOffset - windowStart);
+        
+        if(position + nbValidityBytes > bigEndianBuffer.limit()){
+            throw new EOFException("Column "+columnIndex+" truncated in file "+file.getName());
+        }
+        
+        column.resize(columnIndex, nbRows);
+        
+        long[] words = column.getValidityWords();
+        int nbWords = (nbRows + 63) / 64;
+        int nbPoints = 0;
+        
+        for(int w=0;w<nbWords;w++){
+            
+            int byteIndex = position + w * 8;
+            int byteEnd = position + nbValidityBytes;
+            long word;
+            
+            if(byteIndex + 8 <= byteEnd){
+                word = bigEndianBuffer.getLong(byteIndex);
+            }else{
+                word = 0;
+                for(int b = byteIndex, shift = 56; b < byteEnd; b++, shift -= 8){
+                    word |= (bigEndianBuffer.get(b) & 0xFFL) << shift;
+                }
+            }
+            
+            //ignore the padding bits of the last byte
+            if(w == nbWords - 1 && (nbRows & 63) != 0){
+                word &= -1L << (64 - (nbRows & 63));
+            }
+            
+            words[w] = word;
+            nbPoints += Long.bitCount(word);
+        }
+        
+        int pointPosition = position + nbValidityBytes;
+        
+        if(pointPosition + (long) nbPoints * pointSize > littleEndianBuffer.limit()){
+            throw new EOFException("Column "+columnIndex+" truncated in file "+file.getName());
+        }
+        
+        boolean doubleFormat = header.isPointInDoubleFormat();
+        boolean hasIntensity = header.isPointContainsIntensity();
+        boolean hasRGB = header.isPointContainsRGB();
+        
+        column.setNbPoints(nbPoints, hasIntensity, hasRGB);
+        
+        int[] rows = column.getRows();
+        
+        for(int w=0, i=0;w<nbWords;w++){
+            
+            long word = words[w];
+            
+            while(word != 0){
+                int bit = Long.numberOfLeadingZeros(word);
+                rows[i++] = (w << 6) + bit;
+                word &= ~(0x8000000000000000L >>> bit);
+            }
+        }
+        
+        double[] x = column.getX();
+        double[] y = column.getY();
+        double[] z = column.getZ();
+        float[] intensity = column.getIntensity();
+        int[] red = column.getRed();
+        int[] green = column.getGreen();
+        int[] blue = column.getBlue();
+        
+        for(int i=0;i<nbPoints;i++, pointPosition += pointSize){
+            
+            int p = pointPosition;
+            
+            if(doubleFormat){
+                x[i] = littleEndianBuffer.getDouble(p);
+                y[i] = littleEndianBuffer.getDouble(p + 8);
+                z[i] = littleEndianBuffer.getDouble(p + 16);
+                p += 24;
+            }else{
+                x[i] = littleEndianBuffer.getFloat(p);
+                y[i] = littleEndianBuffer.getFloat(p + 4);
+                z[i] = littleEndianBuffer.getFloat(p + 8);
+                p += 12;
+            }
+            
+            if(hasIntensity){
+                intensity[i] = littleEndianBuffer.getFloat(p);
+                p += 4;
+            }
+            
+            if(hasRGB){
+                red[i] = (littleEndianBuffer.get(p) & 0xFF) + 128;
+                green[i] = (littleEndianBuffer.get(p + 1) & 0xFF) + 128;
+                blue[i] = (littleEndianBuffer.get(p + 2) & 0xFF) + 128;
+            }
+        }
+        
+        nbByteRead = columnOffset + nbValidityBytes + (long) nbPoints * pointSize;
+        
+        return column;
     }
 
     public long getNbByteRead() {
         return nbByteRead;
     }
+
+    /**
+     * Create a new reader of the same scan, the header and the columns offsets are shared
+     * so the file is not parsed again.
+     * @return A reader of the scan
+     * @throws Exception if the columns offsets cannot be read
+     */
+    @Override
+    public PTGScan duplicate() throws Exception{
+
+        if(offsets == null){
+            readColumnsOffsets();
+        }
+
+        PTGScan scan = new PTGScan();
+
+        scan.file = file;
+        scan.header = header;
+        scan.headerByteLength = headerByteLength;
+        scan.offsets = offsets;
+        scan.offsetSize = offsetSize;
+        scan.returnInvalidPoint = returnInvalidPoint;
+
+        scan.resetColumnLimits();
+        scan.resetRowLimits();
+
+        return scan;
+    }
     
     @Override
     public PTGHeader getHeader() {
@@ -350,6 +504,7 @@ public class PTGScan extends GriddedPointScan{
      * <li>{@link #setUpRowsToRead(int, int) setUpRowsToRead(int startRowIndex, int endRowIndex)}</li>
      * </ul>
      * Those methods should be called before to get the iterator.
+     * The columns are decoded at once with {@link #readColumn(int, PTGColumn)}.
      * @return A {@link LPoint} point returned by the iterator.
      */
     @Override
@@ -357,244 +512,142 @@ public class PTGScan extends GriddedPointScan{
         
         currentColIndex = 0;
         
-        final DataInputStream dis;
-        Iterator it = null;
-        
-        try  {
-            
+        try {
             if(offsets == null){
                 readColumnsOffsets();
             }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        
+        final int firstColumnIndex = startColumnIndex;
+        final int lastColumnIndex = Math.min(endColumnIndex, header.getNumCols() - 1);
+        final int firstRowIndex = Math.max(startRowIndex, 0);
+        final int lastRowIndex = Math.min(endRowIndex, header.getNumRows() - 1);
+        
+        return new Iterator<LPoint>() {
             
-            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
-
-            dis.mark(Integer.MAX_VALUE);
-            skipMetadata(dis);
-
-            it = new Iterator<LPoint>() {
-
-                boolean[] validPoints;
+            final PTGColumn column = new PTGColumn();
+            
+            int currentColumnIndex = firstColumnIndex - 1;
+            int currentRowIndex = lastRowIndex + 1;
+            
+            //index of the next valid point of the current column
+            int pointIndex;
+            
+            LPoint currentPoint;
+            boolean isFinish = false;
+            
+            private boolean incrementColumnIndex(){
+                
+                currentColumnIndex++;
                 
-                int currentColumnIndex = startColumnIndex -1;
-                int currentRowIndex = - 1;
-                int finalColumnIndex = endColumnIndex + 1; //end column index is included
-                int finalRowIndex = endRowIndex + 1; //end row index is included
+                if(currentColumnIndex > lastColumnIndex){
+                    return false;
+                }
                 
-                int nbPointsProcessedInCurrentRows = 0;
-                int nbPoints = 0;
-                int currentNbValidPoints = 0;
-                LPoint currentPoint;
+                try {
+                    readColumn(currentColumnIndex, column);
+                } catch (IOException ex) {
+                    //handle uncomplete files
+                    return false;
+                }
                 
-                boolean isFinish = false;
+                currentColIndex++;
+                currentRowIndex = firstRowIndex;
                 
-                private void skipBytes(long nbBytes) throws IOException{
-                    dis.skipBytes((int) nbBytes);
-                    nbByteRead += nbBytes;
+                //skip the valid points of the ignored rows
+                pointIndex = 0;
+                while(pointIndex < column.getNbPoints() && column.getRows()[pointIndex] < firstRowIndex){
+                    pointIndex++;
                 }
                 
-                private void setValidityBit(int index, boolean value){
+                return true;
+            }
+            
+            private LPoint createPoint(int index){
+                
+                LPoint point;
+                
+                if (header.isPointInDoubleFormat()) {
                     
-                    validPoints[index] = value;
-
-                    /*if(value){
-                        if(j < startRowIndex){
-                            currentNbValidPoints++;
-                        }
-                    }*/
+                    point = new LDoublePoint();
+                    ((LDoublePoint) point).x = column.getX()[index];
+                    ((LDoublePoint) point).y = column.getY()[index];
+                    ((LDoublePoint) point).z = column.getZ()[index];
+                } else {
                     
+                    point = new LFloatPoint();
+                    ((LFloatPoint) point).x = (float) column.getX()[index];
+                    ((LFloatPoint) point).y = (float) column.getY()[index];
+                    ((LFloatPoint) point).z = (float) column.getZ()[index];
                 }
                 
-                private void incrementColumnIndex(){
-                    
-                    try {
-                        currentColumnIndex++;
-                        currentColIndex++;
-
-                        if (currentColumnIndex < finalColumnIndex) {                            
-                            
-                            if(nbByteRead != offsets[currentColumnIndex]){
-                                dis.reset();
-                                dis.skipBytes((int) offsets[currentColumnIndex]); //seek to column offset
-                                nbByteRead = offsets[currentColumnIndex];
-                            }
-
-                            int nbValidityBytes = (int) Math.ceil(header.getNumRows() / 8.0);
-                            validPoints = new boolean[nbValidityBytes*8];
-
-                            nbPointsProcessedInCurrentRows = 0;
-
-                            currentNbValidPoints = 0;
-                            
-                            for (int j = 0, count = 0; j < nbValidityBytes; j++, count += 8) {
-
-                                byte value = dis.readByte();
-                                nbByteRead++;
-                                
-                                setValidityBit(count+7, (value & 0b00000001) == 0b00000001);
-                                setValidityBit(count+6, (value & 0b00000010) == 0b00000010);
-                                setValidityBit(count+5, (value & 0b00000100) == 0b00000100);
-                                setValidityBit(count+4, (value & 0b00001000) == 0b00001000);
-                                setValidityBit(count+3, (value & 0b00010000) == 0b00010000);
-                                setValidityBit(count+2, (value & 0b00100000) == 0b00100000);
-                                setValidityBit(count+1, (value & 0b01000000) == 0b01000000);
-                                setValidityBit(count, (value & 0b10000000) == 0b10000000);
-
-                            }
-                        }else{
-                            isFinish = true;
-                        }
+                if (header.isPointContainsIntensity()) {
+                    point.intensity = column.getIntensity()[index];
+                }
+                
+                if (header.isPointContainsRGB()) {
+                    point.red = column.getRed()[index];
+                    point.green = column.getGreen()[index];
+                    point.blue = column.getBlue()[index];
+                }
+                
+                return point;
+            }
 
-                        /*if (offsets[currentColumnIndex] == 0) { //handle uncomplete files
-                         break;
-                         }*/
-                    } catch (IOException ex) {
-                        throw new RuntimeException(ex);
-                    }
+            @Override
+            public boolean hasNext() {
+                
+                if(currentPoint != null){
+                    return true;
                 }
                 
-                private void incrementRowIndex() throws IOException{
-                    
-                    currentRowIndex++;
+                while(!isFinish){
                     
-                     //if last processed row was the last row then increment column and reinitialize row index
-                    if (currentRowIndex == validPoints.length) {                        
+                    if(currentRowIndex > lastRowIndex){
                         
-                        incrementColumnIndex();
-                        currentRowIndex = 0;
+                        if(!incrementColumnIndex()){
+                            isFinish = true;
+                        }
                         
-                        //skip valid row to begin to the configured starting row
-                        //skipBytes(currentNbValidPoints * header.getPointSize());
+                        continue;
                     }
-                }
-
-                @Override
-                public boolean hasNext() {
                     
-                    if(currentPoint == null && currentColumnIndex != (startColumnIndex -1)){
-                        return false;
-                    }
-                    if(currentColumnIndex >= finalColumnIndex && currentRowIndex >= validPoints.length-1){
-                        return false;
+                    int rowIndex = currentRowIndex++;
+                    LPoint point;
+                    
+                    if(column.isValid(rowIndex)){
+                        point = createPoint(pointIndex++);
+                    }else if(returnInvalidPoint){
+                        point = new LEmptyPoint();
+                        point.valid = false;
                     }else{
-                        try{
-                            LPoint point;
-
-                            if(validPoints == null){
-                                incrementColumnIndex();
-                                //skip valid row to begin to the configured starting row
-                                //skipBytes(currentNbValidPoints * header.getPointSize());
-                            }
-                            
-                            boolean continueLoop;
-                            boolean isPointValid;
-
-                            do{
-                                incrementRowIndex();
-                                
-                                isPointValid = validPoints[currentRowIndex];
-                                
-                                
-                                continueLoop = (currentRowIndex < startRowIndex) || (currentRowIndex >= finalRowIndex);
-                                if(continueLoop && isPointValid && !returnInvalidPoint){ //skip ignored rows
-                                    skipBytes(header.getPointSize());
-                                }
-                                
-                                if(isFinish){ //handle case when a max column index is set up
-                                    return false;
-                                }
-                                
-                                if(returnInvalidPoint && !isPointValid && !continueLoop){
-                                    
-                                    point = new LEmptyPoint();
-                                    point.valid = false;
-                                    point.rowIndex = currentRowIndex;
-                                    point.columnIndex = currentColumnIndex;
-                                    
-                                    currentPoint = point;
-                                    return true;
-                                }
-                                
-                                
-                                
-                            }while(!isPointValid || continueLoop); //loop until a point is valid
-                            
-                            if(isFinish){ //handle case when a max column index is set up
-                                return false;
-                            }
-                            
-                            if (header.isPointInDoubleFormat() || header.isPointInFloatFormat()) {
-
-                                if (header.isPointInDoubleFormat()) {
-                                    double x = getNextDouble(dis);
-                                    double y = getNextDouble(dis);
-                                    double z = getNextDouble(dis);
-
-                                    point = new LDoublePoint();
-                                    ((LDoublePoint) point).x = x;
-                                    ((LDoublePoint) point).y = y;
-                                    ((LDoublePoint) point).z = z;
-                                } else {
-                                    float x = getNextFloat(dis);
-                                    float y = getNextFloat(dis);
-                                    float z = getNextFloat(dis);
-
-                                    point = new LFloatPoint();
-                                    ((LFloatPoint) point).x = x;
-                                    ((LFloatPoint) point).y = y;
-                                    ((LFloatPoint) point).z = z;
-                                }
-
-                                if (header.isPointContainsIntensity()) {
-                                    float intensity = getNextFloat(dis);
-                                    point.intensity = intensity;
-                                }
-
-                                if (header.isPointContainsRGB()) {
-                                    int red = dis.readUnsignedByte() + 128;
-                                    int green = dis.readUnsignedByte() + 128;
-                                    int blue = dis.readUnsignedByte() + 128;
-
-                                    nbByteRead += 3;
-
-                                    point.red = red;
-                                    point.green = green;
-                                    point.blue = blue;
-                                }
-
-                                nbPointsProcessedInCurrentRows++;
-                                nbPoints++;
-                                
-                                point.rowIndex = currentRowIndex;
-                                point.columnIndex = currentColumnIndex;
-                                
-                                currentPoint = point;
-                                return true;
-                            }
-
-                        }catch(IOException ex){
-                            return false;
-                        }
+                        continue;
                     }
                     
-                    return false;
+                    point.rowIndex = rowIndex;
+                    point.columnIndex = currentColumnIndex;
+                    
+                    currentPoint = point;
+                    return true;
                 }
+                
+                return false;
+            }
 
-                @Override
-                public LPoint next() {
-
-                    return currentPoint;
+            @Override
+            public LPoint next() {
+                
+                if(!hasNext()){
+                    throw new NoSuchElementException();
                 }
-            };
-
-            
-        } catch (FileNotFoundException ex) {
-            throw new RuntimeException(ex);
-        } catch (IOException ex) {
-            throw new RuntimeException(ex);
-        }catch(Exception ex){
-            System.err.println(ex);
-        }
-        
-        return it;
+                
+                LPoint point = currentPoint;
+                currentPoint = null;
+                
+                return point;
+            }
+        };
     }
 }
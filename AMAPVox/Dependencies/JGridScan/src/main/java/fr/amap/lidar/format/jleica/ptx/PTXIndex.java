@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2016 UMR AMAP (botAnique et Modélisation de l'Architecture des Plantes et des végétations.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package fr.amap.lidar.format.jleica.ptx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Index of a ptx file: the position of each scan and the byte offset of each column of the scans.</p>
+ * <p>The index is built in a single pass over the file and persisted next to it (file name followed by
+ * {@value #INDEX_FILE_EXTENSION}), it is rebuilt when the ptx file has been modified.
+ * With the index, a scan or a range of columns is opened without reading the preceding lines.</p>
+ */
+public class PTXIndex {
+
+    private final static Logger LOGGER = Logger.getLogger(PTXIndex.class.getName());
+
+    /**
+     * Extension appended to the ptx file name to get the index file name.
+     */
+    public final static String INDEX_FILE_EXTENSION = ".idx";
+
+    /**
+     * Number of lines of a scan header.
+     */
+    public final static int HEADER_NB_LINES = 10;
+
+    private final static int INDEX_FILE_SIGNATURE = 0x50545849; //PTXI
+    private final static int INDEX_FILE_VERSION = 1;
+
+    //size of the mapped windows of the file
+    private final static long MAPPING_WINDOW_SIZE = 64 << 20;
+
+    /**
+     * Position of a scan into the ptx file.
+     */
+    public static class ScanIndex {
+
+        private final long headerPosition;
+        private final long lineIndex;
+        private final int numRows;
+        private final int numCols;
+        private final long[] columnPositions;
+
+        ScanIndex(long headerPosition, long lineIndex, int numRows, int numCols, long[] columnPositions) {
+            this.headerPosition = headerPosition;
+            this.lineIndex = lineIndex;
+            this.numRows = numRows;
+            this.numCols = numCols;
+            this.columnPositions = columnPositions;
+        }
+
+        /**
+         * Get the byte offset of the scan header.
+         * @return The byte offset of the first line of the header
+         */
+        public long getHeaderPosition() {
+            return headerPosition;
+        }
+
+        /**
+         * Get the line index of the first point of the scan, see {@link PTXScan#offset}.
+         * @return The line index
+         */
+        public long getLineIndex() {
+            return lineIndex;
+        }
+
+        /**
+         * Get the number of rows (points per column) of the scan.
+         * @return The number of rows
+         */
+        public int getNumRows() {
+            return numRows;
+        }
+
+        /**
+         * Get the number of columns of the scan.
+         * @return The number of columns
+         */
+        public int getNumCols() {
+            return numCols;
+        }
+
+        /**
+         * Get the byte offset of each column, the last value is the end of the scan.
+         * @return numCols + 1 byte offsets
+         */
+        public long[] getColumnPositions() {
+            return columnPositions;
+        }
+    }
+
+    private final List<ScanIndex> scans;
+    private final long fileLength;
+    private final long fileLastModified;
+
+    private PTXIndex(List<ScanIndex> scans, long fileLength, long fileLastModified) {
+        this.scans = scans;
+        this.fileLength = fileLength;
+        this.fileLastModified = fileLastModified;
+    }
+
+    /**
+     * Get the index file of a ptx file.
+     * @param file The ptx file
+     * @return The index file, which may not exist
+     */
+    public static File getIndexFile(File file){
+        return new File(file.getPath() + INDEX_FILE_EXTENSION);
+    }
+
+    /**
+     * Load the index of a ptx file, the index is built and saved if it does not exist or if it is outdated.
+     * @param file The ptx file
+     * @return The index of the file
+     * @throws IOException if the ptx file cannot be read
+     */
+    public static PTXIndex open(File file) throws IOException{
+
+        File indexFile = getIndexFile(file);
+
+        if(indexFile.exists()){
+
+            try{
+                PTXIndex index = read(indexFile);
+
+                if(index.fileLength == file.length() && index.fileLastModified == file.lastModified()){
+                    return index;
+                }
+            }catch(IOException ex){
+                LOGGER.log(Level.WARNING, "Cannot read the index file " + indexFile.getName() + ", it is rebuilt", ex);
+            }
+        }
+
+        PTXIndex index = build(file);
+
+        try{
+            index.write(indexFile);
+        }catch(IOException ex){
+            //read-only directory, the index is kept in memory
+            LOGGER.log(Level.WARNING, "Cannot write the index file " + indexFile.getName(), ex);
+        }
+
+        return index;
+    }
+
+    /**
+     * Build the index of a ptx file in a single pass.
+     * @param file The ptx file
+     * @return The index of the file
+     * @throws IOException if the ptx file cannot be read
+     */
+    public static PTXIndex build(File file) throws IOException{
+
+        long fileLastModified = file.lastModified();
+
+        List<ScanIndex> scans = new ArrayList<>();
+
+        try (LineScanner scanner = new LineScanner(file)) {
+
+            while(true){
+
+                long headerPosition = scanner.position;
+                long headerLineIndex = scanner.lineIndex;
+
+                int numRows, numCols;
+
+                try{
+                    String numRowsLine = scanner.readLine();
+                    String numColsLine = scanner.readLine();
+
+                    if(numRowsLine == null || numColsLine == null){
+                        break;
+                    }
+
+                    numRows = Integer.valueOf(numRowsLine);
+                    numCols = Integer.valueOf(numColsLine);
+
+                }catch(NumberFormatException ex){
+                    break;
+                }
+
+                scanner.skipLines(HEADER_NB_LINES - 2);
+
+                long[] columnPositions = new long[numCols + 1];
+
+                for(int column = 0; column < numCols; column++){
+                    columnPositions[column] = scanner.position;
+                    scanner.skipLines(numRows);
+                }
+
+                columnPositions[numCols] = scanner.position;
+
+                scans.add(new ScanIndex(headerPosition, headerLineIndex + HEADER_NB_LINES, numRows, numCols, columnPositions));
+            }
+
+            return new PTXIndex(Collections.unmodifiableList(scans), scanner.size, fileLastModified);
+        }
+    }
+
+    /**
+     * Get the byte offset of the columns of a single scan, the preceding lines of the file are read once.
+     * @param file The ptx file
+     * @param lineIndex The line index of the first point of the scan
+     * @param numRows The number of rows (points per column) of the scan
+     * @param numCols The number of columns of the scan
+     * @return numCols + 1 byte offsets, the last value is the end of the scan
+     * @throws IOException if the ptx file cannot be read
+     */
+    public static long[] indexColumns(File file, long lineIndex, int numRows, int numCols) throws IOException{
+
+        try (LineScanner scanner = new LineScanner(file)) {
+
+            scanner.skipLines(lineIndex);
+
+            long[] columnPositions = new long[numCols + 1];
+
+            for(int column = 0; column < numCols; column++){
+                columnPositions[column] = scanner.position;
+                scanner.skipLines(numRows);
+            }
+
+            columnPositions[numCols] = scanner.position;
+
+            return columnPositions;
+        }
+    }
+
+    private static PTXIndex read(File indexFile) throws IOException{
+
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+
+            if(dis.readInt() != INDEX_FILE_SIGNATURE || dis.readInt() != INDEX_FILE_VERSION){
+                throw new IOException("Bad index file format");
+            }
+
+            long fileLength = dis.readLong();
+            long fileLastModified = dis.readLong();
+            int nbScans = dis.readInt();
+
+            List<ScanIndex> scans = new ArrayList<>(nbScans);
+
+            for(int i = 0; i < nbScans; i++){
+
+                long headerPosition = dis.readLong();
+                long lineIndex = dis.readLong();
+                int numRows = dis.readInt();
+                int numCols = dis.readInt();
+
+                long[] columnPositions = new long[numCols + 1];
+                for(int column = 0; column <= numCols; column++){
+                    columnPositions[column] = dis.readLong();
+                }
+
+                scans.add(new ScanIndex(headerPosition, lineIndex, numRows, numCols, columnPositions));
+            }
+
+            return new PTXIndex(Collections.unmodifiableList(scans), fileLength, fileLastModified);
+        }
+    }
+
+    /**
+     * Write the index.
+     * @param indexFile The index file
+     * @throws IOException if the file cannot be written
+     */
+    public void write(File indexFile) throws IOException{
+
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+
+            dos.writeInt(INDEX_FILE_SIGNATURE);
+            dos.writeInt(INDEX_FILE_VERSION);
+            dos.writeLong(fileLength);
+            dos.writeLong(fileLastModified);
+            dos.writeInt(scans.size());
+
+            for(ScanIndex scan : scans){
+
+                dos.writeLong(scan.headerPosition);
+                dos.writeLong(scan.lineIndex);
+                dos.writeInt(scan.numRows);
+                dos.writeInt(scan.numCols);
+
+                for(long columnPosition : scan.columnPositions){
+                    dos.writeLong(columnPosition);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the scans of the file.
+     * @return The scans, in the file order
+     */
+    public List<ScanIndex> getScans() {
+        return scans;
+    }
+
+    /**
+     * Get a scan from the line index of its first point.
+     * @param lineIndex The line index of the first point of the scan, see {@link PTXScan#offset}
+     * @return The scan, null if no scan starts at this line
+     */
+    public ScanIndex getScan(long lineIndex){
+
+        for(ScanIndex scan : scans){
+            if(scan.lineIndex == lineIndex){
+                return scan;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Line by line cursor over the memory-mapped file, the lines are only decoded when they are read.
+     */
+    private static class LineScanner implements Closeable {
+
+        private final FileChannel channel;
+        private final long size;
+
+        private MappedByteBuffer buffer;
+        private long bufferStart;
+
+        private long position;
+        private long lineIndex;
+
+        LineScanner(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            size = channel.size();
+        }
+
+        private void map() throws IOException{
+            bufferStart = position;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, bufferStart, Math.min(MAPPING_WINDOW_SIZE, size - bufferStart));
+        }
+
+        /**
+         * Go to the start of the next line.
+         * @param line If not null, the bytes of the line are appended to it
+         * @return false if the end of the file is reached
+         */
+        private boolean nextLine(StringBuilder line) throws IOException{
+
+            if(position >= size){
+                return false;
+            }
+
+            while(position < size){
+
+                if(buffer == null || position >= bufferStart + buffer.limit()){
+                    map();
+                }
+
+                int start = (int) (position - bufferStart);
+                int limit = buffer.limit();
+                int i = start;
+
+                while(i < limit && buffer.get(i) != '\n'){
+                    i++;
+                }
+
+                if(line != null){
+                    for(int j = start; j < i; j++){
+                        line.append((char) (buffer.get(j) & 0xFF));
+                    }
+                }
+
+                position = bufferStart + i;
+
+                if(i < limit){
+                    position++;
+                    break;
+                }
+            }
+
+            lineIndex++;
+
+            return true;
+        }
+
+        String readLine() throws IOException{
+
+            StringBuilder line = new StringBuilder();
+
+            if(!nextLine(line)){
+                return null;
+            }
+
+            return line.toString().trim();
+        }
+
+        void skipLines(long nbLines) throws IOException{
+
+            for(long i = 0; i < nbLines && nextLine(null); i++){
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            buffer = null;
+            channel.close();
+        }
+    }
+}
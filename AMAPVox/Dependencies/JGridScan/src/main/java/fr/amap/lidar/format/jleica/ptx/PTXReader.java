@@ -23,8 +23,10 @@ import fr.amap.lidar.format.jleica.LPoint;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -46,29 +48,42 @@ public class PTXReader {
     }
     
     
+    /**
+     * Open a ptx file and read the header of each scan. The position of the scans is read from
+     * the {@link PTXIndex index} of the file, which is built at the first opening of the file.
+     * @param file The ptx file
+     * @throws IOException if the file cannot be read
+     * @throws FileNotFoundException if the file does not exist
+     */
     public void openPTXFile(File file) throws IOException, FileNotFoundException{
         
         this.file = file;
-        currentLineIndex = 0;
+        
+        PTXIndex index = PTXIndex.open(file);
         
         //read all scan headers
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
             
-            PTXScan singleScan = readSingleScanHeader(reader);
-            
-            while(singleScan != null){
-                singlesScans.add(singleScan);
+            for(PTXIndex.ScanIndex scanIndex : index.getScans()){
                 
-                long nbPoints = singleScan.getHeader().getNumCols() * singleScan.getHeader().getNumRows();
-                skipLines(reader, nbPoints);
+                raf.seek(scanIndex.getHeaderPosition());
                 
-                currentLineIndex += nbPoints;
-                singleScan = readSingleScanHeader(reader);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(raf.getChannel())));
+                
+                currentLineIndex = scanIndex.getLineIndex() - PTXIndex.HEADER_NB_LINES;
+                
+                PTXScan singleScan = readSingleScanHeader(reader, scanIndex.getColumnPositions());
+                
+                if(singleScan == null){
+                    break;
+                }
+                
+                singlesScans.add(singleScan);
             }
         }
     }
     
-    private PTXScan readSingleScanHeader(BufferedReader reader){
+    private PTXScan readSingleScanHeader(BufferedReader reader, long[] columnPositions){
         
         try {
             PTXHeader header = new PTXHeader();
@@ -152,24 +167,13 @@ public class PTXReader {
             }
             
             
-            return new PTXScan(file, header, currentLineIndex);
+            return new PTXScan(file, header, currentLineIndex, columnPositions);
             
         }catch (IOException | NumberFormatException ex ) {
             return null;
         }
     }
     
-    private void skipLines(BufferedReader reader, long nbLinesToSkip) throws IOException{
-        
-        int nbLinesSkipped = 0;
-
-        while(nbLinesSkipped < nbLinesToSkip){
-
-            reader.readLine();
-            nbLinesSkipped++;
-        }
-    }
-    
     private String getNextLine(BufferedReader reader) throws IOException{
         
         String line = reader.readLine();
@@ -18,22 +18,27 @@
  */
 package fr.amap.lidar.format.jleica.ptx;
 
+import fr.amap.commons.util.io.NumberParser;
 import fr.amap.lidar.format.jleica.GriddedPointScan;
 import fr.amap.lidar.format.jleica.LDoublePoint;
 import fr.amap.lidar.format.jleica.LEmptyPoint;
 import fr.amap.lidar.format.jleica.LPoint;
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.NoSuchElementException;
 
 /**<p>This class is dedicated to handle PTX ascii scan file, a Leica gridded point format 
  * (see <a href= "http://www.geodetawlkp.nazwa.pl/instrukcje/leica_hds/Baza_wiedzy_HDS/Cyclone/Cyclone_pointcloud_export_format_-_Description_of_ASCII_.ptx_format.pdf"> specification</a>)</p>
  * <p>It provides a simple iterator to get points from the file.</p>
+ * <p>The byte offset of each column is read from the {@link PTXIndex index} of the file, so the iterator starts
+ * straight at the first column to read and the points are parsed from a memory-mapped window of the file.</p>
  * As the ptx scan file is a gridded point format, you can select the row, columns you want to read
  * with the following methods :
  * <ul>
@@ -60,6 +65,16 @@ public class PTXScan extends GriddedPointScan{
      * The number of points of the scan, computed as (columns number) * (rows number), which includes invalid points.
      */
     public long nbPoints;
+    
+    //byte offset of each column, the last value is the end of the scan
+    private long[] columnPositions;
+    
+    //size of the mapped windows of the file, a window always holds whole columns
+    private final static long MAPPING_WINDOW_SIZE = 64 << 20;
+    
+    private ByteBuffer buffer;
+    private long windowStart = -1;
+    private long windowEnd = -1;
 
     /**
      * Initialize a new PTXScan, meaning a single scan into the file
@@ -83,18 +98,74 @@ public class PTXScan extends GriddedPointScan{
         endColumnIndex = header.getNumCols() - 1;
     }
     
+    PTXScan(File file, PTXHeader header, long offset, long[] columnPositions){
+        
+        this(file, header, offset);
+        
+        this.columnPositions = columnPositions;
+    }
     
-    private void skipLines(BufferedReader reader, long nbLinesToSkip) throws IOException{
+    private void indexColumns() throws IOException{
         
-        int nbLinesSkipped = 0;
-
-        while(nbLinesSkipped < nbLinesToSkip){
-
-            reader.readLine();
-            nbLinesSkipped++;
+        PTXIndex.ScanIndex scanIndex = PTXIndex.open(file).getScan(offset);
+        
+        if(scanIndex != null && scanIndex.getNumRows() == header.getNumRows() && scanIndex.getNumCols() == header.getNumCols()){
+            columnPositions = scanIndex.getColumnPositions();
+        }else{
+            //the scan does not match a header of the file
+            columnPositions = PTXIndex.indexColumns(file, offset, header.getNumRows(), header.getNumCols());
+        }
+    }
+    
+    /**
+     * Map a window of the file, the window starts at the given position and holds at least minSize bytes
+     * (less at the end of the file).
+     */
+    private void map(long position, long minSize) throws IOException{
+        
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            
+            long size = Math.min(Math.max(MAPPING_WINDOW_SIZE, minSize), channel.size() - position);
+            
+            if(size < 0){
+                throw new EOFException("Column offset "+position+" beyond the end of the file "+file.getName());
+            }
+            
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            
+            windowStart = position;
+            windowEnd = position + size;
         }
     }
     
+    /**
+     * Copy the lines of a column.
+     * @param columnIndex The column index
+     * @param bytes The array to fill, it is reallocated if it is too small
+     * @return The array holding the column
+     */
+    private byte[] readColumnBytes(int columnIndex, byte[] bytes) throws IOException{
+        
+        long columnStart = columnPositions[columnIndex];
+        long columnEnd = columnPositions[columnIndex + 1];
+        
+        if(columnStart < windowStart || columnEnd > windowEnd){
+            map(columnStart, columnEnd - columnStart);
+        }
+        
+        int length = (int) (columnEnd - columnStart);
+        
+        if(bytes.length < length){
+            bytes = new byte[length];
+        }
+        
+        ByteBuffer column = buffer.duplicate();
+        column.position((int) (columnStart - windowStart));
+        column.get(bytes, 0, length);
+        
+        return bytes;
+    }
+    
     /**
      * Returns an iterator to get points from the scan file as a {@link fr.amap.lidar.format.jleica.LPoint}
      * As the ptx scan file is a gridded point format, you can select the row,
@@ -106,157 +177,216 @@ public class PTXScan extends GriddedPointScan{
      * <li>{@link #setUpRowsToRead(int, int) setUpRowsToRead(int startRowIndex, int endRowIndex)}</li>
      * </ul>
      * All those methods should be called before to get the iterator.
+     * The iterator starts at the first column to read, the readers of several column ranges
+     * of the same scan (see {@link #duplicate()}) can be used concurrently.
      * @return A {@link LPoint} point returned by the iterator.
      */
     @Override
     public Iterator<LPoint> iterator() {
         
-        Iterator it = null;
-        final BufferedReader reader;
+        try {
+            if(columnPositions == null){
+                indexColumns();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        
+        final int firstColumnIndex = Math.max(startColumnIndex, 0);
+        final int lastColumnIndex = Math.min(endColumnIndex, header.getNumCols() - 1);
+        final int firstRowIndex = Math.max(startRowIndex, 0);
+        final int lastRowIndex = Math.min(endRowIndex, header.getNumRows() - 1);
         
-        try{
-            reader = new BufferedReader(new FileReader(file));
+        return new Iterator<LPoint> () {
+            
+            //lines of the current column
+            byte[] bytes = new byte[0];
+            int length;
+            int position;
+            
+            int currentColumnIndex = firstColumnIndex - 1;
+            int currentRowIndex = lastRowIndex + 1;
+            
+            //bounds of the fields of the current line, the fields after the seventh are ignored
+            final int[] fieldStarts = new int[7];
+            final int[] fieldEnds = new int[7];
+            
+            LPoint currentPoint;
+            boolean isFinish = false;
             
-            it = new Iterator<LPoint> () {
+            private boolean incrementColumnIndex(){
                 
-                LPoint currentPoint;
-                long totalLinesRead = 0;
+                currentColumnIndex++;
                 
-                int currentColumnIndex = 0;
-                int currentRowIndex = -1;
+                if(currentColumnIndex > lastColumnIndex){
+                    return false;
+                }
+                
+                try {
+                    bytes = readColumnBytes(currentColumnIndex, bytes);
+                } catch (IOException ex) {
+                    return false;
+                }
                 
-                final int finalColumnIndex = endColumnIndex; //end column index is included
-                final int finalRowIndex = endRowIndex; //end row index is included
+                length = (int) (columnPositions[currentColumnIndex + 1] - columnPositions[currentColumnIndex]);
+                position = 0;
+                currentRowIndex = 0;
                 
-                boolean initialized = false;
-                boolean isFinish = false;
+                return true;
+            }
+            
+            private int splitLine(int lineStart, int lineEnd){
                 
-                private String readLine(BufferedReader reader) throws IOException{
+                int nbFields = 0;
+                int i = lineStart;
+                
+                while(nbFields < fieldStarts.length){
+                    
+                    while(i < lineEnd && (bytes[i] == ' ' || bytes[i] == '\t' || bytes[i] == '\r')){
+                        i++;
+                    }
                     
-                    String line = reader.readLine();
+                    if(i == lineEnd){
+                        break;
+                    }
                     
-                    currentRowIndex++;
-                    totalLinesRead++;
+                    fieldStarts[nbFields] = i;
                     
-                    if(currentRowIndex >= header.getNumRows()){
-                        currentRowIndex = 0;
-                        currentColumnIndex++;
+                    while(i < lineEnd && bytes[i] != ' ' && bytes[i] != '\t' && bytes[i] != '\r'){
+                        i++;
                     }
                     
-                    return line;
+                    fieldEnds[nbFields] = i;
+                    nbFields++;
+                }
+                
+                return nbFields;
+            }
+            
+            private double parseDouble(int field){
+                return NumberParser.parseDouble(bytes, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+            }
+            
+            private LPoint parsePoint(int lineStart, int lineEnd){
+                
+                int nbFields = splitLine(lineStart, lineEnd);
+                
+                if(nbFields < 3){
+                    throw new NumberFormatException("Missing coordinates in column "+currentColumnIndex);
                 }
                 
+                double x = parseDouble(0);
+                double y = parseDouble(1);
+                double z = parseDouble(2);
                 
-                @Override
-                public boolean hasNext() {
+                if(x == 0 && y == 0 && z == 0){
                     
-                    try {
-                        
-                        LPoint point;
-                        
-                        if(!initialized){
-                            
-                            skipLines(reader, offset);
-                            
-                            initialized = true;
-                        }
-                        
-                        if (totalLinesRead == nbPoints) {
-                            
-                            reader.close();
-                            return false;
-                        }
-                        
-                        String currentLine;
-                        
-                        do{
-                            if(isFinish){
-                                reader.close();
-                                return false;
-                            }
-
-                            currentLine = readLine(reader);
-                            
-                            if(currentLine == null){
-                                reader.close();
-                                return false;
-                            }
-                            
-                            if(currentColumnIndex >= finalColumnIndex && (currentRowIndex) >= finalRowIndex){
-                                isFinish = true;
-                            }
-                            
-                        }while((currentRowIndex) < startRowIndex 
-                                || (currentRowIndex) > finalRowIndex
-                                || currentColumnIndex < startColumnIndex);
-                        
+                    if(!returnInvalidPoint){
+                        return null;
+                    }
+                    
+                    LPoint point = new LEmptyPoint();
+                    point.valid = false;
+                    
+                    return point;
+                }
+                
+                LDoublePoint point = new LDoublePoint();
+                
+                point.x = x;
+                point.y = y;
+                point.z = z;
+                point.valid = true;
+                
+                if(nbFields > 3){
+                    
+                    point.intensity = NumberParser.parseFloat(bytes, fieldStarts[3], fieldEnds[3] - fieldStarts[3]);
+                    
+                    if(nbFields > 6){
+                        point.red = NumberParser.parseInt(bytes, fieldStarts[4], fieldEnds[4] - fieldStarts[4]);
+                        point.green = NumberParser.parseInt(bytes, fieldStarts[5], fieldEnds[5] - fieldStarts[5]);
+                        point.blue = NumberParser.parseInt(bytes, fieldStarts[6], fieldEnds[6] - fieldStarts[6]);
+                    }
+                }
+                
+                return point;
+            }
+            
+            @Override
+            public boolean hasNext() {
+                
+                if(currentPoint != null){
+                    return true;
+                }
+                
+                while(!isFinish){
+                    
+                    if(currentRowIndex > lastRowIndex){
                         
-                        String[] split = currentLine.split(" ");
-
-                        point = new LDoublePoint();
-
-                        ((LDoublePoint)point).x = Double.valueOf(split[0]);
-                        ((LDoublePoint)point).y = Double.valueOf(split[1]);
-                        ((LDoublePoint)point).z = Double.valueOf(split[2]);
-
-                        if(((LDoublePoint)point).x == 0 && ((LDoublePoint)point).y == 0 && ((LDoublePoint)point).z == 0){
-                            
-                            if(!returnInvalidPoint){
-                                hasNext();
-                            }else{
-                                
-                                point = new LEmptyPoint();
-                                
-                                point.rowIndex = currentRowIndex;
-                                point.columnIndex = currentColumnIndex;
-                                
-                                point.valid = false;
-
-                                currentPoint = point;
-                            }
-                        }else{
-                            point.valid = true;
-                            
-                            point.rowIndex = currentRowIndex;
-                            point.columnIndex = currentColumnIndex;
-                            
-                            if(split.length > 3){
-
-                                point.intensity = Float.valueOf(split[3]);
-
-                                if(split.length > 6){
-                                    point.red = Integer.valueOf(split[4]);
-                                    point.green = Integer.valueOf(split[5]);
-                                    point.blue = Integer.valueOf(split[6]);
-                                }
-                            }
-
-                            currentPoint = point;
+                        if(!incrementColumnIndex()){
+                            isFinish = true;
                         }
                         
-                    } catch (IOException | ArrayIndexOutOfBoundsException | NumberFormatException e) {
-                        try {
-                            reader.close();
-                        } catch (IOException ex) {
-                            Logger.getLogger(PTXScan.class.getName()).log(Level.SEVERE, null, ex);
-                        }
-                        return false;
+                        continue;
+                    }
+                    
+                    //handle uncomplete files
+                    if(position >= length){
+                        isFinish = true;
+                        continue;
+                    }
+                    
+                    int lineStart = position;
+                    int lineEnd = lineStart;
+                    
+                    while(lineEnd < length && bytes[lineEnd] != '\n'){
+                        lineEnd++;
+                    }
+                    
+                    position = lineEnd + 1;
+                    
+                    int rowIndex = currentRowIndex++;
+                    
+                    if(rowIndex < firstRowIndex){
+                        continue;
                     }
                     
+                    LPoint point;
+                    
+                    try{
+                        point = parsePoint(lineStart, lineEnd);
+                    }catch(NumberFormatException ex){
+                        isFinish = true;
+                        continue;
+                    }
+                    
+                    if(point == null){
+                        continue;
+                    }
+                    
+                    point.rowIndex = rowIndex;
+                    point.columnIndex = currentColumnIndex;
+                    
+                    currentPoint = point;
                     return true;
                 }
+                
+                return false;
+            }
 
-                @Override
-                public LPoint next() {
-                    return currentPoint;
+            @Override
+            public LPoint next() {
+                
+                if(!hasNext()){
+                    throw new NoSuchElementException();
                 }
-            };
-            
-        } catch (FileNotFoundException ex) {
-            throw new RuntimeException(ex);
-        }
-        
-        return it;
+                
+                LPoint point = currentPoint;
+                currentPoint = null;
+                
+                return point;
+            }
+        };
     }
 
     @Override
@@ -267,6 +397,28 @@ public class PTXScan extends GriddedPointScan{
         reader.close();
     }
     
+    /**
+     * Create a new reader of the same scan, the columns offsets are shared
+     * so the file is not indexed again.
+     * @return A reader of the scan
+     */
+    @Override
+    public PTXScan duplicate() {
+        
+        try {
+            if(columnPositions == null){
+                indexColumns();
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+
+        PTXScan scan = new PTXScan(file, getHeader(), offset, columnPositions);
+        scan.setReturnInvalidPoint(returnInvalidPoint);
+
+        return scan;
+    }
+
     @Override
     public PTXHeader getHeader() {
         return (PTXHeader)header;
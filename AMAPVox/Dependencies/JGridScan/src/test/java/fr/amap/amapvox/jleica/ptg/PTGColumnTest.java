@@ -0,0 +1,262 @@
+package fr.amap.amapvox.jleica.ptg;
+
+import fr.amap.lidar.format.jleica.LDoublePoint;
+import fr.amap.lidar.format.jleica.LFloatPoint;
+import fr.amap.lidar.format.jleica.LPoint;
+import fr.amap.lidar.format.jleica.ptg.PTGColumn;
+import fr.amap.lidar.format.jleica.ptg.PTGScan;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.Random;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Read synthetic ptg files point by point and column by column.
+ */
+public class PTGColumnTest {
+
+    private final static int NB_COLUMNS = 23;
+    private final static int NB_ROWS = 77;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Content of a synthetic scan, the coordinates of the point (column, row) are
+     * (column, row, value) with a random value, invalid points have a NaN value.
+     */
+    private static class SyntheticScan {
+
+        final boolean doubleFormat;
+        final boolean rgb;
+        final double[][] values = new double[NB_COLUMNS][NB_ROWS];
+        final int[][] colors = new int[NB_COLUMNS][NB_ROWS];
+        File file;
+
+        SyntheticScan(boolean doubleFormat, boolean rgb) {
+            this.doubleFormat = doubleFormat;
+            this.rgb = rgb;
+        }
+
+        boolean isValid(int column, int row) {
+            return !Double.isNaN(values[column][row]);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+
+        byte[] bytes = (value + "\0").getBytes(StandardCharsets.US_ASCII);
+        writeInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array(), 0, 4);
+    }
+
+    private SyntheticScan writeScan(boolean doubleFormat, boolean rgb, long seed) throws IOException {
+
+        SyntheticScan scan = new SyntheticScan(doubleFormat, rgb);
+        Random random = new Random(seed);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        out.write(new byte[]{'P', 'T', 'G', 0, (byte) 0xc7, (byte) 0xa3, (byte) 0x8f, (byte) 0x92}, 0, 8);
+
+        writeString(out, "%%header_begin");
+        writeString(out, "%%cols");
+        writeInt(out, NB_COLUMNS);
+        writeString(out, "%%rows");
+        writeInt(out, NB_ROWS);
+        writeString(out, "%%properties");
+        out.write(new byte[]{(byte) ((doubleFormat ? 0x2 : 0x1) | 0x4 | (rgb ? 0x8 : 0)), 0, 0, 0}, 0, 4);
+        writeString(out, "%%header_end");
+
+        byte[] header = out.toByteArray();
+
+        ByteBuffer columns = ByteBuffer.allocate(NB_COLUMNS * ((NB_ROWS + 7) / 8 + NB_ROWS * 31)).order(ByteOrder.LITTLE_ENDIAN);
+        long[] offsets = new long[NB_COLUMNS];
+
+        for (int column = 0; column < NB_COLUMNS; column++) {
+
+            offsets[column] = header.length + NB_COLUMNS * 8 + columns.position();
+
+            byte[] validity = new byte[(NB_ROWS + 7) / 8];
+
+            for (int row = 0; row < NB_ROWS; row++) {
+
+                //empty columns and rows, like the sky
+                boolean valid = column != 4 && row % 11 != 3 && random.nextDouble() < 0.7;
+
+                if (valid) {
+                    validity[row / 8] |= 0x80 >>> (row % 8);
+                    scan.values[column][row] = doubleFormat ? random.nextGaussian() * 50 : (float) (random.nextGaussian() * 50);
+                    scan.colors[column][row] = random.nextInt(256);
+                } else {
+                    scan.values[column][row] = Double.NaN;
+                }
+            }
+
+            columns.put(validity);
+
+            for (int row = 0; row < NB_ROWS; row++) {
+
+                if (scan.isValid(column, row)) {
+
+                    if (doubleFormat) {
+                        columns.putDouble(column).putDouble(row).putDouble(scan.values[column][row]);
+                    } else {
+                        columns.putFloat(column).putFloat(row).putFloat((float) scan.values[column][row]);
+                    }
+
+                    columns.putFloat(row / 100.0f);
+
+                    if (rgb) {
+                        byte color = (byte) scan.colors[column][row];
+                        columns.put(color).put(color).put(color);
+                    }
+                }
+            }
+        }
+
+        ByteBuffer offsetTable = ByteBuffer.allocate(NB_COLUMNS * 8).order(ByteOrder.LITTLE_ENDIAN);
+        for (long offset : offsets) {
+            offsetTable.putLong(offset);
+        }
+
+        scan.file = folder.newFile();
+
+        out.write(offsetTable.array(), 0, offsetTable.capacity());
+        out.write(columns.array(), 0, columns.position());
+        Files.write(scan.file.toPath(), out.toByteArray());
+
+        return scan;
+    }
+
+    private static void assertPoint(SyntheticScan scan, LPoint point) {
+
+        double x, y, z;
+
+        if (scan.doubleFormat) {
+            x = ((LDoublePoint) point).x;
+            y = ((LDoublePoint) point).y;
+            z = ((LDoublePoint) point).z;
+        } else {
+            x = ((LFloatPoint) point).x;
+            y = ((LFloatPoint) point).y;
+            z = ((LFloatPoint) point).z;
+        }
+
+        assertEquals(point.columnIndex, x, 0);
+        assertEquals(point.rowIndex, y, 0);
+        assertEquals(scan.values[point.columnIndex][point.rowIndex], z, 0);
+        assertEquals(point.rowIndex / 100.0f, point.intensity, 0);
+
+        if (scan.rgb) {
+            assertEquals(scan.colors[point.columnIndex][point.rowIndex] + 128, point.red);
+            assertEquals(scan.colors[point.columnIndex][point.rowIndex] + 128, point.blue);
+        }
+    }
+
+    private static void checkIterator(SyntheticScan scan, int startColumn, int endColumn, int startRow, int endRow, boolean returnInvalidPoint) throws Exception {
+
+        PTGScan ptgScan = new PTGScan();
+        ptgScan.openScanFile(scan.file);
+        ptgScan.setReturnInvalidPoint(returnInvalidPoint);
+        ptgScan.setUpColumnsToRead(startColumn, endColumn);
+        ptgScan.setUpRowsToRead(startRow, endRow);
+
+        Iterator<LPoint> iterator = ptgScan.iterator();
+
+        for (int column = startColumn; column <= endColumn; column++) {
+            for (int row = startRow; row <= endRow; row++) {
+
+                if (!returnInvalidPoint && !scan.isValid(column, row)) {
+                    continue;
+                }
+
+                assertTrue(iterator.hasNext());
+
+                LPoint point = iterator.next();
+
+                assertEquals(column, point.columnIndex);
+                assertEquals(row, point.rowIndex);
+                assertEquals(scan.isValid(column, row), point.valid);
+
+                if (point.valid) {
+                    assertPoint(scan, point);
+                }
+            }
+        }
+
+        assertFalse(iterator.hasNext());
+    }
+
+    @Test
+    public void testIterator() throws Exception {
+
+        SyntheticScan scan = writeScan(true, false, 0);
+
+        checkIterator(scan, 0, NB_COLUMNS - 1, 0, NB_ROWS - 1, true);
+        checkIterator(scan, 0, NB_COLUMNS - 1, 0, NB_ROWS - 1, false);
+        checkIterator(scan, 3, 9, 5, 70, false);
+        checkIterator(scan, 3, 9, 5, 70, true);
+        checkIterator(scan, NB_COLUMNS - 1, NB_COLUMNS - 1, 0, NB_ROWS - 1, false);
+
+        scan = writeScan(false, true, 1);
+
+        checkIterator(scan, 0, NB_COLUMNS - 1, 0, NB_ROWS - 1, true);
+        checkIterator(scan, 2, 20, 64, NB_ROWS - 1, false);
+    }
+
+    @Test
+    public void testReadColumn() throws Exception {
+
+        SyntheticScan scan = writeScan(false, true, 2);
+
+        PTGScan ptgScan = new PTGScan();
+        ptgScan.openScanFile(scan.file);
+
+        PTGColumn column = null;
+
+        //backwards, the columns are not read in the file order
+        for (int columnIndex = NB_COLUMNS - 1; columnIndex >= 0; columnIndex--) {
+
+            column = ptgScan.readColumn(columnIndex, column);
+
+            assertEquals(columnIndex, column.getColumnIndex());
+            assertEquals(NB_ROWS, column.getNbRows());
+
+            int nbPoints = 0;
+
+            for (int row = 0; row < NB_ROWS; row++) {
+
+                assertEquals(scan.isValid(columnIndex, row), column.isValid(row));
+
+                if (scan.isValid(columnIndex, row)) {
+
+                    assertEquals(row, column.getRows()[nbPoints]);
+                    assertEquals(columnIndex, column.getX()[nbPoints], 0);
+                    assertEquals(row, column.getY()[nbPoints], 0);
+                    assertEquals(scan.values[columnIndex][row], column.getZ()[nbPoints], 0);
+                    assertEquals(row / 100.0f, column.getIntensity()[nbPoints], 0);
+                    assertEquals(scan.colors[columnIndex][row] + 128, column.getGreen()[nbPoints]);
+
+                    nbPoints++;
+                }
+            }
+
+            assertEquals(nbPoints, column.getNbPoints());
+        }
+    }
+}
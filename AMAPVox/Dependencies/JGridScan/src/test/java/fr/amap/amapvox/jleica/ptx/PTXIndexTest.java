@@ -0,0 +1,170 @@
+package fr.amap.amapvox.jleica.ptx;
+
+import fr.amap.lidar.format.jleica.LDoublePoint;
+import fr.amap.lidar.format.jleica.LPoint;
+import fr.amap.lidar.format.jleica.ptx.PTXIndex;
+import fr.amap.lidar.format.jleica.ptx.PTXReader;
+import fr.amap.lidar.format.jleica.ptx.PTXScan;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Index a synthetic multi-scan ptx file and read its scans from the index.
+ */
+public class PTXIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write a scan, the point (column, row) of the scan s is (s, column, row) with an intensity,
+     * the rows multiple of 4 are invalid.
+     */
+    private static void writeScan(StringBuilder text, int scanIndex, int numRows, int numCols, String newLine) {
+
+        text.append(numRows).append(newLine).append(numCols).append(newLine);
+        text.append("0 0 0").append(newLine);
+        text.append("1 0 0").append(newLine).append("0 1 0").append(newLine).append("0 0 1").append(newLine);
+        text.append("1 0 0 0").append(newLine).append("0 1 0 0").append(newLine).append("0 0 1 0").append(newLine).append("0 0 0 1").append(newLine);
+
+        for (int column = 0; column < numCols; column++) {
+            for (int row = 0; row < numRows; row++) {
+
+                if (row % 4 == 0) {
+                    text.append("0 0 0 0.5");
+                } else {
+                    text.append(scanIndex + 1).append(' ').append(column).append(' ').append(row).append(' ').append(row / 10.0);
+                }
+
+                text.append(newLine);
+            }
+        }
+    }
+
+    private File writeFile(String newLine) throws IOException {
+
+        StringBuilder text = new StringBuilder();
+        writeScan(text, 0, 7, 5, newLine);
+        writeScan(text, 1, 3, 9, newLine);
+        writeScan(text, 2, 12, 4, newLine);
+
+        File file = folder.newFile();
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.US_ASCII));
+
+        return file;
+    }
+
+    private static void checkScan(PTXScan scan, int scanIndex, int startColumn, int endColumn, int startRow, int endRow) {
+
+        scan.setUpColumnsToRead(startColumn, endColumn);
+        scan.setUpRowsToRead(startRow, endRow);
+
+        Iterator<LPoint> iterator = scan.iterator();
+
+        for (int column = startColumn; column <= endColumn; column++) {
+            for (int row = startRow; row <= endRow; row++) {
+
+                if (row % 4 == 0) {
+                    continue;
+                }
+
+                assertTrue(iterator.hasNext());
+
+                LDoublePoint point = (LDoublePoint) iterator.next();
+
+                assertEquals(column, point.columnIndex);
+                assertEquals(row, point.rowIndex);
+                assertEquals(scanIndex + 1, point.x, 0);
+                assertEquals(column, point.y, 0);
+                assertEquals(row, point.z, 0);
+                assertEquals(row / 10.0f, point.intensity, 0);
+            }
+        }
+
+        assertFalse(iterator.hasNext());
+    }
+
+    private void checkReader(String newLine) throws Exception {
+
+        File file = writeFile(newLine);
+
+        PTXReader reader = new PTXReader();
+        reader.openPTXFile(file);
+
+        assertTrue(PTXIndex.getIndexFile(file).exists());
+
+        List<PTXScan> scans = reader.getSinglesScans();
+
+        assertEquals(3, scans.size());
+        assertEquals(10, scans.get(0).offset);
+        assertEquals(10 + 35 + 10, scans.get(1).offset);
+        assertEquals(10 + 35 + 10 + 27 + 10, scans.get(2).offset);
+
+        assertEquals(3, scans.get(1).getHeader().getNumRows());
+        assertEquals(9, scans.get(1).getHeader().getNumCols());
+        assertTrue(scans.get(1).getHeader().isPointContainsIntensity());
+
+        checkScan(scans.get(0), 0, 0, 4, 0, 6);
+        checkScan(scans.get(1), 1, 3, 7, 1, 2);
+        checkScan(scans.get(2), 2, 2, 3, 5, 11);
+
+        //a scan created from its line offset, like in a configuration file
+        PTXScan scan = new PTXScan(file, scans.get(1).getHeader(), scans.get(1).offset);
+        checkScan(scan, 1, 0, 8, 0, 2);
+
+        PTXScan duplicate = scan.duplicate();
+        checkScan(duplicate, 1, 8, 8, 0, 2);
+    }
+
+    @Test
+    public void testReader() throws Exception {
+        checkReader("\n");
+        checkReader("\r\n");
+    }
+
+    @Test
+    public void testIndexUpdate() throws Exception {
+
+        File file = writeFile("\n");
+
+        PTXIndex index = PTXIndex.open(file);
+        File indexFile = PTXIndex.getIndexFile(file);
+
+        assertEquals(3, index.getScans().size());
+        assertTrue(indexFile.exists());
+
+        //the persisted index is loaded
+        PTXIndex loadedIndex = PTXIndex.open(file);
+
+        assertEquals(3, loadedIndex.getScans().size());
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(index.getScans().get(i).getHeaderPosition(), loadedIndex.getScans().get(i).getHeaderPosition());
+            assertEquals(index.getScans().get(i).getLineIndex(), loadedIndex.getScans().get(i).getLineIndex());
+            assertArrayEquals(index.getScans().get(i).getColumnPositions(), loadedIndex.getScans().get(i).getColumnPositions());
+        }
+
+        assertEquals(55, loadedIndex.getScan(55).getLineIndex());
+        assertNull(loadedIndex.getScan(56));
+
+        //a new scan is appended to the file, the index is outdated
+        StringBuilder text = new StringBuilder();
+        writeScan(text, 3, 2, 2, "\n");
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+        PTXIndex updatedIndex = PTXIndex.open(file);
+
+        assertEquals(4, updatedIndex.getScans().size());
+        assertEquals(2, updatedIndex.getScans().get(3).getNumCols());
+    }
+}
@@ -171,4 +171,38 @@ public class PTXScanTest {
 
         }
     }
+    
+    @Test
+    public void testColumnBands() {
+        
+        int[][] bands = pTXScan.splitColumns(2);
+        
+        assertEquals(2, bands.length);
+        assertArrayEquals(new int[]{0, 0}, bands[0]);
+        assertArrayEquals(new int[]{1, 1}, bands[1]);
+        
+        //the points of the duplicates of each band are the points of the whole scan
+        double expectedX = 1.0;
+        
+        for(int[] band : bands){
+            
+            PTXScan bandScan = pTXScan.duplicate();
+            bandScan.setUpColumnsToRead(band[0], band[1]);
+            
+            Iterator<LPoint> iterator = bandScan.iterator();
+            
+            while(iterator.hasNext()){
+                
+                LDoublePoint point = (LDoublePoint)iterator.next();
+                
+                assertEquals(expectedX, point.x, 0);
+                assertEquals(band[0], point.columnIndex);
+                
+                expectedX++;
+            }
+        }
+        
+        assertEquals(11.0, expectedX, 0);
+        assertEquals(2, pTXScan.splitColumns(5).length);
+    }
 }
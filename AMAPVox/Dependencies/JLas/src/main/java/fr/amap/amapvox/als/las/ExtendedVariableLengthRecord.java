@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2016 UMR AMAP (botAnique et Modélisation de l'Architecture des Plantes et des végétations.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package fr.amap.amapvox.als.las;
+
+/**
+ * Extended variable length record of a las 1.4 file, stored after the point data.
+ * Its length after header is a 64 bits value.
+ */
+public class ExtendedVariableLengthRecord extends VariableLengthRecord {
+
+    private long extendedRecordLengthAfterHeader;
+    private long offsetToData;
+
+    public void setExtendedRecordLengthAfterHeader(long extendedRecordLengthAfterHeader) {
+        this.extendedRecordLengthAfterHeader = extendedRecordLengthAfterHeader;
+        setRecordLengthAfterHeader((int) Math.min(Integer.MAX_VALUE, extendedRecordLengthAfterHeader));
+    }
+
+    public long getExtendedRecordLengthAfterHeader() {
+        return extendedRecordLengthAfterHeader;
+    }
+
+    public void setOffsetToData(long offsetToData) {
+        this.offsetToData = offsetToData;
+    }
+
+    /**
+     * Get the position of the record data in the file.
+     * @return The offset of the first byte after the record header.
+     */
+    public long getOffsetToData() {
+        return offsetToData;
+    }
+}
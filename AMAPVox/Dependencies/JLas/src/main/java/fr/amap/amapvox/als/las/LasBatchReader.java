@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2016 UMR AMAP (botAnique et Modélisation de l'Architecture des Plantes et des végétations.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package fr.amap.amapvox.als.las;
+
+import fr.amap.amapvox.als.LasHeader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * This class is devoted to read the points of a LASer (*.las) file by blocks.
+ *
+ * <p>Point data records are read with a file channel into a direct buffer and
+ * decoded into the primitive arrays of a {@link LasPointBatch}, without any
+ * allocation per point. It is an alternative to the iterator of
+ * {@link LasReader} for the files with many points.</p>
+ *
+ * <pre>{@code
+ * try(LasBatchReader reader = new LasBatchReader(file)){
+ *     LasPointBatch batch = new LasPointBatch(LasBatchReader.DEFAULT_BATCH_SIZE);
+ *     while(reader.read(batch) > 0){
+ *         for(int i = 0 ; i < batch.size() ; i++){
+ *             ...
+ *         }
+ *     }
+ * }
+ * }</pre>
+ *
+ * Point data record formats 0 to 10 are supported, including las 1.4 files with
+ * 64 bits point counts and extended variable length records.
+ *
+ * @see <a href="http://www.asprs.org/Committee-General/LASer-LAS-File-Format-Exchange-Activities.html">ASPRS Specification</a>
+ */
+public class LasBatchReader implements Closeable {
+
+    public final static int DEFAULT_BATCH_SIZE = 8192;
+
+    private final static int[] FORMAT_LENGTHS = {20, 28, 26, 34, 57, 63, 30, 36, 38, 59, 67};
+
+    private final LasHeader header;
+    private final ArrayList<VariableLengthRecord> variableLengthRecords;
+    private final ArrayList<ExtendedVariableLengthRecord> extendedVariableLengthRecords;
+    private final FileChannel channel;
+    private final int pointFormatID;
+    private final int recordLength;
+    private final long numberOfPoints;
+
+    //byte offsets of the optional fields in a record, -1 if absent
+    private final boolean extendedFormat;
+    private final int gpsTimeOffset;
+    private final int rgbOffset;
+    private final int nirOffset;
+    private final int wavePacketOffset;
+
+    private ByteBuffer buffer;
+    private long pointsRead;
+
+    /**
+     * Open the given las file, read its header and the variable length records.
+     * @param file a las file
+     * @throws IOException
+     * @throws UnsupportedOperationException if the version or the point data record format is not supported
+     */
+    public LasBatchReader(File file) throws IOException, UnsupportedOperationException {
+
+        header = new LasReader().readHeader(file);
+
+        pointFormatID = header.getPointDataFormatID();
+        recordLength = header.getPointDataRecordLength() & 0xFFFF;
+        numberOfPoints = header.getNumberOfPointrecords();
+
+        if(pointFormatID < 0 || pointFormatID >= FORMAT_LENGTHS.length){
+            throw new UnsupportedOperationException("Point data record format "+pointFormatID+" not supported yet");
+        }
+
+        if(recordLength < FORMAT_LENGTHS[pointFormatID]){
+            throw new IOException("Point data record length ("+recordLength+") is lower than the length of the format "+pointFormatID);
+        }
+
+        extendedFormat = pointFormatID >= 6;
+
+        switch(pointFormatID){
+            case 0:
+                gpsTimeOffset = -1; rgbOffset = -1; nirOffset = -1; wavePacketOffset = -1;
+                break;
+            case 1:
+                gpsTimeOffset = 20; rgbOffset = -1; nirOffset = -1; wavePacketOffset = -1;
+                break;
+            case 2:
+                gpsTimeOffset = -1; rgbOffset = 20; nirOffset = -1; wavePacketOffset = -1;
+                break;
+            case 3:
+                gpsTimeOffset = 20; rgbOffset = 28; nirOffset = -1; wavePacketOffset = -1;
+                break;
+            case 4:
+                gpsTimeOffset = 20; rgbOffset = -1; nirOffset = -1; wavePacketOffset = 28;
+                break;
+            case 5:
+                gpsTimeOffset = 20; rgbOffset = 28; nirOffset = -1; wavePacketOffset = 34;
+                break;
+            case 6:
+                gpsTimeOffset = 22; rgbOffset = -1; nirOffset = -1; wavePacketOffset = -1;
+                break;
+            case 7:
+                gpsTimeOffset = 22; rgbOffset = 30; nirOffset = -1; wavePacketOffset = -1;
+                break;
+            case 8:
+                gpsTimeOffset = 22; rgbOffset = 30; nirOffset = 36; wavePacketOffset = -1;
+                break;
+            case 9:
+                gpsTimeOffset = 22; rgbOffset = -1; nirOffset = -1; wavePacketOffset = 30;
+                break;
+            default:
+                gpsTimeOffset = 22; rgbOffset = 30; nirOffset = 36; wavePacketOffset = 38;
+                break;
+        }
+
+        variableLengthRecords = LasReader.readVariableLengthRecords(file, header.getHeaderSize(), header.getOffsetToPointData(), header.getNumberOfVariableLengthRecords());
+        extendedVariableLengthRecords = LasReader.readExtendedVariableLengthRecords(file, header);
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        channel.position(header.getOffsetToPointData());
+    }
+
+    /**
+     * Get the las file header.
+     * @return The las header.
+     */
+    public LasHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Get a list of the variable length records.
+     * @return A list of variable length records.
+     */
+    public ArrayList<VariableLengthRecord> getVariableLengthRecords() {
+        return variableLengthRecords;
+    }
+
+    /**
+     * Get a list of the extended variable length records (las 1.4).
+     * @return A list of extended variable length records, empty before las 1.4.
+     */
+    public ArrayList<ExtendedVariableLengthRecord> getExtendedVariableLengthRecords() {
+        return extendedVariableLengthRecords;
+    }
+
+    /**
+     * Read the next points.
+     * @param batch The batch to fill, previous values are overwritten.
+     * @return The number of points read, 0 when all the points have been read.
+     * @throws IOException if the file cannot be read or is truncated
+     */
+    public int read(LasPointBatch batch) throws IOException {
+
+        int count = (int) Math.min(batch.capacity(), numberOfPoints - pointsRead);
+
+        batch.size = 0;
+
+        if(count <= 0){
+            return 0;
+        }
+
+        int length = count * recordLength;
+
+        if(buffer == null || buffer.capacity() < length){
+            buffer = ByteBuffer.allocateDirect(length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        buffer.clear();
+        buffer.limit(length);
+
+        while(buffer.hasRemaining()){
+            if(channel.read(buffer) < 0){
+                throw new EOFException("Las file is truncated, "+(pointsRead + buffer.position() / recordLength)+" points read on "+numberOfPoints);
+            }
+        }
+
+        decode(buffer, count, batch);
+
+        batch.size = count;
+        pointsRead += count;
+
+        return count;
+    }
+
+    private void decode(ByteBuffer buffer, int count, LasPointBatch batch){
+
+        for(int i = 0, position = 0 ; i < count ; i++, position += recordLength){
+
+            batch.x[i] = buffer.getInt(position);
+            batch.y[i] = buffer.getInt(position + 4);
+            batch.z[i] = buffer.getInt(position + 8);
+            batch.intensity[i] = buffer.getShort(position + 12) & 0xFFFF;
+
+            if(extendedFormat){
+
+                //return number (4 bits), number of returns (4 bits)
+                int b = buffer.get(position + 14);
+                batch.returnNumber[i] = (byte) (b & 0x0F);
+                batch.numberOfReturns[i] = (byte) ((b >> 4) & 0x0F);
+
+                //synthetic, key-point, withheld, overlap, scanner channel (2 bits), scan direction flag, edge of flight line
+                b = buffer.get(position + 15);
+                batch.synthetic[i] = (b & 0x01) != 0;
+                batch.keyPoint[i] = (b & 0x02) != 0;
+                batch.withheld[i] = (b & 0x04) != 0;
+                batch.overlap[i] = (b & 0x08) != 0;
+                batch.scannerChannel[i] = (byte) ((b >> 4) & 0x03);
+                batch.scanDirectionFlag[i] = (b & 0x40) != 0;
+                batch.edgeOfFlightLine[i] = (b & 0x80) != 0;
+
+                batch.classification[i] = (short) (buffer.get(position + 16) & 0xFF);
+                batch.userData[i] = (short) (buffer.get(position + 17) & 0xFF);
+                batch.scanAngleRank[i] = 0;
+                batch.scanAngle[i] = buffer.getShort(position + 18);
+                batch.pointSourceID[i] = buffer.getShort(position + 20) & 0xFFFF;
+
+            }else{
+
+                //return number (3 bits), number of returns (3 bits), scan direction flag, edge of flight line
+                int b = buffer.get(position + 14);
+                batch.returnNumber[i] = (byte) (b & 0x07);
+                batch.numberOfReturns[i] = (byte) ((b >> 3) & 0x07);
+                batch.scanDirectionFlag[i] = (b & 0x40) != 0;
+                batch.edgeOfFlightLine[i] = (b & 0x80) != 0;
+
+                //classification (5 bits), synthetic, key-point, withheld
+                b = buffer.get(position + 15);
+                batch.classification[i] = (short) (b & 0x1F);
+                batch.synthetic[i] = (b & 0x20) != 0;
+                batch.keyPoint[i] = (b & 0x40) != 0;
+                batch.withheld[i] = (b & 0x80) != 0;
+                batch.overlap[i] = false;
+                batch.scannerChannel[i] = 0;
+
+                batch.scanAngleRank[i] = buffer.get(position + 16);
+                batch.scanAngle[i] = 0;
+                batch.userData[i] = (short) (buffer.get(position + 17) & 0xFF);
+                batch.pointSourceID[i] = buffer.getShort(position + 18) & 0xFFFF;
+            }
+
+            batch.gpsTime[i] = (gpsTimeOffset >= 0) ? buffer.getDouble(position + gpsTimeOffset) : 0;
+
+            if(rgbOffset >= 0){
+                batch.red[i] = buffer.getShort(position + rgbOffset) & 0xFFFF;
+                batch.green[i] = buffer.getShort(position + rgbOffset + 2) & 0xFFFF;
+                batch.blue[i] = buffer.getShort(position + rgbOffset + 4) & 0xFFFF;
+            }else{
+                batch.red[i] = 0;
+                batch.green[i] = 0;
+                batch.blue[i] = 0;
+            }
+
+            batch.nir[i] = (nirOffset >= 0) ? buffer.getShort(position + nirOffset) & 0xFFFF : 0;
+
+            if(wavePacketOffset >= 0){
+                batch.wavePacketDescriptorIndex[i] = (short) (buffer.get(position + wavePacketOffset) & 0xFF);
+                batch.byteOffsetToWaveformData[i] = buffer.getLong(position + wavePacketOffset + 1);
+                batch.waveformPacketSize[i] = buffer.getInt(position + wavePacketOffset + 9) & 0xFFFFFFFFL;
+                batch.returnPointWaveformLocation[i] = buffer.getFloat(position + wavePacketOffset + 13);
+                batch.xt[i] = buffer.getFloat(position + wavePacketOffset + 17);
+                batch.yt[i] = buffer.getFloat(position + wavePacketOffset + 21);
+                batch.zt[i] = buffer.getFloat(position + wavePacketOffset + 25);
+            }else{
+                batch.wavePacketDescriptorIndex[i] = 0;
+                batch.byteOffsetToWaveformData[i] = 0;
+                batch.waveformPacketSize[i] = 0;
+                batch.returnPointWaveformLocation[i] = 0;
+                batch.xt[i] = 0;
+                batch.yt[i] = 0;
+                batch.zt[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Get the number of points already read.
+     * @return The number of points returned by the previous calls to {@link #read(fr.amap.amapvox.als.las.LasPointBatch)}.
+     */
+    public long getPointsRead() {
+        return pointsRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
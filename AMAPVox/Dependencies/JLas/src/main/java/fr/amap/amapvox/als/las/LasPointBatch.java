@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 UMR AMAP (botAnique et Modélisation de l'Architecture des Plantes et des végétations.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package fr.amap.amapvox.als.las;
+
+/**
+ * A block of point data records stored as primitive arrays, filled by
+ * {@link LasBatchReader#read(fr.amap.amapvox.als.las.LasPointBatch)}.
+ *
+ * <p>Only the first {@link #size()} values of each array are valid. Coordinates
+ * are the raw integer values of the records, they have to be scaled with the
+ * factors and offsets of the header. Fields which are not part of the point
+ * format are set to 0.</p>
+ *
+ * <p>The point formats 6 to 10 (las 1.4) have up to 15 returns, a classification
+ * on 8 bits, an overlap flag, a scanner channel and a scan angle in 0.006 degree
+ * steps ({@link #scanAngle}) instead of the scan angle rank in degrees
+ * ({@link #scanAngleRank}).</p>
+ *
+ * @see <a href="http://www.asprs.org/Committee-General/LASer-LAS-File-Format-Exchange-Activities.html">ASPRS Specification</a>
+ */
+public class LasPointBatch {
+
+    public final int[] x;
+    public final int[] y;
+    public final int[] z;
+    public final int[] intensity;
+    public final byte[] returnNumber;
+    public final byte[] numberOfReturns;
+    public final boolean[] scanDirectionFlag;
+    public final boolean[] edgeOfFlightLine;
+    public final short[] classification;
+    public final boolean[] synthetic;
+    public final boolean[] keyPoint;
+    public final boolean[] withheld;
+    public final boolean[] overlap;
+    public final byte[] scannerChannel;
+    public final byte[] scanAngleRank;
+    public final short[] scanAngle;
+    public final short[] userData;
+    public final int[] pointSourceID;
+    public final double[] gpsTime;
+    public final int[] red;
+    public final int[] green;
+    public final int[] blue;
+    public final int[] nir;
+    public final short[] wavePacketDescriptorIndex;
+    public final long[] byteOffsetToWaveformData;
+    public final long[] waveformPacketSize;
+    public final float[] returnPointWaveformLocation;
+    public final float[] xt;
+    public final float[] yt;
+    public final float[] zt;
+
+    int size;
+
+    /**
+     * Create a batch.
+     * @param capacity The maximum number of points of the batch.
+     */
+    public LasPointBatch(int capacity) {
+
+        if(capacity < 1){
+            throw new IllegalArgumentException("Capacity should be at least 1");
+        }
+
+        x = new int[capacity];
+        y = new int[capacity];
+        z = new int[capacity];
+        intensity = new int[capacity];
+        returnNumber = new byte[capacity];
+        numberOfReturns = new byte[capacity];
+        scanDirectionFlag = new boolean[capacity];
+        edgeOfFlightLine = new boolean[capacity];
+        classification = new short[capacity];
+        synthetic = new boolean[capacity];
+        keyPoint = new boolean[capacity];
+        withheld = new boolean[capacity];
+        overlap = new boolean[capacity];
+        scannerChannel = new byte[capacity];
+        scanAngleRank = new byte[capacity];
+        scanAngle = new short[capacity];
+        userData = new short[capacity];
+        pointSourceID = new int[capacity];
+        gpsTime = new double[capacity];
+        red = new int[capacity];
+        green = new int[capacity];
+        blue = new int[capacity];
+        nir = new int[capacity];
+        wavePacketDescriptorIndex = new short[capacity];
+        byteOffsetToWaveformData = new long[capacity];
+        waveformPacketSize = new long[capacity];
+        returnPointWaveformLocation = new float[capacity];
+        xt = new float[capacity];
+        yt = new float[capacity];
+        zt = new float[capacity];
+    }
+
+    /**
+     * Get the number of valid points.
+     * @return The number of points read in the last call to {@link LasBatchReader#read(fr.amap.amapvox.als.las.LasPointBatch)}.
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * Get the maximum number of points of the batch.
+     * @return The length of the arrays.
+     */
+    public int capacity(){
+        return x.length;
+    }
+}
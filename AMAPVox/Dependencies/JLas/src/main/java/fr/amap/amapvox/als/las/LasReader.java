@@ -22,6 +22,7 @@ import fr.amap.amapvox.als.LasHeader;
 import fr.amap.amapvox.als.LasHeader11;
 import fr.amap.amapvox.als.LasHeader12;
 import fr.amap.amapvox.als.LasHeader13;
+import fr.amap.amapvox.als.LasHeader14;
 import fr.amap.commons.util.io.LittleEndianUtility;
 import java.io.BufferedInputStream;
 import java.io.DataInputStream;
@@ -30,6 +31,10 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.logging.Level;
@@ -37,7 +42,8 @@ import java.util.logging.Logger;
 
 /**
  * This class is devoted to read a LASer (*.las) file.
- * It allows to get the file header and get an iterator on the points of the file.<br><br><br>
+ * It allows to get the file header and get an iterator on the points of the file.<br>
+ * To read many points, {@link LasBatchReader} decodes them by blocks into primitive arrays.<br><br><br>
  * 
  * @see <a href="http://www.asprs.org/Committee-General/LASer-LAS-File-Format-Exchange-Activities.html">ASPRS Specification</a>
  * 
@@ -48,6 +54,7 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
     
     private File file;
     private ArrayList<VariableLengthRecord> variableLengthRecords;
+    private ArrayList<ExtendedVariableLengthRecord> extendedVariableLengthRecords;
     private LasHeader header;
 
     /**
@@ -59,6 +66,15 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
         return variableLengthRecords;
     }
 
+    /**
+     * Get a list of the extended variable length records (las 1.4), stored after the point data.
+     * @see <a href="http://www.asprs.org/Committee-General/LASer-LAS-File-Format-Exchange-Activities.html">ASPRS Specification</a>
+     * @return A list of extended variable length records, empty before las 1.4.
+     */
+    public ArrayList<ExtendedVariableLengthRecord> getExtendedVariableLengthRecords() {
+        return extendedVariableLengthRecords;
+    }
+
     /**
      * Get the las file header.
      * <p>Before, a call to the method {@link #open(java.io.File) } is required.</p>
@@ -635,6 +651,42 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
         return header;
     }
 
+    /**
+     * Read a las 1.4 header.
+     * <p>The number of point records of the header is set to the extended (64 bits) number of point records,
+     * the legacy field being 0 for the point formats 6 to 10.</p>
+     */
+    private LasHeader readHeader14(DataInputStream dis, LasHeader14 header) throws IOException {
+
+        readHeader13(dis, header);
+
+        BigInteger startOfFirstEVLR = LittleEndianUtility.toBigInteger(dis.readByte(), dis.readByte(), dis.readByte(), dis.readByte(),
+                dis.readByte(), dis.readByte(), dis.readByte(), dis.readByte());
+        header.setStartOfFirstExtendedVariableLengthRecord(startOfFirstEVLR);
+
+        long numberOfEVLR = LittleEndianUtility.bytesToLong(new byte[]{dis.readByte(), dis.readByte(), dis.readByte(), dis.readByte()});
+        header.setNumberOfExtendedVariableLengthRecords(numberOfEVLR);
+
+        BigInteger extendedNumberOfPointRecords = LittleEndianUtility.toBigInteger(dis.readByte(), dis.readByte(), dis.readByte(), dis.readByte(),
+                dis.readByte(), dis.readByte(), dis.readByte(), dis.readByte());
+        header.setExtendedNumberOfPointRecords(extendedNumberOfPointRecords);
+
+        BigInteger[] extendedNumberOfPointsByReturn = new BigInteger[15];
+
+        for (int i = 0; i < extendedNumberOfPointsByReturn.length; i++) {
+            extendedNumberOfPointsByReturn[i] = LittleEndianUtility.toBigInteger(dis.readByte(), dis.readByte(), dis.readByte(), dis.readByte(),
+                dis.readByte(), dis.readByte(), dis.readByte(), dis.readByte());
+        }
+
+        header.setExtendedNumberOfPointsByReturn(extendedNumberOfPointsByReturn);
+
+        if(extendedNumberOfPointRecords.signum() != 0){
+            header.setNumberOfPointrecords(extendedNumberOfPointRecords.longValue());
+        }
+
+        return header;
+    }
+
     /**
      * Read the header of the given las file.
      * @param file a las file
@@ -677,10 +729,11 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
                         header = readHeader13(dis, (LasHeader13) header);
                         break;
                     case 4:
-                        //header = new LasHeader14();
-                        errorMsg = "1.4 format not supported yet";
-                        //throw new Exception("1.4 format not supported yet");
-                        //header = readHeader14(dis, (LasHeader14)header);
+                        header = new LasHeader14();
+                        header = readHeader14(dis, (LasHeader14) header);
+                        break;
+                    default:
+                        errorMsg = "Las version "+vM+"."+vm+" not supported yet";
                 }
             }
             
@@ -696,7 +749,7 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
 
     }
 
-    private static ArrayList<VariableLengthRecord> readVariableLengthRecords(File file, int start, long end, long variableNumber) throws IOException {
+    static ArrayList<VariableLengthRecord> readVariableLengthRecords(File file, int start, long end, long variableNumber) throws IOException {
 
         ArrayList<VariableLengthRecord> variableLengthRecords = new ArrayList<>();
 
@@ -750,6 +803,66 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
 
         return variableLengthRecords;
     }
+
+    static ArrayList<ExtendedVariableLengthRecord> readExtendedVariableLengthRecords(File file, LasHeader header) throws IOException {
+
+        ArrayList<ExtendedVariableLengthRecord> records = new ArrayList<>();
+
+        if (!(header instanceof LasHeader14)) {
+            return records;
+        }
+
+        LasHeader14 header14 = (LasHeader14) header;
+        long number = header14.getNumberOfExtendedVariableLengthRecords();
+
+        if (number <= 0) {
+            return records;
+        }
+
+        //60 bytes header, the data are skipped
+        ByteBuffer buffer = ByteBuffer.allocate(60).order(ByteOrder.LITTLE_ENDIAN);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+            long position = header14.getStartOfFirstExtendedVariableLengthRecord().longValue();
+
+            for (long i = 0; i < number; i++) {
+
+                buffer.clear();
+
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("Extended variable length record "+i+" is truncated");
+                    }
+                }
+
+                ExtendedVariableLengthRecord evlr = new ExtendedVariableLengthRecord();
+                evlr.setReserved(buffer.getShort(0) & 0xFFFF);
+                evlr.setUserID(readChars(buffer, 2, 16));
+                evlr.setRecordID(buffer.getShort(18) & 0xFFFF);
+                evlr.setExtendedRecordLengthAfterHeader(buffer.getLong(20));
+                evlr.setDescription(readChars(buffer, 28, 32));
+                evlr.setOffsetToData(position + 60);
+
+                records.add(evlr);
+
+                position += 60 + evlr.getExtendedRecordLengthAfterHeader();
+            }
+        }
+
+        return records;
+    }
+
+    private static char[] readChars(ByteBuffer buffer, int offset, int length) {
+
+        char[] chars = new char[length];
+
+        for (int i = 0; i < length; i++) {
+            chars[i] = (char) buffer.get(offset + i);
+        }
+
+        return chars;
+    }
     
     /**
      * Open the given las file, read its header and the variable length records.
@@ -763,13 +876,17 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
         this.file = file;
         header = reader.readHeader(file);
         variableLengthRecords = readVariableLengthRecords(file, header.getHeaderSize(), header.getOffsetToPointData(), header.getNumberOfVariableLengthRecords());
+        extendedVariableLengthRecords = readExtendedVariableLengthRecords(file, header);
     }
     
 
     /**
      * Iterates through the points of the las file. 
      * Points are not kept in memory.
+     * <p>Only the point data record formats 0 to 3 are supported, the other formats
+     * are read with {@link LasBatchReader}.</p>
      * @return 
+     * @throws UnsupportedOperationException if the point data record format is not supported
      */
     @Override
     public Iterator<PointDataRecordFormat> iterator(){
@@ -781,6 +898,10 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
         final int pointFormatID = header.getPointDataFormatID();
         Iterator<PointDataRecordFormat> it;
         
+        if(pointFormatID < 0 || pointFormatID > 3){
+            throw new UnsupportedOperationException("Point data record format "+pointFormatID+" is not supported by the iterator, use LasBatchReader");
+        }
+        
         try{
             dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
             
@@ -788,7 +909,7 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
 
             it = new Iterator<PointDataRecordFormat>() {
             
-            int count = 0;
+            long count = 0;
             
             @Override
             public boolean hasNext() {
@@ -838,54 +959,17 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
                     int intensity = LittleEndianUtility.bytesToShortInt(dis.readByte(), dis.readByte());
                     pdr.setIntensity(intensity);
                     byte b = dis.readByte();
-                    int bit0 = (b >> 0) & 1;
-                    int bit1 = (b >> 1) & 1;
-                    int bit2 = (b >> 2) & 1;
-                    int bit3 = (b >> 3) & 1;
-                    int bit4 = (b >> 4) & 1;
-                    int bit5 = (b >> 5) & 1;
-                    int bit6 = (b >> 6) & 1;
-                    int bit7 = (b >> 7) & 1;
-                    int returnNumber = Integer.parseInt(String.valueOf(bit2) + String.valueOf(bit1) + String.valueOf(bit0), 2);
-                    pdr.setReturnNumber((short) returnNumber);
-                    int numberOfReturns = Integer.parseInt(String.valueOf(bit5) + String.valueOf(bit4) + String.valueOf(bit3), 2);
-                    pdr.setNumberOfReturns((short) numberOfReturns);
-                    if (bit6 == 0) {
-                        pdr.setScanDirectionFlag(false);
-                    } else {
-                        pdr.setScanDirectionFlag(true);
-                    }
-                    if (bit7 == 0) {
-                        pdr.setEdgeOfFlightLine(false);
-                    } else {
-                        pdr.setEdgeOfFlightLine(true);
-                    }
+                    /*return number (bits 0-2), number of returns (bits 3-5)*/
+                    pdr.setReturnNumber((short) (b & 0x07));
+                    pdr.setNumberOfReturns((short) ((b >> 3) & 0x07));
+                    pdr.setScanDirectionFlag((b & 0x40) != 0);
+                    pdr.setEdgeOfFlightLine((b & 0x80) != 0);
                     b = dis.readByte();
-                    /*classification bits*/
-                    bit0 = (b >> 0) & 1;
-                    bit1 = (b >> 1) & 1;
-                    bit2 = (b >> 2) & 1;
-                    bit3 = (b >> 3) & 1;
-                    bit4 = (b >> 4) & 1;
-                    /*synthetic*/
-                    bit5 = (b >> 5) & 1;
-                    /*key-point*/
-                    bit6 = (b >> 6) & 1;
-                    /*Withheld*/
-                    bit7 = (b >> 7) & 1;
-                    short classification = (short) Integer.parseInt(
-                            String.valueOf(bit4)
-                            + String.valueOf(bit3)
-                            + String.valueOf(bit2)
-                            + String.valueOf(bit1)
-                            + String.valueOf(bit0), 2);
-                    pdr.setClassification(classification);
-                    boolean synthetic = (bit5 != 0);
-                    pdr.setSynthetic(synthetic);
-                    boolean keyPoint = (bit6 != 0);
-                    pdr.setKeyPoint(keyPoint);
-                    boolean withheld = (bit7 != 0);
-                    pdr.setWithheld(withheld);
+                    /*classification (bits 0-4), synthetic, key-point, withheld*/
+                    pdr.setClassification((short) (b & 0x1F));
+                    pdr.setSynthetic((b & 0x20) != 0);
+                    pdr.setKeyPoint((b & 0x40) != 0);
+                    pdr.setWithheld((b & 0x80) != 0);
                     int sar = dis.readByte();
                     pdr.setScanAngleRank(sar);
                     int usrData = dis.readUnsignedByte();
@@ -912,11 +996,11 @@ public class LasReader implements Iterable<PointDataRecordFormat> {
 
                         case 2:
                             red = dis.readUnsignedByte() + dis.readUnsignedByte();
-                            ((PointDataRecordFormat3) pdr).setRed(red);
+                            ((PointDataRecordFormat2) pdr).setRed(red);
                             green = dis.readUnsignedByte() + dis.readUnsignedByte();
-                            ((PointDataRecordFormat3) pdr).setGreen(green);
+                            ((PointDataRecordFormat2) pdr).setGreen(green);
                             blue = dis.readUnsignedByte() + dis.readUnsignedByte();
-                            ((PointDataRecordFormat3) pdr).setBlue(blue);
+                            ((PointDataRecordFormat2) pdr).setBlue(blue);
 
                             length = PointDataRecordFormat2.LENGTH;
 
@@ -22,7 +22,7 @@ package fr.amap.amapvox.als.las;
  *
  * @author Julien Heurtebize (julienhtbe@gmail.com)
  */
-public class QLineExtrabytes{
+public class QLineExtrabytes implements Extrabytes{
     
     private int amplitude;
     private int pulseWidth;
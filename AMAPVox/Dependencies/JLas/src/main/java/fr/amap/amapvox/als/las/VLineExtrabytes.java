@@ -22,7 +22,7 @@ package fr.amap.amapvox.als.las;
  *
  * @author Julien Heurtebize (julienhtbe@gmail.com)
  */
-public class VLineExtrabytes{
+public class VLineExtrabytes implements Extrabytes{
     
     private int amplitude;
     private int reflectance;
@@ -0,0 +1,141 @@
+package fr.amap.amapvox.als.las;
+
+import fr.amap.amapvox.als.LasHeader14;
+import java.io.File;
+import java.math.BigInteger;
+import java.util.List;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Decode las 1.4 files with the point formats 4 to 10, see {@link LasTestFiles#encode14(java.nio.ByteBuffer, int, int)}
+ * for the expected values.
+ */
+public class LasBatchReader14Test {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static String[] EVLR_USER_IDS = new String[]{"LASF_Spec", "AMAPVox"};
+
+    private void assertFormat(int pointFormatID) throws Exception {
+
+        File file = folder.newFile("points_" + pointFormatID + ".las");
+
+        int nbPoints = 5000;
+        LasTestFiles.write14(file, pointFormatID, nbPoints, EVLR_USER_IDS);
+
+        boolean extended = pointFormatID >= 6;
+        boolean hasRGB = pointFormatID == 5 || pointFormatID == 7 || pointFormatID == 8 || pointFormatID == 10;
+        boolean hasNIR = pointFormatID == 8 || pointFormatID == 10;
+        boolean hasWavePacket = pointFormatID == 4 || pointFormatID == 5 || pointFormatID == 9 || pointFormatID == 10;
+
+        int count = 0;
+
+        try (LasBatchReader reader = new LasBatchReader(file)) {
+
+            LasHeader14 header = (LasHeader14) reader.getHeader();
+            assertEquals(nbPoints, header.getNumberOfPointrecords());
+            assertEquals(BigInteger.valueOf(nbPoints), header.getExtendedNumberOfPointRecords());
+
+            List<ExtendedVariableLengthRecord> evlrs = reader.getExtendedVariableLengthRecords();
+            assertEquals(EVLR_USER_IDS.length, evlrs.size());
+
+            for (int e = 0; e < EVLR_USER_IDS.length; e++) {
+                assertEquals(EVLR_USER_IDS[e], evlrs.get(e).getUserID().trim());
+                assertEquals(1000 + e, evlrs.get(e).getRecordID());
+                assertEquals(e + 1, evlrs.get(e).getExtendedRecordLengthAfterHeader());
+            }
+
+            LasPointBatch batch = new LasPointBatch(1234);
+
+            while (reader.read(batch) > 0) {
+
+                for (int j = 0; j < batch.size(); j++, count++) {
+
+                    int i = count;
+
+                    assertEquals(3 * i, batch.x[j]);
+                    assertEquals(-i, batch.y[j]);
+                    assertEquals(7 * i + 1, batch.z[j]);
+                    assertEquals((13 * i) & 0xFFFF, batch.intensity[j]);
+
+                    if(extended){
+                        assertEquals(1 + i % 15, batch.returnNumber[j]);
+                        assertEquals(15, batch.numberOfReturns[j]);
+                        assertEquals((i & 0x01) != 0, batch.synthetic[j]);
+                        assertEquals((i & 0x02) != 0, batch.keyPoint[j]);
+                        assertEquals((i & 0x04) != 0, batch.withheld[j]);
+                        assertEquals((i & 0x08) != 0, batch.overlap[j]);
+                        assertEquals((i >> 4) & 0x03, batch.scannerChannel[j]);
+                        assertEquals((i & 0x40) != 0, batch.scanDirectionFlag[j]);
+                        assertEquals((i & 0x80) != 0, batch.edgeOfFlightLine[j]);
+                        assertEquals((7 * i) & 0xFF, batch.classification[j]);
+                        assertEquals((short) (i - 15000), batch.scanAngle[j]);
+                        assertEquals(0, batch.scanAngleRank[j]);
+                    }else{
+                        assertEquals(1 + i % 7, batch.returnNumber[j]);
+                        assertEquals(7, batch.numberOfReturns[j]);
+                        assertEquals(i & 0x1F, batch.classification[j]);
+                        assertEquals((byte) i, batch.scanAngleRank[j]);
+                        assertFalse(batch.overlap[j]);
+                    }
+
+                    assertEquals(i & 0xFF, batch.userData[j]);
+                    assertEquals((5 * i) & 0xFFFF, batch.pointSourceID[j]);
+                    assertEquals(100000 + i / 100000.0, batch.gpsTime[j], 0);
+
+                    assertEquals(hasRGB ? i & 0xFFFF : 0, batch.red[j]);
+                    assertEquals(hasRGB ? (i + 1) & 0xFFFF : 0, batch.green[j]);
+                    assertEquals(hasRGB ? (i + 2) & 0xFFFF : 0, batch.blue[j]);
+                    assertEquals(hasNIR ? (i + 3) & 0xFFFF : 0, batch.nir[j]);
+
+                    if(hasWavePacket){
+                        assertEquals(i & 0xFF, batch.wavePacketDescriptorIndex[j]);
+                        assertEquals(100L * i, batch.byteOffsetToWaveformData[j]);
+                        assertEquals(4096, batch.waveformPacketSize[j]);
+                        assertEquals(i / 2.0f, batch.returnPointWaveformLocation[j], 0);
+                        assertEquals(i, batch.xt[j], 0);
+                        assertEquals(-i, batch.yt[j], 0);
+                        assertEquals(1, batch.zt[j], 0);
+                    }else{
+                        assertEquals(0, batch.waveformPacketSize[j]);
+                    }
+                }
+            }
+        }
+
+        assertEquals(nbPoints, count);
+    }
+
+    @Test
+    public void testFormats() throws Exception {
+
+        for (int pointFormatID = 4; pointFormatID <= 10; pointFormatID++) {
+            assertFormat(pointFormatID);
+        }
+    }
+
+    @Test
+    public void testLasReader() throws Exception {
+
+        File file = folder.newFile("points.las");
+        LasTestFiles.write14(file, 6, 10, EVLR_USER_IDS);
+
+        LasReader reader = new LasReader();
+        reader.open(file);
+
+        assertTrue(reader.getHeader() instanceof LasHeader14);
+        assertEquals(10, reader.getHeader().getNumberOfPointrecords());
+        assertEquals(EVLR_USER_IDS.length, reader.getExtendedVariableLengthRecords().size());
+
+        try {
+            reader.iterator();
+            fail("Point format 6 is not supported by the iterator");
+        } catch (UnsupportedOperationException ex) {
+        }
+    }
+}
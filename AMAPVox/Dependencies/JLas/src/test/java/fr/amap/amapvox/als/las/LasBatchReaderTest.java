@@ -0,0 +1,98 @@
+package fr.amap.amapvox.als.las;
+
+import java.io.File;
+import java.util.Iterator;
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * Compare the batch reader with the point iterator of {@link LasReader}.
+ */
+public class LasBatchReaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private void assertSameAsIterator(int pointFormatID, int recordLength) throws Exception {
+
+        File file = folder.newFile("points_" + pointFormatID + "_" + recordLength + ".las");
+
+        int nbPoints = 10000;
+        LasTestFiles.write(file, pointFormatID, recordLength, nbPoints, pointFormatID);
+
+        LasReader lasReader = new LasReader();
+        lasReader.open(file);
+        Iterator<PointDataRecordFormat> iterator = lasReader.iterator();
+
+        int count = 0;
+
+        try (LasBatchReader reader = new LasBatchReader(file)) {
+
+            assertEquals(nbPoints, reader.getHeader().getNumberOfPointrecords());
+
+            //not a divisor of the number of points, to check the last batch
+            LasPointBatch batch = new LasPointBatch(3000);
+
+            while (reader.read(batch) > 0) {
+
+                for (int i = 0; i < batch.size(); i++) {
+
+                    assertTrue(iterator.hasNext());
+                    PointDataRecordFormat point = iterator.next();
+
+                    assertEquals(point.getX(), batch.x[i]);
+                    assertEquals(point.getY(), batch.y[i]);
+                    assertEquals(point.getZ(), batch.z[i]);
+                    assertEquals(point.getIntensity(), batch.intensity[i]);
+                    assertEquals(point.getReturnNumber(), batch.returnNumber[i]);
+                    assertEquals(point.getNumberOfReturns(), batch.numberOfReturns[i]);
+                    assertEquals(point.isScanDirectionFlag(), batch.scanDirectionFlag[i]);
+                    assertEquals(point.isEdgeOfFlightLine(), batch.edgeOfFlightLine[i]);
+                    assertEquals(point.getClassification(), batch.classification[i]);
+                    assertEquals(point.isSynthetic(), batch.synthetic[i]);
+                    assertEquals(point.isKeyPoint(), batch.keyPoint[i]);
+                    assertEquals(point.isWithheld(), batch.withheld[i]);
+                    assertEquals(point.getScanAngleRank(), batch.scanAngleRank[i]);
+                    assertEquals(point.getUserData(), batch.userData[i]);
+                    assertEquals(point.getGpsTime(), batch.gpsTime[i], 0);
+
+                    count++;
+                }
+            }
+
+            assertEquals(0, reader.read(batch));
+            assertEquals(0, batch.size());
+        }
+
+        assertFalse(iterator.hasNext());
+        assertEquals(nbPoints, count);
+    }
+
+    @Test
+    public void testFormat0() throws Exception {
+        assertSameAsIterator(0, PointDataRecordFormat.LENGTH);
+    }
+
+    @Test
+    public void testFormat1() throws Exception {
+        assertSameAsIterator(1, PointDataRecordFormat1.LENGTH);
+    }
+
+    @Test
+    public void testFormat1WithExtrabytes() throws Exception {
+        assertSameAsIterator(1, PointDataRecordFormat1.LENGTH + 2);
+    }
+
+    @Test
+    public void testFormat2() throws Exception {
+        assertSameAsIterator(2, PointDataRecordFormat2.LENGTH);
+    }
+
+    @Test
+    public void testFormat3() throws Exception {
+        assertSameAsIterator(3, PointDataRecordFormat3.LENGTH);
+    }
+}
@@ -0,0 +1,216 @@
+package fr.amap.amapvox.als.las;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ *
+ * Write synthetic las 1.2 files without variable length records, and las 1.4 files
+ * with extended variable length records.
+ */
+public class LasTestFiles {
+
+    private final static int HEADER_SIZE = 227;
+    private final static int HEADER_SIZE_14 = 375;
+
+    public final static int[] FORMAT_LENGTHS_14 = {20, 28, 26, 34, 57, 63, 30, 36, 38, 59, 67};
+
+    public static void write(File file, int pointFormatID, int recordLength, int nbPoints, long seed) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put(new byte[]{'L', 'A', 'S', 'F'});
+        header.position(24);
+        header.put((byte) 1); //version major
+        header.put((byte) 2); //version minor
+        header.position(94);
+        header.putShort((short) HEADER_SIZE);
+        header.putInt(HEADER_SIZE); //offset to point data
+        header.putInt(0); //number of variable length records
+        header.put((byte) pointFormatID);
+        header.putShort((short) recordLength);
+        header.putInt(nbPoints);
+        header.position(header.position() + 20); //number of points by return
+        header.putDouble(0.01).putDouble(0.01).putDouble(0.001); //scale factors
+        header.putDouble(1000).putDouble(2000).putDouble(0); //offsets
+        header.putDouble(1100).putDouble(1000).putDouble(2100).putDouble(2000).putDouble(50).putDouble(0); //bounds
+        header.flip();
+
+        Random random = new Random(seed);
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength).order(ByteOrder.LITTLE_ENDIAN);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            channel.write(header);
+
+            ByteBuffer block = ByteBuffer.allocate(recordLength * 4096).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (int i = 0; i < nbPoints; i++) {
+
+                record.clear();
+                random.nextBytes(record.array());
+
+                //gps time as a valid double
+                if(pointFormatID == 1 || pointFormatID == 3){
+                    record.putDouble(20, 300000 + i * 0.00001);
+                }
+
+                if(block.remaining() < recordLength){
+                    block.flip();
+                    channel.write(block);
+                    block.clear();
+                }
+
+                block.put(record);
+            }
+
+            block.flip();
+            channel.write(block);
+        }
+    }
+
+    /**
+     * Write a las 1.4 file whose point fields are derived from the point index,
+     * see {@link #encode14(java.nio.ByteBuffer, int, int)}.
+     */
+    public static void write14(File file, int pointFormatID, int nbPoints, String[] evlrUserIDs) throws IOException {
+
+        int recordLength = FORMAT_LENGTHS_14[pointFormatID];
+        long startOfEVLR = HEADER_SIZE_14 + (long) recordLength * nbPoints;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE_14).order(ByteOrder.LITTLE_ENDIAN);
+
+        header.put(new byte[]{'L', 'A', 'S', 'F'});
+        header.position(24);
+        header.put((byte) 1); //version major
+        header.put((byte) 4); //version minor
+        header.position(94);
+        header.putShort((short) HEADER_SIZE_14);
+        header.putInt(HEADER_SIZE_14); //offset to point data
+        header.putInt(0); //number of variable length records
+        header.put((byte) pointFormatID);
+        header.putShort((short) recordLength);
+        header.putInt(0); //legacy number of point records
+        header.position(header.position() + 20); //legacy number of points by return
+        header.putDouble(0.01).putDouble(0.01).putDouble(0.001); //scale factors
+        header.putDouble(1000).putDouble(2000).putDouble(0); //offsets
+        header.putDouble(1100).putDouble(1000).putDouble(2100).putDouble(2000).putDouble(50).putDouble(0); //bounds
+        header.putLong(0); //start of waveform data packet record
+        header.putLong(startOfEVLR);
+        header.putInt(evlrUserIDs.length);
+        header.putLong(nbPoints);
+        header.putLong(nbPoints); //number of points by return
+        header.position(HEADER_SIZE_14);
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+
+            channel.write(header);
+
+            ByteBuffer record = ByteBuffer.allocate(recordLength).order(ByteOrder.LITTLE_ENDIAN);
+
+            for (int i = 0; i < nbPoints; i++) {
+
+                record.clear();
+                encode14(record, pointFormatID, i);
+                record.flip();
+
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+
+            //evlr i has i+1 bytes of data
+            for (int e = 0; e < evlrUserIDs.length; e++) {
+
+                ByteBuffer evlr = ByteBuffer.allocate(60 + e + 1).order(ByteOrder.LITTLE_ENDIAN);
+                evlr.putShort((short) 0);
+                byte[] userID = evlrUserIDs[e].getBytes(StandardCharsets.US_ASCII);
+                evlr.put(userID, 0, Math.min(16, userID.length));
+                evlr.position(18);
+                evlr.putShort((short) (1000 + e));
+                evlr.putLong(e + 1);
+                evlr.position(evlr.capacity());
+                evlr.flip();
+
+                while (evlr.hasRemaining()) {
+                    channel.write(evlr);
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode the record of the point i, the values are:
+     * x = 3i, y = -i, z = 7i + 1, intensity = 13i, return number = 1 + i % 15, number of returns = 15,
+     * flags byte = i, classification = 7i, user data = i, scan angle = i - 15000, point source = 5i,
+     * gps time = 100000 + i / 100000, red = i, green = i + 1, blue = i + 2, nir = i + 3,
+     * wave packet descriptor = i, byte offset = 100i, packet size = 4096,
+     * location = i / 2, x(t) = i, y(t) = -i, z(t) = 1 (all truncated to the field size).
+     */
+    static void encode14(ByteBuffer record, int pointFormatID, int i) {
+
+        record.putInt(0, 3 * i);
+        record.putInt(4, -i);
+        record.putInt(8, 7 * i + 1);
+        record.putShort(12, (short) (13 * i));
+
+        int gpsTimeOffset = 22, rgbOffset = -1, nirOffset = -1, wavePacketOffset = -1;
+
+        if(pointFormatID >= 6){
+            record.put(14, (byte) ((1 + i % 15) | (15 << 4)));
+            record.put(15, (byte) i);
+            record.put(16, (byte) (7 * i));
+            record.put(17, (byte) i);
+            record.putShort(18, (short) (i - 15000));
+            record.putShort(20, (short) (5 * i));
+
+            rgbOffset = (pointFormatID == 7 || pointFormatID == 8 || pointFormatID == 10) ? 30 : -1;
+            nirOffset = (pointFormatID == 8 || pointFormatID == 10) ? 36 : -1;
+            wavePacketOffset = pointFormatID == 9 ? 30 : (pointFormatID == 10 ? 38 : -1);
+        }else{
+            record.put(14, (byte) ((1 + i % 7) | (7 << 3)));
+            record.put(15, (byte) i);
+            record.put(16, (byte) i);
+            record.put(17, (byte) i);
+            record.putShort(18, (short) (5 * i));
+
+            gpsTimeOffset = (pointFormatID == 0 || pointFormatID == 2) ? -1 : 20;
+            rgbOffset = pointFormatID == 2 ? 20 : ((pointFormatID == 3 || pointFormatID == 5) ? 28 : -1);
+            wavePacketOffset = pointFormatID == 4 ? 28 : (pointFormatID == 5 ? 34 : -1);
+        }
+
+        if(gpsTimeOffset >= 0){
+            record.putDouble(gpsTimeOffset, 100000 + i / 100000.0);
+        }
+
+        if(rgbOffset >= 0){
+            record.putShort(rgbOffset, (short) i);
+            record.putShort(rgbOffset + 2, (short) (i + 1));
+            record.putShort(rgbOffset + 4, (short) (i + 2));
+        }
+
+        if(nirOffset >= 0){
+            record.putShort(nirOffset, (short) (i + 3));
+        }
+
+        if(wavePacketOffset >= 0){
+            record.put(wavePacketOffset, (byte) i);
+            record.putLong(wavePacketOffset + 1, 100L * i);
+            record.putInt(wavePacketOffset + 9, 4096);
+            record.putFloat(wavePacketOffset + 13, i / 2.0f);
+            record.putFloat(wavePacketOffset + 17, i);
+            record.putFloat(wavePacketOffset + 21, -i);
+            record.putFloat(wavePacketOffset + 25, 1);
+        }
+
+        record.position(record.limit());
+    }
+}
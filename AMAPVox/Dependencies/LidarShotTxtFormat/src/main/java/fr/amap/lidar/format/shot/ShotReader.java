@@ -5,12 +5,14 @@
  */
 package fr.amap.lidar.format.shot;
 
+import fr.amap.commons.util.io.NumberParser;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -172,9 +174,15 @@ public class ShotReader implements IterableWithException<Shot>{
             boolean newShot = true;
             List<NonEmptyShotLine> tempLines;
             int lastShotID = -1;
-            String[] tempSplit = null;
+            String tempLine = null;
             Shot currentShot = null;
             
+            //characters and columns of the current line, the numbers are parsed without creating strings
+            char[] chars = new char[256];
+            int[] columnsStart = new int[16];
+            int[] columnsEnd = new int[16];
+            int nbColumns;
+            
             @Override
             public boolean hasNext() throws Exception {
                 
@@ -216,14 +224,58 @@ public class ShotReader implements IterableWithException<Shot>{
                 return shot;
             }
             
-            private Shot getNextShot() throws Exception {
+            /**
+             * Split a line on the spaces, as {@link String#split(java.lang.String)} with " ".
+             */
+            private void split(String line){
+                
+                int length = line.length();
+                
+                if(chars.length < length){
+                    chars = new char[Math.max(length, chars.length * 2)];
+                }
+                
+                line.getChars(0, length, chars, 0);
+                
+                nbColumns = 0;
+                
+                for(int i = 0 ; i < length ; i++){
+                    
+                    int start = i;
+                    
+                    while(i < length && chars[i] != ' '){
+                        i++;
+                    }
+                    
+                    if(nbColumns == columnsStart.length){
+                        columnsStart = Arrays.copyOf(columnsStart, nbColumns * 2);
+                        columnsEnd = Arrays.copyOf(columnsEnd, nbColumns * 2);
+                    }
+                    
+                    columnsStart[nbColumns] = start;
+                    columnsEnd[nbColumns] = i;
+                    nbColumns++;
+                }
                 
-                String[] split;
+                //trailing empty columns are removed
+                while(nbColumns > 0 && columnsStart[nbColumns - 1] == columnsEnd[nbColumns - 1]){
+                    nbColumns--;
+                }
+            }
+            
+            private double getDouble(int column){
+                return NumberParser.parseDouble(chars, columnsStart[column], columnsEnd[column] - columnsStart[column]);
+            }
+            
+            private String getString(int column){
+                return new String(chars, columnsStart[column], columnsEnd[column] - columnsStart[column]);
+            }
+            
+            private Shot getNextShot() throws Exception {
                 
-                if(tempSplit != null){
-                    split = new String[tempSplit.length];
-                    System.arraycopy(tempSplit, 0, split, 0, tempSplit.length);
-                    tempSplit = null;
+                if(tempLine != null){
+                    split(tempLine);
+                    tempLine = null;
                 }else{
                     String line = getNextLine();
                     if(line == null){
@@ -236,69 +288,73 @@ public class ShotReader implements IterableWithException<Shot>{
                         }
                     }
 
-                    split = line.split(" ");
+                    split(line);
+                    currentLine = line;
                 }
                 
-                //parse split array
-                if (split.length < 7) {
+                //parse columns
+                if (nbColumns < 7) {
                     throw new Exception("Invalid column number !");
                 } else{
                     
-                    int shotID = Integer.valueOf(split[0]);
+                    int shotID = NumberParser.parseInt(chars, columnsStart[0], columnsEnd[0] - columnsStart[0]);
                     
                     if(shotID != lastShotID){ //new shot
                         if(tempLines != null && !tempLines.isEmpty()){
                             Shot buildNonEmptyShot = buildNonEmptyShot(tempLines);
                             tempLines = null;
-                            tempSplit = split;
+                            tempLine = currentLine;
                             return buildNonEmptyShot;
                         }
                     }
 
-                    double xOrigin = Double.valueOf(split[1]);
-                    double yOrigin = Double.valueOf(split[2]);
-                    double zOrigin = Double.valueOf(split[3]);
+                    double xOrigin = getDouble(1);
+                    double yOrigin = getDouble(2);
+                    double zOrigin = getDouble(3);
 
-                    double xDirection = Double.valueOf(split[4]);
-                    double yDirection = Double.valueOf(split[5]);
-                    double zDirection = Double.valueOf(split[6]);
+                    double xDirection = getDouble(4);
+                    double yDirection = getDouble(5);
+                    double zDirection = getDouble(6);
                     
-                    if (split.length == 7) { //empty shot
+                    if (nbColumns == 7) { //empty shot
                         
                         lastShotID = shotID;
                         return new Shot(shotID, xOrigin, yOrigin, zOrigin, xDirection, yDirection, zDirection);
                         
                     }else{ //non empty shot, possibly other lines
                         
-                        double range = Double.valueOf(split[7]);
+                        double range = getDouble(7);
                         
                         if(tempLines == null){
                             tempLines = new ArrayList<>();
                         }
                         
-                        Object[] objects = new Object[split.length-8];
-                        for (int i = 8, j = 0; i < split.length; i++, j++) {
+                        Object[] objects = new Object[nbColumns-8];
+                        for (int i = 8, j = 0; i < nbColumns; i++, j++) {
+                            
+                            int start = columnsStart[i];
+                            int length = columnsEnd[i] - start;
                             
                             Column.Type columnType = context.getColumnType(i);
                             switch (columnType) {
                                 case BOOLEAN:
-                                    objects[j] = Boolean.valueOf(split[i]);
+                                    objects[j] = Boolean.valueOf(getString(i));
                                     break;
                                 case DOUBLE:
-                                    objects[j] = Double.valueOf(split[i]);
+                                    objects[j] = NumberParser.parseDouble(chars, start, length);
                                     break;
                                 case FLOAT:
-                                    objects[j] = Float.valueOf(split[i]);
+                                    objects[j] = NumberParser.parseFloat(chars, start, length);
                                     break;
                                 case INTEGER:
-                                    objects[j] = Integer.valueOf(split[i]);
+                                    objects[j] = NumberParser.parseInt(chars, start, length);
                                     break;
                                 case LONG:
-                                    objects[j] = Long.valueOf(split[i]);
+                                    objects[j] = NumberParser.parseLong(chars, start, length);
                                     break;
                                 case STRING:
                                 default:
-                                    objects[j] = split[i];
+                                    objects[j] = getString(i);
                                     break;
                             }
                             